@@ -0,0 +1,437 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Micro benchmarks for RedBlackTree and RedBlackTreeEventCounter. For every tree size and ID distribution the suite
+ * measures the below operations and prints the time and the bytes allocated per operation:
+ * 1. BuildTree
+ * 2. Insert followed by Delete
+ * 3. Search
+ * 4. Successor and Predecessor
+ * 5. RangeSearch and InRange at several range widths
+ * 6. Mixed Increase and Reduce, on the pointer, the array and the persistent backends. The B/op column of the
+ * persistent backend shows the cost of copying the path of every update.
+ * 7. Count and mixed Increase and Reduce with the hash index enabled
+ * 8. Count and mixed Increase and Reduce on the B+ tree backend
+ * 9. Count and mixed Increase and Reduce on the LongKeyEventCounter
+ * 10. Mixed Increase and Reduce and InRange on the ShardedEventCounter, called from one thread, which shows the cost
+ * of handing every operation to a shard thread
+ * 11. AddToRange, alternately adding 1 to and taking 1 from the same range, so the tree keeps its shape
+ * 12. InRange over 256 repeated windows through the query cache, with and without an Increase every 16 queries
+ * 13. Count, InRange and Increase and Reduce on a memory mapped MappedTreeImage, whose changes go to delta trees
+ * Every benchmark is warmed up before it is measured and the results of every operation are consumed so the JIT cannot
+ * remove the work. Run it through the makefile in this directory, for example:
+ * make run ARGS="-sizes 1000,1000000,100000000 -distributions uniform,sequential,zipfian"
+ * The core benchmarks are also written for JMH in jmh/, which runs them in forked JVMs with the GC profiler:
+ * make jmh JMH_ARGS="-p size=1000000 -p distribution=zipfian"
+ */
+public class EventCounterBenchmark {
+
+    /**
+     * The distributions of the IDs an operation is applied to.
+     * 1. UNIFORM: IDs are spread with random gaps and queried uniformly at random.
+     * 2. SEQUENTIAL: IDs are consecutive even numbers and are queried in ascending order.
+     * 3. ZIPFIAN: IDs are spread like UNIFORM and queried with a Zipfian skew towards a scattered set of hot IDs.
+     */
+    enum Distribution {
+        UNIFORM,
+        SEQUENTIAL,
+        ZIPFIAN
+    }
+
+    /**
+     * A single benchmarked operation.
+     */
+    interface Operation {
+        /**
+         * Runs the operation once.
+         * @param index The number of the call, used to pick the ID to work on.
+         * @return A value derived from the result, which is consumed so the work cannot be optimized away.
+         */
+        long run(int index);
+    }
+
+    /**
+     * The number of pre-generated query IDs. This is a power of two.
+     */
+    private static final int QUERY_COUNT = 1 << 20;
+
+    /**
+     * The skew of the Zipfian distribution.
+     */
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    /**
+     * The range widths, in number of events, used by the range benchmarks.
+     */
+    private static final int[] RANGE_WIDTHS = {10, 1000, 100000};
+
+    /**
+     * Consumes benchmark results.
+     */
+    private static volatile long sink;
+
+    /**
+     * Holds the settings read from the command line.
+     */
+    private static int warmupIterations = 3, measuredIterations = 5;
+    private static long targetNanosPerIteration = 200_000_000L;
+
+    /**
+     * Holds the sorted IDs and counts of the events of the current fixture.
+     */
+    private int[] IDs, counts;
+
+    /**
+     * Holds the IDs to be queried, in the order of the current distribution.
+     */
+    private int[] queryIDs;
+
+    /**
+     * Holds the indices into IDs matching queryIDs, used by the range benchmarks.
+     */
+    private int[] queryIndices;
+
+    /**
+     * Runs the benchmarks.
+     * @param args Options: -sizes, -distributions, -warmups, -iterations and -millis.
+     */
+    public static void main(String[] args) {
+        int[] sizes = {1000, 1000000};
+        Distribution[] distributions = Distribution.values();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String[] values = args[i + 1].split(",");
+            switch (args[i]) {
+                case "-sizes":
+                    sizes = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        sizes[j] = Integer.parseInt(values[j]);
+                    }
+                    break;
+                case "-distributions":
+                    distributions = new Distribution[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        distributions[j] = Distribution.valueOf(values[j].toUpperCase());
+                    }
+                    break;
+                case "-warmups":
+                    warmupIterations = Integer.parseInt(values[0]);
+                    break;
+                case "-iterations":
+                    measuredIterations = Integer.parseInt(values[0]);
+                    break;
+                case "-millis":
+                    targetNanosPerIteration = Long.parseLong(values[0]) * 1_000_000L;
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        System.out.printf("%-44s %10s %12s %12s %12s%n", "Benchmark", "Size", "Distribution", "ns/op", "B/op");
+        for (int size : sizes) {
+            for (Distribution distribution : distributions) {
+                new EventCounterBenchmark().runAll(size, distribution);
+            }
+        }
+    }
+
+    /**
+     * Generates the events and queries for one tree size and distribution and runs every benchmark on them.
+     * @param size The number of events in the tree.
+     * @param distribution The distribution of the IDs.
+     */
+    private void runAll(int size, Distribution distribution) {
+        generate(size, distribution);
+        final String label = String.format("%10d %12s", size, distribution.name().toLowerCase());
+
+        ArrayList<RedBlackTree.RedBlackTreeNode> buildNodes = newNodeList();
+        RedBlackTree buildTree = new RedBlackTree();
+        measure("buildTreeFromSortedList", label, 1, index -> {
+            buildTree.buildTreeFromSortedList(buildNodes.size(), buildNodes.iterator());
+            return buildTree.size();
+        });
+        buildNodes.clear();
+
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter();
+        eventCounter.buildEventCounter(newNodeList());
+        RedBlackTree redBlackTree = eventCounter.redBlackTree;
+
+        measure("redBlackInsert+redBlackDelete", label, QUERY_COUNT, index -> {
+            int ID = queryIDs[index & (QUERY_COUNT - 1)] + 1; //IDs are at least 2 apart, so ID + 1 is never present
+            redBlackTree.redBlackInsert(ID, 1);
+            redBlackTree.redBlackDelete(redBlackTree.treeSearch(ID));
+            return ID;
+        });
+        measure("treeSearch", label, QUERY_COUNT, index -> {
+            RedBlackTree.RedBlackTreeNode node = redBlackTree.treeSearch(queryIDs[index & (QUERY_COUNT - 1)]);
+            return (node != null) ? node.getCount() : 0;
+        });
+        measure("treeSuccessor", label, QUERY_COUNT, index -> {
+            RedBlackTree.RedBlackTreeNode node =
+                    redBlackTree.treeSuccessor(redBlackTree.getRootNode(), queryIDs[index & (QUERY_COUNT - 1)]);
+            return (node != null) ? node.getID() : 0;
+        });
+        measure("treePredecessor", label, QUERY_COUNT, index -> {
+            RedBlackTree.RedBlackTreeNode node =
+                    redBlackTree.treePredecessor(redBlackTree.getRootNode(), queryIDs[index & (QUERY_COUNT - 1)]);
+            return (node != null) ? node.getID() : 0;
+        });
+        ArrayList<RedBlackTree.RedBlackTreeNode> nodesInRange = new ArrayList<>();
+        for (int width : RANGE_WIDTHS) {
+            if(width > size) {
+                continue;
+            }
+            long operations = Math.max(1, QUERY_COUNT / width);
+            measure("rangeSearch width=" + width, label, operations, index -> {
+                int first = Math.min(queryIndices[index & (QUERY_COUNT - 1)], size - width);
+                nodesInRange.clear();
+                return redBlackTree.rangeSearch(redBlackTree.getRootNode(), IDs[first], IDs[first + width - 1],
+                        nodesInRange).size();
+            });
+            measure("inRange width=" + width, label, QUERY_COUNT, index -> {
+                int first = Math.min(queryIndices[index & (QUERY_COUNT - 1)], size - width);
+                return eventCounter.inRange(IDs[first], IDs[first + width - 1]);
+            });
+        }
+        measure("increase/reduce pointer", label, QUERY_COUNT, increaseReduce(eventCounter));
+        if(size >= 1000) {
+            measure("addToRange width=1000", label, Math.max(2, QUERY_COUNT / 1000), index -> {
+                int first = Math.min(queryIndices[(index >> 1) & (QUERY_COUNT - 1)], size - 1000);
+                return eventCounter.addToRange(IDs[first], IDs[first + 999], ((index & 1) == 0) ? 1 : -1);
+            });
+        }
+
+        ArrayEventCounterBackend arrayBackend = new ArrayEventCounterBackend(size);
+        arrayBackend.arrayRedBlackTree.buildTreeFromSortedArrays(size, IDs, counts);
+        measure("increase/reduce array", label, QUERY_COUNT,
+                increaseReduce(new RedBlackTreeEventCounter(arrayBackend)));
+
+        PersistentEventCounterBackend persistentBackend = new PersistentEventCounterBackend();
+        persistentBackend.build(size, newNodeList().iterator());
+        measure("increase/reduce persistent", label, QUERY_COUNT,
+                increaseReduce(new RedBlackTreeEventCounter(persistentBackend)));
+
+        RedBlackTreeEventCounter hashedEventCounter = new RedBlackTreeEventCounter();
+        hashedEventCounter.enableHashIndex();
+        hashedEventCounter.buildEventCounter(newNodeList());
+        measure("count hashed", label, QUERY_COUNT,
+                index -> hashedEventCounter.count(queryIDs[index & (QUERY_COUNT - 1)]));
+        measure("increase/reduce hashed", label, QUERY_COUNT, increaseReduce(hashedEventCounter));
+
+        RedBlackTreeEventCounter cachedEventCounter = new RedBlackTreeEventCounter();
+        cachedEventCounter.enableQueryCache(512);
+        cachedEventCounter.buildEventCounter(newNodeList());
+        measure("inRange cached width=1000", label, QUERY_COUNT, index -> {
+            int first = Math.min(queryIndices[index & 255], Math.max(size - 1000, 0));
+            return cachedEventCounter.inRange(IDs[first], IDs[Math.min(first + 999, size - 1)]);
+        });
+        measure("inRange cached+increase width=1000", label, QUERY_COUNT, index -> {
+            if((index & 15) == 0) {
+                cachedEventCounter.increase(queryIDs[index & (QUERY_COUNT - 1)], 1);
+            }
+            int first = Math.min(queryIndices[index & 255], Math.max(size - 1000, 0));
+            return cachedEventCounter.inRange(IDs[first], IDs[Math.min(first + 999, size - 1)]);
+        });
+
+        RedBlackTreeEventCounter bPlusTreeEventCounter =
+                new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend(size));
+        bPlusTreeEventCounter.buildEventCounter(newNodeList());
+        measure("count bplus", label, QUERY_COUNT,
+                index -> bPlusTreeEventCounter.count(queryIDs[index & (QUERY_COUNT - 1)]));
+        measure("increase/reduce bplus", label, QUERY_COUNT, increaseReduce(bPlusTreeEventCounter));
+
+        try {
+            Path imagePath = Files.createTempFile("event-counter-benchmark-", ".image");
+            MappedTreeImage.write(imagePath, size, newNodeList().iterator());
+            RedBlackTreeEventCounter imageEventCounter =
+                    new RedBlackTreeEventCounter(new MappedImageEventCounterBackend(imagePath.toString(), false));
+            Files.delete(imagePath);
+            measure("count image", label, QUERY_COUNT,
+                    index -> imageEventCounter.count(queryIDs[index & (QUERY_COUNT - 1)]));
+            measure("inRange image width=1000", label, QUERY_COUNT, index -> {
+                int first = Math.min(queryIndices[index & (QUERY_COUNT - 1)], Math.max(size - 1000, 0));
+                return imageEventCounter.inRange(IDs[first], IDs[Math.min(first + 999, size - 1)]);
+            });
+            measure("increase/reduce image", label, QUERY_COUNT, increaseReduce(imageEventCounter));
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+
+        LongKeyEventCounter longKeyEventCounter = new LongKeyEventCounter();
+        long[] longIDs = new long[size];
+        long[] longCounts = new long[size];
+        for (int i = 0; i < size; i++) {
+            longIDs[i] = IDs[i];
+            longCounts[i] = counts[i];
+        }
+        longKeyEventCounter.buildEventCounter(size, longIDs, longCounts);
+        measure("count long key", label, QUERY_COUNT,
+                index -> longKeyEventCounter.count(queryIDs[index & (QUERY_COUNT - 1)]));
+        measure("increase/reduce long key", label, QUERY_COUNT, index -> {
+            long ID = queryIDs[index & (QUERY_COUNT - 1)];
+            if((index & 1) == 0) {
+                return longKeyEventCounter.increase(ID, 3);
+            } else {
+                return longKeyEventCounter.reduce(ID, 2);
+            }
+        });
+
+        RedBlackTreeEventCounter windowedEventCounter = new RedBlackTreeEventCounter();
+        windowedEventCounter.enableWindowedCounts(5000, 12);
+        windowedEventCounter.buildEventCounter(newNodeList());
+        measure("increase/reduce windowed", label, QUERY_COUNT, increaseReduce(windowedEventCounter));
+        measure("count window=60s", label, QUERY_COUNT,
+                index -> windowedEventCounter.count(queryIDs[index & (QUERY_COUNT - 1)], 60000));
+        measure("inRange window=60s width=1000", label, QUERY_COUNT, index -> {
+            int first = Math.min(queryIndices[index & (QUERY_COUNT - 1)], Math.max(size - 1000, 0));
+            return windowedEventCounter.inRange(IDs[first], IDs[Math.min(first + 999, size - 1)], 60000);
+        });
+
+        try (ShardedEventCounter shardedEventCounter = new ShardedEventCounter()) {
+            shardedEventCounter.buildEventCounter(newNodeList());
+            measure("increase/reduce sharded", label, QUERY_COUNT, index -> {
+                int ID = queryIDs[index & (QUERY_COUNT - 1)];
+                if((index & 1) == 0) {
+                    return shardedEventCounter.increase(ID, 3);
+                } else {
+                    return shardedEventCounter.reduce(ID, 2);
+                }
+            });
+            measure("inRange sharded width=1000", label, QUERY_COUNT, index -> {
+                int first = Math.min(queryIndices[index & (QUERY_COUNT - 1)], Math.max(size - 1000, 0));
+                return shardedEventCounter.inRange(IDs[first], IDs[Math.min(first + 999, size - 1)]);
+            });
+        }
+    }
+
+    /**
+     * Returns an operation which alternately increases and reduces the count of the queried IDs. Reductions may delete
+     * events which later increases insert again.
+     * @param eventCounter The event counter to be updated.
+     * @return The operation.
+     */
+    private Operation increaseReduce(RedBlackTreeEventCounter eventCounter) {
+        return index -> {
+            int ID = queryIDs[index & (QUERY_COUNT - 1)];
+            if((index & 1) == 0) {
+                return eventCounter.increase(ID, 3);
+            } else {
+                return eventCounter.reduce(ID, 2);
+            }
+        };
+    }
+
+    /**
+     * Runs warm up iterations followed by measured iterations of an operation and prints the average time and the
+     * bytes allocated per call of the measured iterations.
+     * @param name The name of the benchmark.
+     * @param label The size and distribution column of the output.
+     * @param minimumCalls The smallest number of calls per iteration.
+     * @param operation The operation to be measured.
+     */
+    private static void measure(String name, String label, long minimumCalls, Operation operation) {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadID = Thread.currentThread().getId();
+        long calls = minimumCalls;
+        long totalNanos = 0, totalBytes = 0, totalCalls = 0;
+        for (int iteration = 0; iteration < warmupIterations + measuredIterations; iteration++) {
+            long bytesBefore = threadMXBean.getThreadAllocatedBytes(threadID);
+            long start = System.nanoTime();
+            long result = 0;
+            for (long call = 0; call < calls; call++) {
+                result += operation.run((int) call);
+            }
+            long elapsed = System.nanoTime() - start;
+            long bytes = threadMXBean.getThreadAllocatedBytes(threadID) - bytesBefore;
+            sink += result;
+            if(iteration >= warmupIterations) {
+                totalNanos += elapsed;
+                totalBytes += bytes;
+                totalCalls += calls;
+            } else if(elapsed < targetNanosPerIteration / 2) {
+                calls = Math.max(calls, calls * targetNanosPerIteration / Math.max(elapsed, 1)); //Scale up short runs
+            }
+        }
+        System.out.printf("%-44s %s %12.1f %12.2f%n", name, label, (double) totalNanos / totalCalls,
+                (double) totalBytes / totalCalls);
+    }
+
+    /**
+     * Generates size sorted events and the query IDs for a distribution.
+     * @param size The number of events.
+     * @param distribution The distribution of the IDs.
+     */
+    private void generate(int size, Distribution distribution) {
+        Random random = new Random(size * 31L + distribution.ordinal());
+        IDs = new int[size];
+        counts = new int[size];
+        int maximumGap = Math.max(2, (int) Math.min(64, (Integer.MAX_VALUE / 2) / Math.max(size, 1)));
+        int ID = 0;
+        for (int i = 0; i < size; i++) {
+            ID += (distribution == Distribution.SEQUENTIAL) ? 2 : 2 + random.nextInt(maximumGap - 1);
+            IDs[i] = ID;
+            counts[i] = 1 + random.nextInt(100);
+        }
+        queryIndices = new int[QUERY_COUNT];
+        switch (distribution) {
+            case SEQUENTIAL:
+                for (int i = 0; i < QUERY_COUNT; i++) {
+                    queryIndices[i] = i % size;
+                }
+                break;
+            case UNIFORM:
+                for (int i = 0; i < QUERY_COUNT; i++) {
+                    queryIndices[i] = random.nextInt(size);
+                }
+                break;
+            case ZIPFIAN:
+                double zeta = 0;
+                for (int rank = 1; rank <= size; rank++) {
+                    zeta += 1 / Math.pow(rank, ZIPF_EXPONENT);
+                }
+                double zeta2 = 1 + 1 / Math.pow(2, ZIPF_EXPONENT);
+                double alpha = 1 / (1 - ZIPF_EXPONENT);
+                double eta = (1 - Math.pow(2.0 / size, 1 - ZIPF_EXPONENT)) / (1 - zeta2 / zeta);
+                for (int i = 0; i < QUERY_COUNT; i++) {
+                    double u = random.nextDouble();
+                    double uz = u * zeta;
+                    long rank;
+                    if(uz < 1) {
+                        rank = 0;
+                    } else if(uz < zeta2) {
+                        rank = 1;
+                    } else {
+                        rank = (long) (size * Math.pow(eta * u - eta + 1, alpha));
+                    }
+                    //Scatter the hot ranks over the ID space instead of bunching them at the low IDs
+                    queryIndices[i] = (int) Math.floorMod(Math.min(rank, size - 1) * 0x9E3779B97F4A7C15L, (long) size);
+                }
+                break;
+            default:
+                break;
+        }
+        queryIDs = new int[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            queryIDs[i] = IDs[queryIndices[i]];
+        }
+    }
+
+    /**
+     * Returns a fresh list of nodes for the events of the current fixture.
+     * @return The list of nodes in ascending order of ID.
+     */
+    private ArrayList<RedBlackTree.RedBlackTreeNode> newNodeList() {
+        ArrayList<RedBlackTree.RedBlackTreeNode> nodes = new ArrayList<>(IDs.length);
+        for (int i = 0; i < IDs.length; i++) {
+            nodes.add(new RedBlackTree.RedBlackTreeNode(IDs[i], counts[i]));
+        }
+        return nodes;
+    }
+}
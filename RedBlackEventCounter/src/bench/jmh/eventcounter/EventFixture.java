@@ -0,0 +1,131 @@
+package eventcounter;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The events and the query IDs shared by the JMH benchmarks, generated once per trial for every size and distribution
+ * the same way EventCounterBenchmark generates them:
+ * 1. uniform: IDs are spread with random gaps and queried uniformly at random.
+ * 2. sequential: IDs are consecutive even numbers and are queried in ascending order.
+ * 3. zipfian: IDs are spread like uniform and queried with a Zipfian skew towards a scattered set of hot IDs.
+ * Sizes of 100000000 events need a larger heap than the forks get by default, for example
+ * -p size=100000000 -jvmArgsAppend -Xmx32g
+ */
+@State(Scope.Benchmark)
+public class EventFixture {
+
+    /**
+     * The number of pre-generated query IDs. This is a power of two.
+     */
+    static final int QUERY_COUNT = 1 << 20;
+
+    /**
+     * The skew of the Zipfian distribution.
+     */
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    /**
+     * Holds the number of events.
+     */
+    @Param({"1000", "1000000"})
+    int size;
+
+    /**
+     * Holds the distribution of the IDs.
+     */
+    @Param({"uniform", "sequential", "zipfian"})
+    String distribution;
+
+    /**
+     * Holds the sorted IDs and counts of the events.
+     */
+    int[] IDs, counts;
+
+    /**
+     * Holds the IDs to be queried, in the order of the distribution.
+     */
+    int[] queryIDs;
+
+    /**
+     * Holds the indices into IDs matching queryIDs, used by the range benchmarks.
+     */
+    int[] queryIndices;
+
+    /**
+     * Generates the sorted events and the query IDs.
+     */
+    @Setup(Level.Trial)
+    public void generate() {
+        Random random = new Random(size * 31L + distribution.hashCode());
+        IDs = new int[size];
+        counts = new int[size];
+        int maximumGap = Math.max(2, (int) Math.min(64, (Integer.MAX_VALUE / 2) / Math.max(size, 1)));
+        int ID = 0;
+        for (int i = 0; i < size; i++) {
+            ID += distribution.equals("sequential") ? 2 : 2 + random.nextInt(maximumGap - 1);
+            IDs[i] = ID;
+            counts[i] = 1 + random.nextInt(100);
+        }
+        queryIndices = new int[QUERY_COUNT];
+        switch (distribution) {
+            case "sequential":
+                for (int i = 0; i < QUERY_COUNT; i++) {
+                    queryIndices[i] = i % size;
+                }
+                break;
+            case "uniform":
+                for (int i = 0; i < QUERY_COUNT; i++) {
+                    queryIndices[i] = random.nextInt(size);
+                }
+                break;
+            case "zipfian":
+                double zeta = 0;
+                for (int rank = 1; rank <= size; rank++) {
+                    zeta += 1 / Math.pow(rank, ZIPF_EXPONENT);
+                }
+                double zeta2 = 1 + 1 / Math.pow(2, ZIPF_EXPONENT);
+                double alpha = 1 / (1 - ZIPF_EXPONENT);
+                double eta = (1 - Math.pow(2.0 / size, 1 - ZIPF_EXPONENT)) / (1 - zeta2 / zeta);
+                for (int i = 0; i < QUERY_COUNT; i++) {
+                    double u = random.nextDouble();
+                    double uz = u * zeta;
+                    long rank;
+                    if(uz < 1) {
+                        rank = 0;
+                    } else if(uz < zeta2) {
+                        rank = 1;
+                    } else {
+                        rank = (long) (size * Math.pow(eta * u - eta + 1, alpha));
+                    }
+                    //Scatter the hot ranks over the ID space instead of bunching them at the low IDs
+                    queryIndices[i] = (int) Math.floorMod(Math.min(rank, size - 1) * 0x9E3779B97F4A7C15L, (long) size);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+        queryIDs = new int[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            queryIDs[i] = IDs[queryIndices[i]];
+        }
+    }
+
+    /**
+     * Returns a fresh list of nodes for the events.
+     * @return The list of nodes in ascending order of ID.
+     */
+    ArrayList<RedBlackTree.RedBlackTreeNode> newNodeList() {
+        ArrayList<RedBlackTree.RedBlackTreeNode> nodes = new ArrayList<>(IDs.length);
+        for (int i = 0; i < IDs.length; i++) {
+            nodes.add(new RedBlackTree.RedBlackTreeNode(IDs[i], counts[i]));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,91 @@
+package eventcounter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of RangeSearch, which visits every event of a range, and InRange, which sums a range in O(lg n) time
+ * from the subtree sums. Each call covers width consecutive events starting at the next query index of the fixture.
+ * A width greater than the number of events covers all of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-XX:+UseParallelGC"})
+public class RangeBenchmark {
+
+    /**
+     * Holds the number of events in a range.
+     */
+    @Param({"10", "1000", "100000"})
+    int width;
+
+    /**
+     * Holds the event counter built from the events of the fixture.
+     */
+    private RedBlackTreeEventCounter eventCounter;
+
+    /**
+     * Holds the list which RangeSearch fills, reused so that only the search is measured.
+     */
+    private final ArrayList<RedBlackTree.RedBlackTreeNode> nodesInRange = new ArrayList<>();
+
+    /**
+     * Holds the number of the next query index.
+     */
+    private int index = 0;
+
+    /**
+     * Builds the event counter.
+     * @param fixture The events.
+     */
+    @Setup(Level.Trial)
+    public void setUp(EventFixture fixture) {
+        eventCounter = new RedBlackTreeEventCounter();
+        eventCounter.buildEventCounter(fixture.newNodeList());
+    }
+
+    /**
+     * Returns the index of the first event of the next range.
+     * @param fixture The events.
+     * @param rangeWidth The number of events in the range.
+     * @return The index into the IDs of the fixture.
+     */
+    private int nextRangeStart(EventFixture fixture, int rangeWidth) {
+        return Math.min(fixture.queryIndices[index++ & (EventFixture.QUERY_COUNT - 1)], fixture.size - rangeWidth);
+    }
+
+    @Benchmark
+    public void rangeSearch(EventFixture fixture, Blackhole blackhole) {
+        int rangeWidth = Math.min(width, fixture.size);
+        int first = nextRangeStart(fixture, rangeWidth);
+        nodesInRange.clear();
+        RedBlackTree redBlackTree = eventCounter.redBlackTree;
+        redBlackTree.rangeSearch(redBlackTree.getRootNode(), fixture.IDs[first], fixture.IDs[first + rangeWidth - 1],
+                nodesInRange);
+        blackhole.consume(nodesInRange.size());
+    }
+
+    @Benchmark
+    public long inRange(EventFixture fixture) {
+        int rangeWidth = Math.min(width, fixture.size);
+        int first = nextRangeStart(fixture, rangeWidth);
+        return eventCounter.inRange(fixture.IDs[first], fixture.IDs[first + rangeWidth - 1]);
+    }
+}
@@ -0,0 +1,106 @@
+package eventcounter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the single node operations of RedBlackTree:
+ * 1. BuildTree
+ * 2. Insert followed by Delete
+ * 3. Search
+ * 4. Successor and Predecessor
+ * Every call works on the next query ID of the fixture, so the IDs follow its distribution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-XX:+UseParallelGC"})
+public class TreeBenchmark {
+
+    /**
+     * Holds the tree built from the events of the fixture.
+     */
+    private RedBlackTree redBlackTree;
+
+    /**
+     * Holds the nodes which BuildTree links again on every call.
+     */
+    private ArrayList<RedBlackTree.RedBlackTreeNode> buildNodes;
+
+    /**
+     * Holds the tree which BuildTree builds.
+     */
+    private RedBlackTree buildTree;
+
+    /**
+     * Holds the number of the next query ID.
+     */
+    private int index = 0;
+
+    /**
+     * Builds the trees.
+     * @param fixture The events.
+     */
+    @Setup(Level.Trial)
+    public void setUp(EventFixture fixture) {
+        redBlackTree = new RedBlackTree();
+        ArrayList<RedBlackTree.RedBlackTreeNode> nodes = fixture.newNodeList();
+        redBlackTree.buildTreeFromSortedList(nodes.size(), nodes.iterator());
+        buildNodes = fixture.newNodeList();
+        buildTree = new RedBlackTree();
+    }
+
+    /**
+     * Returns the next query ID.
+     * @param fixture The events.
+     * @return The ID.
+     */
+    private int nextQueryID(EventFixture fixture) {
+        return fixture.queryIDs[index++ & (EventFixture.QUERY_COUNT - 1)];
+    }
+
+    @Benchmark
+    public int buildTreeFromSortedList() {
+        buildTree.buildTreeFromSortedList(buildNodes.size(), buildNodes.iterator());
+        return buildTree.size();
+    }
+
+    @Benchmark
+    public void redBlackInsertAndDelete(EventFixture fixture, Blackhole blackhole) {
+        int ID = nextQueryID(fixture) + 1; //IDs are at least 2 apart, so ID + 1 is never present
+        redBlackTree.redBlackInsert(ID, 1);
+        RedBlackTree.RedBlackTreeNode inserted = redBlackTree.treeSearch(ID);
+        blackhole.consume(inserted);
+        redBlackTree.redBlackDelete(inserted);
+    }
+
+    @Benchmark
+    public RedBlackTree.RedBlackTreeNode treeSearch(EventFixture fixture) {
+        return redBlackTree.treeSearch(nextQueryID(fixture));
+    }
+
+    @Benchmark
+    public RedBlackTree.RedBlackTreeNode treeSuccessor(EventFixture fixture) {
+        return redBlackTree.treeSuccessor(redBlackTree.getRootNode(), nextQueryID(fixture));
+    }
+
+    @Benchmark
+    public RedBlackTree.RedBlackTreeNode treePredecessor(EventFixture fixture) {
+        return redBlackTree.treePredecessor(redBlackTree.getRootNode(), nextQueryID(fixture));
+    }
+}
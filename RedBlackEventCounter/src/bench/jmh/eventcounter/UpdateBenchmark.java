@@ -0,0 +1,128 @@
+package eventcounter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of RedBlackTreeEventCounter on each of its backends:
+ * 1. Mixed Increase and Reduce, one of each per call. Reductions may delete events which later increases insert
+ * again. The gc.alloc.rate.norm column of the GC profiler shows the bytes allocated per call, for example the path
+ * copied by every update of the persistent backend.
+ * 2. Count
+ * The backends are pointer (the default tree), hashed (the tree with the hash index), array, bplus, persistent and
+ * image (the memory mapped MappedTreeImage).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-XX:+UseParallelGC"})
+public class UpdateBenchmark {
+
+    /**
+     * Holds the backend under test.
+     */
+    @Param({"pointer", "hashed", "array", "bplus", "persistent", "image"})
+    String backend;
+
+    /**
+     * Holds the event counter built from the events of the fixture.
+     */
+    private RedBlackTreeEventCounter eventCounter;
+
+    /**
+     * Holds the image backend so it can be closed, or null.
+     */
+    private MappedImageEventCounterBackend imageBackend;
+
+    /**
+     * Holds the number of the next query ID.
+     */
+    private int index = 0;
+
+    /**
+     * Builds the event counter on the backend.
+     * @param fixture The events.
+     * @throws IOException If the image cannot be written.
+     */
+    @Setup(Level.Trial)
+    public void setUp(EventFixture fixture) throws IOException {
+        switch (backend) {
+            case "pointer":
+                eventCounter = new RedBlackTreeEventCounter();
+                break;
+            case "hashed":
+                eventCounter = new RedBlackTreeEventCounter();
+                eventCounter.enableHashIndex();
+                break;
+            case "array":
+                eventCounter = new RedBlackTreeEventCounter(new ArrayEventCounterBackend(fixture.size));
+                break;
+            case "bplus":
+                eventCounter = new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend(fixture.size));
+                break;
+            case "persistent":
+                eventCounter = new RedBlackTreeEventCounter(new PersistentEventCounterBackend());
+                break;
+            case "image":
+                Path imagePath = Files.createTempFile("event-counter-benchmark-", ".image");
+                MappedTreeImage.write(imagePath, fixture.size, fixture.newNodeList().iterator());
+                imageBackend = new MappedImageEventCounterBackend(imagePath.toString(), false);
+                Files.delete(imagePath);
+                eventCounter = new RedBlackTreeEventCounter(imageBackend);
+                return;
+            default:
+                throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+        eventCounter.buildEventCounter(fixture.newNodeList());
+    }
+
+    /**
+     * Releases the image backend.
+     * @throws IOException If the image cannot be closed.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if(imageBackend != null) {
+            imageBackend.close();
+        }
+    }
+
+    /**
+     * Returns the next query ID.
+     * @param fixture The events.
+     * @return The ID.
+     */
+    private int nextQueryID(EventFixture fixture) {
+        return fixture.queryIDs[index++ & (EventFixture.QUERY_COUNT - 1)];
+    }
+
+    @Benchmark
+    public void increaseAndReduce(EventFixture fixture, Blackhole blackhole) {
+        blackhole.consume(eventCounter.increase(nextQueryID(fixture), 3));
+        blackhole.consume(eventCounter.reduce(nextQueryID(fixture), 2));
+    }
+
+    @Benchmark
+    public long count(EventFixture fixture) {
+        return eventCounter.count(nextQueryID(fixture));
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.Iterator;
+
+/**
+ * This class uses the primitive array Red Black Tree defined in ArrayRedBlackTree.java as a backend for
+ * RedBlackTreeEventCounter. Events returned by next and previous are detached copies of the stored events, as the
+ * tree holds no node objects.
+ */
+public class ArrayEventCounterBackend implements EventCounterBackend {
+    ArrayRedBlackTree arrayRedBlackTree;
+
+    /**
+     * Holds what is done with a count which overflows.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * Creates a backend with room for a default number of events.
+     */
+    public ArrayEventCounterBackend() {
+        overflowPolicy = CountOverflowPolicy.PROMOTE;
+        arrayRedBlackTree = new ArrayRedBlackTree();
+    }
+
+    /**
+     * Creates a backend with room for capacity events before the tree has to grow. Counts which do not fit an int are
+     * promoted to 64 bits.
+     * @param capacity The number of events to allocate room for.
+     */
+    public ArrayEventCounterBackend(int capacity) {
+        this(capacity, CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Creates a backend with room for capacity events before the tree has to grow.
+     * @param capacity The number of events to allocate room for.
+     * @param overflowPolicy What is done with a count which does not fit an int.
+     */
+    public ArrayEventCounterBackend(int capacity, CountOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        arrayRedBlackTree = new ArrayRedBlackTree(capacity, overflowPolicy);
+    }
+
+    @Override
+    public void build(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        arrayRedBlackTree.buildTreeFromSortedList(size, iterator);
+    }
+
+    @Override
+    public long increase(int ID, int amount) {
+        long added = overflowPolicy.limitTotal(arrayRedBlackTree.getTotalCount(), amount);
+        int node = arrayRedBlackTree.treeSearch(ID);
+        if(node != ArrayRedBlackTree.NIL) {
+            return arrayRedBlackTree.setCount(node, overflowPolicy.add(arrayRedBlackTree.getCount(node), added));
+        } else if(added > 0) {
+            arrayRedBlackTree.redBlackInsert(ID, added);
+            return added;
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public long reduce(int ID, int amount) {
+        int node = arrayRedBlackTree.treeSearch(ID);
+        if(node != ArrayRedBlackTree.NIL) {
+            if(amount >= arrayRedBlackTree.getCount(node)) {
+                arrayRedBlackTree.redBlackDelete(node);
+                return 0;
+            } else {
+                return arrayRedBlackTree.setCount(node, arrayRedBlackTree.getCount(node) - amount);
+            }
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public long count(int ID) {
+        int node = arrayRedBlackTree.treeSearch(ID);
+        if(node != ArrayRedBlackTree.NIL) {
+            return arrayRedBlackTree.getCount(node);
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public long inRange(int ID1, int ID2) {
+        return arrayRedBlackTree.rangeSum(ID1, ID2);
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode next(int ID) {
+        return eventAt(arrayRedBlackTree.treeSuccessor(ID));
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        return eventAt(arrayRedBlackTree.treePredecessor(ID));
+    }
+
+    /**
+     * Copies the event stored at a node into a detached RedBlackTreeNode.
+     * @param node The index of the node.
+     * @return The copied event or null if node is NIL.
+     */
+    private RedBlackTree.RedBlackTreeNode eventAt(int node) {
+        if(node == ArrayRedBlackTree.NIL) {
+            return null;
+        }
+        return new RedBlackTree.RedBlackTreeNode(arrayRedBlackTree.getID(node), arrayRedBlackTree.getCount(node));
+    }
+}
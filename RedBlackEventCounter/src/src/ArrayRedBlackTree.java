@@ -0,0 +1,856 @@
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * This class defines a Red Black Tree whose nodes are stored in parallel primitive arrays instead of objects. A node is
+ * identified by its int index into the arrays and the color is packed into the sign bit of the parent index, so a node
+ * costs six ints and the garbage collector never has to trace the tree. Index 0 is a black sentinel used in place of
+ * null. Counts and subtree sums are kept as ints. The first count or subtree sum which does not fit an int allocates
+ * an array of the high words of all counts or all subtree sums, so only that update allocates. A count which leaves
+ * the int range is handled by the CountOverflowPolicy of the tree. The tree exposes the same operations as
+ * RedBlackTree:
+ * 1. Insert
+ * 2. Delete
+ * 3. Search
+ * 4. Minimum
+ * 5. Maximum
+ * 6. Successor
+ * 7. Predecessor
+ * 8. BuildTree
+ * 9. RangeSum
+ * Indices of deleted nodes are recycled by later inserts, so an index must not be used after its node is deleted.
+ */
+public class ArrayRedBlackTree {
+
+    /**
+     * The index of the sentinel node which stands for null.
+     */
+    public static final int NIL = 0;
+
+    /**
+     * The bit of a parent index which marks the node as red.
+     */
+    private static final int RED_BIT = 0x80000000;
+
+    /**
+     * The default number of nodes to allocate room for.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Hold the ID and the low word of the count of every node
+     */
+    private int[] IDs, counts;
+
+    /**
+     * Holds the low word of the sum of the counts in the subtree rooted at every node
+     */
+    private int[] subtreeSums;
+
+    /**
+     * Holds the high word of the count of every node, or null while every count fits an int
+     */
+    private int[] countHighWords = null;
+
+    /**
+     * Holds the high word of the subtree sum of every node, or null while every subtree sum fits an int
+     */
+    private int[] subtreeSumHighWords = null;
+
+    /**
+     * Hold the indices of the left and right children of every node
+     */
+    private int[] leftChildren, rightChildren;
+
+    /**
+     * Holds the index of the parent of every node with the color packed into the sign bit
+     */
+    private int[] parentsAndColors;
+
+    /**
+     * Holds what is done with a count which does not fit an int.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * Holds the index of the root node.
+     */
+    private int rootIndex = NIL;
+
+    /**
+     * Holds the number of nodes in the tree.
+     */
+    private int size = 0;
+
+    /**
+     * Holds the lowest index which has never been handed out.
+     */
+    private int nextUnusedIndex = 1;
+
+    /**
+     * Holds the head of the list of recycled indices. The list is linked through the left children array.
+     */
+    private int freeListHead = NIL;
+
+    /**
+     * Creates an empty tree with room for a default number of nodes.
+     */
+    public ArrayRedBlackTree() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty tree with room for capacity nodes before the arrays have to grow. Counts which do not fit an
+     * int are promoted to 64 bits.
+     * @param capacity The number of nodes to allocate room for.
+     */
+    public ArrayRedBlackTree(int capacity) {
+        this(capacity, CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Creates an empty tree with room for capacity nodes before the arrays have to grow.
+     * @param capacity The number of nodes to allocate room for.
+     * @param overflowPolicy What is done with a count which does not fit an int.
+     */
+    public ArrayRedBlackTree(int capacity, CountOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        allocate(Math.max(capacity, 1) + 1);
+    }
+
+    /**
+     * Returns the index of the root node.
+     * @return The index of the root node or NIL if the tree is empty.
+     */
+    public int getRootIndex() {
+        return rootIndex;
+    }
+
+    /**
+     * Returns the number of nodes in the tree.
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the sum of the counts of all nodes in the tree.
+     * @return The total count.
+     */
+    public long getTotalCount() {
+        return getSubtreeSum(rootIndex);
+    }
+
+    /**
+     * Returns the ID of a node.
+     * @param node The index of the node.
+     * @return The ID
+     */
+    public int getID(int node) {
+        return IDs[node];
+    }
+
+    /**
+     * Returns the count value stored in a node.
+     * @param node The index of the node.
+     * @return The count of the node
+     */
+    public long getCount(int node) {
+        if(countHighWords == null) {
+            return counts[node];
+        }
+        return ((long) countHighWords[node] << 32) | (counts[node] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the sum of the counts in the subtree rooted at a node.
+     * @param node The index of the node.
+     * @return The subtree sum
+     */
+    public long getSubtreeSum(int node) {
+        if(subtreeSumHighWords == null) {
+            return subtreeSums[node];
+        }
+        return ((long) subtreeSumHighWords[node] << 32) | (subtreeSums[node] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Saves a count value in a node and adjusts the subtree sums of the node and all its ancestors. This runs in
+     * O(lg n) time.
+     * @param node The index of the node.
+     * @param count The count value to be stored in the node.
+     * @return The count stored, which differs from count if it was saturated.
+     * @throws ArithmeticException If count does not fit an int and the policy is THROW.
+     */
+    public long setCount(int node, long count) {
+        count = fitCount(count);
+        long difference = count - getCount(node);
+        storeCount(node, count);
+        for(; node != NIL; node = parentOf(node)) {
+            storeSubtreeSum(node, getSubtreeSum(node) + difference);
+        }
+        return count;
+    }
+
+    /**
+     * Inserts a node with the given ID and count into the tree. If the ID is already present its count is replaced.
+     * @param ID The key of the node to be inserted into the tree.
+     * @param count The data value of the node to be inserted into the tree.
+     * @return The index of the node holding ID.
+     * @throws ArithmeticException If count does not fit an int and the policy is THROW.
+     */
+    public int redBlackInsert(int ID, long count) {
+        count = fitCount(count);
+        int parent = NIL;
+        int tempNode = rootIndex;
+        while (tempNode != NIL) {
+            parent = tempNode;
+            if(ID < IDs[tempNode]) {
+                tempNode = leftChildren[tempNode];
+            } else if(ID > IDs[tempNode]) {
+                tempNode = rightChildren[tempNode];
+            } else {
+                setCount(tempNode, count);
+                return tempNode;
+            }
+        }
+        int newNode = allocateNode(ID, count);
+        parentsAndColors[newNode] = parent | RED_BIT; //Initialize nodes with RED color
+        if(parent == NIL) {
+            rootIndex = newNode;
+        } else if(ID < IDs[parent]) {
+            leftChildren[parent] = newNode;
+        } else {
+            rightChildren[parent] = newNode;
+        }
+        for(int ancestor = parent; ancestor != NIL; ancestor = parentOf(ancestor)) {
+            storeSubtreeSum(ancestor, getSubtreeSum(ancestor) + count);
+        }
+        redBlackInsertFixUp(newNode);
+        size++;
+        return newNode;
+    }
+
+    /**
+     * Restores the red black properties which might have been violated after insertion of a new node.
+     * @param node The index of the newly inserted node.
+     */
+    private void redBlackInsertFixUp(int node) {
+        while (isRed(parentOf(node))) {
+            int parent = parentOf(node);
+            int grandParent = parentOf(parent);
+            if(parent == leftChildren[grandParent]) {
+                int uncle = rightChildren[grandParent];
+                if(isRed(uncle)) {
+                    setBlack(parent);
+                    setBlack(uncle);
+                    setRed(grandParent);
+                    node = grandParent;
+                } else {
+                    if(node == rightChildren[parent]) {
+                        node = parent;
+                        leftRotate(node);
+                        parent = parentOf(node);
+                    }
+                    setBlack(parent);
+                    setRed(grandParent);
+                    rightRotate(grandParent);
+                }
+            } else {
+                int uncle = leftChildren[grandParent];
+                if(isRed(uncle)) {
+                    setBlack(parent);
+                    setBlack(uncle);
+                    setRed(grandParent);
+                    node = grandParent;
+                } else {
+                    if(node == leftChildren[parent]) {
+                        node = parent;
+                        rightRotate(node);
+                        parent = parentOf(node);
+                    }
+                    setBlack(parent);
+                    setRed(grandParent);
+                    leftRotate(grandParent);
+                }
+            }
+        }
+        setBlack(rootIndex);
+    }
+
+    /**
+     * Performs left rotation on the subtree to restore balance.
+     * @param node The index of the node on which left rotation has to be performed.
+     */
+    private void leftRotate(int node) {
+        int right = rightChildren[node];
+        rightChildren[node] = leftChildren[right]; //Turn right's left subtree into node's right subtree.
+        if(leftChildren[right] != NIL) {
+            setParent(leftChildren[right], node);
+        }
+        int parent = parentOf(node);
+        setParent(right, parent); //Link node's parent to right
+        if(parent == NIL) {
+            rootIndex = right;
+        } else if(node == leftChildren[parent]) {
+            leftChildren[parent] = right;
+        } else {
+            rightChildren[parent] = right;
+        }
+        leftChildren[right] = node; //Put node on right's left
+        setParent(node, right);
+        storeSubtreeSum(right, getSubtreeSum(node));
+        updateSubtreeSum(node);
+    }
+
+    /**
+     * Performs right rotation on the subtree to restore balance.
+     * @param node The index of the node on which right rotation has to be performed.
+     */
+    private void rightRotate(int node) {
+        int left = leftChildren[node];
+        leftChildren[node] = rightChildren[left]; //Turn left's right subtree into node's left subtree.
+        if(rightChildren[left] != NIL) {
+            setParent(rightChildren[left], node);
+        }
+        int parent = parentOf(node);
+        setParent(left, parent); //Link node's parent to left
+        if(parent == NIL) {
+            rootIndex = left;
+        } else if(node == rightChildren[parent]) {
+            rightChildren[parent] = left;
+        } else {
+            leftChildren[parent] = left;
+        }
+        rightChildren[left] = node; //Put node on left's right
+        setParent(node, left);
+        storeSubtreeSum(left, getSubtreeSum(node));
+        updateSubtreeSum(node);
+    }
+
+    /**
+     * Deletes a node from the tree and re-balances the tree. The index of the node is recycled.
+     * @param nodeToDelete The index of the node to be deleted.
+     */
+    public void redBlackDelete(int nodeToDelete) {
+        int replacementNode = nodeToDelete;
+        boolean replacementNodeOriginallyRed = isRed(replacementNode);
+        int replacementSuccessor;
+        if(leftChildren[nodeToDelete] == NIL) {
+            replacementSuccessor = rightChildren[nodeToDelete];
+            redBlackTransplant(nodeToDelete, replacementSuccessor);
+        } else if(rightChildren[nodeToDelete] == NIL) {
+            replacementSuccessor = leftChildren[nodeToDelete];
+            redBlackTransplant(nodeToDelete, replacementSuccessor);
+        } else {
+            replacementNode = treeMinimum(rightChildren[nodeToDelete]);
+            replacementNodeOriginallyRed = isRed(replacementNode);
+            replacementSuccessor = rightChildren[replacementNode];
+            if(parentOf(replacementNode) == nodeToDelete) {
+                setParent(replacementSuccessor, replacementNode); //The sentinel's parent is used by the fix up
+            } else {
+                redBlackTransplant(replacementNode, replacementSuccessor);
+                rightChildren[replacementNode] = rightChildren[nodeToDelete];
+                setParent(rightChildren[replacementNode], replacementNode);
+            }
+            redBlackTransplant(nodeToDelete, replacementNode);
+            leftChildren[replacementNode] = leftChildren[nodeToDelete];
+            setParent(leftChildren[replacementNode], replacementNode);
+            if(isRed(nodeToDelete)) {
+                setRed(replacementNode);
+            } else {
+                setBlack(replacementNode);
+            }
+        }
+        for(int ancestor = parentOf(replacementSuccessor); ancestor != NIL; ancestor = parentOf(ancestor)) {
+            updateSubtreeSum(ancestor);
+        }
+        if(!replacementNodeOriginallyRed) {
+            redBlackDeleteFixUp(replacementSuccessor);
+        }
+        parentsAndColors[NIL] = NIL;
+        freeNode(nodeToDelete);
+        size--;
+    }
+
+    /**
+     * Replaces one subtree as a child of its parent with another subtree.
+     * @param nodeToReplace The index of the root of the subtree to be replaced.
+     * @param nodeToReplaceWith The index of the root of the subtree which replaces the original node.
+     */
+    private void redBlackTransplant(int nodeToReplace, int nodeToReplaceWith) {
+        int parent = parentOf(nodeToReplace);
+        if(parent == NIL) {
+            rootIndex = nodeToReplaceWith;
+        } else if(nodeToReplace == leftChildren[parent]) {
+            leftChildren[parent] = nodeToReplaceWith;
+        } else {
+            rightChildren[parent] = nodeToReplaceWith;
+        }
+        setParent(nodeToReplaceWith, parent);
+    }
+
+    /**
+     * Restores the red black properties that might have been violated after deletion of a node.
+     * @param node The index of the root of the subtree which needs to be re-balanced. This may be the sentinel.
+     */
+    private void redBlackDeleteFixUp(int node) {
+        while (node != rootIndex && !isRed(node)) {
+            int parent = parentOf(node);
+            if(node == leftChildren[parent]) {
+                int siblingNode = rightChildren[parent];
+                if(isRed(siblingNode)) {
+                    setBlack(siblingNode);
+                    setRed(parent);
+                    leftRotate(parent);
+                    siblingNode = rightChildren[parent];
+                }
+                if(!isRed(leftChildren[siblingNode]) && !isRed(rightChildren[siblingNode])) {
+                    setRed(siblingNode);
+                    node = parent;
+                } else {
+                    if(!isRed(rightChildren[siblingNode])) {
+                        setBlack(leftChildren[siblingNode]);
+                        setRed(siblingNode);
+                        rightRotate(siblingNode);
+                        siblingNode = rightChildren[parent];
+                    }
+                    copyColor(parent, siblingNode);
+                    setBlack(parent);
+                    setBlack(rightChildren[siblingNode]);
+                    leftRotate(parent);
+                    node = rootIndex;
+                }
+            } else {
+                int siblingNode = leftChildren[parent];
+                if(isRed(siblingNode)) {
+                    setBlack(siblingNode);
+                    setRed(parent);
+                    rightRotate(parent);
+                    siblingNode = leftChildren[parent];
+                }
+                if(!isRed(rightChildren[siblingNode]) && !isRed(leftChildren[siblingNode])) {
+                    setRed(siblingNode);
+                    node = parent;
+                } else {
+                    if(!isRed(leftChildren[siblingNode])) {
+                        setBlack(rightChildren[siblingNode]);
+                        setRed(siblingNode);
+                        leftRotate(siblingNode);
+                        siblingNode = leftChildren[parent];
+                    }
+                    copyColor(parent, siblingNode);
+                    setBlack(parent);
+                    setBlack(leftChildren[siblingNode]);
+                    rightRotate(parent);
+                    node = rootIndex;
+                }
+            }
+        }
+        setBlack(node);
+    }
+
+    /**
+     * Finds the node in a subtree whose key is a minimum.
+     * @param node The index of the root of the subtree which needs to be searched for minimum.
+     * @return The index of the node containing the minimum element in the subtree.
+     */
+    public int treeMinimum(int node) {
+        while (leftChildren[node] != NIL) {
+            node = leftChildren[node];
+        }
+        return node;
+    }
+
+    /**
+     * Finds the node in a subtree whose key is a maximum.
+     * @param node The index of the root of the subtree which needs to be searched for maximum.
+     * @return The index of the node containing the maximum element in the subtree.
+     */
+    public int treeMaximum(int node) {
+        while (rightChildren[node] != NIL) {
+            node = rightChildren[node];
+        }
+        return node;
+    }
+
+    /**
+     * Searches for a node with the input ID in the tree.
+     * @param theID The ID to look for in the tree.
+     * @return The index of the node containing the ID or NIL.
+     */
+    public int treeSearch(int theID) {
+        int node = rootIndex;
+        while (node != NIL) {
+            if(theID < IDs[node]) {
+                node = leftChildren[node];
+            } else if(theID > IDs[node]) {
+                node = rightChildren[node];
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Finds the successor of the input ID in the sorted order determined by an inorder traversal. The ID need not be
+     * present in the tree.
+     * @param ID The ID whose successor is to be determined.
+     * @return The index of the node with the smallest ID greater than the input ID or NIL.
+     */
+    public int treeSuccessor(int ID) {
+        int successor = NIL;
+        int node = rootIndex;
+        while (node != NIL) {
+            if(ID < IDs[node]) {
+                successor = node;
+                node = leftChildren[node];
+            } else {
+                node = rightChildren[node];
+            }
+        }
+        return successor;
+    }
+
+    /**
+     * Finds the predecessor of the input ID in the sorted order determined by an inorder traversal. The ID need not
+     * be present in the tree.
+     * @param ID The ID whose predecessor is to be determined.
+     * @return The index of the node with the greatest ID smaller than the input ID or NIL.
+     */
+    public int treePredecessor(int ID) {
+        int predecessor = NIL;
+        int node = rootIndex;
+        while (node != NIL) {
+            if(ID > IDs[node]) {
+                predecessor = node;
+                node = rightChildren[node];
+            } else {
+                node = leftChildren[node];
+            }
+        }
+        return predecessor;
+    }
+
+    /**
+     * Replaces the contents of the tree with events read from a sorted iterator of RedBlackTreeNode objects. This runs
+     * in O(n) time.
+     * @param size Number of events to be added to the tree.
+     * @param iterator This iterator has the Event objects to be read.
+     */
+    public void buildTreeFromSortedList(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        clear(size);
+        for (int index = 1; index <= size; index++) {
+            RedBlackTree.RedBlackTreeNode event = iterator.next();
+            IDs[index] = event.getID();
+            storeCount(index, fitCount(event.getCount()));
+        }
+        linkSortedNodes(size);
+    }
+
+    /**
+     * Replaces the contents of the tree with events held in two parallel sorted arrays. This runs in O(n) time.
+     * @param size Number of events to be added to the tree.
+     * @param sortedIDs The IDs in ascending order.
+     * @param sortedCounts The counts matching sortedIDs.
+     */
+    public void buildTreeFromSortedArrays(int size, int[] sortedIDs, int[] sortedCounts) {
+        clear(size);
+        System.arraycopy(sortedIDs, 0, IDs, 1, size);
+        System.arraycopy(sortedCounts, 0, counts, 1, size);
+        linkSortedNodes(size);
+    }
+
+    /**
+     * Links the nodes stored in indices 1 to size in ascending order of ID into a balanced tree.
+     * @param size The number of nodes.
+     */
+    private void linkSortedNodes(int size) {
+        int redLevel = 0;
+        for (int i = size - 1; i >= 0; i = i / 2 - 1) {
+            redLevel++;
+        }
+        rootIndex = buildTree(0, 1, size, redLevel);
+        if(rootIndex != NIL) {
+            parentsAndColors[rootIndex] = NIL;
+        }
+        this.size = size;
+        nextUnusedIndex = size + 1;
+    }
+
+    /**
+     * Builds the tree by placing the middle index at the current position. Places [begin; middle) indices in the left
+     * subtree and (middle, end] indices in the right subtree.
+     * @param currentLevel The current level of the tree.
+     * @param begin The starting index of the subtree.
+     * @param end The ending index of the subtree.
+     * @param redLevel The level at which nodes should be colored red.
+     * @return The index of the root of the subtree.
+     */
+    private int buildTree(int currentLevel, int begin, int end, int redLevel) {
+        if(end < begin) {
+            return NIL;
+        }
+        int middle = (begin + end) >>> 1;
+        int left = buildTree(currentLevel + 1, begin, middle - 1, redLevel);
+        int right = buildTree(currentLevel + 1, middle + 1, end, redLevel);
+        leftChildren[middle] = left;
+        rightChildren[middle] = right;
+        if(left != NIL) {
+            parentsAndColors[left] |= middle;
+        }
+        if(right != NIL) {
+            parentsAndColors[right] |= middle;
+        }
+        parentsAndColors[middle] = (currentLevel == redLevel) ? RED_BIT : 0;
+        storeSubtreeSum(middle, getCount(middle) + getSubtreeSum(left) + getSubtreeSum(right));
+        return middle;
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are in the range between ID1 and ID2. This runs in O(lg n) time.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count of the nodes between ID1 and ID2.
+     */
+    public long rangeSum(int ID1, int ID2) {
+        if(ID1 > ID2) {
+            return 0;
+        }
+        long sumInRange = prefixSum(ID2);
+        if(ID1 > Integer.MIN_VALUE) {
+            sumInRange -= prefixSum(ID1 - 1);
+        }
+        return sumInRange;
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are less than or equal to ID.
+     * @param ID The right limit of the prefix.
+     * @return The total count of the nodes with IDs up to ID.
+     */
+    private long prefixSum(int ID) {
+        long sum = 0;
+        int node = rootIndex;
+        while (node != NIL) {
+            if(IDs[node] <= ID) {
+                sum += getCount(node) + getSubtreeSum(leftChildren[node]);
+                node = rightChildren[node];
+            } else {
+                node = leftChildren[node];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Empties the tree and makes sure there is room for size nodes.
+     * @param size The number of nodes about to be stored.
+     */
+    private void clear(int size) {
+        if(IDs.length <= size) {
+            allocate(size + 1);
+        }
+        rootIndex = NIL;
+        this.size = 0;
+        nextUnusedIndex = 1;
+        freeListHead = NIL;
+        countHighWords = null;
+        subtreeSumHighWords = null;
+    }
+
+    /**
+     * Hands out the index of a fresh red leaf holding ID and count, growing the arrays if needed.
+     * @param ID The ID of the node.
+     * @param count The count of the node.
+     * @return The index of the new node.
+     */
+    private int allocateNode(int ID, long count) {
+        int node;
+        if(freeListHead != NIL) {
+            node = freeListHead;
+            freeListHead = leftChildren[node];
+        } else {
+            if(nextUnusedIndex == IDs.length) {
+                grow();
+            }
+            node = nextUnusedIndex++;
+        }
+        IDs[node] = ID;
+        storeCount(node, count);
+        storeSubtreeSum(node, count);
+        leftChildren[node] = NIL;
+        rightChildren[node] = NIL;
+        return node;
+    }
+
+    /**
+     * Returns the index of a deleted node to the free list.
+     * @param node The index of the deleted node.
+     */
+    private void freeNode(int node) {
+        storeCount(node, 0);
+        storeSubtreeSum(node, 0);
+        leftChildren[node] = freeListHead;
+        freeListHead = node;
+    }
+
+    /**
+     * Grows the arrays by half of their current length.
+     */
+    private void grow() {
+        int capacity = IDs.length;
+        if(capacity == Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Array Red Black Tree is full");
+        }
+        int newCapacity = (int) Math.min((long) capacity + (capacity >> 1) + 1, Integer.MAX_VALUE - 8);
+        IDs = Arrays.copyOf(IDs, newCapacity);
+        counts = Arrays.copyOf(counts, newCapacity);
+        subtreeSums = Arrays.copyOf(subtreeSums, newCapacity);
+        if(countHighWords != null) {
+            countHighWords = Arrays.copyOf(countHighWords, newCapacity);
+        }
+        if(subtreeSumHighWords != null) {
+            subtreeSumHighWords = Arrays.copyOf(subtreeSumHighWords, newCapacity);
+        }
+        leftChildren = Arrays.copyOf(leftChildren, newCapacity);
+        rightChildren = Arrays.copyOf(rightChildren, newCapacity);
+        parentsAndColors = Arrays.copyOf(parentsAndColors, newCapacity);
+    }
+
+    /**
+     * Allocates empty arrays of the given length.
+     * @param capacity The length of the arrays including the sentinel.
+     */
+    private void allocate(int capacity) {
+        IDs = new int[capacity];
+        counts = new int[capacity];
+        subtreeSums = new int[capacity];
+        countHighWords = null;
+        subtreeSumHighWords = null;
+        leftChildren = new int[capacity];
+        rightChildren = new int[capacity];
+        parentsAndColors = new int[capacity];
+    }
+
+    /**
+     * Recomputes the subtree sum of a node from its count and the subtree sums of its children. The sentinel's
+     * subtree sum is always 0.
+     * @param node The index of the node.
+     */
+    private void updateSubtreeSum(int node) {
+        storeSubtreeSum(node, getCount(node) + getSubtreeSum(leftChildren[node]) + getSubtreeSum(rightChildren[node]));
+    }
+
+    /**
+     * Applies the overflow policy to a count which is about to be stored.
+     * @param count The count.
+     * @return The count to be stored.
+     * @throws ArithmeticException If count does not fit an int and the policy is THROW.
+     */
+    private long fitCount(long count) {
+        if(count == (int) count) {
+            return count;
+        }
+        switch (overflowPolicy) {
+            case SATURATE:
+                return (count > 0) ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+            case PROMOTE:
+                return count;
+            default:
+                throw new ArithmeticException("Count " + count + " does not fit the compact tree");
+        }
+    }
+
+    /**
+     * Stores the count of a node in the counts array. The first count which does not fit an int allocates the array
+     * of high words, which is filled with the sign of every count stored so far.
+     * @param node The index of the node.
+     * @param count The count.
+     */
+    private void storeCount(int node, long count) {
+        if(countHighWords == null && count != (int) count) {
+            countHighWords = new int[counts.length];
+            for (int index = 0; index < counts.length; index++) {
+                countHighWords[index] = counts[index] >> 31;
+            }
+        }
+        counts[node] = (int) count;
+        if(countHighWords != null) {
+            countHighWords[node] = (int) (count >> 32);
+        }
+    }
+
+    /**
+     * Stores the subtree sum of a node in the subtree sums array. The first subtree sum which does not fit an int
+     * allocates the array of high words, like storeCount.
+     * @param node The index of the node.
+     * @param subtreeSum The subtree sum.
+     */
+    private void storeSubtreeSum(int node, long subtreeSum) {
+        if(subtreeSumHighWords == null && subtreeSum != (int) subtreeSum) {
+            subtreeSumHighWords = new int[subtreeSums.length];
+            for (int index = 0; index < subtreeSums.length; index++) {
+                subtreeSumHighWords[index] = subtreeSums[index] >> 31;
+            }
+        }
+        subtreeSums[node] = (int) subtreeSum;
+        if(subtreeSumHighWords != null) {
+            subtreeSumHighWords[node] = (int) (subtreeSum >> 32);
+        }
+    }
+
+    /**
+     * Returns the index of the parent of a node.
+     * @param node The index of the node.
+     * @return The index of the parent.
+     */
+    private int parentOf(int node) {
+        return parentsAndColors[node] & ~RED_BIT;
+    }
+
+    /**
+     * Sets the parent of a node and keeps its color.
+     * @param node The index of the node.
+     * @param parent The index of the new parent.
+     */
+    private void setParent(int node, int parent) {
+        parentsAndColors[node] = (parentsAndColors[node] & RED_BIT) | parent;
+    }
+
+    /**
+     * Returns true if a node is red. The sentinel is always black.
+     * @param node The index of the node.
+     * @return True if the node is red.
+     */
+    private boolean isRed(int node) {
+        return parentsAndColors[node] < 0;
+    }
+
+    /**
+     * Colors a node red.
+     * @param node The index of the node.
+     */
+    private void setRed(int node) {
+        parentsAndColors[node] |= RED_BIT;
+    }
+
+    /**
+     * Colors a node black.
+     * @param node The index of the node.
+     */
+    private void setBlack(int node) {
+        parentsAndColors[node] &= ~RED_BIT;
+    }
+
+    /**
+     * Gives a node the color of another node.
+     * @param from The index of the node whose color is copied.
+     * @param to The index of the node to be colored.
+     */
+    private void copyColor(int from, int to) {
+        parentsAndColors[to] = (parentsAndColors[from] & RED_BIT) | (parentsAndColors[to] & ~RED_BIT);
+    }
+}
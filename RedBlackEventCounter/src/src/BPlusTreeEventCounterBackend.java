@@ -0,0 +1,92 @@
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * This class uses the B+ tree defined in BPlusTree.java as a backend for RedBlackTreeEventCounter. Its nodes span a
+ * cache line each, which suits large counters better than the deep Red Black Tree. Events returned by next and
+ * previous are detached copies of the stored events, as the tree holds no node objects.
+ */
+public class BPlusTreeEventCounterBackend implements EventCounterBackend {
+    BPlusTree bPlusTree;
+
+    /**
+     * Creates a backend with room for a default number of events.
+     */
+    public BPlusTreeEventCounterBackend() {
+        bPlusTree = new BPlusTree();
+    }
+
+    /**
+     * Creates a backend with room for capacity events before the tree has to grow.
+     * @param capacity The number of events to allocate room for.
+     */
+    public BPlusTreeEventCounterBackend(int capacity) {
+        bPlusTree = new BPlusTree(capacity);
+    }
+
+    /**
+     * Creates a backend with room for capacity events before the tree has to grow.
+     * @param capacity The number of events to allocate room for.
+     * @param overflowPolicy What is done with a count which overflows.
+     */
+    public BPlusTreeEventCounterBackend(int capacity, CountOverflowPolicy overflowPolicy) {
+        bPlusTree = new BPlusTree(capacity, overflowPolicy);
+    }
+
+    @Override
+    public void build(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        bPlusTree.buildTreeFromSortedList(size, iterator);
+    }
+
+    @Override
+    public long increase(int ID, int amount) {
+        return bPlusTree.increase(ID, amount);
+    }
+
+    @Override
+    public long reduce(int ID, int amount) {
+        return bPlusTree.reduce(ID, amount);
+    }
+
+    @Override
+    public long count(int ID) {
+        long entry = bPlusTree.treeSearch(ID);
+        if(entry != BPlusTree.NO_ENTRY) {
+            return bPlusTree.getCount(entry);
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public long inRange(int ID1, int ID2) {
+        return bPlusTree.rangeSum(ID1, ID2);
+    }
+
+    @Override
+    public void forEachInRange(int ID1, int ID2, Consumer<RedBlackTree.RedBlackTreeNode> visitor) {
+        bPlusTree.rangeSearch(ID1, ID2, visitor);
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode next(int ID) {
+        return eventAt(bPlusTree.treeSuccessor(ID));
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        return eventAt(bPlusTree.treePredecessor(ID));
+    }
+
+    /**
+     * Copies the event stored at an entry into a detached RedBlackTreeNode.
+     * @param entry The entry.
+     * @return The copied event or null if entry is NO_ENTRY.
+     */
+    private RedBlackTree.RedBlackTreeNode eventAt(long entry) {
+        if(entry == BPlusTree.NO_ENTRY) {
+            return null;
+        }
+        return new RedBlackTree.RedBlackTreeNode(bPlusTree.getID(entry), bPlusTree.getCount(entry));
+    }
+}
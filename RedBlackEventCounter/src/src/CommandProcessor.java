@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class reads event counter commands from an input stream and writes their results to an output stream. Input is
+ * read in large chunks and commands and integers are parsed straight from the bytes, so no Strings are created per
+ * command. Results are formatted into one large buffer which is written out only when it fills up. The output is the
+ * same as printing every result with System.out.println. The supported commands, in any letter case, are:
+ * 1. increase theID m
+ * 2. reduce theID m
+ * 3. count theID
+ * 4. inrange ID1 ID2
+ * 5. next theID
+ * 6. previous theID
+ * 7. quit
+ * The arguments of a command must be on the same line as the command.
+ */
+public class CommandProcessor {
+
+    /**
+     * The size of the input and output buffers in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The longest token which can still be a command. Longer tokens are never commands.
+     */
+    private static final int MAX_COMMAND_LENGTH = 8;
+
+    /**
+     * The command names in lower case.
+     */
+    private static final byte[] INCREASE = bytesOf("increase"), REDUCE = bytesOf("reduce"), COUNT = bytesOf("count"),
+            INRANGE = bytesOf("inrange"), NEXT = bytesOf("next"), PREVIOUS = bytesOf("previous"),
+            QUIT = bytesOf("quit");
+
+    /**
+     * The line printed for an unknown command.
+     */
+    private static final byte[] WRONG_INPUT_COMMAND = bytesOf("Wrong input command!");
+
+    /**
+     * The line printed for an update which the overflow policy of the counter rejected.
+     */
+    private static final byte[] COUNT_OVERFLOW = bytesOf("Count overflow!");
+
+    /**
+     * The line separator used by System.out.println.
+     */
+    private static final byte[] LINE_SEPARATOR = bytesOf(System.lineSeparator());
+
+    /**
+     * Returned by nextByte at the end of the input.
+     */
+    private static final int END_OF_INPUT = -1;
+
+    /**
+     * Holds the event counter the commands are run against.
+     */
+    private final RedBlackTreeEventCounter redBlackTreeEventCounter;
+
+    /**
+     * Holds the streams commands are read from and results are written to.
+     */
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+
+    /**
+     * Holds the input read but not yet parsed, between inputPosition and inputLimit.
+     */
+    private final byte[] inputBuffer = new byte[BUFFER_SIZE];
+    private int inputPosition = 0, inputLimit = 0;
+
+    /**
+     * Holds the output formatted but not yet written, up to outputPosition.
+     */
+    private final byte[] outputBuffer = new byte[BUFFER_SIZE];
+    private int outputPosition = 0;
+
+    /**
+     * Holds the bytes of the current token, in lower case.
+     */
+    private final byte[] token = new byte[MAX_COMMAND_LENGTH];
+
+    /**
+     * Holds the byte which ended the last token or integer, so that the end of the line is not missed.
+     */
+    private int lastDelimiter;
+
+    /**
+     * Creates a command processor.
+     * @param redBlackTreeEventCounter The event counter to run the commands against.
+     * @param inputStream The stream to read commands from.
+     * @param outputStream The stream to write results to.
+     */
+    public CommandProcessor(RedBlackTreeEventCounter redBlackTreeEventCounter, InputStream inputStream,
+                            OutputStream outputStream) {
+        this.redBlackTreeEventCounter = redBlackTreeEventCounter;
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Runs commands until the end of the input or a quit command, then flushes the output.
+     * @throws IOException If reading or writing fails.
+     */
+    public void run() throws IOException {
+        try {
+            while (true) {
+                int tokenLength = nextToken();
+                if(tokenLength < 0) {
+                    return;
+                }
+                if(!runCommand(tokenLength)) {
+                    return;
+                }
+            }
+        } finally {
+            flush();
+        }
+    }
+
+    /**
+     * Runs the command held in token. Prints an error line if the token is not a command or its arguments are
+     * malformed, in which case the rest of the line is skipped.
+     * @param tokenLength The length of the token, which is larger than MAX_COMMAND_LENGTH for long tokens.
+     * @return False if the command was quit.
+     * @throws IOException If reading or writing fails.
+     */
+    private boolean runCommand(int tokenLength) throws IOException {
+        try {
+            switch (tokenLength > 0 ? token[0] : 0) {
+                case 'i':
+                    if(matches(tokenLength, INCREASE)) {
+                        int ID = nextInt();
+                        int amount = nextInt();
+                        writeLong(redBlackTreeEventCounter.increase(ID, amount));
+                        writeLineSeparator();
+                        return true;
+                    } else if(matches(tokenLength, INRANGE)) {
+                        int ID1 = nextInt();
+                        int ID2 = nextInt();
+                        writeLong(redBlackTreeEventCounter.inRange(ID1, ID2));
+                        writeLineSeparator();
+                        return true;
+                    }
+                    break;
+                case 'r':
+                    if(matches(tokenLength, REDUCE)) {
+                        int ID = nextInt();
+                        int amount = nextInt();
+                        writeLong(redBlackTreeEventCounter.reduce(ID, amount));
+                        writeLineSeparator();
+                        return true;
+                    }
+                    break;
+                case 'c':
+                    if(matches(tokenLength, COUNT)) {
+                        writeLong(redBlackTreeEventCounter.count(nextInt()));
+                        writeLineSeparator();
+                        return true;
+                    }
+                    break;
+                case 'n':
+                    if(matches(tokenLength, NEXT)) {
+                        writeEvent(redBlackTreeEventCounter.next(nextInt()));
+                        return true;
+                    }
+                    break;
+                case 'p':
+                    if(matches(tokenLength, PREVIOUS)) {
+                        writeEvent(redBlackTreeEventCounter.previous(nextInt()));
+                        return true;
+                    }
+                    break;
+                case 'q':
+                    if(matches(tokenLength, QUIT)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException numberFormatException) {
+            skipLine();
+        } catch (ArithmeticException arithmeticException) {
+            writeBytes(COUNT_OVERFLOW);
+            writeLineSeparator();
+            return true;
+        }
+        writeBytes(WRONG_INPUT_COMMAND);
+        writeLineSeparator();
+        return true;
+    }
+
+    /**
+     * Returns true if the current token is the given command.
+     * @param tokenLength The length of the token.
+     * @param command The command name in lower case.
+     * @return True if the token matches the command.
+     */
+    private boolean matches(int tokenLength, byte[] command) {
+        if(tokenLength != command.length) {
+            return false;
+        }
+        for (int i = 1; i < tokenLength; i++) {
+            if(token[i] != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next white space separated token into token, in lower case. Only the first MAX_COMMAND_LENGTH bytes are
+     * kept.
+     * @return The length of the token or -1 at the end of the input.
+     * @throws IOException If reading fails.
+     */
+    private int nextToken() throws IOException {
+        int nextByte = nextByte();
+        while (isWhiteSpace(nextByte) || nextByte == '\n') {
+            nextByte = nextByte();
+        }
+        if(nextByte == END_OF_INPUT) {
+            return -1;
+        }
+        int tokenLength = 0;
+        while (nextByte != END_OF_INPUT && nextByte != '\n' && !isWhiteSpace(nextByte)) {
+            if(tokenLength < MAX_COMMAND_LENGTH) {
+                token[tokenLength] = (byte) ((nextByte >= 'A' && nextByte <= 'Z') ? nextByte + ('a' - 'A') : nextByte);
+            }
+            tokenLength++;
+            nextByte = nextByte();
+        }
+        lastDelimiter = nextByte;
+        return tokenLength;
+    }
+
+    /**
+     * Parses the next integer argument on the current line.
+     * @return The parsed integer.
+     * @throws NumberFormatException If the line ends or the next token is not an integer.
+     * @throws IOException If reading fails.
+     */
+    private int nextInt() throws IOException {
+        if(lastDelimiter == '\n' || lastDelimiter == END_OF_INPUT) {
+            throw new NumberFormatException();
+        }
+        int nextByte = nextByte();
+        while (isWhiteSpace(nextByte)) {
+            nextByte = nextByte();
+        }
+        boolean negative = false;
+        if(nextByte == '-' || nextByte == '+') {
+            negative = nextByte == '-';
+            nextByte = nextByte();
+        }
+        if(nextByte < '0' || nextByte > '9') {
+            lastDelimiter = nextByte;
+            throw new NumberFormatException();
+        }
+        long value = 0;
+        while (nextByte >= '0' && nextByte <= '9') {
+            value = value * 10 + (nextByte - '0');
+            if(value > (long) Integer.MAX_VALUE + 1) {
+                lastDelimiter = nextByte;
+                throw new NumberFormatException();
+            }
+            nextByte = nextByte();
+        }
+        lastDelimiter = nextByte;
+        if(nextByte != END_OF_INPUT && nextByte != '\n' && !isWhiteSpace(nextByte)) {
+            throw new NumberFormatException();
+        }
+        value = negative ? -value : value;
+        if(value > Integer.MAX_VALUE) {
+            throw new NumberFormatException();
+        }
+        return (int) value;
+    }
+
+    /**
+     * Skips the rest of the current line.
+     * @throws IOException If reading fails.
+     */
+    private void skipLine() throws IOException {
+        int nextByte = lastDelimiter;
+        while (nextByte != '\n' && nextByte != END_OF_INPUT) {
+            nextByte = nextByte();
+        }
+    }
+
+    /**
+     * Returns true for white space other than the line feed, which ends a line.
+     * @param nextByte The byte to be checked.
+     * @return True if the byte is white space.
+     */
+    private static boolean isWhiteSpace(int nextByte) {
+        return nextByte == ' ' || nextByte == '\t' || nextByte == '\r' || nextByte == '\f' || nextByte == 0x0B;
+    }
+
+    /**
+     * Returns the next byte of input, reading another chunk if needed.
+     * @return The next byte or END_OF_INPUT.
+     * @throws IOException If reading fails.
+     */
+    private int nextByte() throws IOException {
+        if(inputPosition == inputLimit) {
+            inputLimit = inputStream.read(inputBuffer, 0, inputBuffer.length);
+            inputPosition = 0;
+            if(inputLimit <= 0) {
+                inputLimit = 0;
+                return END_OF_INPUT;
+            }
+        }
+        return inputBuffer[inputPosition++];
+    }
+
+    /**
+     * Writes the ID and count of an event as one line, or "0 0" if there is no event.
+     * @param event The event to be written.
+     * @throws IOException If writing fails.
+     */
+    private void writeEvent(RedBlackTree.RedBlackTreeNode event) throws IOException {
+        writeLong((event != null) ? event.getID() : 0);
+        writeByte(' ');
+        writeLong((event != null) ? event.getCount() : 0);
+        writeLineSeparator();
+    }
+
+    /**
+     * Writes an integer in decimal.
+     * @param value The integer to be written.
+     * @throws IOException If writing fails.
+     */
+    private void writeLong(long value) throws IOException {
+        if(outputBuffer.length - outputPosition < 20) {
+            flushBuffer();
+        }
+        long remaining = value;
+        if(remaining < 0) {
+            outputBuffer[outputPosition++] = '-';
+        } else {
+            remaining = -remaining; //Digits are taken from the negative value, which also covers Long.MIN_VALUE
+        }
+        int start = outputPosition;
+        do {
+            outputBuffer[outputPosition++] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining < 0);
+        for (int left = start, right = outputPosition - 1; left < right; left++, right--) {
+            byte digit = outputBuffer[left];
+            outputBuffer[left] = outputBuffer[right];
+            outputBuffer[right] = digit;
+        }
+    }
+
+    /**
+     * Writes the line separator.
+     * @throws IOException If writing fails.
+     */
+    private void writeLineSeparator() throws IOException {
+        writeBytes(LINE_SEPARATOR);
+    }
+
+    /**
+     * Writes a sequence of bytes.
+     * @param bytes The bytes to be written.
+     * @throws IOException If writing fails.
+     */
+    private void writeBytes(byte[] bytes) throws IOException {
+        if(outputBuffer.length - outputPosition < bytes.length) {
+            flushBuffer();
+        }
+        System.arraycopy(bytes, 0, outputBuffer, outputPosition, bytes.length);
+        outputPosition += bytes.length;
+    }
+
+    /**
+     * Writes a single byte.
+     * @param nextByte The byte to be written.
+     * @throws IOException If writing fails.
+     */
+    private void writeByte(int nextByte) throws IOException {
+        if(outputPosition == outputBuffer.length) {
+            flushBuffer();
+        }
+        outputBuffer[outputPosition++] = (byte) nextByte;
+    }
+
+    /**
+     * Writes the buffered output to the output stream.
+     * @throws IOException If writing fails.
+     */
+    private void flushBuffer() throws IOException {
+        outputStream.write(outputBuffer, 0, outputPosition);
+        outputPosition = 0;
+    }
+
+    /**
+     * Writes the buffered output and flushes the output stream.
+     * @throws IOException If writing fails.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        outputStream.flush();
+    }
+
+    /**
+     * Returns the ASCII bytes of a String.
+     * @param string The String to be converted.
+     * @return The bytes.
+     */
+    private static byte[] bytesOf(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * This class packs a composite event ID made of a tenant and an event type into a single long for
+ * LongKeyEventCounter. The tenant fills the high half and the event type, with its sign bit flipped, the low half, so
+ * packed keys compare like the pairs they hold: first by tenant, then by event type. All events of a tenant therefore
+ * lie between first(tenant) and last(tenant) and can be added up with one InRange.
+ */
+public final class CompositeKey {
+
+    /**
+     * The bits of the low half of a key.
+     */
+    private static final long LOW_HALF = 0xFFFFFFFFL;
+
+    /**
+     * This class only has static methods.
+     */
+    private CompositeKey() {
+    }
+
+    /**
+     * Packs a tenant and an event type into a key.
+     * @param tenant The tenant.
+     * @param eventType The event type.
+     * @return The key.
+     */
+    public static long of(int tenant, int eventType) {
+        return ((long) tenant << 32) | ((eventType ^ Integer.MIN_VALUE) & LOW_HALF);
+    }
+
+    /**
+     * Returns the tenant of a key.
+     * @param key The key.
+     * @return The tenant.
+     */
+    public static int tenantOf(long key) {
+        return (int) (key >> 32);
+    }
+
+    /**
+     * Returns the event type of a key.
+     * @param key The key.
+     * @return The event type.
+     */
+    public static int eventTypeOf(long key) {
+        return (int) key ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the smallest key of a tenant.
+     * @param tenant The tenant.
+     * @return The key of the tenant and the smallest event type.
+     */
+    public static long first(int tenant) {
+        return of(tenant, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Returns the largest key of a tenant.
+     * @param tenant The tenant.
+     * @return The key of the tenant and the largest event type.
+     */
+    public static long last(int tenant) {
+        return of(tenant, Integer.MAX_VALUE);
+    }
+}
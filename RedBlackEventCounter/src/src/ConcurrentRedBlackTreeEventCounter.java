@@ -0,0 +1,511 @@
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class is a thread-safe variant of RedBlackTreeEventCounter. It supports the same operations:
+ * 1. Build(List)
+ * 2. Increase(theID, m)
+ * 3. Reduce(theID, m)
+ * 4. Count(theID)
+ * 5. InRange(ID1, ID2)
+ * 6. Next(theID)
+ * 7. Previous(theID)
+ * The IDs are spread over a few segments by a hash of the ID. Each segment is a Red Black Tree with its own lock, so
+ * inserts and deletes in different segments do not wait for each other.
+ * Updates to IDs already present are lock-free: they search the tree, compare-and-set the count of the node and then
+ * atomically add the difference to the subtree sums of the node and its ancestors. Updaters only announce themselves
+ * in one of several padded stripes of their segment, so they do not contend with each other on a lock. Only inserts
+ * and deletes, which rotate the tree, take the write lock of the segment, and they wait for the stripes of that
+ * segment to drain before changing it. Count, InRange, Next and Previous read each segment optimistically and only
+ * fall back to its read lock if a structural change got in the way.
+ * As the subtree sums are always up to date, InRange runs in O(s lg n) time for s segments. Reads are not atomic with
+ * respect to concurrent count updates, but every update is either fully seen or not seen by a read.
+ */
+public class ConcurrentRedBlackTreeEventCounter {
+
+    /**
+     * The largest number of segments chosen by default.
+     */
+    private static final int MAX_DEFAULT_SEGMENTS = 16;
+
+    /**
+     * The distance between two stripes in ints.
+     */
+    private static final int STRIPE_PADDING = 16;
+
+    /**
+     * The number of times a structural change spins on a busy stripe before it yields the processor to the updater.
+     */
+    private static final int SPINS_BEFORE_YIELD = 64;
+
+    /**
+     * This static nested class holds one segment: a tree, the lock which guards its structure and the stripes of
+     * updaters inside it.
+     */
+    private static final class Segment {
+
+        /**
+         * Holds the events of the segment.
+         */
+        private final RedBlackTree redBlackTree = new RedBlackTree();
+
+        /**
+         * Guards the structure of the tree. Inserts and deletes hold the write lock.
+         */
+        private final StampedLock structureLock = new StampedLock();
+
+        /**
+         * Set while a structural change is waiting for or holding the tree. Updaters do not enter while this is set.
+         */
+        private volatile boolean structuralChangeActive = false;
+
+        /**
+         * Holds the number of updaters inside the tree per stripe. Stripes are spread STRIPE_PADDING ints apart so
+         * that each stripe sits on its own cache line.
+         */
+        private final AtomicIntegerArray updaterStripes;
+
+        /**
+         * Creates an empty segment.
+         * @param stripes The number of updater stripes.
+         */
+        private Segment(int stripes) {
+            updaterStripes = new AtomicIntegerArray(stripes * STRIPE_PADDING);
+        }
+    }
+
+    /**
+     * Holds the segments. Their number is a power of two.
+     */
+    private final Segment[] segments;
+
+    /**
+     * Holds the number of stripes per segment minus one. The number of stripes is a power of two.
+     */
+    private final int stripeMask;
+
+    /**
+     * Holds what is done with a count which overflows.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * Holds the sum of the counts of all segments. An Increase reserves its amount here first, so the overflow policy
+     * keeps the sum of the segments' range sums from wrapping.
+     */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /**
+     * Creates a concurrent event counter with one segment for every core, up to MAX_DEFAULT_SEGMENTS. A count which
+     * overflows 64 bits throws.
+     */
+    public ConcurrentRedBlackTreeEventCounter() {
+        this(CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Creates a concurrent event counter with one segment for every core, up to MAX_DEFAULT_SEGMENTS.
+     * @param overflowPolicy What is done with a count which overflows.
+     */
+    public ConcurrentRedBlackTreeEventCounter(CountOverflowPolicy overflowPolicy) {
+        this(overflowPolicy, Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_SEGMENTS));
+    }
+
+    /**
+     * Creates a concurrent event counter. Every segment gets one updater stripe for every core, rounded up to a power
+     * of two.
+     * @param overflowPolicy What is done with a count which overflows.
+     * @param segmentCount The number of segments, rounded up to a power of two. More segments let more inserts and
+     * deletes run at once but make InRange, Next and Previous visit more trees.
+     */
+    public ConcurrentRedBlackTreeEventCounter(CountOverflowPolicy overflowPolicy, int segmentCount) {
+        if(segmentCount < 1 || segmentCount > 1 << 16) {
+            throw new IllegalArgumentException("Segment count " + segmentCount + " is not between 1 and 65536");
+        }
+        this.overflowPolicy = overflowPolicy;
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+        stripeMask = stripes - 1;
+        segments = new Segment[Integer.highestOneBit(segmentCount * 2 - 1)];
+        for (int segment = 0; segment < segments.length; segment++) {
+            segments[segment] = new Segment(stripes);
+        }
+    }
+
+    /**
+     * Builds the event counter from the list of RedBlackTreeNode objects. This runs in O(n) time.
+     * @param eventArrayList The list of events
+     */
+    public void buildEventCounter(ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList) {
+        if(eventArrayList != null && eventArrayList.size() > 0) {
+            ArrayList<ArrayList<RedBlackTree.RedBlackTreeNode>> segmentEvents = new ArrayList<>(segments.length);
+            for (int segment = 0; segment < segments.length; segment++) {
+                segmentEvents.add(new ArrayList<>(eventArrayList.size() / segments.length + 1));
+            }
+            for (RedBlackTree.RedBlackTreeNode event : eventArrayList) {
+                segmentEvents.get(segmentIndexOf(event.getID())).add(event); //Each part stays in ascending order
+            }
+            long newTotalCount = 0;
+            for (RedBlackTree.RedBlackTreeNode event : eventArrayList) {
+                newTotalCount += event.getCount();
+            }
+            totalCount.set(newTotalCount);
+            for (int segment = 0; segment < segments.length; segment++) {
+                ArrayList<RedBlackTree.RedBlackTreeNode> events = segmentEvents.get(segment);
+                long stamp = lockStructure(segments[segment]);
+                try {
+                    segments[segment].redBlackTree.buildTreeFromSortedList(events.size(), events.iterator());
+                } finally {
+                    unlockStructure(segments[segment], stamp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Increases the count of the event ID by amount. If ID is not present, inserts it. An ID which is already present
+     * is updated without taking any lock. This runs in O(lg n) time.
+     * @param ID The event ID whose count has to be increased.
+     * @param amount The amount by which the count has to be increase.
+     * @return The final count of the event ID after addition.
+     * @throws ArithmeticException If the total count overflows and the policy is not SATURATE.
+     */
+    public long increase(int ID, int amount) {
+        long added = reserveTotal(amount); //Also keeps the count in range
+        Segment segment = segments[segmentIndexOf(ID)];
+        int stripe = enterUpdate(segment);
+        try {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = segment.redBlackTree.treeSearch(ID);
+            if(redBlackTreeNode != null) {
+                while (true) {
+                    long count = redBlackTreeNode.getCountAcquire();
+                    if(redBlackTreeNode.compareAndSetCount(count, count + added)) {
+                        redBlackTreeNode.addToSubtreeSums(added);
+                        return count + added;
+                    }
+                }
+            }
+        } finally {
+            exitUpdate(segment, stripe);
+        }
+        long stamp = lockStructure(segment);
+        try {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = segment.redBlackTree.treeSearch(ID);
+            if(redBlackTreeNode != null) {
+                long count = redBlackTreeNode.getCount() + added;
+                redBlackTreeNode.setCount(count);
+                return count;
+            } else {
+                if(added > 0) {
+                    segment.redBlackTree.redBlackInsert(ID, added);
+                }
+                return added;
+            }
+        } finally {
+            unlockStructure(segment, stamp);
+        }
+    }
+
+    /**
+     * Decreases the count of the event ID by amount. If the ID's count becomes less than or equal to 0, removes the ID
+     * from the counter. Only the removal takes a lock. This runs in O(lg n) time.
+     * @param ID The event ID whose count is to be decreased.
+     * @param amount The amount by which to decrease.
+     * @return The final count or 0.
+     */
+    public long reduce(int ID, int amount) {
+        Segment segment = segments[segmentIndexOf(ID)];
+        int stripe = enterUpdate(segment);
+        try {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = segment.redBlackTree.treeSearch(ID);
+            if(redBlackTreeNode == null) {
+                return 0;
+            }
+            while (true) {
+                long count = redBlackTreeNode.getCountAcquire();
+                if(amount >= count) {
+                    break; //The node has to be deleted, which needs the write lock.
+                }
+                if(redBlackTreeNode.compareAndSetCount(count, count - amount)) {
+                    redBlackTreeNode.addToSubtreeSums(-amount);
+                    totalCount.addAndGet(-amount);
+                    return count - amount;
+                }
+            }
+        } finally {
+            exitUpdate(segment, stripe);
+        }
+        long stamp = lockStructure(segment);
+        try {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = segment.redBlackTree.treeSearch(ID);
+            if(redBlackTreeNode == null) {
+                return 0;
+            }
+            if(amount >= redBlackTreeNode.getCount()) {
+                totalCount.addAndGet(-redBlackTreeNode.getCount());
+                segment.redBlackTree.redBlackDelete(redBlackTreeNode);
+                return 0;
+            } else {
+                long count = redBlackTreeNode.getCount() - amount;
+                redBlackTreeNode.setCount(count);
+                totalCount.addAndGet(-amount);
+                return count;
+            }
+        } finally {
+            unlockStructure(segment, stamp);
+        }
+    }
+
+    /**
+     * Adds the amount of an Increase to the total count after applying the overflow policy to it.
+     * @param amount The amount of the Increase.
+     * @return The amount added, which SATURATE may have lowered.
+     * @throws ArithmeticException If the total count overflows and the policy is not SATURATE.
+     */
+    private long reserveTotal(long amount) {
+        while (true) {
+            long total = totalCount.get();
+            long reserved = overflowPolicy.limitTotal(total, amount);
+            if(totalCount.compareAndSet(total, total + reserved)) {
+                return reserved;
+            }
+        }
+    }
+
+    /**
+     * Searches the counter for the event ID and returns the count. Returns 0, if not present.
+     * @param ID The event ID whose count is to be returned.
+     * @return The count of the event or 0.
+     */
+    public long count(int ID) {
+        Segment segment = segments[segmentIndexOf(ID)];
+        long stamp = segment.structureLock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                long count = countOf(segment.redBlackTree.treeSearch(ID));
+                if(segment.structureLock.validate(stamp)) {
+                    return count;
+                }
+            } catch (RuntimeException runtimeException) {
+                if(segment.structureLock.validate(stamp)) {
+                    throw runtimeException; //Not caused by a structural change
+                }
+            }
+        }
+        stamp = segment.structureLock.readLock();
+        try {
+            return countOf(segment.redBlackTree.treeSearch(ID));
+        } finally {
+            segment.structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2. This runs in O(s lg n) time for s segments.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    public long inRange(int ID1, int ID2) {
+        long countInRange = 0;
+        for (Segment segment : segments) {
+            countInRange += rangeSumOf(segment, ID1, ID2);
+        }
+        return countInRange;
+    }
+
+    /**
+     * Returns the event with the lowest ID that is greater than ID. This runs in O(s lg n) time for s segments.
+     * @param ID The event ID whose next is to be found.
+     * @return A detached copy of the next event or null.
+     */
+    public RedBlackTree.RedBlackTreeNode next(int ID) {
+        RedBlackTree.RedBlackTreeNode nextEvent = null;
+        for (Segment segment : segments) {
+            RedBlackTree.RedBlackTreeNode segmentEvent = neighbourOf(segment, ID, true);
+            if(segmentEvent != null && (nextEvent == null || segmentEvent.getID() < nextEvent.getID())) {
+                nextEvent = segmentEvent;
+            }
+        }
+        return nextEvent;
+    }
+
+    /**
+     * Returns the event with the greatest ID that is less than ID. This runs in O(s lg n) time for s segments.
+     * @param ID The ID whose previous is to be found.
+     * @return A detached copy of the previous event or null.
+     */
+    public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        RedBlackTree.RedBlackTreeNode previousEvent = null;
+        for (Segment segment : segments) {
+            RedBlackTree.RedBlackTreeNode segmentEvent = neighbourOf(segment, ID, false);
+            if(segmentEvent != null && (previousEvent == null || segmentEvent.getID() > previousEvent.getID())) {
+                previousEvent = segmentEvent;
+            }
+        }
+        return previousEvent;
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2 in one segment, reading it optimistically first.
+     * @param segment The segment.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count in the segment.
+     */
+    private static long rangeSumOf(Segment segment, int ID1, int ID2) {
+        long stamp = segment.structureLock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                long countInRange = segment.redBlackTree.rangeSumAcquire(ID1, ID2);
+                if(segment.structureLock.validate(stamp)) {
+                    return countInRange;
+                }
+            } catch (RuntimeException runtimeException) {
+                if(segment.structureLock.validate(stamp)) {
+                    throw runtimeException; //Not caused by a structural change
+                }
+            }
+        }
+        stamp = segment.structureLock.readLock();
+        try {
+            return segment.redBlackTree.rangeSumAcquire(ID1, ID2);
+        } finally {
+            segment.structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns a copy of the successor or predecessor of ID in one segment, reading it optimistically first.
+     * @param segment The segment.
+     * @param ID The ID whose neighbour is to be found.
+     * @param successor True for the successor, false for the predecessor.
+     * @return A detached copy of the event or null.
+     */
+    private static RedBlackTree.RedBlackTreeNode neighbourOf(Segment segment, int ID, boolean successor) {
+        long stamp = segment.structureLock.tryOptimisticRead();
+        if(stamp != 0) {
+            try {
+                RedBlackTree.RedBlackTreeNode event = copyOf(findNeighbour(segment.redBlackTree, ID, successor));
+                if(segment.structureLock.validate(stamp)) {
+                    return event;
+                }
+            } catch (RuntimeException runtimeException) {
+                if(segment.structureLock.validate(stamp)) {
+                    throw runtimeException; //Not caused by a structural change
+                }
+            }
+        }
+        stamp = segment.structureLock.readLock();
+        try {
+            return copyOf(findNeighbour(segment.redBlackTree, ID, successor));
+        } finally {
+            segment.structureLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Finds the successor or predecessor of ID in a tree.
+     * @param redBlackTree The tree.
+     * @param ID The ID whose neighbour is to be found.
+     * @param successor True for the successor, false for the predecessor.
+     * @return The node or null.
+     */
+    private static RedBlackTree.RedBlackTreeNode findNeighbour(RedBlackTree redBlackTree, int ID, boolean successor) {
+        if(successor) {
+            return redBlackTree.treeSuccessor(redBlackTree.getRootNode(), ID);
+        } else {
+            return redBlackTree.treePredecessor(redBlackTree.getRootNode(), ID);
+        }
+    }
+
+    /**
+     * Copies a node into a detached RedBlackTreeNode, reading its count with acquire semantics.
+     * @param redBlackTreeNode The node.
+     * @return The copy or null if the node is null.
+     */
+    private static RedBlackTree.RedBlackTreeNode copyOf(RedBlackTree.RedBlackTreeNode redBlackTreeNode) {
+        if(redBlackTreeNode == null) {
+            return null;
+        }
+        return new RedBlackTree.RedBlackTreeNode(redBlackTreeNode.getID(), redBlackTreeNode.getCountAcquire());
+    }
+
+    /**
+     * Returns the count of a node or 0 if the node is null, reading it with acquire semantics.
+     * @param redBlackTreeNode The node whose count is needed.
+     * @return The count or 0.
+     */
+    private static long countOf(RedBlackTree.RedBlackTreeNode redBlackTreeNode) {
+        return (redBlackTreeNode != null) ? redBlackTreeNode.getCountAcquire() : 0;
+    }
+
+    /**
+     * Returns the segment which holds an ID. The ID is hashed so that runs of nearby IDs are spread over all segments.
+     * @param ID The event ID.
+     * @return The index of the segment.
+     */
+    private int segmentIndexOf(int ID) {
+        return ((ID * 0x9E3779B9) >>> 16) & (segments.length - 1);
+    }
+
+    /**
+     * Announces the current thread as an updater in its stripe of a segment, waiting out any structural change first.
+     * The segment's structure does not change until the matching exitUpdate call.
+     * @param segment The segment to be updated.
+     * @return The index of the stripe to be passed to exitUpdate.
+     */
+    private int enterUpdate(Segment segment) {
+        long threadID = Thread.currentThread().getId();
+        int stripe = ((int) (threadID * 0x9E3779B97F4A7C15L >>> 32) & stripeMask) * STRIPE_PADDING;
+        while (true) {
+            segment.updaterStripes.incrementAndGet(stripe);
+            if(!segment.structuralChangeActive) {
+                return stripe;
+            }
+            segment.updaterStripes.decrementAndGet(stripe);
+            segment.structureLock.unlockRead(segment.structureLock.readLock()); //Blocks until the change is done.
+        }
+    }
+
+    /**
+     * Removes the current thread from the updaters of its stripe.
+     * @param segment The segment passed to enterUpdate.
+     * @param stripe The index returned by enterUpdate.
+     */
+    private static void exitUpdate(Segment segment, int stripe) {
+        segment.updaterStripes.decrementAndGet(stripe);
+    }
+
+    /**
+     * Takes the write lock of a segment and waits until all updaters have left it. An updater inside the segment never
+     * blocks, so the wait lasts at most one count update; the waiting thread yields the processor if it runs longer.
+     * @param segment The segment to be changed.
+     * @return The stamp to be passed to unlockStructure.
+     */
+    private static long lockStructure(Segment segment) {
+        long stamp = segment.structureLock.writeLock();
+        segment.structuralChangeActive = true;
+        for (int stripe = 0; stripe < segment.updaterStripes.length(); stripe += STRIPE_PADDING) {
+            for (int spins = 0; segment.updaterStripes.get(stripe) != 0; spins++) {
+                if(spins < SPINS_BEFORE_YIELD) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * Lets updaters back into a segment and releases its write lock.
+     * @param segment The segment passed to lockStructure.
+     * @param stamp The stamp returned by lockStructure.
+     */
+    private static void unlockStructure(Segment segment, long stamp) {
+        segment.structuralChangeActive = false;
+        segment.structureLock.unlockWrite(stamp);
+    }
+}
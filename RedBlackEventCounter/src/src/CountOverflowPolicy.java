@@ -0,0 +1,52 @@
+/**
+ * This enum lists what an event counter does when a count no longer fits the storage of its tree. Counts are 64 bit
+ * in every tree except the compact ArrayRedBlackTree, which keeps 32 bit counts until a count needs more. Range sums
+ * are always added up in 64 bits. The policy is also applied to the total count of a tree, which bounds every count
+ * and every range sum, so that none of them wraps.
+ * 1. THROW rejects the update with an ArithmeticException and leaves the count unchanged.
+ * 2. SATURATE stores the largest or smallest count the storage can hold, and lowers an increase which would make the
+ * total count overflow.
+ * 3. PROMOTE widens the storage of a compact tree to 64 bits. As no tree stores wider counts than that, it throws like
+ * THROW once a 64 bit count overflows.
+ */
+public enum CountOverflowPolicy {
+    THROW,
+    SATURATE,
+    PROMOTE;
+
+    /**
+     * Adds an amount to a 64 bit count and applies the policy if the sum overflows.
+     * @param count The count.
+     * @param amount The amount to be added, which may be negative.
+     * @return The new count.
+     * @throws ArithmeticException If the sum overflows and the policy is not SATURATE.
+     */
+    public long add(long count, long amount) {
+        long sum = count + amount;
+        if(((count ^ sum) & (amount ^ sum)) < 0) { //Both operands have the sign the sum lacks
+            if(this == SATURATE) {
+                return (amount > 0) ? Long.MAX_VALUE : Long.MIN_VALUE;
+            }
+            throw new ArithmeticException("Count overflow adding " + amount + " to " + count);
+        }
+        return sum;
+    }
+
+    /**
+     * Applies the policy to the total count of a tree which is about to grow by difference. Every count and every
+     * range sum of the tree is at most its total count, so none of them overflows while the total fits a long.
+     * @param totalCount The total count of the tree, which is never negative.
+     * @param difference The amount the total count is about to change by, which may be negative.
+     * @return The difference, or with SATURATE the difference which makes the total count Long.MAX_VALUE.
+     * @throws ArithmeticException If the total count overflows and the policy is not SATURATE.
+     */
+    public long limitTotal(long totalCount, long difference) {
+        if(difference > Long.MAX_VALUE - totalCount) {
+            if(this == SATURATE) {
+                return Long.MAX_VALUE - totalCount;
+            }
+            throw new ArithmeticException("Total count overflow adding " + difference + " to " + totalCount);
+        }
+        return difference;
+    }
+}
@@ -0,0 +1,543 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+
+/**
+ * This class makes a RedBlackTreeEventCounter durable. Every Increase and Reduce is appended to a binary write-ahead
+ * log before it is applied, and the whole counter is written out as a snapshot from time to time. A directory holds:
+ * 1. snapshot.G: the events in ascending order of ID in the binary format of EventFileLoader, holding every change
+ * logged before log.G.
+ * 2. log.G, log.G+1, ...: the LOG_MAGIC number followed by fixed size (operation, ID, amount, checksum) records, where
+ * the checksum is the CRC32C of the rest of the record.
+ * On start up the latest snapshot is loaded in O(n) time through buildTreeFromSortedList and only the logs from its
+ * generation on are replayed, so recovery takes time in proportion to the snapshot and the log tail rather than to the
+ * whole history. Log records are written in groups: the log is forced to disk once every groupCommitSize records or
+ * on sync, so a crash loses at most the records of the last unfinished group. A crash can also leave a torn or zero
+ * filled tail in the last log; recovery cuts that log at its first record with a bad checksum. A bad record in any
+ * earlier log is reported as corruption.
+ */
+public class DurableEventCounter implements Closeable {
+
+    /**
+     * The magic number which starts a log file. It reads "RBLC" in little-endian byte order.
+     */
+    public static final int LOG_MAGIC = 0x434C4252;
+
+    /**
+     * The operation byte of a logged Increase.
+     */
+    private static final byte INCREASE = '+';
+
+    /**
+     * The operation byte of a logged Reduce.
+     */
+    private static final byte REDUCE = '-';
+
+    /**
+     * The number of bytes of a log record covered by its checksum: the operation byte, the ID and the amount.
+     */
+    private static final int RECORD_BODY_SIZE = 9;
+
+    /**
+     * The number of bytes taken by one log record: the body followed by its checksum.
+     */
+    private static final int RECORD_SIZE = RECORD_BODY_SIZE + 4;
+
+    /**
+     * The prefix of the snapshot file names.
+     */
+    private static final String SNAPSHOT_PREFIX = "snapshot.";
+
+    /**
+     * The prefix of the log file names.
+     */
+    private static final String LOG_PREFIX = "log.";
+
+    /**
+     * The suffix of a snapshot which is still being written.
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Holds the event counter which answers the queries.
+     */
+    private final RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter();
+
+    /**
+     * Holds the directory of the snapshots and logs.
+     */
+    private final Path directory;
+
+    /**
+     * Holds the number of records after which the log is forced to disk.
+     */
+    private final int groupCommitSize;
+
+    /**
+     * Holds the number of logged records after which a snapshot is taken, or 0 if snapshots are only taken on request.
+     */
+    private final long snapshotInterval;
+
+    /**
+     * Holds the records which have not been written to the log yet.
+     */
+    private final ByteBuffer logBuffer;
+
+    /**
+     * Holds the body of the record being appended, so its checksum is computed without allocating.
+     */
+    private final byte[] recordBody = new byte[RECORD_BODY_SIZE];
+
+    /**
+     * Writes into recordBody in little-endian byte order.
+     */
+    private final ByteBuffer recordBodyBuffer = ByteBuffer.wrap(recordBody).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Computes the checksums of appended and replayed records.
+     */
+    private final CRC32C checksum = new CRC32C();
+
+    /**
+     * Holds the channel of the log being appended to.
+     */
+    private FileChannel logChannel;
+
+    /**
+     * Holds the generation of the log being appended to.
+     */
+    private long generation;
+
+    /**
+     * Holds the number of records written to the log but not yet forced to disk.
+     */
+    private int unforcedRecords = 0;
+
+    /**
+     * Holds the number of records logged since the last snapshot.
+     */
+    private long recordsSinceSnapshot = 0;
+
+    /**
+     * Opens a durable event counter in a directory, recovering the events stored there by an earlier run.
+     * @param directory The directory of the snapshots and logs. It is created if it does not exist.
+     * @param groupCommitSize The number of records after which the log is forced to disk.
+     * @param snapshotInterval The number of logged records after which a snapshot is taken, or 0 to only take
+     * snapshots on request.
+     * @throws IOException If the directory cannot be read or holds a corrupt snapshot or log.
+     */
+    public DurableEventCounter(String directory, int groupCommitSize, long snapshotInterval) throws IOException {
+        if(groupCommitSize < 1) {
+            throw new IllegalArgumentException("Group commit size " + groupCommitSize + " is less than 1");
+        }
+        this.directory = Paths.get(directory);
+        this.groupCommitSize = groupCommitSize;
+        this.snapshotInterval = snapshotInterval;
+        this.logBuffer = ByteBuffer.allocateDirect(Math.min(groupCommitSize, 1 << 13) * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        Files.createDirectories(this.directory);
+        recover();
+    }
+
+    /**
+     * Returns the event counter holding the recovered and logged events. It must only be used for queries, as changes
+     * made through it are not logged.
+     * @return The event counter.
+     */
+    public RedBlackTreeEventCounter getEventCounter() {
+        return eventCounter;
+    }
+
+    /**
+     * Builds the event counter from a sorted stream of events, replacing its contents, and takes a snapshot so that the
+     * events are durable. This runs in O(n) time.
+     * @param size The number of events to be read.
+     * @param iterator This iterator has the events in ascending order of ID.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public void buildEventCounter(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) throws IOException {
+        eventCounter.buildEventCounter(size, iterator);
+        snapshot();
+    }
+
+    /**
+     * Logs and applies an Increase. This runs in O(lg n) time.
+     * @param ID The event ID whose count has to be increased.
+     * @param amount The amount by which the count has to be increase.
+     * @return The final count of the event ID after addition.
+     * @throws IOException If the log cannot be written.
+     */
+    public long increase(int ID, int amount) throws IOException {
+        appendRecord(INCREASE, ID, amount);
+        long count = eventCounter.increase(ID, amount);
+        snapshotIfDue();
+        return count;
+    }
+
+    /**
+     * Logs and applies a Reduce. This runs in O(lg n) time.
+     * @param ID The event ID whose count is to be decreased.
+     * @param amount The amount by which to decrease.
+     * @return The final count or 0.
+     * @throws IOException If the log cannot be written.
+     */
+    public long reduce(int ID, int amount) throws IOException {
+        appendRecord(REDUCE, ID, amount);
+        long count = eventCounter.reduce(ID, amount);
+        snapshotIfDue();
+        return count;
+    }
+
+    /**
+     * Searches the counter for the event ID and returns the count. Returns 0, if not present.
+     * @param ID The event ID whose count is to be returned.
+     * @return The count of the event or 0.
+     */
+    public long count(int ID) {
+        return eventCounter.count(ID);
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    public long inRange(int ID1, int ID2) {
+        return eventCounter.inRange(ID1, ID2);
+    }
+
+    /**
+     * Returns the event with the lowest ID that is greater than ID.
+     * @param ID The event ID whose next is to be found.
+     * @return The next event
+     */
+    public RedBlackTree.RedBlackTreeNode next(int ID) {
+        return eventCounter.next(ID);
+    }
+
+    /**
+     * Returns the event with the greatest ID that is less than ID.
+     * @param ID The ID whose previous is to be found.
+     * @return The previous event.
+     */
+    public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        return eventCounter.previous(ID);
+    }
+
+    /**
+     * Writes the pending records to the log and forces it to disk, so that every change made so far survives a crash.
+     * @throws IOException If the log cannot be written.
+     */
+    public void sync() throws IOException {
+        writeLogBuffer();
+        if(unforcedRecords > 0) {
+            logChannel.force(false);
+            unforcedRecords = 0;
+        }
+    }
+
+    /**
+     * Writes the whole counter to a new snapshot and starts a new log generation, then deletes the older snapshot and
+     * logs. A crash at any point leaves either the old or the new snapshot together with the logs it needs. This runs
+     * in O(n) time.
+     * @throws IOException If the snapshot or the new log cannot be written.
+     */
+    public void snapshot() throws IOException {
+        sync();
+        long newGeneration = generation + 1;
+        FileChannel newLogChannel = createLog(newGeneration);
+        logChannel.close();
+        logChannel = newLogChannel;
+        generation = newGeneration;
+        recordsSinceSnapshot = 0;
+
+        Path temporarySnapshot = directory.resolve(SNAPSHOT_PREFIX + newGeneration + TEMPORARY_SUFFIX);
+        EventFileLoader.writeBinary(temporarySnapshot.toString(), new CounterIterator());
+        try (FileChannel snapshotChannel = FileChannel.open(temporarySnapshot, StandardOpenOption.WRITE)) {
+            snapshotChannel.force(true);
+        }
+        Files.move(temporarySnapshot, directory.resolve(SNAPSHOT_PREFIX + newGeneration),
+                StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+
+        for (Path path : listFiles()) {
+            String fileName = path.getFileName().toString();
+            long fileGeneration = generationOf(fileName);
+            if(fileGeneration >= 0 && fileGeneration < newGeneration && !fileName.endsWith(TEMPORARY_SUFFIX)) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Forces the pending records to disk and closes the log.
+     * @throws IOException If the log cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            logChannel.close();
+        }
+    }
+
+    /**
+     * Loads the latest snapshot, replays the logs written after it and opens the last log for appending.
+     * @throws IOException If a snapshot or log is corrupt or cannot be read.
+     */
+    private void recover() throws IOException {
+        long snapshotGeneration = 0;
+        TreeSet<Long> logGenerations = new TreeSet<Long>();
+        for (Path path : listFiles()) {
+            String fileName = path.getFileName().toString();
+            if(fileName.endsWith(TEMPORARY_SUFFIX)) {
+                Files.delete(path); //A snapshot which was never completed
+            } else if(fileName.startsWith(SNAPSHOT_PREFIX)) {
+                snapshotGeneration = Math.max(snapshotGeneration, generationOf(fileName));
+            } else if(fileName.startsWith(LOG_PREFIX)) {
+                logGenerations.add(generationOf(fileName));
+            }
+        }
+        if(snapshotGeneration > 0) {
+            try (EventFileLoader eventFileLoader =
+                         new EventFileLoader(directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration).toString())) {
+                eventCounter.buildEventCounter(eventFileLoader.size(), eventFileLoader);
+            }
+        }
+        generation = snapshotGeneration;
+        for (long logGeneration : logGenerations.tailSet(snapshotGeneration)) {
+            replayLog(logGeneration, logGeneration == logGenerations.last());
+            generation = logGeneration;
+        }
+        Path logPath = directory.resolve(LOG_PREFIX + generation);
+        if(logGenerations.contains(generation)) {
+            logChannel = FileChannel.open(logPath, StandardOpenOption.WRITE);
+            logChannel.position(logChannel.size());
+        } else {
+            logChannel = createLog(generation);
+        }
+    }
+
+    /**
+     * Applies the records of a log to the counter and counts them towards the next snapshot. A crash can only damage
+     * the end of the last log, so that log is cut at its first record which is short, has a bad checksum or has an
+     * unknown operation.
+     * @param logGeneration The generation of the log.
+     * @param lastLog True if this is the last log, which is appended to after recovery.
+     * @throws IOException If the log is corrupt or cannot be read.
+     */
+    private void replayLog(long logGeneration, boolean lastLog) throws IOException {
+        Path logPath = directory.resolve(LOG_PREFIX + logGeneration);
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long logLength = channel.size();
+            if(logLength < 4) {
+                channel.truncate(0); //The header itself was cut short
+                writeHeader(channel);
+                return;
+            }
+            ByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, logLength).order(ByteOrder.LITTLE_ENDIAN);
+            if(log.getInt() != LOG_MAGIC) {
+                throw new IOException("Log " + logPath + " does not start with the log magic number");
+            }
+            while (log.remaining() >= RECORD_SIZE) {
+                int recordStart = log.position();
+                checksum.reset();
+                log.limit(recordStart + RECORD_BODY_SIZE);
+                checksum.update(log);
+                log.limit(log.capacity());
+                log.position(recordStart);
+                byte operation = log.get();
+                int ID = log.getInt();
+                int amount = log.getInt();
+                if(log.getInt() != (int) checksum.getValue() || (operation != INCREASE && operation != REDUCE)) {
+                    if(!lastLog) {
+                        throw new IOException("Log " + logPath + " has a corrupt record at offset " + recordStart);
+                    }
+                    log.position(recordStart);
+                    break;
+                }
+                try {
+                    if(operation == INCREASE) {
+                        eventCounter.increase(ID, amount);
+                    } else {
+                        eventCounter.reduce(ID, amount);
+                    }
+                } catch (ArithmeticException overflow) {
+                    //The overflow policy rejected this record when it was first applied too
+                }
+                recordsSinceSnapshot++;
+            }
+            if(log.hasRemaining()) {
+                if(!lastLog) {
+                    throw new IOException("Log " + logPath + " ends with a partial record");
+                }
+                channel.truncate(log.position());
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Adds a record to the log, writing the buffered records once the buffer is full and forcing the log once a group
+     * is complete.
+     * @param operation The operation byte.
+     * @param ID The event ID.
+     * @param amount The amount.
+     * @throws IOException If the log cannot be written.
+     */
+    private void appendRecord(byte operation, int ID, int amount) throws IOException {
+        if(logBuffer.remaining() < RECORD_SIZE) {
+            writeLogBuffer();
+        }
+        recordBodyBuffer.clear();
+        recordBodyBuffer.put(operation).putInt(ID).putInt(amount);
+        checksum.reset();
+        checksum.update(recordBody, 0, RECORD_BODY_SIZE);
+        logBuffer.put(recordBody).putInt((int) checksum.getValue());
+        recordsSinceSnapshot++;
+        if(++unforcedRecords >= groupCommitSize) {
+            sync();
+        }
+    }
+
+    /**
+     * Takes a snapshot if snapshotInterval records have been logged since the last one. This is called after the
+     * logged change has been applied, so that the snapshot holds it.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    private void snapshotIfDue() throws IOException {
+        if(snapshotInterval > 0 && recordsSinceSnapshot >= snapshotInterval) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Writes the buffered records to the log channel.
+     * @throws IOException If the log cannot be written.
+     */
+    private void writeLogBuffer() throws IOException {
+        logBuffer.flip();
+        while (logBuffer.hasRemaining()) {
+            logChannel.write(logBuffer);
+        }
+        logBuffer.clear();
+    }
+
+    /**
+     * Creates an empty log holding only the header and forces it to disk.
+     * @param logGeneration The generation of the log.
+     * @return The channel of the log positioned at its end.
+     * @throws IOException If the log cannot be created.
+     */
+    private FileChannel createLog(long logGeneration) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOG_PREFIX + logGeneration),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader(channel);
+        channel.force(true);
+        forceDirectory();
+        return channel;
+    }
+
+    /**
+     * Writes the log header at the current position of a channel.
+     * @param channel The channel of the log.
+     * @throws IOException If the header cannot be written.
+     */
+    private static void writeHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(LOG_MAGIC);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Forces the entries of the directory to disk so that created and renamed files survive a crash. Platforms which
+     * cannot open a directory as a channel are skipped.
+     */
+    private void forceDirectory() {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException ignored) {
+            //Not supported on this platform.
+        }
+    }
+
+    /**
+     * Returns the snapshot and log files in the directory.
+     * @return The files.
+     * @throws IOException If the directory cannot be read.
+     */
+    private Iterable<Path> listFiles() throws IOException {
+        TreeSet<Path> files = new TreeSet<Path>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+            for (Path path : directoryStream) {
+                String fileName = path.getFileName().toString();
+                if(fileName.startsWith(SNAPSHOT_PREFIX) || fileName.startsWith(LOG_PREFIX)) {
+                    files.add(path);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the generation in the name of a snapshot or log file.
+     * @param fileName The name of the file.
+     * @return The generation, or -1 if the name does not hold one.
+     */
+    private static long generationOf(String fileName) {
+        int begin = fileName.indexOf('.') + 1;
+        int end = fileName.indexOf('.', begin);
+        try {
+            return Long.parseLong(fileName.substring(begin, (end < 0) ? fileName.length() : end));
+        } catch (NumberFormatException numberFormatException) {
+            return -1;
+        }
+    }
+
+    /**
+     * This inner class iterates over the events of the counter in ascending order of ID for writing a snapshot.
+     */
+    private class CounterIterator implements Iterator<RedBlackTree.RedBlackTreeNode> {
+
+        /**
+         * Holds the cursor over the events.
+         */
+        private final RedBlackTree.Cursor cursor = eventCounter.cursor();
+
+        /**
+         * True if the cursor is on the event to be returned next.
+         */
+        private boolean hasNext = cursor.next();
+
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public RedBlackTree.RedBlackTreeNode next() {
+            if(!hasNext) {
+                throw new NoSuchElementException();
+            }
+            RedBlackTree.RedBlackTreeNode event = cursor.getEvent();
+            hasNext = cursor.next();
+            return event;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * This interface defines the operations an ordered store has to provide so that RedBlackTreeEventCounter can use it
+ * in place of its own RedBlackTree. The semantics of every operation are the same as those of the matching
+ * RedBlackTreeEventCounter operation. Counts and range sums are 64 bit values and a backend applies its
+ * CountOverflowPolicy when a count overflows.
+ */
+public interface EventCounterBackend {
+
+    /**
+     * Replaces the contents of the store with events read from a sorted iterator. This should run in O(n) time.
+     * @param size Number of events to be read.
+     * @param iterator This iterator has the Event objects in ascending order of ID.
+     */
+    void build(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator);
+
+    /**
+     * Increases the count of the event ID by amount, inserting the ID if it is not present.
+     * @param ID The event ID whose count has to be increased.
+     * @param amount The amount by which the count has to be increased.
+     * @return The final count of the event ID.
+     */
+    long increase(int ID, int amount);
+
+    /**
+     * Decreases the count of the event ID by amount, removing the ID once its count drops below 1.
+     * @param ID The event ID whose count is to be decreased.
+     * @param amount The amount by which to decrease.
+     * @return The final count or 0.
+     */
+    long reduce(int ID, int amount);
+
+    /**
+     * Applies the summed count changes of a batch whose IDs are distinct and in ascending order. A positive delta
+     * increases the count of its ID and a negative delta reduces it, removing the ID once its count drops below 1.
+     * This default makes one Increase or Reduce per int sized step of each delta, so a batch costs as much as the
+     * same changes made one by one. A backend which can merge a sorted batch in one walk should override it.
+     * @param sortedIDs The distinct IDs of the batch in ascending order.
+     * @param deltas The count delta of each ID.
+     * @param batchSize The number of IDs in the batch.
+     */
+    default void applySortedDeltas(int[] sortedIDs, long[] deltas, int batchSize) {
+        for (int i = 0; i < batchSize; i++) {
+            for (long delta = deltas[i]; delta != 0; ) { //Deltas are passed on in int sized steps
+                int step = (int) Math.max(-Integer.MAX_VALUE, Math.min(Integer.MAX_VALUE, delta));
+                if(step > 0) {
+                    increase(sortedIDs[i], step);
+                } else if(reduce(sortedIDs[i], -step) == 0) {
+                    break;
+                }
+                delta -= step;
+            }
+        }
+    }
+
+    /**
+     * Returns the count of the event ID or 0 if it is not present.
+     * @param ID The event ID whose count is to be returned.
+     * @return The count of the event or 0.
+     */
+    long count(int ID);
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    long inRange(int ID1, int ID2);
+
+    /**
+     * Returns the event with the lowest ID that is greater than ID.
+     * @param ID The event ID whose next is to be found.
+     * @return The next event or null.
+     */
+    RedBlackTree.RedBlackTreeNode next(int ID);
+
+    /**
+     * Passes every event with an ID between ID1 and ID2 to a visitor in ascending order of ID. This default steps from
+     * event to event through next, which searches the store again for every event, so a range of k events costs
+     * O(k lg n). A backend which can walk its events in order, like the leaf links of a B+ tree, should override it.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param visitor Receives the events in the range. It must not change the store.
+     */
+    default void forEachInRange(int ID1, int ID2, Consumer<RedBlackTree.RedBlackTreeNode> visitor) {
+        if(ID1 > ID2) {
+            return;
+        }
+        long firstCount = count(ID1);
+        RedBlackTree.RedBlackTreeNode event = (firstCount > 0) ? new RedBlackTree.RedBlackTreeNode(ID1, firstCount)
+                : next(ID1);
+        while (event != null && event.getID() <= ID2) {
+            visitor.accept(event);
+            event = next(event.getID());
+        }
+    }
+
+    /**
+     * Returns the event with the greatest ID that is less than ID.
+     * @param ID The event ID whose previous is to be found.
+     * @return The previous event or null.
+     */
+    RedBlackTree.RedBlackTreeNode previous(int ID);
+}
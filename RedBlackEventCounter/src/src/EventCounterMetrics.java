@@ -0,0 +1,321 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class collects metrics of a RedBlackTreeEventCounter: a call count and a latency histogram per operation, and
+ * the shape and rebalancing work of its RedBlackTree. It supports the below operations:
+ * 1. Record(operation, startNanos)
+ * 2. Dump and periodic dumps
+ * 3. RegisterMBean(name) and UnregisterMBean
+ * Instrumentation is switched on for the whole JVM by the system property eventcounter.metrics=true. ENABLED is a
+ * static final constant, so with the property unset the JIT compiler removes every instrumented branch and the
+ * counter and the tree run as if they were not instrumented.
+ * Operations are recorded by the thread which updates the counter. Once per period that thread also refreshes the
+ * tree structure seen by JMX and writes a dump, so no other thread walks the tree while it changes.
+ */
+public class EventCounterMetrics implements EventCounterMetricsMXBean {
+
+    /**
+     * Holds true if instrumentation is compiled in. This is read once from the system property eventcounter.metrics.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("eventcounter.metrics");
+
+    /**
+     * This enum lists the operations of the event counter which are measured.
+     */
+    public enum Operation {
+        INCREASE("increase"),
+        REDUCE("reduce"),
+        COUNT("count"),
+        IN_RANGE("inRange"),
+        NEXT("next"),
+        PREVIOUS("previous"),
+        APPLY_BATCH("applyBatch");
+
+        /**
+         * Holds the name of the operation used in dumps and by JMX.
+         */
+        private final String operationName;
+
+        /**
+         * Creates an operation.
+         * @param operationName The name of the operation.
+         */
+        Operation(String operationName) {
+            this.operationName = operationName;
+        }
+
+        /**
+         * Returns the name of the operation used in dumps and by JMX.
+         * @return The name.
+         */
+        public String getOperationName() {
+            return operationName;
+        }
+    }
+
+    /**
+     * Holds the latency histogram of every operation, indexed by ordinal.
+     */
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+
+    /**
+     * Holds the tree whose structure is reported, or null if the counter uses another backend.
+     */
+    private final RedBlackTree redBlackTree;
+
+    /**
+     * Holds the time between refreshes of the tree structure in nanoseconds.
+     */
+    private final long periodNanos;
+
+    /**
+     * Receives a dump once per period, or is null if no dumps are wanted.
+     */
+    private final Consumer<String> dumpSink;
+
+    /**
+     * Holds the value of System.nanoTime after which the next refresh is due.
+     */
+    private long nextRefreshNanos;
+
+    /**
+     * Holds true if reset was called and the histograms have not been cleared yet.
+     */
+    private volatile boolean resetRequested = false;
+
+    /**
+     * Hold the size, height and black height of the tree at the last refresh.
+     */
+    private volatile int size, height, blackHeight;
+
+    /**
+     * Hold the rebalancing counts of the tree at the last refresh.
+     */
+    private volatile long insertCount, deleteCount, rotationCount, insertFixUpSteps, deleteFixUpSteps;
+
+    /**
+     * Holds the name under which the metrics are registered with the platform MBean server, or null.
+     */
+    private ObjectName objectName;
+
+    /**
+     * Creates the metrics of an event counter and takes a first look at the tree.
+     * @param redBlackTree The tree of the counter, or null if the counter uses another backend.
+     * @param periodMillis The time between refreshes of the tree structure and between dumps in milliseconds.
+     * @param dumpSink Receives a dump once per period, or null if no dumps are wanted.
+     * @throws IllegalArgumentException If periodMillis is less than 1.
+     */
+    public EventCounterMetrics(RedBlackTree redBlackTree, long periodMillis, Consumer<String> dumpSink) {
+        if(periodMillis < 1) {
+            throw new IllegalArgumentException("Metrics period " + periodMillis + " ms is less than 1");
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        this.redBlackTree = redBlackTree;
+        this.periodNanos = periodMillis * 1_000_000L;
+        this.dumpSink = dumpSink;
+        refresh();
+        nextRefreshNanos = System.nanoTime() + periodNanos;
+    }
+
+    /**
+     * Records one call of an operation which started at startNanos and has just returned. Once per period this also
+     * refreshes the tree structure and writes a dump. This runs in O(1) time outside of refreshes, which take O(n)
+     * time to measure the height.
+     * @param operation The operation.
+     * @param startNanos The value of System.nanoTime when the operation started.
+     */
+    public void record(Operation operation, long startNanos) {
+        long endNanos = System.nanoTime();
+        if(resetRequested) {
+            resetRequested = false;
+            for (LatencyHistogram latencyHistogram : latencies) {
+                latencyHistogram.reset();
+            }
+        }
+        latencies[operation.ordinal()].record(endNanos - startNanos);
+        if(endNanos - nextRefreshNanos >= 0) {
+            nextRefreshNanos = endNanos + periodNanos;
+            refresh();
+            if(dumpSink != null) {
+                dumpSink.accept(dump());
+            }
+        }
+    }
+
+    /**
+     * Returns the latency histogram of an operation.
+     * @param operation The operation.
+     * @return The histogram.
+     */
+    public LatencyHistogram getLatencies(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under EventCounter:type=Metrics,name=name.
+     * @param name The name of the counter.
+     * @return The object name the metrics are registered under.
+     * @throws JMException If the name is taken or the registration fails.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName newObjectName = new ObjectName("EventCounter:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+        objectName = newObjectName;
+        return objectName;
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server if they are registered.
+     * @throws JMException If the removal fails.
+     */
+    public void unregisterMBean() throws JMException {
+        if(objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return latencyMap(LatencyHistogram::getCount);
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencyNanos() {
+        Map<String, Double> meanLatencies = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            meanLatencies.put(operation.getOperationName(), latencies[operation.ordinal()].getMean());
+        }
+        return meanLatencies;
+    }
+
+    @Override
+    public Map<String, Long> getMedianLatencyNanos() {
+        return latencyMap(latencyHistogram -> latencyHistogram.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Long> getP99LatencyNanos() {
+        return latencyMap(latencyHistogram -> latencyHistogram.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Long> getP999LatencyNanos() {
+        return latencyMap(latencyHistogram -> latencyHistogram.getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public Map<String, Long> getMaxLatencyNanos() {
+        return latencyMap(LatencyHistogram::getMax);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getBlackHeight() {
+        return blackHeight;
+    }
+
+    @Override
+    public long getInsertCount() {
+        return insertCount;
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return deleteCount;
+    }
+
+    @Override
+    public long getRotationCount() {
+        return rotationCount;
+    }
+
+    @Override
+    public double getRotationsPerUpdate() {
+        long updates = insertCount + deleteCount;
+        return (updates > 0) ? (double) rotationCount / updates : 0;
+    }
+
+    @Override
+    public long getInsertFixUpSteps() {
+        return insertFixUpSteps;
+    }
+
+    @Override
+    public long getDeleteFixUpSteps() {
+        return deleteFixUpSteps;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder dump = new StringBuilder();
+        dump.append(String.format("%-11s %12s %10s %10s %10s %10s %12s%n", "operation", "count", "mean ns", "p50 ns",
+                "p99 ns", "p99.9 ns", "max ns"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latencyHistogram = latencies[operation.ordinal()];
+            dump.append(String.format("%-11s %12d %10.1f %10d %10d %10d %12d%n", operation.getOperationName(),
+                    latencyHistogram.getCount(), latencyHistogram.getMean(),
+                    latencyHistogram.getValueAtPercentile(50), latencyHistogram.getValueAtPercentile(99),
+                    latencyHistogram.getValueAtPercentile(99.9), latencyHistogram.getMax()));
+        }
+        if(redBlackTree != null) {
+            dump.append(String.format("size=%d height=%d blackHeight=%d inserts=%d deletes=%d rotations=%d "
+                    + "rotationsPerUpdate=%.3f insertFixUpSteps=%d deleteFixUpSteps=%d%n", size, height,
+                    blackHeight, insertCount, deleteCount, rotationCount, getRotationsPerUpdate(), insertFixUpSteps,
+                    deleteFixUpSteps));
+        }
+        return dump.toString();
+    }
+
+    @Override
+    public void reset() {
+        resetRequested = true;
+    }
+
+    /**
+     * Copies the structure and rebalancing counts of the tree into the fields read by JMX.
+     */
+    private void refresh() {
+        if(redBlackTree == null) {
+            return;
+        }
+        size = redBlackTree.size();
+        height = redBlackTree.height();
+        blackHeight = redBlackTree.blackHeight();
+        insertCount = redBlackTree.getInsertCount();
+        deleteCount = redBlackTree.getDeleteCount();
+        rotationCount = redBlackTree.getRotationCount();
+        insertFixUpSteps = redBlackTree.getInsertFixUpSteps();
+        deleteFixUpSteps = redBlackTree.getDeleteFixUpSteps();
+    }
+
+    /**
+     * Returns a value of the latency histogram of every operation.
+     * @param value Reads the value from a histogram.
+     * @return The values keyed by operation name.
+     */
+    private Map<String, Long> latencyMap(ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> latencyValues = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            latencyValues.put(operation.getOperationName(), value.applyAsLong(latencies[operation.ordinal()]));
+        }
+        return latencyValues;
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.Map;
+
+/**
+ * This interface is the JMX view of the EventCounterMetrics of an event counter. Operation counts and latencies are
+ * live; the tree structure is as of the last refresh, which happens once per dump period on the thread which updates
+ * the counter. The maps are keyed by operation name, such as increase or inRange.
+ */
+public interface EventCounterMetricsMXBean {
+
+    /**
+     * Returns the number of calls of every operation.
+     * @return The calls per operation.
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * Returns the mean latency of every operation.
+     * @return The mean latency in nanoseconds per operation.
+     */
+    Map<String, Double> getMeanLatencyNanos();
+
+    /**
+     * Returns the median latency of every operation.
+     * @return The median latency in nanoseconds per operation.
+     */
+    Map<String, Long> getMedianLatencyNanos();
+
+    /**
+     * Returns the 99th percentile latency of every operation.
+     * @return The 99th percentile latency in nanoseconds per operation.
+     */
+    Map<String, Long> getP99LatencyNanos();
+
+    /**
+     * Returns the 99.9th percentile latency of every operation.
+     * @return The 99.9th percentile latency in nanoseconds per operation.
+     */
+    Map<String, Long> getP999LatencyNanos();
+
+    /**
+     * Returns the largest latency of every operation.
+     * @return The largest latency in nanoseconds per operation.
+     */
+    Map<String, Long> getMaxLatencyNanos();
+
+    /**
+     * Returns the number of events in the tree.
+     * @return The number of nodes.
+     */
+    int getSize();
+
+    /**
+     * Returns the height of the tree.
+     * @return The number of nodes on the longest path from the root.
+     */
+    int getHeight();
+
+    /**
+     * Returns the black height of the tree.
+     * @return The number of black nodes on a path from the root.
+     */
+    int getBlackHeight();
+
+    /**
+     * Returns the number of single node inserts into the tree.
+     * @return The number of inserts.
+     */
+    long getInsertCount();
+
+    /**
+     * Returns the number of single node deletes from the tree.
+     * @return The number of deletes.
+     */
+    long getDeleteCount();
+
+    /**
+     * Returns the number of rotations made by the tree.
+     * @return The number of rotations.
+     */
+    long getRotationCount();
+
+    /**
+     * Returns the average number of rotations per insert or delete.
+     * @return The rotations per update, or 0 before the first update.
+     */
+    double getRotationsPerUpdate();
+
+    /**
+     * Returns the number of iterations of the insert fix up.
+     * @return The number of insert fix up iterations.
+     */
+    long getInsertFixUpSteps();
+
+    /**
+     * Returns the number of iterations of the delete fix up.
+     * @return The number of delete fix up iterations.
+     */
+    long getDeleteFixUpSteps();
+
+    /**
+     * Returns the metrics as a human readable table, as written by the periodic dump.
+     * @return The dump.
+     */
+    String dump();
+
+    /**
+     * Clears the operation counts and latencies before the next operation is recorded.
+     */
+    void reset();
+}
@@ -0,0 +1,416 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class serves a RedBlackTreeEventCounter to local processes over a Unix domain socket or a loopback TCP port. A
+ * single thread runs a non-blocking selector over all connections and is the only thread touching the counter, so the
+ * counter needs no locking. The protocol is binary and big endian. Every request is a frame of one opcode byte
+ * followed by its int arguments:
+ * 1. INCREASE theID m
+ * 2. REDUCE theID m
+ * 3. COUNT theID
+ * 4. IN_RANGE ID1 ID2
+ * 5. NEXT theID
+ * 6. PREVIOUS theID
+ * Every reply starts with a status byte. Replies to NEXT and PREVIOUS go on with the int ID and the long count of the
+ * event, which are both 0 if there is no event; all other replies go on with a long count. Replies come in the order
+ * of the requests, so a client may pipeline any number of requests without waiting. The server parses every complete
+ * frame of a read and sends the replies of that read with one write. A connection with an unknown opcode gets a
+ * BAD_REQUEST reply and is closed, as the frames after it cannot be found. So is a connection whose request makes the
+ * counter fail with anything but a count overflow; the other connections are not affected. While a client does not
+ * read its replies the server stops reading its requests.
+ */
+public class EventCounterServer implements Runnable, Closeable {
+
+    /**
+     * The opcodes of the requests.
+     */
+    public static final byte INCREASE = 1, REDUCE = 2, COUNT = 3, IN_RANGE = 4, NEXT = 5, PREVIOUS = 6;
+
+    /**
+     * The statuses of the replies: the request was applied, the overflow policy of the counter rejected the update,
+     * or the opcode is unknown or the request failed.
+     */
+    public static final byte OK = 0, COUNT_OVERFLOW = 1, BAD_REQUEST = 2;
+
+    /**
+     * The size of the input and output buffers of a connection in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The length of the longest reply in bytes.
+     */
+    private static final int MAX_REPLY_LENGTH = 1 + 4 + 8;
+
+    /**
+     * Holds the event counter the requests are run against.
+     */
+    private final RedBlackTreeEventCounter redBlackTreeEventCounter;
+
+    /**
+     * Holds the channel connections are accepted from.
+     */
+    private final ServerSocketChannel serverSocketChannel;
+
+    /**
+     * Holds the selector over the server channel and the connections.
+     */
+    private final Selector selector;
+
+    /**
+     * Holds the address the server listens on.
+     */
+    private final SocketAddress localAddress;
+
+    /**
+     * Holds false once close was called.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Holds true once the selector loop, or close before it, has taken charge of closing the channels.
+     */
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    /**
+     * This inner class is the state of one client connection. Both buffers are kept ready for filling: the input
+     * buffer holds the bytes read but not yet parsed and the output buffer holds the replies not yet written.
+     */
+    private final class Connection {
+
+        /**
+         * Holds the channel of the client.
+         */
+        private final SocketChannel socketChannel;
+
+        /**
+         * Hold the unparsed requests and the unwritten replies.
+         */
+        private final ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE),
+                output = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /**
+         * Holds true once the client will send no more requests, because it shut down its output or sent an unknown
+         * opcode. The connection is closed once the replies so far are written.
+         */
+        private boolean endOfInput = false;
+
+        /**
+         * Creates the state of a connection.
+         * @param socketChannel The channel of the client.
+         */
+        private Connection(SocketChannel socketChannel) {
+            this.socketChannel = socketChannel;
+        }
+
+        /**
+         * Reads what the client sent if the channel is readable, runs every complete request and writes the replies.
+         * Afterwards the connection waits for input only while the input buffer has room, and for the channel to be
+         * writable only while replies are left.
+         * @param selectionKey The key of the connection.
+         * @throws IOException If reading or writing fails.
+         */
+        private void service(SelectionKey selectionKey) throws IOException {
+            if(selectionKey.isReadable() && socketChannel.read(input) < 0) {
+                endOfInput = true;
+            }
+            boolean outputFull;
+            do {
+                outputFull = runRequests();
+            } while (writeReplies() && outputFull); //Go on while a full output buffer could be written out completely
+            if(endOfInput && output.position() == 0) {
+                selectionKey.cancel();
+                socketChannel.close();
+                return;
+            }
+            int interestOps = 0;
+            if(!endOfInput && input.hasRemaining()) {
+                interestOps |= SelectionKey.OP_READ;
+            }
+            if(output.position() > 0) {
+                interestOps |= SelectionKey.OP_WRITE;
+            }
+            selectionKey.interestOps(interestOps);
+        }
+
+        /**
+         * Runs the complete requests in the input buffer until it holds no complete frame or the output buffer has no
+         * room for another reply.
+         * @return True if it stopped because the output buffer was full.
+         */
+        private boolean runRequests() {
+            input.flip();
+            boolean outputFull = false;
+            while (input.hasRemaining()) {
+                if(output.remaining() < MAX_REPLY_LENGTH) {
+                    outputFull = true;
+                    break;
+                }
+                int requestLength = requestLength(input.get(input.position()));
+                if(requestLength < 0) {
+                    output.put(BAD_REQUEST).putLong(0);
+                    endOfInput = true;
+                    input.position(input.limit());
+                    break;
+                }
+                if(input.remaining() < requestLength) {
+                    break;
+                }
+                if(!runRequest(input.get())) {
+                    endOfInput = true;
+                    input.position(input.limit());
+                    break;
+                }
+            }
+            input.compact();
+            return outputFull;
+        }
+
+        /**
+         * Runs one request whose opcode was just read and puts its reply into the output buffer. A request which makes
+         * the counter fail with anything but a count overflow gets a BAD_REQUEST reply.
+         * @param opcode The opcode.
+         * @return False if the request failed and the connection has to be closed.
+         */
+        private boolean runRequest(byte opcode) {
+            long count;
+            try {
+                switch (opcode) {
+                    case INCREASE: {
+                        int ID = input.getInt();
+                        count = redBlackTreeEventCounter.increase(ID, input.getInt());
+                        break;
+                    }
+                    case REDUCE: {
+                        int ID = input.getInt();
+                        count = redBlackTreeEventCounter.reduce(ID, input.getInt());
+                        break;
+                    }
+                    case COUNT:
+                        count = redBlackTreeEventCounter.count(input.getInt());
+                        break;
+                    case IN_RANGE: {
+                        int ID1 = input.getInt();
+                        count = redBlackTreeEventCounter.inRange(ID1, input.getInt());
+                        break;
+                    }
+                    case NEXT:
+                        putEvent(redBlackTreeEventCounter.next(input.getInt()));
+                        return true;
+                    default:
+                        putEvent(redBlackTreeEventCounter.previous(input.getInt()));
+                        return true;
+                }
+            } catch (ArithmeticException arithmeticException) {
+                output.put(COUNT_OVERFLOW).putLong(0);
+                return true;
+            } catch (RuntimeException runtimeException) {
+                output.put(BAD_REQUEST).putLong(0);
+                return false;
+            }
+            output.put(OK).putLong(count);
+            return true;
+        }
+
+        /**
+         * Puts the reply to NEXT or PREVIOUS into the output buffer.
+         * @param event The event found, or null.
+         */
+        private void putEvent(RedBlackTree.RedBlackTreeNode event) {
+            output.put(OK).putInt((event != null) ? event.getID() : 0).putLong((event != null) ? event.getCount() : 0);
+        }
+
+        /**
+         * Writes as many of the replies as the channel takes.
+         * @return True if every reply was written.
+         * @throws IOException If writing fails.
+         */
+        private boolean writeReplies() throws IOException {
+            output.flip();
+            if(output.hasRemaining()) {
+                socketChannel.write(output);
+            }
+            output.compact();
+            return output.position() == 0;
+        }
+    }
+
+    /**
+     * Creates a server for an event counter and binds it to an address. Requests are served once run is called.
+     * @param redBlackTreeEventCounter The event counter, which must not be used by other threads while served.
+     * @param address A UnixDomainSocketAddress, or an InetSocketAddress which should be a loopback address.
+     * @throws IOException If the address cannot be bound.
+     */
+    public EventCounterServer(RedBlackTreeEventCounter redBlackTreeEventCounter, SocketAddress address)
+            throws IOException {
+        this.redBlackTreeEventCounter = redBlackTreeEventCounter;
+        serverSocketChannel = (address instanceof UnixDomainSocketAddress)
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+        try {
+            serverSocketChannel.bind(address);
+            serverSocketChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ioException) {
+            serverSocketChannel.close();
+            throw ioException;
+        }
+        localAddress = serverSocketChannel.getLocalAddress();
+    }
+
+    /**
+     * Returns the address the server listens on, which has the actual port if port 0 was bound.
+     * @return The address.
+     */
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Serves connections on the calling thread until close is called, then closes every connection. A connection
+     * whose channel fails is closed without affecting the others.
+     * @throws UncheckedIOException If the selector fails, after every channel is closed.
+     */
+    @Override
+    public void run() {
+        if(!started.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey selectionKey = selectedKeys.next();
+                    selectedKeys.remove();
+                    if(!selectionKey.isValid()) {
+                        continue;
+                    }
+                    if(selectionKey.isAcceptable()) {
+                        acceptConnections();
+                    } else {
+                        Connection connection = (Connection) selectionKey.attachment();
+                        try {
+                            connection.service(selectionKey);
+                        } catch (IOException | RuntimeException exception) {
+                            selectionKey.cancel();
+                            closeQuietly(connection.socketChannel);
+                        }
+                    }
+                }
+            }
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        } finally {
+            closeChannels();
+        }
+    }
+
+    /**
+     * Stops the server. The selector loop closes the connections and the server channel before run returns, and a
+     * Unix domain socket file is deleted. If run was never called the channels are closed right away.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        if(started.compareAndSet(false, true)) {
+            closeChannels();
+        }
+    }
+
+    /**
+     * Accepts every pending connection and registers it for reading. A connection which cannot be set up is closed,
+     * and if accepting itself fails, for example because no file descriptors are left, the rest wait for the next
+     * selection.
+     */
+    private void acceptConnections() {
+        while (true) {
+            SocketChannel socketChannel;
+            try {
+                socketChannel = serverSocketChannel.accept();
+            } catch (IOException ioException) {
+                return;
+            }
+            if(socketChannel == null) {
+                return;
+            }
+            try {
+                socketChannel.configureBlocking(false);
+                if(localAddress instanceof InetSocketAddress) {
+                    socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                socketChannel.register(selector, SelectionKey.OP_READ, new Connection(socketChannel));
+            } catch (IOException ioException) {
+                closeQuietly(socketChannel);
+            }
+        }
+    }
+
+    /**
+     * Closes every connection, the server channel and the selector, and deletes the file of a Unix domain socket.
+     */
+    private void closeChannels() {
+        if(selector.isOpen()) {
+            for (SelectionKey selectionKey : selector.keys()) {
+                closeQuietly(selectionKey.channel());
+            }
+        }
+        closeQuietly(serverSocketChannel);
+        closeQuietly(selector);
+        if(localAddress instanceof UnixDomainSocketAddress) {
+            try {
+                Files.deleteIfExists(((UnixDomainSocketAddress) localAddress).getPath());
+            } catch (IOException ignored) {
+                //A stale socket file only makes the next bind fail, which reports it
+            }
+        }
+    }
+
+    /**
+     * Returns the length of a request frame including the opcode.
+     * @param opcode The opcode.
+     * @return The length in bytes, or -1 if the opcode is unknown.
+     */
+    private static int requestLength(byte opcode) {
+        switch (opcode) {
+            case INCREASE:
+            case REDUCE:
+            case IN_RANGE:
+                return 1 + 4 + 4;
+            case COUNT:
+            case NEXT:
+            case PREVIOUS:
+                return 1 + 4;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Closes a channel or selector, ignoring failures.
+     * @param closeable The channel or selector.
+     */
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            //Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,569 @@
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * This class reads the sorted initial event file by memory mapping it and parsing the integers straight from the
+ * mapped bytes. It is an iterator over the events so it can be passed to RedBlackTreeEventCounter.buildEventCounter
+ * without collecting the events in a list first. Three file formats are accepted:
+ * 1. Text: the number of events n on the first line followed by n lines of "ID count" in ascending order of ID.
+ * 2. Binary: the 4 byte magic number BINARY_MAGIC followed by fixed width (ID, count) pairs of little-endian 32 bit
+ * integers in ascending order of ID.
+ * 3. Wide binary: the 4 byte magic number WIDE_BINARY_MAGIC followed by (ID, count) pairs of a little-endian 32 bit ID
+ * and a little-endian 64 bit count in ascending order of ID. writeBinary writes this format.
+ * Files larger than 2 GB are mapped one window at a time. parseParallel reads a whole file into sorted arrays on
+ * several threads instead, for RedBlackTree.parallelBuildTreeFromSortedArrays.
+ */
+public class EventFileLoader implements Iterator<RedBlackTree.RedBlackTreeNode>, Closeable {
+
+    /**
+     * The magic number which starts a binary event file. It reads "RBEC" in little-endian byte order.
+     */
+    public static final int BINARY_MAGIC = 0x43454252;
+
+    /**
+     * The magic number which starts a binary event file with 64 bit counts. It reads "RBEW" in little-endian byte
+     * order.
+     */
+    public static final int WIDE_BINARY_MAGIC = 0x57454252;
+
+    /**
+     * The number of bytes mapped at a time. This is a multiple of 4 so that binary integers never straddle windows.
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    /**
+     * The number of bytes taken by one event in the binary format.
+     */
+    private static final int BINARY_EVENT_SIZE = 8;
+
+    /**
+     * The number of bytes taken by one event in the wide binary format.
+     */
+    private static final int WIDE_BINARY_EVENT_SIZE = 12;
+
+    /**
+     * The smallest number of bytes taken by one event in the text format, a digit, a space, a digit and a line break.
+     * The last event may leave out its line break.
+     */
+    private static final int MINIMUM_TEXT_EVENT_SIZE = 4;
+
+    /**
+     * The smallest number of bytes parseParallel hands to one task.
+     */
+    private static final long MINIMUM_CHUNK_SIZE = 1L << 20;
+
+    /**
+     * This static nested class holds the events of a file read by parseParallel in two arrays sorted by ID.
+     */
+    public static final class SortedEvents {
+        private final int size;
+        private final int[] IDs;
+        private final long[] counts;
+
+        /**
+         * Creates the holder.
+         * @param size The number of events.
+         * @param IDs The IDs.
+         * @param counts The counts matching IDs.
+         */
+        private SortedEvents(int size, int[] IDs, long[] counts) {
+            this.size = size;
+            this.IDs = IDs;
+            this.counts = counts;
+        }
+
+        /**
+         * Returns the number of events.
+         * @return The number of events.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Returns the IDs in ascending order.
+         * @return The IDs
+         */
+        public int[] getIDs() {
+            return IDs;
+        }
+
+        /**
+         * Returns the counts matching the IDs.
+         * @return The counts
+         */
+        public long[] getCounts() {
+            return counts;
+        }
+    }
+
+    /**
+     * Holds the open event file.
+     */
+    private final RandomAccessFile eventFile;
+
+    /**
+     * Holds the channel of the event file.
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * Holds the length of the event file in bytes.
+     */
+    private final long fileLength;
+
+    /**
+     * Holds the currently mapped window of the file.
+     */
+    private MappedByteBuffer window;
+
+    /**
+     * Holds the file offset at which the next window starts.
+     */
+    private long nextWindowStart = 0;
+
+    /**
+     * True if the file is in one of the binary formats.
+     */
+    private final boolean binary;
+
+    /**
+     * Holds the number of bytes taken by one event if the file is in one of the binary formats.
+     */
+    private final int binaryEventSize;
+
+    /**
+     * Holds the number of events in the file.
+     */
+    private final int size;
+
+    /**
+     * Holds the number of events read so far.
+     */
+    private int eventsRead = 0;
+
+    /**
+     * Opens and maps an event file and reads its header.
+     * @param fileName The path of the event file.
+     * @throws FileNotFoundException If the file does not exist.
+     * @throws IOException If the file cannot be mapped or its header is malformed, or if the event count of a text
+     * file is negative, does not fit an int or cannot fit in the file.
+     */
+    public EventFileLoader(String fileName) throws IOException {
+        eventFile = new RandomAccessFile(fileName, "r");
+        fileChannel = eventFile.getChannel();
+        fileLength = fileChannel.size();
+        mapNextWindow();
+        int magic = (window.remaining() >= 4) ? window.getInt(0) : 0;
+        if(magic == BINARY_MAGIC || magic == WIDE_BINARY_MAGIC) {
+            binary = true;
+            binaryEventSize = (magic == BINARY_MAGIC) ? BINARY_EVENT_SIZE : WIDE_BINARY_EVENT_SIZE;
+            window.position(4);
+            long events = (fileLength - 4) / binaryEventSize;
+            if(events > Integer.MAX_VALUE) {
+                throw new IOException("Event file " + fileName + " has more than " + Integer.MAX_VALUE + " events");
+            }
+            size = (int) events;
+        } else {
+            binary = false;
+            binaryEventSize = 0;
+            long events = (fileLength > 0) ? parseLong(Long.MIN_VALUE, Long.MAX_VALUE) : 0;
+            if(events < 0 || events > Integer.MAX_VALUE) {
+                throw new IOException("Event file " + fileName + " has an invalid event count " + events);
+            }
+            long dataLength = fileLength - (nextWindowStart - window.capacity() + window.position());
+            if(events > (dataLength + 1) / MINIMUM_TEXT_EVENT_SIZE) {
+                throw new IOException("Event file " + fileName + " is too short for its " + events + " events");
+            }
+            size = (int) events;
+        }
+    }
+
+    /**
+     * Returns the number of events in the file.
+     * @return The number of events.
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return eventsRead < size;
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode next() {
+        if(eventsRead >= size) {
+            throw new NoSuchElementException();
+        }
+        try {
+            int ID;
+            long count;
+            if(binary) {
+                ID = readBinaryInt();
+                count = readBinaryInt();
+                if(binaryEventSize == WIDE_BINARY_EVENT_SIZE) {
+                    count = (count & 0xFFFFFFFFL) | ((long) readBinaryInt() << 32);
+                }
+            } else {
+                ID = (int) parseLong(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                count = parseLong(Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+            eventsRead++;
+            return new RedBlackTree.RedBlackTreeNode(ID, count);
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    /**
+     * Closes the event file. Events already read stay valid.
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        eventFile.close();
+    }
+
+    /**
+     * Writes events to a file in the wide binary format.
+     * @param fileName The path of the file to be written.
+     * @param iterator The events in ascending order of ID.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeBinary(String fileName, Iterator<RedBlackTree.RedBlackTreeNode> iterator)
+            throws IOException {
+        try (RandomAccessFile binaryFile = new RandomAccessFile(fileName, "rw")) {
+            binaryFile.setLength(0);
+            FileChannel channel = binaryFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(WIDE_BINARY_MAGIC);
+            while (iterator.hasNext()) {
+                if(buffer.remaining() < WIDE_BINARY_EVENT_SIZE) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                RedBlackTree.RedBlackTreeNode event = iterator.next();
+                buffer.putInt(event.getID());
+                buffer.putLong(event.getCount());
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads a whole event file into arrays on the threads of a pool. The file is cut into chunks which end at line
+     * breaks, or at event boundaries in the binary format. Each chunk is mapped and its events counted in parallel,
+     * the counts give the position of every chunk's first event, and then every chunk is parsed in parallel straight
+     * into its part of the arrays.
+     * @param fileName The path of the event file.
+     * @param pool The pool which runs the parsing.
+     * @return The events.
+     * @throws FileNotFoundException If the file does not exist.
+     * @throws IOException If the file cannot be mapped or is malformed.
+     */
+    public static SortedEvents parseParallel(String fileName, ForkJoinPool pool) throws IOException {
+        try (EventFileLoader header = new EventFileLoader(fileName)) {
+            int size = header.size;
+            long dataStart = header.window.position(); //The header fits in the first window
+            long dataLength = header.fileLength - dataStart;
+            long chunkCount = Math.max(1, Math.min(pool.getParallelism() * 4L, dataLength / MINIMUM_CHUNK_SIZE));
+            chunkCount = Math.max(chunkCount, (dataLength + WINDOW_SIZE / 2 - 1) / (WINDOW_SIZE / 2));
+            long[] chunkStarts = new long[(int) chunkCount + 1];
+            chunkStarts[0] = dataStart;
+            for (int chunk = 1; chunk < chunkCount; chunk++) {
+                long start = dataStart + dataLength * chunk / chunkCount;
+                if(header.binary) {
+                    start -= (start - dataStart) % header.binaryEventSize;
+                } else {
+                    start = header.nextLineStart(Math.max(start, chunkStarts[chunk - 1]));
+                }
+                chunkStarts[chunk] = Math.max(start, chunkStarts[chunk - 1]);
+            }
+            chunkStarts[(int) chunkCount] = header.fileLength;
+
+            List<Callable<Integer>> countTasks = new ArrayList<>();
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                long start = chunkStarts[chunk];
+                long end = chunkStarts[chunk + 1];
+                countTasks.add(() -> header.binary ? (int) ((end - start) / header.binaryEventSize)
+                        : countNumbers(header.mapChunk(start, end)) / 2);
+            }
+            List<Future<Integer>> chunkEvents = pool.invokeAll(countTasks);
+            int[] IDs = new int[size];
+            long[] counts = new long[size];
+            List<Callable<Integer>> parseTasks = new ArrayList<>();
+            long firstEvent = 0;
+            for (int chunk = 0; chunk < chunkCount && firstEvent < size; chunk++) {
+                long start = chunkStarts[chunk];
+                long end = chunkStarts[chunk + 1];
+                int first = (int) firstEvent;
+                int events = (int) Math.min(resultOf(chunkEvents.get(chunk)), size - firstEvent);
+                parseTasks.add(() -> parseChunk(header.mapChunk(start, end), header.binaryEventSize, IDs, counts,
+                        first, events));
+                firstEvent += events;
+            }
+            if(firstEvent < size) {
+                throw new IOException("Malformed event file: expected a number after " + firstEvent + " events");
+            }
+            for (Future<Integer> parsed : pool.invokeAll(parseTasks)) {
+                resultOf(parsed);
+            }
+            return new SortedEvents(size, IDs, counts);
+        }
+    }
+
+    /**
+     * Returns the offset of the first line which starts at or after an offset.
+     * @param offset The offset.
+     * @return The offset just past the next line break before which offset lies, or the file length.
+     * @throws IOException If the file cannot be read.
+     */
+    private long nextLineStart(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        long position = offset - 1;
+        while (position < fileLength) {
+            buffer.clear();
+            int read = fileChannel.read(buffer, position);
+            if(read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if(buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return fileLength;
+    }
+
+    /**
+     * Maps a chunk of the file.
+     * @param start The offset of the chunk.
+     * @param end The offset just past the chunk.
+     * @return The mapped chunk.
+     * @throws IOException If the chunk cannot be mapped.
+     */
+    private MappedByteBuffer mapChunk(long start, long end) throws IOException {
+        MappedByteBuffer chunk = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        return chunk;
+    }
+
+    /**
+     * Counts the ASCII integers in a chunk of a text file.
+     * @param chunk The chunk.
+     * @return The number of integers.
+     */
+    private static int countNumbers(ByteBuffer chunk) {
+        int numbers = 0;
+        boolean inNumber = false;
+        int limit = chunk.limit();
+        for (int i = 0; i < limit; i++) {
+            byte nextByte = chunk.get(i);
+            boolean numberByte = (nextByte >= '0' && nextByte <= '9') || nextByte == '-';
+            if(numberByte && !inNumber) {
+                numbers++;
+            }
+            inNumber = numberByte;
+        }
+        return numbers;
+    }
+
+    /**
+     * Parses the events of a chunk into the arrays.
+     * @param chunk The chunk.
+     * @param binaryEventSize The number of bytes taken by one event, or 0 if the file is in the text format.
+     * @param IDs Receives the IDs.
+     * @param counts Receives the counts.
+     * @param first The position in the arrays of the first event of the chunk.
+     * @param events The number of events to be read from the chunk.
+     * @return The number of events read.
+     * @throws IOException If the chunk does not hold a number where one is expected.
+     */
+    private static int parseChunk(ByteBuffer chunk, int binaryEventSize, int[] IDs, long[] counts, int first,
+                                  int events) throws IOException {
+        for (int event = first; event < first + events; event++) {
+            if(binaryEventSize == BINARY_EVENT_SIZE) {
+                IDs[event] = chunk.getInt();
+                counts[event] = chunk.getInt();
+            } else if(binaryEventSize == WIDE_BINARY_EVENT_SIZE) {
+                IDs[event] = chunk.getInt();
+                counts[event] = chunk.getLong();
+            } else {
+                IDs[event] = (int) parseLong(chunk, event, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                counts[event] = parseLong(chunk, event, Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Parses the next ASCII integer from a chunk as a 64 bit value, skipping any white space before it.
+     * @param chunk The chunk.
+     * @param event The number of the event being read, for the error message.
+     * @param minimum The smallest value accepted.
+     * @param maximum The largest value accepted.
+     * @return The parsed integer.
+     * @throws IOException If the chunk does not hold a number between minimum and maximum at this position.
+     */
+    private static long parseLong(ByteBuffer chunk, int event, long minimum, long maximum) throws IOException {
+        int nextByte = chunk.hasRemaining() ? chunk.get() : -1;
+        while (nextByte == ' ' || nextByte == '\t' || nextByte == '\r' || nextByte == '\n') {
+            nextByte = chunk.hasRemaining() ? chunk.get() : -1;
+        }
+        boolean negative = false;
+        if(nextByte == '-') {
+            negative = true;
+            nextByte = chunk.hasRemaining() ? chunk.get() : -1;
+        }
+        if(nextByte < '0' || nextByte > '9') {
+            throw new IOException("Malformed event file: expected a number after " + event + " events");
+        }
+        long limit = negative ? minimum : -maximum;
+        long value = 0;
+        while (nextByte >= '0' && nextByte <= '9') {
+            value = accumulateDigit(value, nextByte - '0', limit, event);
+            nextByte = chunk.hasRemaining() ? chunk.get() : -1;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Appends a digit to a number being parsed. The number is accumulated as a negative value so that the magnitude of
+     * the smallest long can be held, and checked against the limit before every digit so that it never wraps.
+     * @param value The negated value of the digits read so far.
+     * @param digit The next digit.
+     * @param limit The smallest negated value accepted, which is minimum for a negative number and -maximum otherwise.
+     * @param event The number of the event being read, for the error message.
+     * @return The negated value of the digits including the new one.
+     * @throws IOException If the new value is below the limit.
+     */
+    private static long accumulateDigit(long value, int digit, long limit, long event) throws IOException {
+        if(value < (limit + digit) / 10) {
+            throw new IOException("Malformed event file: number out of range after " + event + " events");
+        }
+        return value * 10 - digit;
+    }
+
+    /**
+     * Returns the result of a finished task, rethrowing what the task threw.
+     * @param future The task.
+     * @return The result.
+     * @throws IOException If the task threw an IOException.
+     */
+    private static int resultOf(Future<Integer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException executionException) {
+            Throwable cause = executionException.getCause();
+            //ForkJoinPool wraps what a task throws in RuntimeExceptions, one more when it rethrows across threads
+            while (cause instanceof RuntimeException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing the event file", interruptedException);
+        }
+    }
+
+    /**
+     * Parses the next ASCII integer from the file as a 64 bit value, skipping any white space before it.
+     * @param minimum The smallest value accepted.
+     * @param maximum The largest value accepted.
+     * @return The parsed integer.
+     * @throws IOException If the file ends or does not hold a number between minimum and maximum at this position.
+     */
+    private long parseLong(long minimum, long maximum) throws IOException {
+        int nextByte = nextByte();
+        while (nextByte == ' ' || nextByte == '\t' || nextByte == '\r' || nextByte == '\n') {
+            nextByte = nextByte();
+        }
+        boolean negative = false;
+        if(nextByte == '-') {
+            negative = true;
+            nextByte = nextByte();
+        }
+        if(nextByte < '0' || nextByte > '9') {
+            throw new IOException("Malformed event file: expected a number after " + eventsRead + " events");
+        }
+        long limit = negative ? minimum : -maximum;
+        long value = 0;
+        while (nextByte >= '0' && nextByte <= '9') {
+            value = accumulateDigit(value, nextByte - '0', limit, eventsRead);
+            nextByte = nextByte();
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Reads the next little-endian 32 bit integer from the file.
+     * @return The integer.
+     * @throws IOException If the file ends.
+     */
+    private int readBinaryInt() throws IOException {
+        if(window.remaining() < 4) {
+            if(nextWindowStart >= fileLength) {
+                throw new IOException("Malformed event file: truncated after " + eventsRead + " events");
+            }
+            mapNextWindow();
+        }
+        return window.getInt();
+    }
+
+    /**
+     * Reads the next byte from the file.
+     * @return The byte or -1 at the end of the file.
+     * @throws IOException If the next window cannot be mapped.
+     */
+    private int nextByte() throws IOException {
+        if(!window.hasRemaining()) {
+            if(nextWindowStart >= fileLength) {
+                return -1;
+            }
+            mapNextWindow();
+        }
+        return window.get();
+    }
+
+    /**
+     * Maps the next window of the file.
+     * @throws IOException If the window cannot be mapped.
+     */
+    private void mapNextWindow() throws IOException {
+        long windowLength = Math.min(WINDOW_SIZE, fileLength - nextWindowStart);
+        window = fileChannel.map(FileChannel.MapMode.READ_ONLY, nextWindowStart, windowLength);
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        nextWindowStart += windowLength;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * This class is a log-linear histogram of latencies in nanoseconds, in the style of HdrHistogram. Values below 64 are
+ * counted exactly and larger values fall into 32 buckets per power of two, so a reported value is within about 3% of
+ * the recorded one. The histogram has a fixed size and recording does not allocate. It supports the below operations:
+ * 1. Record(value)
+ * 2. Count, Mean and Max
+ * 3. ValueAtPercentile(p)
+ * 4. Reset
+ * Values are recorded by a single thread. Other threads may read the histogram while it is recorded into and then see
+ * a slightly stale state.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The number of bits of a value kept below its highest bit.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of buckets per power of two.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets, enough for every non negative long.
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    /**
+     * Holds the number of values recorded in every bucket.
+     */
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    /**
+     * Hold the number of values recorded, their sum and the largest of them.
+     */
+    private long totalCount = 0, totalSum = 0, maxValue = 0;
+
+    /**
+     * Adds a value to the histogram. Negative values are recorded as 0.
+     * @param value The value, usually a latency in nanoseconds.
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts[bucketOf(value)]++;
+        totalCount++;
+        totalSum += value;
+        if(value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     * @return The number of values.
+     */
+    public long getCount() {
+        return totalCount;
+    }
+
+    /**
+     * Returns the mean of the values recorded.
+     * @return The mean, or 0 if no value was recorded.
+     */
+    public double getMean() {
+        long count = totalCount;
+        return (count > 0) ? (double) totalSum / count : 0;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     * @return The exact maximum, or 0 if no value was recorded.
+     */
+    public long getMax() {
+        return maxValue;
+    }
+
+    /**
+     * Returns the smallest value such that at least percentile percent of the values recorded are not greater than
+     * it, rounded up to the top of its bucket and capped at the maximum.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The value at the percentile, or 0 if no value was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount;
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += counts[bucket];
+            if(seen >= rank) {
+                return Math.min(highestValueOf(bucket), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    /**
+     * Forgets every value recorded.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        totalSum = 0;
+        maxValue = 0;
+    }
+
+    /**
+     * Returns the bucket of a value. Values below 2 * SUB_BUCKET_COUNT have a bucket each; a larger value is shifted
+     * right until SUB_BUCKET_BITS + 1 bits remain, and the shift picks the group of buckets.
+     * @param value The non negative value.
+     * @return The index of the bucket.
+     */
+    private static int bucketOf(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the largest value which falls into a bucket.
+     * @param bucket The index of the bucket.
+     * @return The largest value of the bucket.
+     */
+    private static long highestValueOf(int bucket) {
+        int shift = Math.max(0, bucket / SUB_BUCKET_COUNT - 1);
+        return ((long) (bucket - shift * SUB_BUCKET_COUNT + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,856 @@
+import java.util.Arrays;
+
+/**
+ * This class is the long key specialization of ArrayRedBlackTree. Nodes are stored in parallel primitive arrays, keyed
+ * by a long and holding a long count, so keys are never boxed and every comparison is a primitive one. Index 0 is a
+ * black sentinel used in place of null. The tree exposes the below operations:
+ * 1. Insert
+ * 2. Delete
+ * 3. Search
+ * 4. Minimum
+ * 5. Maximum
+ * 6. Successor
+ * 7. Predecessor
+ * 8. BuildTree
+ * 9. RangeSum
+ * 10. Node Successor and Node Predecessor
+ * A tree created with tie breakers orders the nodes by key and then by an int tie breaker, so several nodes may share a
+ * key. Insert and Search then take the tie breaker as well.
+ * Indices of deleted nodes are recycled by later inserts, so an index must not be used after its node is deleted.
+ */
+public class LongArrayRedBlackTree {
+
+    /**
+     * The index of the sentinel node which stands for null.
+     */
+    public static final int NIL = 0;
+
+    /**
+     * The bit of a parent index which marks the node as red.
+     */
+    private static final int RED_BIT = 0x80000000;
+
+    /**
+     * The default number of nodes to allocate room for.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Holds the key of every node
+     */
+    private long[] keys;
+
+    /**
+     * Holds the tie breaker of every node, or null if the tree orders by the key alone
+     */
+    private int[] tieBreakers;
+
+    /**
+     * Hold the count and subtree sum of every node
+     */
+    private long[] counts, subtreeSums;
+
+    /**
+     * Hold the indices of the left and right children of every node
+     */
+    private int[] leftChildren, rightChildren;
+
+    /**
+     * Holds the index of the parent of every node with the color packed into the sign bit
+     */
+    private int[] parentsAndColors;
+
+    /**
+     * Holds the index of the root node.
+     */
+    private int rootIndex = NIL;
+
+    /**
+     * Holds the number of nodes in the tree.
+     */
+    private int size = 0;
+
+    /**
+     * Holds the lowest index which has never been handed out.
+     */
+    private int nextUnusedIndex = 1;
+
+    /**
+     * Holds the head of the list of recycled indices. The list is linked through the left children array.
+     */
+    private int freeListHead = NIL;
+
+    /**
+     * Creates an empty tree with room for a default number of nodes.
+     */
+    public LongArrayRedBlackTree() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty tree with room for capacity nodes before the arrays have to grow.
+     * @param capacity The number of nodes to allocate room for.
+     */
+    public LongArrayRedBlackTree(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Creates an empty tree with room for capacity nodes before the arrays have to grow.
+     * @param capacity The number of nodes to allocate room for.
+     * @param withTieBreakers True if nodes with equal keys are ordered by a tie breaker.
+     */
+    public LongArrayRedBlackTree(int capacity, boolean withTieBreakers) {
+        if(withTieBreakers) {
+            tieBreakers = new int[0];
+        }
+        allocate(Math.max(capacity, 1) + 1);
+    }
+
+    /**
+     * Returns the index of the root node.
+     * @return The index of the root node or NIL if the tree is empty.
+     */
+    public int getRootIndex() {
+        return rootIndex;
+    }
+
+    /**
+     * Returns the number of nodes in the tree.
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the sum of the counts of all nodes in the tree.
+     * @return The total count.
+     */
+    public long getTotalCount() {
+        return subtreeSums[rootIndex];
+    }
+
+    /**
+     * Returns the key of a node.
+     * @param node The index of the node.
+     * @return The key
+     */
+    public long getKey(int node) {
+        return keys[node];
+    }
+
+    /**
+     * Returns the tie breaker of a node.
+     * @param node The index of the node.
+     * @return The tie breaker, or 0 if the tree has no tie breakers
+     */
+    public int getTieBreaker(int node) {
+        return tieBreakers == null ? 0 : tieBreakers[node];
+    }
+
+    /**
+     * Returns the count value stored in a node.
+     * @param node The index of the node.
+     * @return The count of the node
+     */
+    public long getCount(int node) {
+        return counts[node];
+    }
+
+    /**
+     * Returns the sum of the counts in the subtree rooted at a node.
+     * @param node The index of the node.
+     * @return The subtree sum
+     */
+    public long getSubtreeSum(int node) {
+        return subtreeSums[node];
+    }
+
+    /**
+     * Saves a count value in a node and adjusts the subtree sums of the node and all its ancestors. This runs in
+     * O(lg n) time.
+     * @param node The index of the node.
+     * @param count The count value to be stored in the node.
+     */
+    public void setCount(int node, long count) {
+        long difference = count - counts[node];
+        counts[node] = count;
+        for(; node != NIL; node = parentOf(node)) {
+            subtreeSums[node] += difference;
+        }
+    }
+
+    /**
+     * Inserts a node with the given key and count into the tree. If the key is already present its count is replaced.
+     * @param key The key of the node to be inserted into the tree.
+     * @param count The data value of the node to be inserted into the tree.
+     * @return The index of the node holding key.
+     */
+    public int redBlackInsert(long key, long count) {
+        return redBlackInsert(key, 0, count);
+    }
+
+    /**
+     * Inserts a node with the given key, tie breaker and count into the tree. If a node with the same key and tie
+     * breaker is already present its count is replaced.
+     * @param key The key of the node to be inserted into the tree.
+     * @param tieBreaker The tie breaker of the node. It is ignored if the tree has no tie breakers.
+     * @param count The data value of the node to be inserted into the tree.
+     * @return The index of the node holding key.
+     */
+    public int redBlackInsert(long key, int tieBreaker, long count) {
+        int parent = NIL;
+        int tempNode = rootIndex;
+        int comparison = 0;
+        while (tempNode != NIL) {
+            parent = tempNode;
+            comparison = compareToNode(key, tieBreaker, tempNode);
+            if(comparison < 0) {
+                tempNode = leftChildren[tempNode];
+            } else if(comparison > 0) {
+                tempNode = rightChildren[tempNode];
+            } else {
+                setCount(tempNode, count);
+                return tempNode;
+            }
+        }
+        int newNode = allocateNode(key, tieBreaker, count);
+        parentsAndColors[newNode] = parent | RED_BIT; //Initialize nodes with RED color
+        if(parent == NIL) {
+            rootIndex = newNode;
+        } else if(comparison < 0) {
+            leftChildren[parent] = newNode;
+        } else {
+            rightChildren[parent] = newNode;
+        }
+        for(int ancestor = parent; ancestor != NIL; ancestor = parentOf(ancestor)) {
+            subtreeSums[ancestor] += count;
+        }
+        redBlackInsertFixUp(newNode);
+        size++;
+        return newNode;
+    }
+
+    /**
+     * Compares a key and tie breaker with those of a node.
+     * @param key The key.
+     * @param tieBreaker The tie breaker, compared only if the keys are equal and the tree has tie breakers.
+     * @param node The index of the node.
+     * @return A negative number, zero or a positive number if the key comes before, with or after the node.
+     */
+    private int compareToNode(long key, int tieBreaker, int node) {
+        if(key != keys[node]) {
+            return key < keys[node] ? -1 : 1;
+        }
+        return tieBreakers == null ? 0 : Integer.compare(tieBreaker, tieBreakers[node]);
+    }
+
+    /**
+     * Restores the red black properties which might have been violated after insertion of a new node.
+     * @param node The index of the newly inserted node.
+     */
+    private void redBlackInsertFixUp(int node) {
+        while (isRed(parentOf(node))) {
+            int parent = parentOf(node);
+            int grandParent = parentOf(parent);
+            if(parent == leftChildren[grandParent]) {
+                int uncle = rightChildren[grandParent];
+                if(isRed(uncle)) {
+                    setBlack(parent);
+                    setBlack(uncle);
+                    setRed(grandParent);
+                    node = grandParent;
+                } else {
+                    if(node == rightChildren[parent]) {
+                        node = parent;
+                        leftRotate(node);
+                        parent = parentOf(node);
+                    }
+                    setBlack(parent);
+                    setRed(grandParent);
+                    rightRotate(grandParent);
+                }
+            } else {
+                int uncle = leftChildren[grandParent];
+                if(isRed(uncle)) {
+                    setBlack(parent);
+                    setBlack(uncle);
+                    setRed(grandParent);
+                    node = grandParent;
+                } else {
+                    if(node == leftChildren[parent]) {
+                        node = parent;
+                        rightRotate(node);
+                        parent = parentOf(node);
+                    }
+                    setBlack(parent);
+                    setRed(grandParent);
+                    leftRotate(grandParent);
+                }
+            }
+        }
+        setBlack(rootIndex);
+    }
+
+    /**
+     * Performs left rotation on the subtree to restore balance.
+     * @param node The index of the node on which left rotation has to be performed.
+     */
+    private void leftRotate(int node) {
+        int right = rightChildren[node];
+        rightChildren[node] = leftChildren[right]; //Turn right's left subtree into node's right subtree.
+        if(leftChildren[right] != NIL) {
+            setParent(leftChildren[right], node);
+        }
+        int parent = parentOf(node);
+        setParent(right, parent); //Link node's parent to right
+        if(parent == NIL) {
+            rootIndex = right;
+        } else if(node == leftChildren[parent]) {
+            leftChildren[parent] = right;
+        } else {
+            rightChildren[parent] = right;
+        }
+        leftChildren[right] = node; //Put node on right's left
+        setParent(node, right);
+        subtreeSums[right] = subtreeSums[node];
+        updateSubtreeSum(node);
+    }
+
+    /**
+     * Performs right rotation on the subtree to restore balance.
+     * @param node The index of the node on which right rotation has to be performed.
+     */
+    private void rightRotate(int node) {
+        int left = leftChildren[node];
+        leftChildren[node] = rightChildren[left]; //Turn left's right subtree into node's left subtree.
+        if(rightChildren[left] != NIL) {
+            setParent(rightChildren[left], node);
+        }
+        int parent = parentOf(node);
+        setParent(left, parent); //Link node's parent to left
+        if(parent == NIL) {
+            rootIndex = left;
+        } else if(node == rightChildren[parent]) {
+            rightChildren[parent] = left;
+        } else {
+            leftChildren[parent] = left;
+        }
+        rightChildren[left] = node; //Put node on left's right
+        setParent(node, left);
+        subtreeSums[left] = subtreeSums[node];
+        updateSubtreeSum(node);
+    }
+
+    /**
+     * Deletes a node from the tree and re-balances the tree. The index of the node is recycled.
+     * @param nodeToDelete The index of the node to be deleted.
+     */
+    public void redBlackDelete(int nodeToDelete) {
+        int replacementNode = nodeToDelete;
+        boolean replacementNodeOriginallyRed = isRed(replacementNode);
+        int replacementSuccessor;
+        if(leftChildren[nodeToDelete] == NIL) {
+            replacementSuccessor = rightChildren[nodeToDelete];
+            redBlackTransplant(nodeToDelete, replacementSuccessor);
+        } else if(rightChildren[nodeToDelete] == NIL) {
+            replacementSuccessor = leftChildren[nodeToDelete];
+            redBlackTransplant(nodeToDelete, replacementSuccessor);
+        } else {
+            replacementNode = treeMinimum(rightChildren[nodeToDelete]);
+            replacementNodeOriginallyRed = isRed(replacementNode);
+            replacementSuccessor = rightChildren[replacementNode];
+            if(parentOf(replacementNode) == nodeToDelete) {
+                setParent(replacementSuccessor, replacementNode); //The sentinel's parent is used by the fix up
+            } else {
+                redBlackTransplant(replacementNode, replacementSuccessor);
+                rightChildren[replacementNode] = rightChildren[nodeToDelete];
+                setParent(rightChildren[replacementNode], replacementNode);
+            }
+            redBlackTransplant(nodeToDelete, replacementNode);
+            leftChildren[replacementNode] = leftChildren[nodeToDelete];
+            setParent(leftChildren[replacementNode], replacementNode);
+            if(isRed(nodeToDelete)) {
+                setRed(replacementNode);
+            } else {
+                setBlack(replacementNode);
+            }
+        }
+        for(int ancestor = parentOf(replacementSuccessor); ancestor != NIL; ancestor = parentOf(ancestor)) {
+            updateSubtreeSum(ancestor);
+        }
+        if(!replacementNodeOriginallyRed) {
+            redBlackDeleteFixUp(replacementSuccessor);
+        }
+        parentsAndColors[NIL] = NIL;
+        freeNode(nodeToDelete);
+        size--;
+    }
+
+    /**
+     * Replaces one subtree as a child of its parent with another subtree.
+     * @param nodeToReplace The index of the root of the subtree to be replaced.
+     * @param nodeToReplaceWith The index of the root of the subtree which replaces the original node.
+     */
+    private void redBlackTransplant(int nodeToReplace, int nodeToReplaceWith) {
+        int parent = parentOf(nodeToReplace);
+        if(parent == NIL) {
+            rootIndex = nodeToReplaceWith;
+        } else if(nodeToReplace == leftChildren[parent]) {
+            leftChildren[parent] = nodeToReplaceWith;
+        } else {
+            rightChildren[parent] = nodeToReplaceWith;
+        }
+        setParent(nodeToReplaceWith, parent);
+    }
+
+    /**
+     * Restores the red black properties that might have been violated after deletion of a node.
+     * @param node The index of the root of the subtree which needs to be re-balanced. This may be the sentinel.
+     */
+    private void redBlackDeleteFixUp(int node) {
+        while (node != rootIndex && !isRed(node)) {
+            int parent = parentOf(node);
+            if(node == leftChildren[parent]) {
+                int siblingNode = rightChildren[parent];
+                if(isRed(siblingNode)) {
+                    setBlack(siblingNode);
+                    setRed(parent);
+                    leftRotate(parent);
+                    siblingNode = rightChildren[parent];
+                }
+                if(!isRed(leftChildren[siblingNode]) && !isRed(rightChildren[siblingNode])) {
+                    setRed(siblingNode);
+                    node = parent;
+                } else {
+                    if(!isRed(rightChildren[siblingNode])) {
+                        setBlack(leftChildren[siblingNode]);
+                        setRed(siblingNode);
+                        rightRotate(siblingNode);
+                        siblingNode = rightChildren[parent];
+                    }
+                    copyColor(parent, siblingNode);
+                    setBlack(parent);
+                    setBlack(rightChildren[siblingNode]);
+                    leftRotate(parent);
+                    node = rootIndex;
+                }
+            } else {
+                int siblingNode = leftChildren[parent];
+                if(isRed(siblingNode)) {
+                    setBlack(siblingNode);
+                    setRed(parent);
+                    rightRotate(parent);
+                    siblingNode = leftChildren[parent];
+                }
+                if(!isRed(rightChildren[siblingNode]) && !isRed(leftChildren[siblingNode])) {
+                    setRed(siblingNode);
+                    node = parent;
+                } else {
+                    if(!isRed(leftChildren[siblingNode])) {
+                        setBlack(rightChildren[siblingNode]);
+                        setRed(siblingNode);
+                        leftRotate(siblingNode);
+                        siblingNode = leftChildren[parent];
+                    }
+                    copyColor(parent, siblingNode);
+                    setBlack(parent);
+                    setBlack(leftChildren[siblingNode]);
+                    rightRotate(parent);
+                    node = rootIndex;
+                }
+            }
+        }
+        setBlack(node);
+    }
+
+    /**
+     * Finds the node in a subtree whose key is a minimum.
+     * @param node The index of the root of the subtree which needs to be searched for minimum.
+     * @return The index of the node containing the minimum element in the subtree.
+     */
+    public int treeMinimum(int node) {
+        while (leftChildren[node] != NIL) {
+            node = leftChildren[node];
+        }
+        return node;
+    }
+
+    /**
+     * Finds the node in a subtree whose key is a maximum.
+     * @param node The index of the root of the subtree which needs to be searched for maximum.
+     * @return The index of the node containing the maximum element in the subtree.
+     */
+    public int treeMaximum(int node) {
+        while (rightChildren[node] != NIL) {
+            node = rightChildren[node];
+        }
+        return node;
+    }
+
+    /**
+     * Searches for a node with the input key in the tree.
+     * @param key The key to look for in the tree.
+     * @return The index of the node containing the key or NIL.
+     */
+    public int treeSearch(long key) {
+        int node = rootIndex;
+        while (node != NIL) {
+            if(key < keys[node]) {
+                node = leftChildren[node];
+            } else if(key > keys[node]) {
+                node = rightChildren[node];
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Searches for a node with the input key and tie breaker in the tree.
+     * @param key The key to look for in the tree.
+     * @param tieBreaker The tie breaker to look for. It is ignored if the tree has no tie breakers.
+     * @return The index of the node containing the key and tie breaker or NIL.
+     */
+    public int treeSearch(long key, int tieBreaker) {
+        int node = rootIndex;
+        while (node != NIL) {
+            int comparison = compareToNode(key, tieBreaker, node);
+            if(comparison < 0) {
+                node = leftChildren[node];
+            } else if(comparison > 0) {
+                node = rightChildren[node];
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Finds the successor of the input key in the sorted order determined by an inorder traversal. The key need not be
+     * present in the tree.
+     * @param key The key whose successor is to be determined.
+     * @return The index of the node with the smallest key greater than the input key or NIL.
+     */
+    public int treeSuccessor(long key) {
+        int successor = NIL;
+        int node = rootIndex;
+        while (node != NIL) {
+            if(key < keys[node]) {
+                successor = node;
+                node = leftChildren[node];
+            } else {
+                node = rightChildren[node];
+            }
+        }
+        return successor;
+    }
+
+    /**
+     * Finds the predecessor of the input key in the sorted order determined by an inorder traversal. The key need not
+     * be present in the tree.
+     * @param key The key whose predecessor is to be determined.
+     * @return The index of the node with the greatest key smaller than the input key or NIL.
+     */
+    public int treePredecessor(long key) {
+        int predecessor = NIL;
+        int node = rootIndex;
+        while (node != NIL) {
+            if(key > keys[node]) {
+                predecessor = node;
+                node = rightChildren[node];
+            } else {
+                node = leftChildren[node];
+            }
+        }
+        return predecessor;
+    }
+
+    /**
+     * Returns the node which follows a node in the sorted order, using the parent indices. This runs in amortized
+     * O(1) time when stepping through the tree.
+     * @param node The index of the node whose successor is needed.
+     * @return The index of the next node or NIL if node is the maximum.
+     */
+    public int nodeSuccessor(int node) {
+        if(rightChildren[node] != NIL) {
+            return treeMinimum(rightChildren[node]);
+        }
+        int parent = parentOf(node);
+        while (parent != NIL && node == rightChildren[parent]) {
+            node = parent;
+            parent = parentOf(parent);
+        }
+        return parent;
+    }
+
+    /**
+     * Returns the node which precedes a node in the sorted order, using the parent indices. This runs in amortized
+     * O(1) time when stepping through the tree.
+     * @param node The index of the node whose predecessor is needed.
+     * @return The index of the previous node or NIL if node is the minimum.
+     */
+    public int nodePredecessor(int node) {
+        if(leftChildren[node] != NIL) {
+            return treeMaximum(leftChildren[node]);
+        }
+        int parent = parentOf(node);
+        while (parent != NIL && node == leftChildren[parent]) {
+            node = parent;
+            parent = parentOf(parent);
+        }
+        return parent;
+    }
+
+    /**
+     * Replaces the contents of the tree with nodes held in two parallel sorted arrays. This runs in O(n) time. The
+     * tie breakers of the nodes are 0.
+     * @param size Number of nodes to be added to the tree.
+     * @param sortedKeys The distinct keys in ascending order.
+     * @param sortedCounts The counts matching sortedKeys.
+     */
+    public void buildTreeFromSortedArrays(int size, long[] sortedKeys, long[] sortedCounts) {
+        clear(size);
+        System.arraycopy(sortedKeys, 0, keys, 1, size);
+        System.arraycopy(sortedCounts, 0, counts, 1, size);
+        if(tieBreakers != null) {
+            Arrays.fill(tieBreakers, 1, size + 1, 0);
+        }
+        linkSortedNodes(size);
+    }
+
+    /**
+     * Links the nodes stored in indices 1 to size in ascending order of key into a balanced tree.
+     * @param size The number of nodes.
+     */
+    private void linkSortedNodes(int size) {
+        int redLevel = 0;
+        for (int i = size - 1; i >= 0; i = i / 2 - 1) {
+            redLevel++;
+        }
+        rootIndex = buildTree(0, 1, size, redLevel);
+        if(rootIndex != NIL) {
+            parentsAndColors[rootIndex] = NIL;
+        }
+        this.size = size;
+        nextUnusedIndex = size + 1;
+    }
+
+    /**
+     * Builds the tree by placing the middle index at the current position. Places [begin; middle) indices in the left
+     * subtree and (middle, end] indices in the right subtree.
+     * @param currentLevel The current level of the tree.
+     * @param begin The starting index of the subtree.
+     * @param end The ending index of the subtree.
+     * @param redLevel The level at which nodes should be colored red.
+     * @return The index of the root of the subtree.
+     */
+    private int buildTree(int currentLevel, int begin, int end, int redLevel) {
+        if(end < begin) {
+            return NIL;
+        }
+        int middle = (begin + end) >>> 1;
+        int left = buildTree(currentLevel + 1, begin, middle - 1, redLevel);
+        int right = buildTree(currentLevel + 1, middle + 1, end, redLevel);
+        leftChildren[middle] = left;
+        rightChildren[middle] = right;
+        if(left != NIL) {
+            parentsAndColors[left] |= middle;
+        }
+        if(right != NIL) {
+            parentsAndColors[right] |= middle;
+        }
+        parentsAndColors[middle] = (currentLevel == redLevel) ? RED_BIT : 0;
+        subtreeSums[middle] = counts[middle] + subtreeSums[left] + subtreeSums[right];
+        return middle;
+    }
+
+    /**
+     * Returns the total count of the nodes whose keys are in the range between key1 and key2. This runs in O(lg n)
+     * time.
+     * @param key1 The left limit of the range.
+     * @param key2 The right limit of the range.
+     * @return The total count of the nodes between key1 and key2.
+     */
+    public long rangeSum(long key1, long key2) {
+        if(key1 > key2) {
+            return 0;
+        }
+        long sumInRange = prefixSum(key2);
+        if(key1 > Long.MIN_VALUE) {
+            sumInRange -= prefixSum(key1 - 1);
+        }
+        return sumInRange;
+    }
+
+    /**
+     * Returns the total count of the nodes whose keys are less than or equal to key.
+     * @param key The right limit of the prefix.
+     * @return The total count of the nodes with keys up to key.
+     */
+    private long prefixSum(long key) {
+        long sum = 0;
+        int node = rootIndex;
+        while (node != NIL) {
+            if(keys[node] <= key) {
+                sum += counts[node] + subtreeSums[leftChildren[node]];
+                node = rightChildren[node];
+            } else {
+                node = leftChildren[node];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Empties the tree and makes sure there is room for size nodes.
+     * @param size The number of nodes about to be stored.
+     */
+    private void clear(int size) {
+        if(keys.length <= size) {
+            allocate(size + 1);
+        }
+        rootIndex = NIL;
+        this.size = 0;
+        nextUnusedIndex = 1;
+        freeListHead = NIL;
+    }
+
+    /**
+     * Hands out the index of a fresh red leaf holding key, tie breaker and count, growing the arrays if needed.
+     * @param key The key of the node.
+     * @param tieBreaker The tie breaker of the node.
+     * @param count The count of the node.
+     * @return The index of the new node.
+     */
+    private int allocateNode(long key, int tieBreaker, long count) {
+        int node;
+        if(freeListHead != NIL) {
+            node = freeListHead;
+            freeListHead = leftChildren[node];
+        } else {
+            if(nextUnusedIndex == keys.length) {
+                grow();
+            }
+            node = nextUnusedIndex++;
+        }
+        keys[node] = key;
+        if(tieBreakers != null) {
+            tieBreakers[node] = tieBreaker;
+        }
+        counts[node] = count;
+        subtreeSums[node] = count;
+        leftChildren[node] = NIL;
+        rightChildren[node] = NIL;
+        return node;
+    }
+
+    /**
+     * Returns the index of a deleted node to the free list.
+     * @param node The index of the deleted node.
+     */
+    private void freeNode(int node) {
+        leftChildren[node] = freeListHead;
+        freeListHead = node;
+    }
+
+    /**
+     * Grows the arrays by half of their current length.
+     */
+    private void grow() {
+        int capacity = keys.length;
+        if(capacity == Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Long Array Red Black Tree is full");
+        }
+        int newCapacity = (int) Math.min((long) capacity + (capacity >> 1) + 1, Integer.MAX_VALUE - 8);
+        keys = Arrays.copyOf(keys, newCapacity);
+        if(tieBreakers != null) {
+            tieBreakers = Arrays.copyOf(tieBreakers, newCapacity);
+        }
+        counts = Arrays.copyOf(counts, newCapacity);
+        subtreeSums = Arrays.copyOf(subtreeSums, newCapacity);
+        leftChildren = Arrays.copyOf(leftChildren, newCapacity);
+        rightChildren = Arrays.copyOf(rightChildren, newCapacity);
+        parentsAndColors = Arrays.copyOf(parentsAndColors, newCapacity);
+    }
+
+    /**
+     * Allocates empty arrays of the given length.
+     * @param capacity The length of the arrays including the sentinel.
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        if(tieBreakers != null) {
+            tieBreakers = new int[capacity];
+        }
+        counts = new long[capacity];
+        subtreeSums = new long[capacity];
+        leftChildren = new int[capacity];
+        rightChildren = new int[capacity];
+        parentsAndColors = new int[capacity];
+    }
+
+    /**
+     * Recomputes the subtree sum of a node from its count and the subtree sums of its children. The sentinel's
+     * subtree sum is always 0.
+     * @param node The index of the node.
+     */
+    private void updateSubtreeSum(int node) {
+        subtreeSums[node] = counts[node] + subtreeSums[leftChildren[node]] + subtreeSums[rightChildren[node]];
+    }
+
+    /**
+     * Returns the index of the parent of a node.
+     * @param node The index of the node.
+     * @return The index of the parent.
+     */
+    private int parentOf(int node) {
+        return parentsAndColors[node] & ~RED_BIT;
+    }
+
+    /**
+     * Sets the parent of a node and keeps its color.
+     * @param node The index of the node.
+     * @param parent The index of the new parent.
+     */
+    private void setParent(int node, int parent) {
+        parentsAndColors[node] = (parentsAndColors[node] & RED_BIT) | parent;
+    }
+
+    /**
+     * Returns true if a node is red. The sentinel is always black.
+     * @param node The index of the node.
+     * @return True if the node is red.
+     */
+    private boolean isRed(int node) {
+        return parentsAndColors[node] < 0;
+    }
+
+    /**
+     * Colors a node red.
+     * @param node The index of the node.
+     */
+    private void setRed(int node) {
+        parentsAndColors[node] |= RED_BIT;
+    }
+
+    /**
+     * Colors a node black.
+     * @param node The index of the node.
+     */
+    private void setBlack(int node) {
+        parentsAndColors[node] &= ~RED_BIT;
+    }
+
+    /**
+     * Gives a node the color of another node.
+     * @param from The index of the node whose color is copied.
+     * @param to The index of the node to be colored.
+     */
+    private void copyColor(int from, int to) {
+        parentsAndColors[to] = (parentsAndColors[from] & RED_BIT) | (parentsAndColors[to] & ~RED_BIT);
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * This class is the long ID specialization of RedBlackTreeEventCounter. It uses the primitive array Red Black Tree
+ * defined in LongArrayRedBlackTree.java, so IDs and counts are never boxed and treeSearch and the rotations only see
+ * long keys. Composite IDs, such as a tenant and an event type, are packed into one long by CompositeKey in an order
+ * preserving way. The event counter supports the below operations:
+ * 1. Build(IDs, counts)
+ * 2. Increase(theID, m)
+ * 3. Reduce(theID, m)
+ * 4. Count(theID)
+ * 5. InRange(ID1, ID2)
+ * 6. Next(theID)
+ * 7. Previous(theID)
+ * Counts and range sums are 64 bit values. A count which overflows is handled by the CountOverflowPolicy of the
+ * counter. Events returned by next and previous are detached copies, as the tree holds no node objects.
+ */
+public class LongKeyEventCounter {
+
+    /**
+     * Holds the events of the counter.
+     */
+    private final LongArrayRedBlackTree longArrayRedBlackTree = new LongArrayRedBlackTree();
+
+    /**
+     * Holds what is done with a count which overflows.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * This static nested class is an event with a long ID, as returned by next and previous.
+     */
+    public static final class LongEvent {
+
+        /**
+         * Holds the ID of the event.
+         */
+        private final long ID;
+
+        /**
+         * Holds the count of the event.
+         */
+        private final long count;
+
+        /**
+         * Creates an event.
+         * @param ID The ID of the event.
+         * @param count The count of the event.
+         */
+        public LongEvent(long ID, long count) {
+            this.ID = ID;
+            this.count = count;
+        }
+
+        /**
+         * Returns the ID of the event.
+         * @return The ID.
+         */
+        public long getID() {
+            return ID;
+        }
+
+        /**
+         * Returns the count of the event.
+         * @return The count.
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Creates an empty event counter. A count which overflows 64 bits throws.
+     */
+    public LongKeyEventCounter() {
+        this(CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Creates an empty event counter with an overflow policy.
+     * @param overflowPolicy What is done with a count which overflows.
+     */
+    public LongKeyEventCounter(CountOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Replaces the events of the counter with events held in two parallel sorted arrays. This runs in O(n) time.
+     * @param size The number of events.
+     * @param sortedIDs The distinct IDs in ascending order.
+     * @param sortedCounts The counts matching sortedIDs, each at least 1.
+     */
+    public void buildEventCounter(int size, long[] sortedIDs, long[] sortedCounts) {
+        longArrayRedBlackTree.buildTreeFromSortedArrays(size, sortedIDs, sortedCounts);
+    }
+
+    /**
+     * Returns the number of events in the counter.
+     * @return The number of events.
+     */
+    public int size() {
+        return longArrayRedBlackTree.size();
+    }
+
+    /**
+     * Increases the count of the event ID by amount. If ID is not present, inserts it. This runs in O(lg n) time.
+     * @param ID The event ID whose count has to be increased.
+     * @param amount The amount by which the count has to be increase.
+     * @return The final count of the event ID after addition.
+     * @throws ArithmeticException If the count or the total count overflows and the policy is not SATURATE.
+     */
+    public long increase(long ID, int amount) {
+        long added = overflowPolicy.limitTotal(longArrayRedBlackTree.getTotalCount(), amount); //Bounds the count too
+        int node = longArrayRedBlackTree.treeSearch(ID);
+        if(node != LongArrayRedBlackTree.NIL) {
+            longArrayRedBlackTree.setCount(node, longArrayRedBlackTree.getCount(node) + added);
+            return longArrayRedBlackTree.getCount(node);
+        }
+        if(added == 0) {
+            return 0;
+        }
+        longArrayRedBlackTree.redBlackInsert(ID, added);
+        return added;
+    }
+
+    /**
+     * Decreases the count of the event ID by amount. If the ID's count becomes less than or equal to 0, removes the ID
+     * from the counter. This runs in O(lg n) time.
+     * @param ID The event ID whose count is to be decreased.
+     * @param amount The amount by which to decrease.
+     * @return The final count or 0.
+     */
+    public long reduce(long ID, int amount) {
+        int node = longArrayRedBlackTree.treeSearch(ID);
+        if(node == LongArrayRedBlackTree.NIL) {
+            return 0;
+        }
+        long count = longArrayRedBlackTree.getCount(node);
+        if(amount >= count) {
+            longArrayRedBlackTree.redBlackDelete(node);
+            return 0;
+        }
+        longArrayRedBlackTree.setCount(node, count - amount);
+        return count - amount;
+    }
+
+    /**
+     * Searches the counter for the event ID and returns the count. Returns 0, if not present. This runs in O(lg n)
+     * time.
+     * @param ID The event ID whose count is to be returned.
+     * @return The count of the event or 0.
+     */
+    public long count(long ID) {
+        int node = longArrayRedBlackTree.treeSearch(ID);
+        return (node != LongArrayRedBlackTree.NIL) ? longArrayRedBlackTree.getCount(node) : 0;
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2. This runs in O(lg n) time. With composite IDs,
+     * CompositeKey.first and CompositeKey.last give the range of one tenant.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    public long inRange(long ID1, long ID2) {
+        return longArrayRedBlackTree.rangeSum(ID1, ID2);
+    }
+
+    /**
+     * Returns the event with the lowest ID that is greater than ID. This runs in O(lg n) time.
+     * @param ID The event ID whose next is to be found.
+     * @return A copy of the next event, or null.
+     */
+    public LongEvent next(long ID) {
+        return eventAt(longArrayRedBlackTree.treeSuccessor(ID));
+    }
+
+    /**
+     * Returns the event with the greatest ID that is less than ID. This runs in O(lg n) time.
+     * @param ID The ID whose previous is to be found.
+     * @return A copy of the previous event, or null.
+     */
+    public LongEvent previous(long ID) {
+        return eventAt(longArrayRedBlackTree.treePredecessor(ID));
+    }
+
+    /**
+     * Returns a copy of the event stored at a node.
+     * @param node The index of the node or NIL.
+     * @return The event, or null for NIL.
+     */
+    private LongEvent eventAt(int node) {
+        return (node != LongArrayRedBlackTree.NIL)
+                ? new LongEvent(longArrayRedBlackTree.getKey(node), longArrayRedBlackTree.getCount(node)) : null;
+    }
+}
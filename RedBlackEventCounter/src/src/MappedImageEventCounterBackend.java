@@ -0,0 +1,408 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class uses the memory mapped image defined in MappedTreeImage.java as a backend for RedBlackTreeEventCounter.
+ * Opening a counter maps its image instead of parsing and building a tree, so it is ready in milliseconds whatever
+ * its size. As the image is read-only, changes are kept in two Red Black Trees in the heap:
+ * 1. insertedEvents holds the events which are not in the image, with their full counts.
+ * 2. imageDeltas holds the signed change of the count of an image event. A change of minus the image count marks a
+ * deleted event.
+ * Every query adds up the image and both trees. Once the trees hold more than an eighth of the image, or
+ * MINIMUM_COMPACTION_SIZE events for a small image, they are merged with the image into a new image in O(n) time.
+ * A persistent backend replaces its image file when it compacts and when it is closed; otherwise the file is only read
+ * and new images are written to temporary files which are deleted as soon as they are mapped. Events returned by next
+ * and previous are detached copies.
+ */
+public class MappedImageEventCounterBackend implements EventCounterBackend, Closeable {
+
+    /**
+     * The number of changed events below which the trees are not merged into the image.
+     */
+    private static final int MINIMUM_COMPACTION_SIZE = 1 << 16;
+
+    /**
+     * Holds the image file.
+     */
+    private final Path path;
+
+    /**
+     * True if changes are written back to the image file.
+     */
+    private final boolean persistent;
+
+    /**
+     * Holds what is done with a count which overflows.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * Holds the mapped image.
+     */
+    private MappedTreeImage image;
+
+    /**
+     * Holds the events which are not in the image.
+     */
+    private RedBlackTree insertedEvents = new RedBlackTree();
+
+    /**
+     * Holds the changes to the counts of image events.
+     */
+    private RedBlackTree imageDeltas = new RedBlackTree();
+
+    /**
+     * Holds the number of image events which have been deleted.
+     */
+    private int deletedImageEvents = 0;
+
+    /**
+     * Opens the image file at path, or starts from an empty image if there is none. A count which overflows 64 bits
+     * throws.
+     * @param path The image file.
+     * @param persistent True if changes are to be written back to the image file.
+     * @throws IOException If the file is not an image or cannot be read or written.
+     */
+    public MappedImageEventCounterBackend(String path, boolean persistent) throws IOException {
+        this(path, persistent, CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Opens the image file at path, or starts from an empty image if there is none.
+     * @param path The image file.
+     * @param persistent True if changes are to be written back to the image file.
+     * @param overflowPolicy What is done with a count which overflows.
+     * @throws IOException If the file is not an image or cannot be read or written.
+     */
+    public MappedImageEventCounterBackend(String path, boolean persistent, CountOverflowPolicy overflowPolicy)
+            throws IOException {
+        this.path = Paths.get(path);
+        this.persistent = persistent;
+        this.overflowPolicy = overflowPolicy;
+        if(Files.exists(this.path)) {
+            image = MappedTreeImage.open(this.path);
+        } else {
+            writeImage(0, Collections.emptyIterator());
+        }
+    }
+
+    /**
+     * Returns the mapped image. Changes made since the last compaction are not in it.
+     * @return The image.
+     */
+    public MappedTreeImage getImage() {
+        return image;
+    }
+
+    /**
+     * Returns the number of events held in the heap until the next compaction.
+     * @return The number of inserted and changed events.
+     */
+    public int pendingChanges() {
+        return insertedEvents.size() + imageDeltas.size();
+    }
+
+    @Override
+    public void build(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        try {
+            writeImage(size, iterator);
+        } catch (IOException ioException) {
+            throw new UncheckedIOException(ioException);
+        }
+    }
+
+    @Override
+    public long increase(int ID, int amount) {
+        long added = overflowPolicy.limitTotal(totalCount(), amount);
+        if(added == 0) {
+            return count(ID);
+        }
+        int node = image.treeSearch(ID);
+        long count;
+        if(node == MappedTreeImage.NONE) {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = insertedEvents.treeSearch(ID);
+            if(redBlackTreeNode != null) {
+                redBlackTreeNode.setCount(overflowPolicy.add(redBlackTreeNode.getCount(), added));
+                return redBlackTreeNode.getCount();
+            }
+            count = added;
+            insertedEvents.redBlackInsert(ID, count);
+        } else {
+            RedBlackTree.RedBlackTreeNode delta = imageDeltas.treeSearch(ID);
+            long imageCount = image.getCount(node);
+            long oldCount = imageCount + ((delta != null) ? delta.getCount() : 0);
+            count = overflowPolicy.add(oldCount, added);
+            if(oldCount == 0) {
+                deletedImageEvents--;
+            }
+            setDelta(ID, delta, count - imageCount);
+        }
+        compactIfNeeded();
+        return count;
+    }
+
+    @Override
+    public long reduce(int ID, int amount) {
+        int node = image.treeSearch(ID);
+        long count;
+        if(node == MappedTreeImage.NONE) {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = insertedEvents.treeSearch(ID);
+            if(redBlackTreeNode == null) {
+                return 0;
+            }
+            if(amount >= redBlackTreeNode.getCount()) {
+                insertedEvents.redBlackDelete(redBlackTreeNode);
+                return 0;
+            }
+            redBlackTreeNode.setCount(redBlackTreeNode.getCount() - amount);
+            return redBlackTreeNode.getCount();
+        }
+        RedBlackTree.RedBlackTreeNode delta = imageDeltas.treeSearch(ID);
+        long imageCount = image.getCount(node);
+        long oldCount = imageCount + ((delta != null) ? delta.getCount() : 0);
+        if(oldCount == 0) {
+            return 0;
+        }
+        if(amount >= oldCount) {
+            count = 0;
+            deletedImageEvents++;
+        } else {
+            count = oldCount - amount;
+        }
+        setDelta(ID, delta, count - imageCount);
+        compactIfNeeded();
+        return count;
+    }
+
+    @Override
+    public long count(int ID) {
+        int node = image.treeSearch(ID);
+        if(node != MappedTreeImage.NONE) {
+            return countAt(node);
+        }
+        RedBlackTree.RedBlackTreeNode redBlackTreeNode = insertedEvents.treeSearch(ID);
+        return (redBlackTreeNode != null) ? redBlackTreeNode.getCount() : 0;
+    }
+
+    @Override
+    public long inRange(int ID1, int ID2) {
+        return image.rangeSum(ID1, ID2) + imageDeltas.rangeSum(ID1, ID2) + insertedEvents.rangeSum(ID1, ID2);
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode next(int ID) {
+        int node = image.treeSuccessor(ID);
+        while (node != MappedTreeImage.NONE && countAt(node) == 0) {
+            node = image.nextNode(node);
+        }
+        RedBlackTree.RedBlackTreeNode insertedEvent = insertedEvents.treeSuccessor(insertedEvents.getRootNode(), ID);
+        if(node != MappedTreeImage.NONE && (insertedEvent == null || image.getID(node) < insertedEvent.getID())) {
+            return new RedBlackTree.RedBlackTreeNode(image.getID(node), countAt(node));
+        }
+        return copyOf(insertedEvent);
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        int node = image.treePredecessor(ID);
+        while (node != MappedTreeImage.NONE && countAt(node) == 0) {
+            node = image.previousNode(node);
+        }
+        RedBlackTree.RedBlackTreeNode insertedEvent =
+                insertedEvents.treePredecessor(insertedEvents.getRootNode(), ID);
+        if(node != MappedTreeImage.NONE && (insertedEvent == null || image.getID(node) > insertedEvent.getID())) {
+            return new RedBlackTree.RedBlackTreeNode(image.getID(node), countAt(node));
+        }
+        return copyOf(insertedEvent);
+    }
+
+    /**
+     * Merges the changes held in the heap with the image into a new image and maps it. This runs in O(n) time.
+     * @throws IOException If the new image cannot be written.
+     */
+    public void compact() throws IOException {
+        writeImage(image.size() - deletedImageEvents + insertedEvents.size(), new MergedIterator());
+    }
+
+    /**
+     * Writes the changes back to the image file if the backend is persistent. The mapping itself is released by the
+     * garbage collector.
+     * @throws IOException If the image cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if(persistent && pendingChanges() > 0) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns the sum of the counts of all events, adding up the image and both trees. This runs in O(lg n) time.
+     * @return The total count.
+     */
+    private long totalCount() {
+        return image.rangeSum(Integer.MIN_VALUE, Integer.MAX_VALUE) + imageDeltas.getTotalCount()
+                + insertedEvents.getTotalCount();
+    }
+
+    /**
+     * Returns the current count of an image event.
+     * @param node The node of the event in the image.
+     * @return The count, or 0 if the event has been deleted.
+     */
+    private long countAt(int node) {
+        RedBlackTree.RedBlackTreeNode delta = imageDeltas.treeSearch(image.getID(node));
+        return image.getCount(node) + ((delta != null) ? delta.getCount() : 0);
+    }
+
+    /**
+     * Saves the change to the count of an image event, dropping it once the count is back to the image count.
+     * @param ID The ID of the event.
+     * @param delta The node holding the change, or null if there is none.
+     * @param difference The difference between the new count and the image count.
+     */
+    private void setDelta(int ID, RedBlackTree.RedBlackTreeNode delta, long difference) {
+        if(delta == null) {
+            if(difference != 0) {
+                imageDeltas.redBlackInsert(ID, difference);
+            }
+        } else if(difference == 0) {
+            imageDeltas.redBlackDelete(delta);
+        } else {
+            delta.setCount(difference);
+        }
+    }
+
+    /**
+     * Compacts once the changes held in the heap have grown past an eighth of the image.
+     */
+    private void compactIfNeeded() {
+        if(pendingChanges() > Math.max(MINIMUM_COMPACTION_SIZE, image.size() >> 3)) {
+            try {
+                compact();
+            } catch (IOException ioException) {
+                throw new UncheckedIOException(ioException);
+            }
+        }
+    }
+
+    /**
+     * Writes a new image of events read from a sorted iterator, maps it and empties the trees. A persistent backend
+     * replaces the image file; otherwise the image goes to a temporary file which is deleted once mapped.
+     * @param size The number of events to be read.
+     * @param iterator This iterator has the events in ascending order of ID.
+     * @throws IOException If the image cannot be written.
+     */
+    private void writeImage(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) throws IOException {
+        MappedTreeImage newImage;
+        if(persistent) {
+            MappedTreeImage.replace(path, size, iterator);
+            newImage = MappedTreeImage.open(path);
+        } else {
+            Path temporaryImage = Files.createTempFile("event-counter-", ".image");
+            try {
+                MappedTreeImage.write(temporaryImage, size, iterator);
+                newImage = MappedTreeImage.open(temporaryImage);
+            } finally {
+                try {
+                    Files.delete(temporaryImage);
+                } catch (IOException ioException) {
+                    temporaryImage.toFile().deleteOnExit(); //Mapped files cannot be deleted on some platforms
+                }
+            }
+        }
+        image = newImage;
+        insertedEvents = new RedBlackTree();
+        imageDeltas = new RedBlackTree();
+        deletedImageEvents = 0;
+    }
+
+    /**
+     * Copies an event into a detached RedBlackTreeNode.
+     * @param redBlackTreeNode The event.
+     * @return The copied event or null if the event is null.
+     */
+    private static RedBlackTree.RedBlackTreeNode copyOf(RedBlackTree.RedBlackTreeNode redBlackTreeNode) {
+        if(redBlackTreeNode == null) {
+            return null;
+        }
+        return new RedBlackTree.RedBlackTreeNode(redBlackTreeNode.getID(), redBlackTreeNode.getCount());
+    }
+
+    /**
+     * This inner class iterates over the current events in ascending order of ID by merging the image with the changes
+     * held in the heap, for writing a compacted image.
+     */
+    private class MergedIterator implements Iterator<RedBlackTree.RedBlackTreeNode> {
+
+        /**
+         * Holds the next image node to be merged.
+         */
+        private int node = image.firstNode();
+
+        /**
+         * Hold the cursors over the changes to image events and over the inserted events.
+         */
+        private final RedBlackTree.Cursor deltaCursor = imageDeltas.cursor(), insertedCursor = insertedEvents.cursor();
+
+        /**
+         * True if the cursor is on a change or an inserted event which has not been merged yet.
+         */
+        private boolean onDelta = deltaCursor.next(), onInserted = insertedCursor.next();
+
+        /**
+         * Holds the event to be returned next, or null once all events have been returned.
+         */
+        private RedBlackTree.RedBlackTreeNode nextEvent = advance();
+
+        @Override
+        public boolean hasNext() {
+            return nextEvent != null;
+        }
+
+        @Override
+        public RedBlackTree.RedBlackTreeNode next() {
+            if(nextEvent == null) {
+                throw new NoSuchElementException();
+            }
+            RedBlackTree.RedBlackTreeNode event = nextEvent;
+            nextEvent = advance();
+            return event;
+        }
+
+        /**
+         * Finds the event with the lowest ID which has not been returned, skipping deleted image events.
+         * @return The event or null.
+         */
+        private RedBlackTree.RedBlackTreeNode advance() {
+            while (true) {
+                if(onInserted && (node == MappedTreeImage.NONE
+                        || insertedCursor.getEvent().getID() < image.getID(node))) {
+                    RedBlackTree.RedBlackTreeNode event = copyOf(insertedCursor.getEvent());
+                    onInserted = insertedCursor.next();
+                    return event;
+                }
+                if(node == MappedTreeImage.NONE) {
+                    return null;
+                }
+                int ID = image.getID(node);
+                long count = image.getCount(node);
+                node = image.nextNode(node);
+                if(onDelta && deltaCursor.getEvent().getID() == ID) {
+                    count += deltaCursor.getEvent().getCount();
+                    onDelta = deltaCursor.next();
+                }
+                if(count != 0) {
+                    return new RedBlackTree.RedBlackTreeNode(ID, count);
+                }
+            }
+        }
+    }
+}
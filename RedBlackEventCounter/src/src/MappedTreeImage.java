@@ -0,0 +1,415 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class is a read-only search tree stored in a file and used through a memory mapping, so opening it takes the
+ * same few milliseconds whatever its size and the pages are read from disk or the page cache only when a query
+ * touches them. The events are laid out in Eytzinger order: the nodes of a complete binary search tree are numbered
+ * level by level from 1, so the children of node k are 2k and 2k + 1 and no links are stored. A search reads the IDs
+ * of its path from one dense array, and the first four levels share a cache line. Every node also stores the sum of
+ * the counts in its subtree, which answers RangeSum. The file holds, in little endian order:
+ * 1. A header of MAGIC, VERSION, the number of events n and a reserved int.
+ * 2. The IDs of nodes 0 to n, where node 0 is unused.
+ * 3. The counts of nodes 0 to n, starting at a multiple of 8 bytes.
+ * 4. The subtree sums of nodes 0 to n.
+ * The tree exposes the below operations:
+ * 1. Search
+ * 2. Successor
+ * 3. Predecessor
+ * 4. RangeSum
+ * 5. Write, Replace and Open
+ * 6. In-order iteration
+ * Each array is mapped separately and a mapping holds at most 2 GB, so an image holds at most MAX_SIZE events.
+ */
+public class MappedTreeImage {
+
+    /**
+     * The magic number at the start of an image file. It reads "RBTI" in little-endian byte order.
+     */
+    public static final int MAGIC = 0x49544252;
+
+    /**
+     * The version of the layout.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The position standing for no node.
+     */
+    public static final int NONE = 0;
+
+    /**
+     * The largest number of events in an image, so that the counts of nodes 0 to n fit in one mapping.
+     */
+    public static final int MAX_SIZE = Integer.MAX_VALUE / 8 - 1;
+
+    /**
+     * The length of the header in bytes.
+     */
+    private static final int HEADER_LENGTH = 16;
+
+    /**
+     * The suffix of an image which is being written by replace.
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Holds the number of events.
+     */
+    private final int size;
+
+    /**
+     * Hold the mapped IDs, counts and subtree sums, indexed by node.
+     */
+    private final ByteBuffer IDs, counts, subtreeSums;
+
+    /**
+     * Creates an image over mapped arrays.
+     * @param size The number of events.
+     * @param IDs The IDs of nodes 0 to size.
+     * @param counts The counts of nodes 0 to size.
+     * @param subtreeSums The subtree sums of nodes 0 to size.
+     */
+    private MappedTreeImage(int size, ByteBuffer IDs, ByteBuffer counts, ByteBuffer subtreeSums) {
+        this.size = size;
+        this.IDs = IDs;
+        this.counts = counts;
+        this.subtreeSums = subtreeSums;
+    }
+
+    /**
+     * Writes an image of events read from a sorted iterator to a file, replacing the file if it exists, and forces it
+     * to disk. The events are placed by an in-order walk of the Eytzinger numbering and the subtree sums are added up
+     * from the last node back to the root, so this runs in O(n) time and holds no event in the heap.
+     * @param path The file to be written.
+     * @param size The number of events to be read.
+     * @param iterator This iterator has the events in ascending order of ID.
+     * @throws IOException If the file cannot be written.
+     * @throws IllegalArgumentException If size is negative or larger than MAX_SIZE, or the events are not in strictly
+     * ascending order of ID.
+     */
+    public static void write(Path path, int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator)
+            throws IOException {
+        if(size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("An image cannot hold " + size + " events");
+        }
+        long countsOffset = countsOffset(size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH);
+            MappedByteBuffer IDs = map(channel, FileChannel.MapMode.READ_WRITE, HEADER_LENGTH, 4L * (size + 1));
+            MappedByteBuffer counts = map(channel, FileChannel.MapMode.READ_WRITE, countsOffset, 8L * (size + 1));
+            MappedByteBuffer subtreeSums = map(channel, FileChannel.MapMode.READ_WRITE,
+                    countsOffset + 8L * (size + 1), 8L * (size + 1));
+            long[] lastID = {Long.MIN_VALUE};
+            placeInOrder(1, size, iterator, IDs, counts, lastID);
+            for (int node = size; node >= 1; node--) {
+                long subtreeSum = counts.getLong(node << 3);
+                if(2 * node <= size) {
+                    subtreeSum += subtreeSums.getLong((2 * node) << 3);
+                }
+                if(2 * node + 1 <= size) {
+                    subtreeSum += subtreeSums.getLong((2 * node + 1) << 3);
+                }
+                subtreeSums.putLong(node << 3, subtreeSum);
+            }
+            header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, size).putInt(12, 0);
+            IDs.force();
+            counts.force();
+            subtreeSums.force();
+            header.force();
+        }
+    }
+
+    /**
+     * Writes an image to a temporary file next to path and moves it over path in one step, so a crash leaves either
+     * the old or the new image and never a partly written one.
+     * @param path The file to be replaced.
+     * @param size The number of events to be read.
+     * @param iterator This iterator has the events in ascending order of ID.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void replace(Path path, int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator)
+            throws IOException {
+        Path temporaryImage = path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+        write(temporaryImage, size, iterator);
+        Files.move(temporaryImage, path, StandardCopyOption.ATOMIC_MOVE);
+        Path directory = path.toAbsolutePath().getParent();
+        if(directory != null) {
+            try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                directoryChannel.force(true);
+            } catch (IOException ignored) {
+                //Not supported on this platform.
+            }
+        }
+    }
+
+    /**
+     * Opens an image file and maps it read-only. No event is read. The mapping stays valid after the file is moved or
+     * deleted.
+     * @param path The image file.
+     * @return The image.
+     * @throws IOException If the file cannot be read or is not an image of this version.
+     */
+    public static MappedTreeImage open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_LENGTH) {
+                throw new IOException("Image " + path + " is too short");
+            }
+            ByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Image " + path + " does not start with the image magic number and version");
+            }
+            int size = header.getInt(8);
+            if(size < 0 || size > MAX_SIZE || channel.size() != countsOffset(size) + 16L * (size + 1)) {
+                throw new IOException("Image " + path + " has a length which does not match its " + size + " events");
+            }
+            long countsOffset = countsOffset(size);
+            return new MappedTreeImage(size,
+                    map(channel, FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, 4L * (size + 1)),
+                    map(channel, FileChannel.MapMode.READ_ONLY, countsOffset, 8L * (size + 1)),
+                    map(channel, FileChannel.MapMode.READ_ONLY, countsOffset + 8L * (size + 1), 8L * (size + 1)));
+        }
+    }
+
+    /**
+     * Returns the number of events in the image.
+     * @return The number of events.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ID of a node.
+     * @param node The node, between 1 and size.
+     * @return The ID.
+     */
+    public int getID(int node) {
+        return IDs.getInt(node << 2);
+    }
+
+    /**
+     * Returns the count of a node.
+     * @param node The node, between 1 and size.
+     * @return The count.
+     */
+    public long getCount(int node) {
+        return counts.getLong(node << 3);
+    }
+
+    /**
+     * Finds the node with ID. This runs in O(lg n) time.
+     * @param ID The ID to look for.
+     * @return The node or NONE.
+     */
+    public int treeSearch(int ID) {
+        int node = 1;
+        while (node <= size) {
+            int nodeID = IDs.getInt(node << 2);
+            if(ID == nodeID) {
+                return node;
+            }
+            node = 2 * node + ((ID > nodeID) ? 1 : 0);
+        }
+        return NONE;
+    }
+
+    /**
+     * Finds the node with the lowest ID greater than ID. The search goes down to a leaf without branching on equality,
+     * and the successor is the last node of the path where it turned left: the bits after the last 0 bit of the final
+     * position are dropped. This runs in O(lg n) time.
+     * @param ID The ID whose successor is to be found.
+     * @return The node or NONE.
+     */
+    public int treeSuccessor(int ID) {
+        int node = 1;
+        while (node <= size) {
+            node = 2 * node + ((IDs.getInt(node << 2) <= ID) ? 1 : 0);
+        }
+        return node >>> (Integer.numberOfTrailingZeros(~node) + 1);
+    }
+
+    /**
+     * Finds the node with the greatest ID less than ID, the last node of the search path where it turned right. This
+     * runs in O(lg n) time.
+     * @param ID The ID whose predecessor is to be found.
+     * @return The node or NONE.
+     */
+    public int treePredecessor(int ID) {
+        int node = 1;
+        while (node <= size) {
+            node = 2 * node + ((IDs.getInt(node << 2) < ID) ? 1 : 0);
+        }
+        return node >>> (Integer.numberOfTrailingZeros(node) + 1);
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2. This runs in O(lg n) time.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    public long rangeSum(int ID1, int ID2) {
+        if(ID1 > ID2) {
+            return 0;
+        }
+        return prefixSum(ID2) - ((ID1 > Integer.MIN_VALUE) ? prefixSum(ID1 - 1) : 0);
+    }
+
+    /**
+     * Returns the total count for IDs less than or equal to ID. At every node where the search turns right, the node
+     * and its left subtree are added.
+     * @param ID The right limit.
+     * @return The total count.
+     */
+    private long prefixSum(int ID) {
+        long sum = 0;
+        int node = 1;
+        while (node <= size) {
+            if(IDs.getInt(node << 2) <= ID) {
+                sum += counts.getLong(node << 3);
+                if(2 * node <= size) {
+                    sum += subtreeSums.getLong((2 * node) << 3);
+                }
+                node = 2 * node + 1;
+            } else {
+                node = 2 * node;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the node with the lowest ID.
+     * @return The node or NONE if the image is empty.
+     */
+    public int firstNode() {
+        if(size == 0) {
+            return NONE;
+        }
+        int node = 1;
+        while (2 * node <= size) {
+            node = 2 * node;
+        }
+        return node;
+    }
+
+    /**
+     * Returns the node which follows a node in ascending order of ID. This runs in amortized O(1) time over an
+     * in-order walk.
+     * @param node The node.
+     * @return The next node or NONE.
+     */
+    public int nextNode(int node) {
+        if(2 * node + 1 <= size) {
+            node = 2 * node + 1;
+            while (2 * node <= size) {
+                node = 2 * node;
+            }
+            return node;
+        }
+        return node >>> (Integer.numberOfTrailingZeros(~node) + 1); //Climb past every node reached from the left
+    }
+
+    /**
+     * Returns the node which precedes a node in ascending order of ID. This runs in amortized O(1) time over a
+     * descending walk.
+     * @param node The node.
+     * @return The previous node or NONE.
+     */
+    public int previousNode(int node) {
+        if(2 * node <= size) {
+            node = 2 * node;
+            while (2 * node + 1 <= size) {
+                node = 2 * node + 1;
+            }
+            return node;
+        }
+        return node >>> (Integer.numberOfTrailingZeros(node) + 1); //Climb past every node reached from the right
+    }
+
+    /**
+     * Returns an iterator over the events of the image in ascending order of ID. Every event is a detached copy.
+     * @return The iterator.
+     */
+    public Iterator<RedBlackTree.RedBlackTreeNode> iterator() {
+        return new Iterator<RedBlackTree.RedBlackTreeNode>() {
+            private int node = firstNode();
+
+            @Override
+            public boolean hasNext() {
+                return node != NONE;
+            }
+
+            @Override
+            public RedBlackTree.RedBlackTreeNode next() {
+                if(node == NONE) {
+                    throw new NoSuchElementException();
+                }
+                RedBlackTree.RedBlackTreeNode event = new RedBlackTree.RedBlackTreeNode(getID(node), getCount(node));
+                node = nextNode(node);
+                return event;
+            }
+        };
+    }
+
+    /**
+     * Places the events of the subtree of a node by an in-order walk, which visits the nodes in ascending order of ID.
+     * @param node The root of the subtree.
+     * @param size The number of events.
+     * @param iterator This iterator has the events in ascending order of ID.
+     * @param IDs Receives the IDs.
+     * @param counts Receives the counts.
+     * @param lastID Holds the last ID placed, to check the order.
+     */
+    private static void placeInOrder(int node, int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator,
+                                     ByteBuffer IDs, ByteBuffer counts, long[] lastID) {
+        if(node > size) {
+            return;
+        }
+        placeInOrder(2 * node, size, iterator, IDs, counts, lastID);
+        RedBlackTree.RedBlackTreeNode event = iterator.next();
+        if(event.getID() <= lastID[0]) {
+            throw new IllegalArgumentException("Event " + event.getID() + " is not in ascending order of ID");
+        }
+        lastID[0] = event.getID();
+        IDs.putInt(node << 2, event.getID());
+        counts.putLong(node << 3, event.getCount());
+        placeInOrder(2 * node + 1, size, iterator, IDs, counts, lastID);
+    }
+
+    /**
+     * Returns the offset of the counts in an image file, the end of the IDs rounded up to a multiple of 8.
+     * @param size The number of events.
+     * @return The offset in bytes.
+     */
+    private static long countsOffset(int size) {
+        return (HEADER_LENGTH + 4L * (size + 1) + 7) & ~7L;
+    }
+
+    /**
+     * Maps a region of a file in little endian order.
+     * @param channel The channel of the file.
+     * @param mapMode READ_ONLY or READ_WRITE.
+     * @param offset The start of the region.
+     * @param length The length of the region.
+     * @return The mapping.
+     * @throws IOException If the region cannot be mapped.
+     */
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mapMode, long offset, long length)
+            throws IOException {
+        MappedByteBuffer mappedByteBuffer = channel.map(mapMode, offset, length);
+        mappedByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        return mappedByteBuffer;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * This class is an open addressing hash table from IDs to the nodes of a RedBlackTree. The IDs are kept in a primitive
+ * int array next to the node references, so a lookup usually touches one or two cache lines instead of one per tree
+ * level. Collisions are resolved by linear probing and removals shift the following entries back, so the table never
+ * fills up with tombstones. The table doubles when it is half full.
+ */
+public class NodeHashIndex {
+
+    /**
+     * The smallest number of slots.
+     */
+    private static final int MINIMUM_CAPACITY = 16;
+
+    /**
+     * Holds the ID stored in every slot.
+     */
+    private int[] keys;
+
+    /**
+     * Holds the node stored in every slot, or null if the slot is empty.
+     */
+    private RedBlackTree.RedBlackTreeNode[] nodes;
+
+    /**
+     * Holds the number of slots minus one. The number of slots is a power of two.
+     */
+    private int mask;
+
+    /**
+     * Holds the number of bits the multiplied ID is shifted right by to give a slot.
+     */
+    private int shift;
+
+    /**
+     * Holds the number of nodes in the table.
+     */
+    private int size = 0;
+
+    /**
+     * Creates a table with room for expectedSize nodes before it has to grow.
+     * @param expectedSize The number of nodes to allocate room for.
+     */
+    public NodeHashIndex(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Returns the number of nodes in the table.
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the node with ID.
+     * @param ID The ID to look for.
+     * @return The node or null if ID is not in the table.
+     */
+    public RedBlackTree.RedBlackTreeNode get(int ID) {
+        int slot = slotOf(ID);
+        RedBlackTree.RedBlackTreeNode node;
+        while ((node = nodes[slot]) != null) {
+            if(keys[slot] == ID) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Adds a node to the table, replacing any node with the same ID.
+     * @param node The node to be added.
+     */
+    public void put(RedBlackTree.RedBlackTreeNode node) {
+        if(2 * (size + 1) > nodes.length) {
+            allocate(nodes.length * 2);
+        }
+        int ID = node.getID();
+        int slot = slotOf(ID);
+        while (nodes[slot] != null) {
+            if(keys[slot] == ID) {
+                nodes[slot] = node;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = ID;
+        nodes[slot] = node;
+        size++;
+    }
+
+    /**
+     * Removes the node with ID from the table and moves back the entries which probed past it.
+     * @param ID The ID to be removed.
+     */
+    public void remove(int ID) {
+        int slot = slotOf(ID);
+        while (nodes[slot] != null) {
+            if(keys[slot] == ID) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if(nodes[slot] == null) {
+            return;
+        }
+        size--;
+        int emptySlot = slot;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if(nodes[slot] == null) {
+                break;
+            }
+            int homeSlot = slotOf(keys[slot]);
+            //The entry may move into the empty slot only if its home slot is not between the two slots cyclically
+            if(((slot - homeSlot) & mask) >= ((slot - emptySlot) & mask)) {
+                keys[emptySlot] = keys[slot];
+                nodes[emptySlot] = nodes[slot];
+                emptySlot = slot;
+            }
+        }
+        nodes[emptySlot] = null;
+    }
+
+    /**
+     * Empties the table and sizes it for expectedSize nodes.
+     * @param expectedSize The number of nodes to allocate room for.
+     */
+    public void clear(int expectedSize) {
+        nodes = null;
+        keys = null;
+        size = 0;
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Returns the home slot of an ID using Fibonacci hashing, which spreads consecutive IDs over the table.
+     * @param ID The ID.
+     * @return The slot.
+     */
+    private int slotOf(int ID) {
+        return (ID * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * Replaces the arrays with ones of the given capacity and adds back the nodes of the old arrays.
+     * @param capacity The new number of slots. This is a power of two.
+     */
+    private void allocate(int capacity) {
+        int[] oldKeys = keys;
+        RedBlackTree.RedBlackTreeNode[] oldNodes = nodes;
+        keys = new int[capacity];
+        nodes = new RedBlackTree.RedBlackTreeNode[capacity];
+        mask = capacity - 1;
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        if(oldNodes != null) {
+            size = 0;
+            for (int slot = 0; slot < oldNodes.length; slot++) {
+                if(oldNodes[slot] != null) {
+                    int newSlot = slotOf(oldKeys[slot]);
+                    while (nodes[newSlot] != null) {
+                        newSlot = (newSlot + 1) & mask;
+                    }
+                    keys[newSlot] = oldKeys[slot];
+                    nodes[newSlot] = oldNodes[slot];
+                    size++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of slots needed to keep expectedSize nodes at most half full.
+     * @param expectedSize The number of nodes.
+     * @return The number of slots, a power of two.
+     */
+    private static int capacityFor(int expectedSize) {
+        long needed = Math.max(MINIMUM_CAPACITY, 2L * expectedSize);
+        if(needed > (1 << 30)) {
+            throw new IllegalArgumentException("Node hash index cannot hold " + expectedSize + " nodes");
+        }
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.Iterator;
+
+/**
+ * This class uses the persistent Red Black Tree defined in PersistentRedBlackTree.java as a backend for
+ * RedBlackTreeEventCounter. Every Increase and Reduce publishes a new version of the tree, so any number of reader
+ * threads can take a snapshot in O(1) time and run consistent queries on it without locks while the counter keeps
+ * being updated. Events returned by next and previous are detached copies of the stored events.
+ */
+public class PersistentEventCounterBackend implements EventCounterBackend {
+    PersistentRedBlackTree persistentRedBlackTree = new PersistentRedBlackTree();
+
+    /**
+     * Holds what is done with a count which overflows.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * Creates an empty backend. A count which overflows 64 bits throws.
+     */
+    public PersistentEventCounterBackend() {
+        this(CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Creates an empty backend.
+     * @param overflowPolicy What is done with a count which overflows.
+     */
+    public PersistentEventCounterBackend(CountOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns a snapshot of the events as they are now. Later updates are not visible through it.
+     * @return The snapshot.
+     */
+    public PersistentRedBlackTree.Snapshot snapshot() {
+        return persistentRedBlackTree.snapshot();
+    }
+
+    @Override
+    public void build(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        persistentRedBlackTree.buildTreeFromSortedList(size, iterator);
+    }
+
+    @Override
+    public long increase(int ID, int amount) {
+        long added = overflowPolicy.limitTotal(persistentRedBlackTree.getTotalCount(), amount);
+        long count = overflowPolicy.add(
+                countOf(PersistentRedBlackTree.treeSearch(persistentRedBlackTree.getRootNode(), ID)), added);
+        if(added > 0) {
+            persistentRedBlackTree.redBlackUpdate(ID, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long reduce(int ID, int amount) {
+        PersistentRedBlackTree.Node node = PersistentRedBlackTree.treeSearch(persistentRedBlackTree.getRootNode(), ID);
+        if(node != null) {
+            if(amount >= node.getCount()) {
+                persistentRedBlackTree.redBlackDelete(ID);
+                return 0;
+            } else {
+                persistentRedBlackTree.redBlackUpdate(ID, node.getCount() - amount);
+                return node.getCount() - amount;
+            }
+        } else {
+            return 0;
+        }
+    }
+
+    @Override
+    public long count(int ID) {
+        return countOf(PersistentRedBlackTree.treeSearch(persistentRedBlackTree.getRootNode(), ID));
+    }
+
+    @Override
+    public long inRange(int ID1, int ID2) {
+        return PersistentRedBlackTree.rangeSum(persistentRedBlackTree.getRootNode(), ID1, ID2);
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode next(int ID) {
+        return eventOf(PersistentRedBlackTree.treeSuccessor(persistentRedBlackTree.getRootNode(), ID));
+    }
+
+    @Override
+    public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        return eventOf(PersistentRedBlackTree.treePredecessor(persistentRedBlackTree.getRootNode(), ID));
+    }
+
+    /**
+     * Returns the count of a node or 0 if the node is null.
+     * @param node The node whose count is needed.
+     * @return The count or 0.
+     */
+    private static long countOf(PersistentRedBlackTree.Node node) {
+        return (node != null) ? node.getCount() : 0;
+    }
+
+    /**
+     * Copies the event stored at a node into a detached RedBlackTreeNode.
+     * @param node The node.
+     * @return The copied event or null if node is null.
+     */
+    private static RedBlackTree.RedBlackTreeNode eventOf(PersistentRedBlackTree.Node node) {
+        if(node == null) {
+            return null;
+        }
+        return new RedBlackTree.RedBlackTreeNode(node.getID(), node.getCount());
+    }
+}
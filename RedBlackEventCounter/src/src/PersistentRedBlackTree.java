@@ -0,0 +1,664 @@
+import java.util.Iterator;
+
+/**
+ * This class defines a persistent Red Black Tree. Nodes are immutable and have no parent reference, so an update
+ * copies only the O(lg n) nodes on the path from the root to the changed node and shares every other subtree with the
+ * previous version. Each update therefore produces a new root while older roots stay valid. A Snapshot holds one root
+ * and can be queried from any thread without locks while updates go on. The tree supports the below operations:
+ * 1. Update (Insert or replace the count)
+ * 2. Delete
+ * 3. Search
+ * 4. Successor
+ * 5. Predecessor
+ * 6. BuildTree
+ * 7. RangeSum
+ * 8. Snapshot
+ * Insertion balances the path bottom up like Okasaki's functional red black trees and deletion follows Kahrs. Updates
+ * must be made by one thread at a time; snapshots may be taken and queried by any thread.
+ */
+public class PersistentRedBlackTree {
+
+    /**
+     * This static nested class defines an immutable node of the tree. Every node holds the sum of the counts and the
+     * number of nodes of its subtree.
+     */
+    public static final class Node {
+        private final int ID;
+        private final long count;
+        private final Node leftChild;
+        private final Node rightChild;
+        private final boolean red;
+
+        /**
+         * Holds the sum of the counts of the nodes in the subtree rooted at this node.
+         */
+        private final long subtreeSum;
+
+        /**
+         * Holds the number of nodes in the subtree rooted at this node.
+         */
+        private final int subtreeSize;
+
+        /**
+         * Creates a node and computes its subtree sum and size from its children.
+         * @param red True if the node is red.
+         * @param ID The ID of the node.
+         * @param count The count of the node.
+         * @param leftChild The left child or null.
+         * @param rightChild The right child or null.
+         */
+        private Node(boolean red, int ID, long count, Node leftChild, Node rightChild) {
+            this.red = red;
+            this.ID = ID;
+            this.count = count;
+            this.leftChild = leftChild;
+            this.rightChild = rightChild;
+            this.subtreeSum = count + subtreeSumOf(leftChild) + subtreeSumOf(rightChild);
+            this.subtreeSize = 1 + subtreeSizeOf(leftChild) + subtreeSizeOf(rightChild);
+        }
+
+        /**
+         * Returns the ID of the node.
+         * @return The ID
+         */
+        public int getID() {
+            return ID;
+        }
+
+        /**
+         * Returns the count of the node.
+         * @return The count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the left child of the node.
+         * @return The left child
+         */
+        public Node getLeftChild() {
+            return leftChild;
+        }
+
+        /**
+         * Returns the right child of the node.
+         * @return The right child
+         */
+        public Node getRightChild() {
+            return rightChild;
+        }
+
+        /**
+         * Returns true if the node is red.
+         * @return True if the node is red
+         */
+        public boolean isRed() {
+            return red;
+        }
+
+        /**
+         * Returns the sum of the counts of the nodes in the subtree rooted at this node.
+         * @return The subtree sum
+         */
+        public long getSubtreeSum() {
+            return subtreeSum;
+        }
+
+        /**
+         * Returns the number of nodes in the subtree rooted at this node.
+         * @return The subtree size
+         */
+        public int getSubtreeSize() {
+            return subtreeSize;
+        }
+
+        /**
+         * Returns a black copy of the node, or the node itself if it is black.
+         * @return The black node.
+         */
+        private Node black() {
+            return red ? new Node(false, ID, count, leftChild, rightChild) : this;
+        }
+
+        /**
+         * Returns a red copy of the node, or the node itself if it is red.
+         * @return The red node.
+         */
+        private Node red() {
+            return red ? this : new Node(true, ID, count, leftChild, rightChild);
+        }
+    }
+
+    /**
+     * This static nested class is a consistent, read only view of the tree at the time it was taken. Taking a
+     * snapshot is O(1) and queries on it take no locks.
+     */
+    public static final class Snapshot {
+
+        /**
+         * Holds the root of the version this snapshot sees.
+         */
+        private final Node rootNode;
+
+        /**
+         * Creates a snapshot of a version.
+         * @param rootNode The root of the version.
+         */
+        private Snapshot(Node rootNode) {
+            this.rootNode = rootNode;
+        }
+
+        /**
+         * Returns the root of the version this snapshot sees.
+         * @return The root node or null if the tree was empty.
+         */
+        public Node getRootNode() {
+            return rootNode;
+        }
+
+        /**
+         * Returns the number of nodes in this version.
+         * @return The number of nodes.
+         */
+        public int size() {
+            return subtreeSizeOf(rootNode);
+        }
+
+        /**
+         * Returns the count of ID in this version or 0 if it is not present.
+         * @param ID The ID to look for.
+         * @return The count or 0.
+         */
+        public long count(int ID) {
+            Node node = treeSearch(rootNode, ID);
+            return (node != null) ? node.count : 0;
+        }
+
+        /**
+         * Returns the total count of the IDs between ID1 and ID2 in this version. This runs in O(lg n) time.
+         * @param ID1 The left limit of the range.
+         * @param ID2 The right limit of the range.
+         * @return The total count.
+         */
+        public long inRange(int ID1, int ID2) {
+            return rangeSum(rootNode, ID1, ID2);
+        }
+
+        /**
+         * Returns the node with the lowest ID that is greater than ID in this version.
+         * @param ID The ID whose next is to be found.
+         * @return The next node or null.
+         */
+        public Node next(int ID) {
+            return treeSuccessor(rootNode, ID);
+        }
+
+        /**
+         * Returns the node with the greatest ID that is less than ID in this version.
+         * @param ID The ID whose previous is to be found.
+         * @return The previous node or null.
+         */
+        public Node previous(int ID) {
+            return treePredecessor(rootNode, ID);
+        }
+    }
+
+    /**
+     * Holds the root of the latest version. It is volatile so that a snapshot taken by any thread sees a fully built
+     * version.
+     */
+    private volatile Node rootNode;
+
+    /**
+     * Returns the root of the latest version.
+     * @return The root node.
+     */
+    public Node getRootNode() {
+        return rootNode;
+    }
+
+    /**
+     * Returns the number of nodes in the latest version.
+     * @return The number of nodes.
+     */
+    public int size() {
+        return subtreeSizeOf(rootNode);
+    }
+
+    /**
+     * Returns the sum of the counts of all nodes in the latest version.
+     * @return The total count.
+     */
+    public long getTotalCount() {
+        return subtreeSumOf(rootNode);
+    }
+
+    /**
+     * Returns a snapshot of the latest version. This runs in O(1) time.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(rootNode);
+    }
+
+    /**
+     * Sets the count of ID, inserting ID if it is not present, and publishes the new version. This copies O(lg n)
+     * nodes.
+     * @param ID The key of the node.
+     * @param count The data value of the node.
+     */
+    public void redBlackUpdate(int ID, long count) {
+        rootNode = blacken(update(rootNode, ID, count));
+    }
+
+    /**
+     * Removes ID if it is present and publishes the new version. This copies O(lg n) nodes.
+     * @param ID The key of the node to be deleted.
+     */
+    public void redBlackDelete(int ID) {
+        if(treeSearch(rootNode, ID) != null) {
+            rootNode = blacken(delete(rootNode, ID));
+        }
+    }
+
+    /**
+     * Replaces the contents of the tree with events read from a sorted iterator and publishes the new version. This
+     * runs in O(n) time.
+     * @param size Number of nodes to be added to the tree.
+     * @param iterator This iterator has the events in ascending order of ID.
+     */
+    public void buildTreeFromSortedList(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        int redLevel = 0;
+        for (int i = size - 1; i >= 0; i = i / 2 - 1) {
+            redLevel++;
+        }
+        rootNode = blacken(buildTree(0, 0, size - 1, redLevel, iterator));
+    }
+
+    /**
+     * Builds the subtree of the events with positions begin to end, reading them from the iterator in order.
+     * @param currentLevel The current level of the tree.
+     * @param begin The starting position of the subtree.
+     * @param end The ending position of the subtree.
+     * @param redLevel The level at which nodes should be colored red.
+     * @param iterator The events are read from this iterator.
+     * @return The root of the subtree.
+     */
+    private static Node buildTree(int currentLevel, int begin, int end, int redLevel,
+                                  Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        if(end < begin) {
+            return null;
+        }
+        int middle = (begin + end) >>> 1;
+        Node left = buildTree(currentLevel + 1, begin, middle - 1, redLevel, iterator);
+        RedBlackTree.RedBlackTreeNode event = iterator.next();
+        Node right = buildTree(currentLevel + 1, middle + 1, end, redLevel, iterator);
+        return new Node(currentLevel == redLevel, event.getID(), event.getCount(), left, right);
+    }
+
+    /**
+     * Searches a version for a node with the input ID.
+     * @param node The root of the version.
+     * @param ID The ID to look for.
+     * @return The node containing the ID or null.
+     */
+    public static Node treeSearch(Node node, int ID) {
+        while (node != null) {
+            if(ID < node.ID) {
+                node = node.leftChild;
+            } else if(ID > node.ID) {
+                node = node.rightChild;
+            } else {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the node with the smallest ID greater than ID in a version. The ID need not be present.
+     * @param node The root of the version.
+     * @param ID The ID whose successor is to be determined.
+     * @return The successor or null.
+     */
+    public static Node treeSuccessor(Node node, int ID) {
+        Node successor = null;
+        while (node != null) {
+            if(ID < node.ID) {
+                successor = node;
+                node = node.leftChild;
+            } else {
+                node = node.rightChild;
+            }
+        }
+        return successor;
+    }
+
+    /**
+     * Finds the node with the greatest ID smaller than ID in a version. The ID need not be present.
+     * @param node The root of the version.
+     * @param ID The ID whose predecessor is to be determined.
+     * @return The predecessor or null.
+     */
+    public static Node treePredecessor(Node node, int ID) {
+        Node predecessor = null;
+        while (node != null) {
+            if(ID > node.ID) {
+                predecessor = node;
+                node = node.rightChild;
+            } else {
+                node = node.leftChild;
+            }
+        }
+        return predecessor;
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are in the range between ID1 and ID2 in a version. This runs in
+     * O(lg n) time.
+     * @param node The root of the version.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    public static long rangeSum(Node node, int ID1, int ID2) {
+        if(ID1 > ID2) {
+            return 0;
+        }
+        long sumInRange = prefixSum(node, ID2);
+        if(ID1 > Integer.MIN_VALUE) {
+            sumInRange -= prefixSum(node, ID1 - 1);
+        }
+        return sumInRange;
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are less than or equal to ID.
+     * @param node The root of the version.
+     * @param ID The right limit of the prefix.
+     * @return The total count.
+     */
+    private static long prefixSum(Node node, int ID) {
+        long sum = 0;
+        while (node != null) {
+            if(node.ID <= ID) {
+                sum += node.count + subtreeSumOf(node.leftChild);
+                node = node.rightChild;
+            } else {
+                node = node.leftChild;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns a copy of the subtree with the count of ID set. The root of the result may be red with a red child,
+     * which the caller's balance or blacken fixes.
+     * @param node The root of the subtree.
+     * @param ID The ID to be set.
+     * @param count The count.
+     * @return The root of the new subtree.
+     */
+    private static Node update(Node node, int ID, long count) {
+        if(node == null) {
+            return new Node(true, ID, count, null, null);
+        }
+        if(ID < node.ID) {
+            return balanceLeft(node.red, node.ID, node.count, update(node.leftChild, ID, count), node.rightChild);
+        } else if(ID > node.ID) {
+            return balanceRight(node.red, node.ID, node.count, node.leftChild, update(node.rightChild, ID, count));
+        } else {
+            return new Node(node.red, ID, count, node.leftChild, node.rightChild);
+        }
+    }
+
+    /**
+     * Builds a node whose left subtree may have a red violation at its top, rotating it away if the node is black.
+     * @param red True if the node is red.
+     * @param ID The ID of the node.
+     * @param count The count of the node.
+     * @param left The new left subtree.
+     * @param right The new right subtree.
+     * @return The root of the balanced subtree.
+     */
+    private static Node balanceLeft(boolean red, int ID, long count, Node left, Node right) {
+        if(!red && isRed(left)) {
+            if(isRed(left.leftChild)) {
+                Node leftLeft = left.leftChild;
+                return new Node(true, left.ID, left.count,
+                        new Node(false, leftLeft.ID, leftLeft.count, leftLeft.leftChild, leftLeft.rightChild),
+                        new Node(false, ID, count, left.rightChild, right));
+            } else if(isRed(left.rightChild)) {
+                Node leftRight = left.rightChild;
+                return new Node(true, leftRight.ID, leftRight.count,
+                        new Node(false, left.ID, left.count, left.leftChild, leftRight.leftChild),
+                        new Node(false, ID, count, leftRight.rightChild, right));
+            }
+        }
+        return new Node(red, ID, count, left, right);
+    }
+
+    /**
+     * Builds a node whose right subtree may have a red violation at its top, rotating it away if the node is black.
+     * @param red True if the node is red.
+     * @param ID The ID of the node.
+     * @param count The count of the node.
+     * @param left The new left subtree.
+     * @param right The new right subtree.
+     * @return The root of the balanced subtree.
+     */
+    private static Node balanceRight(boolean red, int ID, long count, Node left, Node right) {
+        if(!red && isRed(right)) {
+            if(isRed(right.leftChild)) {
+                Node rightLeft = right.leftChild;
+                return new Node(true, rightLeft.ID, rightLeft.count,
+                        new Node(false, ID, count, left, rightLeft.leftChild),
+                        new Node(false, right.ID, right.count, rightLeft.rightChild, right.rightChild));
+            } else if(isRed(right.rightChild)) {
+                Node rightRight = right.rightChild;
+                return new Node(true, right.ID, right.count,
+                        new Node(false, ID, count, left, right.leftChild),
+                        new Node(false, rightRight.ID, rightRight.count, rightRight.leftChild, rightRight.rightChild));
+            }
+        }
+        return new Node(red, ID, count, left, right);
+    }
+
+    /**
+     * Returns a copy of the subtree without ID, which must be present. If the subtree root was black the result is
+     * one black level shorter, which the caller's balLeft or balRight makes up for.
+     * @param node The root of the subtree.
+     * @param ID The ID to be deleted.
+     * @return The root of the new subtree.
+     */
+    private static Node delete(Node node, int ID) {
+        if(ID < node.ID) {
+            Node left = delete(node.leftChild, ID);
+            if(isBlack(node.leftChild)) {
+                return balLeft(node.ID, node.count, left, node.rightChild);
+            }
+            return new Node(true, node.ID, node.count, left, node.rightChild);
+        } else if(ID > node.ID) {
+            Node right = delete(node.rightChild, ID);
+            if(isBlack(node.rightChild)) {
+                return balRight(node.ID, node.count, node.leftChild, right);
+            }
+            return new Node(true, node.ID, node.count, node.leftChild, right);
+        } else {
+            return append(node.leftChild, node.rightChild);
+        }
+    }
+
+    /**
+     * Builds a black node over two subtrees of equal black height, removing a red violation in either of them.
+     * @param ID The ID of the node.
+     * @param count The count of the node.
+     * @param left The new left subtree.
+     * @param right The new right subtree.
+     * @return The root of the balanced subtree.
+     */
+    private static Node balance(int ID, long count, Node left, Node right) {
+        if(isRed(left)) {
+            if(isRed(right)) {
+                return new Node(true, ID, count, left.black(), right.black());
+            } else if(isRed(left.leftChild)) {
+                return new Node(true, left.ID, left.count, left.leftChild.black(),
+                        new Node(false, ID, count, left.rightChild, right));
+            } else if(isRed(left.rightChild)) {
+                Node leftRight = left.rightChild;
+                return new Node(true, leftRight.ID, leftRight.count,
+                        new Node(false, left.ID, left.count, left.leftChild, leftRight.leftChild),
+                        new Node(false, ID, count, leftRight.rightChild, right));
+            }
+        } else if(isRed(right)) {
+            if(isRed(right.rightChild)) {
+                return new Node(true, right.ID, right.count, new Node(false, ID, count, left, right.leftChild),
+                        right.rightChild.black());
+            } else if(isRed(right.leftChild)) {
+                Node rightLeft = right.leftChild;
+                return new Node(true, rightLeft.ID, rightLeft.count,
+                        new Node(false, ID, count, left, rightLeft.leftChild),
+                        new Node(false, right.ID, right.count, rightLeft.rightChild, right.rightChild));
+            }
+        }
+        return new Node(false, ID, count, left, right);
+    }
+
+    /**
+     * Builds a node whose left subtree is one black level shorter than its right subtree, restoring the black height.
+     * @param ID The ID of the node.
+     * @param count The count of the node.
+     * @param left The new left subtree.
+     * @param right The new right subtree.
+     * @return The root of the balanced subtree.
+     */
+    private static Node balLeft(int ID, long count, Node left, Node right) {
+        if(isRed(left)) {
+            return new Node(true, ID, count, left.black(), right);
+        } else if(isBlack(right)) {
+            return balance(ID, count, left, right.red());
+        } else if(isRed(right) && isBlack(right.leftChild)) {
+            Node rightLeft = right.leftChild;
+            return new Node(true, rightLeft.ID, rightLeft.count,
+                    new Node(false, ID, count, left, rightLeft.leftChild),
+                    balance(right.ID, right.count, rightLeft.rightChild, redden(right.rightChild)));
+        }
+        throw new IllegalStateException("Red Black Tree invariant violated while deleting");
+    }
+
+    /**
+     * Builds a node whose right subtree is one black level shorter than its left subtree, restoring the black height.
+     * @param ID The ID of the node.
+     * @param count The count of the node.
+     * @param left The new left subtree.
+     * @param right The new right subtree.
+     * @return The root of the balanced subtree.
+     */
+    private static Node balRight(int ID, long count, Node left, Node right) {
+        if(isRed(right)) {
+            return new Node(true, ID, count, left, right.black());
+        } else if(isBlack(left)) {
+            return balance(ID, count, left.red(), right);
+        } else if(isRed(left) && isBlack(left.rightChild)) {
+            Node leftRight = left.rightChild;
+            return new Node(true, leftRight.ID, leftRight.count,
+                    balance(left.ID, left.count, redden(left.leftChild), leftRight.leftChild),
+                    new Node(false, ID, count, leftRight.rightChild, right));
+        }
+        throw new IllegalStateException("Red Black Tree invariant violated while deleting");
+    }
+
+    /**
+     * Joins the two subtrees of a deleted node, all of whose IDs in left are smaller than those in right.
+     * @param left The left subtree.
+     * @param right The right subtree.
+     * @return The root of the joined subtree.
+     */
+    private static Node append(Node left, Node right) {
+        if(left == null) {
+            return right;
+        } else if(right == null) {
+            return left;
+        } else if(isRed(left) && isRed(right)) {
+            Node middle = append(left.rightChild, right.leftChild);
+            if(isRed(middle)) {
+                return new Node(true, middle.ID, middle.count,
+                        new Node(true, left.ID, left.count, left.leftChild, middle.leftChild),
+                        new Node(true, right.ID, right.count, middle.rightChild, right.rightChild));
+            }
+            return new Node(true, left.ID, left.count, left.leftChild,
+                    new Node(true, right.ID, right.count, middle, right.rightChild));
+        } else if(isBlack(left) && isBlack(right)) {
+            Node middle = append(left.rightChild, right.leftChild);
+            if(isRed(middle)) {
+                return new Node(true, middle.ID, middle.count,
+                        new Node(false, left.ID, left.count, left.leftChild, middle.leftChild),
+                        new Node(false, right.ID, right.count, middle.rightChild, right.rightChild));
+            }
+            return balLeft(left.ID, left.count, left.leftChild,
+                    new Node(false, right.ID, right.count, middle, right.rightChild));
+        } else if(isRed(right)) {
+            return new Node(true, right.ID, right.count, append(left, right.leftChild), right.rightChild);
+        } else {
+            return new Node(true, left.ID, left.count, left.leftChild, append(left.rightChild, right));
+        }
+    }
+
+    /**
+     * Returns a red copy of a black node. The node must be black.
+     * @param node The node.
+     * @return The red node.
+     */
+    private static Node redden(Node node) {
+        if(!isBlack(node)) {
+            throw new IllegalStateException("Red Black Tree invariant violated while deleting");
+        }
+        return node.red();
+    }
+
+    /**
+     * Returns a black copy of a root, or null for an empty tree.
+     * @param node The root.
+     * @return The black root.
+     */
+    private static Node blacken(Node node) {
+        return (node != null) ? node.black() : null;
+    }
+
+    /**
+     * Returns true if the node is red. Null is not red.
+     * @param node The node.
+     * @return True if the node is red.
+     */
+    private static boolean isRed(Node node) {
+        return node != null && node.red;
+    }
+
+    /**
+     * Returns true if the node is black. Null is neither black nor red here, as Kahrs' deletion tells them apart.
+     * @param node The node.
+     * @return True if the node is a black node.
+     */
+    private static boolean isBlack(Node node) {
+        return node != null && !node.red;
+    }
+
+    /**
+     * Returns the subtree sum of a node or 0 if the node is null.
+     * @param node The node.
+     * @return The subtree sum or 0.
+     */
+    private static long subtreeSumOf(Node node) {
+        return (node != null) ? node.subtreeSum : 0;
+    }
+
+    /**
+     * Returns the subtree size of a node or 0 if the node is null.
+     * @param node The node.
+     * @return The subtree size or 0.
+     */
+    private static int subtreeSizeOf(Node node) {
+        return (node != null) ? node.subtreeSize : 0;
+    }
+}
@@ -0,0 +1,498 @@
+import java.util.Arrays;
+
+/**
+ * This class is a bounded cache of the results of InRange, Next and Previous for RedBlackTreeEventCounter. Every entry
+ * keeps the window of IDs whose updates can change its result: the range itself for InRange, and the IDs between the
+ * queried ID and the event found for Next and Previous. The counter reports every count change, insert and delete,
+ * and the entries whose window holds the ID are fixed precisely:
+ * 1. InRange sums are adjusted in place by the change of the count.
+ * 2. Next and Previous entries are dropped when an event is inserted or deleted in their window. Count changes need no
+ * work, as the entries hold the live nodes. A counter with a backend holds copies instead, so it reports a count
+ * change as an insert or delete.
+ * A lookup is O(1) and does not allocate. An update scans the windows of the entries in O(c) time for capacity c,
+ * which is skipped when the ID lies outside of every window. Eviction is least recently used with TinyLFU admission:
+ * a 4 bit count-min sketch estimates how often every query was asked lately, and a missed query only takes the place
+ * of the least recently used entry if it was asked more often, so one-off queries do not flush the hot ones.
+ */
+public class QueryCache {
+
+    /**
+     * The kinds of cached queries.
+     */
+    public static final byte IN_RANGE = 0, NEXT = 1, PREVIOUS = 2;
+
+    /**
+     * Returned by find if the query is not cached.
+     */
+    public static final int NOT_FOUND = -1;
+
+    /**
+     * Marks a slot without an entry, and the end of the recency list.
+     */
+    private static final byte FREE = -1;
+    private static final int NONE = -1;
+
+    /**
+     * The seeds which turn the hash of a query into the counter of each row of the sketch.
+     */
+    private static final long[] SKETCH_SEEDS = {0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL,
+            0xCBF29CE484222325L};
+
+    /**
+     * Holds the largest number of entries.
+     */
+    private final int capacity;
+
+    /**
+     * Hold the kind of query and its arguments in every slot. The second ID is only used by InRange.
+     */
+    private final byte[] kinds;
+    private final int[] firstIDs, secondIDs;
+
+    /**
+     * Hold the window of IDs whose updates change the result of every slot, as longs so the windows next to
+     * Integer.MIN_VALUE and Integer.MAX_VALUE need no special case.
+     */
+    private final long[] windowLows, windowHighs;
+
+    /**
+     * Holds the sum of every InRange slot.
+     */
+    private final long[] sums;
+
+    /**
+     * Holds the event found by every Next and Previous slot, or null.
+     */
+    private final RedBlackTree.RedBlackTreeNode[] events;
+
+    /**
+     * Hold the recency list through the slots: the next more recently and less recently used slot.
+     */
+    private final int[] newerSlots, olderSlots;
+
+    /**
+     * Hold the most and the least recently used slot, or NONE.
+     */
+    private int newestSlot = NONE, oldestSlot = NONE;
+
+    /**
+     * Holds the free slots as a stack and its height.
+     */
+    private final int[] freeSlots;
+    private int freeSlotCount;
+
+    /**
+     * Holds the open addressing table from queries to slot + 1, where 0 is empty.
+     */
+    private final int[] table;
+
+    /**
+     * Holds the number of bits the hash of a query is shifted right by to give a table index.
+     */
+    private final int tableShift;
+
+    /**
+     * Holds the 4 bit counters of the frequency sketch, 16 to a long.
+     */
+    private final long[] sketch;
+
+    /**
+     * Holds the number of bits the hash of a query is shifted right by to give a counter of the sketch.
+     */
+    private final int sketchShift;
+
+    /**
+     * Holds the number of increments of the sketch since the counters were last halved, and the number at which they
+     * are halved.
+     */
+    private int sketchSamples = 0;
+    private final int sketchSampleLimit;
+
+    /**
+     * Hold the smallest and largest ID of any window since the last clear. IDs outside of them touch no entry.
+     */
+    private long lowestWindowID = Long.MAX_VALUE, highestWindowID = Long.MIN_VALUE;
+
+    /**
+     * Hold the number of lookups which found and which did not find their query.
+     */
+    private long hitCount = 0, missCount = 0;
+
+    /**
+     * Creates an empty cache.
+     * @param capacity The largest number of entries.
+     * @throws IllegalArgumentException If capacity is not positive.
+     */
+    public QueryCache(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("The capacity " + capacity + " is not positive");
+        }
+        this.capacity = capacity;
+        kinds = new byte[capacity];
+        firstIDs = new int[capacity];
+        secondIDs = new int[capacity];
+        windowLows = new long[capacity];
+        windowHighs = new long[capacity];
+        sums = new long[capacity];
+        events = new RedBlackTree.RedBlackTreeNode[capacity];
+        newerSlots = new int[capacity];
+        olderSlots = new int[capacity];
+        freeSlots = new int[capacity];
+        int tableBits = 33 - Integer.numberOfLeadingZeros(capacity); //At most half of the table is in use
+        table = new int[1 << tableBits];
+        tableShift = 64 - tableBits;
+        int sketchBits = Math.max(tableBits + 2, 6); //At least four counters per entry
+        sketch = new long[1 << (sketchBits - 4)];
+        sketchShift = 64 - sketchBits;
+        sketchSampleLimit = 10 * capacity;
+        clear();
+    }
+
+    /**
+     * Looks up a query. A found entry becomes the most recently used one. Either way the query is counted in the
+     * frequency sketch and in the hit or miss count.
+     * @param kind IN_RANGE, NEXT or PREVIOUS.
+     * @param firstID ID1 of InRange or the ID of Next and Previous.
+     * @param secondID ID2 of InRange, or 0.
+     * @return The slot of the entry, or NOT_FOUND.
+     */
+    public int find(byte kind, int firstID, int secondID) {
+        long hash = hashOf(kind, firstID, secondID);
+        incrementFrequency(hash);
+        int slot = slotOf(hash, kind, firstID, secondID);
+        if(slot == NOT_FOUND) {
+            missCount++;
+            return NOT_FOUND;
+        }
+        hitCount++;
+        if(slot != newestSlot) {
+            unlink(slot);
+            linkNewest(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the sum held by an InRange entry.
+     * @param slot The slot returned by find.
+     * @return The sum.
+     */
+    public long getSum(int slot) {
+        return sums[slot];
+    }
+
+    /**
+     * Returns the event held by a Next or Previous entry.
+     * @param slot The slot returned by find.
+     * @return The event, or null if there was none.
+     */
+    public RedBlackTree.RedBlackTreeNode getEvent(int slot) {
+        return events[slot];
+    }
+
+    /**
+     * Caches the sum of an InRange query which find did not find.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param sum The total count.
+     */
+    public void putRange(int ID1, int ID2, long sum) {
+        int slot = admit(IN_RANGE, ID1, ID2, ID1, ID2);
+        if(slot != NOT_FOUND) {
+            sums[slot] = sum;
+        }
+    }
+
+    /**
+     * Caches the result of a Next query which find did not find.
+     * @param ID The queried ID.
+     * @param event The event found, or null.
+     */
+    public void putNext(int ID, RedBlackTree.RedBlackTreeNode event) {
+        int slot = admit(NEXT, ID, 0, (long) ID + 1, (event != null) ? event.getID() : Integer.MAX_VALUE);
+        if(slot != NOT_FOUND) {
+            events[slot] = event;
+        }
+    }
+
+    /**
+     * Caches the result of a Previous query which find did not find.
+     * @param ID The queried ID.
+     * @param event The event found, or null.
+     */
+    public void putPrevious(int ID, RedBlackTree.RedBlackTreeNode event) {
+        int slot = admit(PREVIOUS, ID, 0, (event != null) ? event.getID() : Integer.MIN_VALUE, (long) ID - 1);
+        if(slot != NOT_FOUND) {
+            events[slot] = event;
+        }
+    }
+
+    /**
+     * Adjusts the InRange sums holding ID after the count of its event changed.
+     * @param ID The ID of the event.
+     * @param delta The new count minus the old count.
+     */
+    public void countChanged(int ID, long delta) {
+        if(ID < lowestWindowID || ID > highestWindowID || delta == 0) {
+            return;
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            if(kinds[slot] == IN_RANGE && windowLows[slot] <= ID && ID <= windowHighs[slot]) {
+                sums[slot] += delta;
+            }
+        }
+    }
+
+    /**
+     * Adjusts the InRange sums holding ID and drops the Next and Previous entries whose result changes after an event
+     * was inserted or deleted.
+     * @param ID The ID of the event.
+     * @param delta The count of an inserted event, or minus the count of a deleted event.
+     */
+    public void eventInsertedOrDeleted(int ID, long delta) {
+        if(ID < lowestWindowID || ID > highestWindowID) {
+            return;
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            if(kinds[slot] != FREE && windowLows[slot] <= ID && ID <= windowHighs[slot]) {
+                if(kinds[slot] == IN_RANGE) {
+                    sums[slot] += delta;
+                } else {
+                    remove(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every entry. The hit and miss counts and the frequency sketch are kept.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(kinds, FREE);
+        Arrays.fill(events, null);
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        freeSlotCount = capacity;
+        newestSlot = NONE;
+        oldestSlot = NONE;
+        lowestWindowID = Long.MAX_VALUE;
+        highestWindowID = Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the number of entries.
+     * @return The number of entries.
+     */
+    public int size() {
+        return capacity - freeSlotCount;
+    }
+
+    /**
+     * Returns the number of lookups which found their query.
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups which did not find their query.
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the fraction of lookups which found their query.
+     * @return The hit rate, or 0 if there was no lookup.
+     */
+    public double getHitRate() {
+        long lookups = hitCount + missCount;
+        return (lookups > 0) ? (double) hitCount / lookups : 0;
+    }
+
+    /**
+     * Takes a slot for a query which is not cached. If the cache is full the least recently used entry is evicted,
+     * unless the sketch says it was asked more often than the new query, in which case the new query is not cached.
+     * @param kind The kind of the query.
+     * @param firstID The first argument.
+     * @param secondID The second argument.
+     * @param windowLow The smallest ID whose update changes the result.
+     * @param windowHigh The largest ID whose update changes the result.
+     * @return The slot, or NOT_FOUND if the query was not admitted.
+     */
+    private int admit(byte kind, int firstID, int secondID, long windowLow, long windowHigh) {
+        long hash = hashOf(kind, firstID, secondID);
+        if(freeSlotCount == 0) {
+            int victimSlot = oldestSlot;
+            if(frequencyOf(hash) <= frequencyOf(hashOf(kinds[victimSlot], firstIDs[victimSlot],
+                    secondIDs[victimSlot]))) {
+                return NOT_FOUND;
+            }
+            remove(victimSlot);
+        }
+        int slot = freeSlots[--freeSlotCount];
+        kinds[slot] = kind;
+        firstIDs[slot] = firstID;
+        secondIDs[slot] = secondID;
+        windowLows[slot] = windowLow;
+        windowHighs[slot] = windowHigh;
+        if(windowLow <= windowHigh) {
+            lowestWindowID = Math.min(lowestWindowID, windowLow);
+            highestWindowID = Math.max(highestWindowID, windowHigh);
+        }
+        linkNewest(slot);
+        int index = (int) (hash >>> tableShift);
+        while (table[index] != 0) {
+            index = (index + 1) & (table.length - 1);
+        }
+        table[index] = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Drops an entry and moves back the table entries which probed past it.
+     * @param slot The slot of the entry.
+     */
+    private void remove(int slot) {
+        int mask = table.length - 1;
+        int index = (int) (hashOf(kinds[slot], firstIDs[slot], secondIDs[slot]) >>> tableShift);
+        while (table[index] != slot + 1) {
+            index = (index + 1) & mask;
+        }
+        int emptyIndex = index;
+        while (true) {
+            index = (index + 1) & mask;
+            if(table[index] == 0) {
+                break;
+            }
+            int movedSlot = table[index] - 1;
+            int homeIndex = (int) (hashOf(kinds[movedSlot], firstIDs[movedSlot], secondIDs[movedSlot]) >>> tableShift);
+            //The entry may move into the empty index only if its home index is not between the two cyclically
+            if(((index - homeIndex) & mask) >= ((index - emptyIndex) & mask)) {
+                table[emptyIndex] = table[index];
+                emptyIndex = index;
+            }
+        }
+        table[emptyIndex] = 0;
+        unlink(slot);
+        kinds[slot] = FREE;
+        events[slot] = null;
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    /**
+     * Returns the slot of a query, or NOT_FOUND.
+     * @param hash The hash of the query.
+     * @param kind The kind of the query.
+     * @param firstID The first argument.
+     * @param secondID The second argument.
+     * @return The slot, or NOT_FOUND.
+     */
+    private int slotOf(long hash, byte kind, int firstID, int secondID) {
+        int index = (int) (hash >>> tableShift);
+        int entry;
+        while ((entry = table[index]) != 0) {
+            int slot = entry - 1;
+            if(kinds[slot] == kind && firstIDs[slot] == firstID && secondIDs[slot] == secondID) {
+                return slot;
+            }
+            index = (index + 1) & (table.length - 1);
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Makes a slot the most recently used one.
+     * @param slot The slot, which is not in the recency list.
+     */
+    private void linkNewest(int slot) {
+        newerSlots[slot] = NONE;
+        olderSlots[slot] = newestSlot;
+        if(newestSlot != NONE) {
+            newerSlots[newestSlot] = slot;
+        } else {
+            oldestSlot = slot;
+        }
+        newestSlot = slot;
+    }
+
+    /**
+     * Takes a slot out of the recency list.
+     * @param slot The slot.
+     */
+    private void unlink(int slot) {
+        int newerSlot = newerSlots[slot], olderSlot = olderSlots[slot];
+        if(newerSlot != NONE) {
+            olderSlots[newerSlot] = olderSlot;
+        } else {
+            newestSlot = olderSlot;
+        }
+        if(olderSlot != NONE) {
+            newerSlots[olderSlot] = newerSlot;
+        } else {
+            oldestSlot = newerSlot;
+        }
+    }
+
+    /**
+     * Counts a query in the frequency sketch. Once the sketch has seen ten samples per entry, every counter is halved,
+     * so the sketch follows the recent frequencies.
+     * @param hash The hash of the query.
+     */
+    private void incrementFrequency(long hash) {
+        for (long seed : SKETCH_SEEDS) {
+            int counter = counterOf(hash, seed);
+            int shift = (counter & 15) << 2;
+            if(((sketch[counter >>> 4] >>> shift) & 15) < 15) {
+                sketch[counter >>> 4] += 1L << shift;
+            }
+        }
+        if(++sketchSamples >= sketchSampleLimit) {
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] = (sketch[i] >>> 1) & 0x7777777777777777L;
+            }
+            sketchSamples /= 2;
+        }
+    }
+
+    /**
+     * Returns the estimated recent frequency of a query: the smallest of its counters in the sketch.
+     * @param hash The hash of the query.
+     * @return The frequency, between 0 and 15.
+     */
+    private int frequencyOf(long hash) {
+        int frequency = 15;
+        for (long seed : SKETCH_SEEDS) {
+            int counter = counterOf(hash, seed);
+            frequency = Math.min(frequency, (int) (sketch[counter >>> 4] >>> ((counter & 15) << 2)) & 15);
+        }
+        return frequency;
+    }
+
+    /**
+     * Returns the counter of a query in one row of the sketch.
+     * @param hash The hash of the query.
+     * @param seed The seed of the row.
+     * @return The index of the counter.
+     */
+    private int counterOf(long hash, long seed) {
+        return (int) (((hash ^ seed) * 0x9E3779B97F4A7C15L) >>> sketchShift);
+    }
+
+    /**
+     * Returns the hash of a query. The high bits are well mixed, as the table and the sketch use them.
+     * @param kind The kind of the query.
+     * @param firstID The first argument.
+     * @param secondID The second argument.
+     * @return The hash.
+     */
+    private static long hashOf(byte kind, int firstID, int secondID) {
+        long hash = (((long) firstID << 32) | (secondID & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L + kind;
+        hash ^= hash >>> 31;
+        return hash * 0xBF58476D1CE4E5B9L;
+    }
+}
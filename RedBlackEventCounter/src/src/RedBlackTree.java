@@ -1,5 +1,10 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 /**
  * Created by Sayak Biswas on 3/4/2016.
@@ -12,8 +17,15 @@ import java.util.Iterator;
  * 5. Maximum
  * 6. Successor
  * 7. Predecessor
- * 8. BuildTree
+ * 8. BuildTree and ParallelBuildTree
  * 9. RangeSearch
+ * 10. RangeSum
+ * 11. ApplySortedDeltas
+ * 12. Cursor
+ * 13. Rank, Select and Quantile
+ * 14. Hash Index
+ * 15. DeleteRange through Split and Join, and AddToRange
+ * 16. Union, Intersection and Difference with another tree through Split and Join
  * @author Sayak Biswas
  */
 public class RedBlackTree {
@@ -24,6 +36,8 @@ public class RedBlackTree {
      * 2. count
      * 3. References to left and right children and the parent of the node.
      * 4. Color
+     * 5. Sum of the counts in the subtree rooted at the node
+     * 6. Number of nodes in the subtree rooted at the node
      */
     static class RedBlackTreeNode {
 
@@ -35,7 +49,7 @@ public class RedBlackTree {
         /**
          * Holds the count value
          */
-        private int count;
+        private long count;
 
         /**
          * Hold the left and right children nodes and the parent node
@@ -47,14 +61,40 @@ public class RedBlackTree {
          */
         private NodeColor nodeColor;
 
+        /**
+         * Holds the sum of the counts of this node and all its descendants
+         */
+        private long subtreeSum;
+
+        /**
+         * Holds the number of nodes in the subtree rooted at this node
+         */
+        private int subtreeSize;
+
+        /**
+         * Give atomic access to the count and subtree sum fields
+         */
+        private static final VarHandle COUNT, SUBTREE_SUM;
+
+        static {
+            try {
+                COUNT = MethodHandles.lookup().findVarHandle(RedBlackTreeNode.class, "count", long.class);
+                SUBTREE_SUM = MethodHandles.lookup().findVarHandle(RedBlackTreeNode.class, "subtreeSum", long.class);
+            } catch (ReflectiveOperationException reflectiveOperationException) {
+                throw new ExceptionInInitializerError(reflectiveOperationException);
+            }
+        }
+
         /**
          * The constructor to initialize a node
          * @param ID The key of the node
          * @param count The data value of the node
          */
-        public RedBlackTreeNode(int ID, int count) {
+        public RedBlackTreeNode(int ID, long count) {
             this.ID = ID;
             this.count = count;
+            this.subtreeSum = count;
+            this.subtreeSize = 1;
             this.nodeColor = NodeColor.RED; //Initialize nodes with RED nodeColor
         }
 
@@ -70,24 +110,254 @@ public class RedBlackTree {
          * Returns the count value stored in the node.
          * @return The value of the node
          */
-        public int getCount() {
+        public long getCount() {
             return count;
         }
 
         /**
-         * Saves a count value in the node.
+         * Saves a count value in the node and adjusts the subtree sums of the node and all its ancestors. This runs in
+         * O(lg n) time.
          * @param count The count value to be stored in the node.
          */
-        public void setCount(int count) {
+        public void setCount(long count) {
+            long difference = count - this.count;
             this.count = count;
+            for(RedBlackTreeNode node = this; node != null; node = node.parent) {
+                node.subtreeSum += difference;
+            }
+        }
+
+        /**
+         * Atomically saves a count value in the node if the node still holds the expected count. Unlike setCount this
+         * does not adjust any subtree sums; the caller passes the difference to addToSubtreeSums once this succeeds.
+         * @param expectedCount The count the node is expected to hold.
+         * @param count The count value to be stored in the node.
+         * @return True if the count was saved.
+         */
+        boolean compareAndSetCount(long expectedCount, long count) {
+            return COUNT.compareAndSet(this, expectedCount, count);
+        }
+
+        /**
+         * Reads the count with acquire semantics, so a count saved by compareAndSetCount on another thread is seen
+         * whole.
+         * @return The count value of the node.
+         */
+        long getCountAcquire() {
+            return (long) COUNT.getAcquire(this);
+        }
+
+        /**
+         * Reads the subtree sum with acquire semantics.
+         * @return The subtree sum.
+         */
+        long getSubtreeSumAcquire() {
+            return (long) SUBTREE_SUM.getAcquire(this);
+        }
+
+        /**
+         * Atomically adds a difference to the subtree sums of the node and all its ancestors. Several threads may add
+         * to the same ancestors at once, but the parent references must not change meanwhile. This runs in O(lg n)
+         * time.
+         * @param difference The difference between the new and the old count of the node.
+         */
+        void addToSubtreeSums(long difference) {
+            for(RedBlackTreeNode node = this; node != null; node = node.parent) {
+                SUBTREE_SUM.getAndAdd(node, difference);
+            }
+        }
+
+        /**
+         * Returns the sum of the counts in the subtree rooted at this node.
+         * @return The subtree sum
+         */
+        public long getSubtreeSum() {
+            return subtreeSum;
+        }
+
+        /**
+         * Returns the number of nodes in the subtree rooted at this node.
+         * @return The subtree size
+         */
+        public int getSubtreeSize() {
+            return subtreeSize;
         }
     }
 
+    /**
+     * The number of nodes below which a parallel build stops forking and builds the subtree on the current thread.
+     */
+    private static final int PARALLEL_BUILD_THRESHOLD = 1 << 13;
+
+    /**
+     * The number of nodes in both operands below which a set operation stops forking and runs on the current thread.
+     */
+    private static final int PARALLEL_SET_OPERATION_THRESHOLD = 1 << 12;
+
+    /**
+     * More than the number of nodes on the longest root to leaf path of any tree with fewer than 2^31 nodes.
+     */
+    private static final int MAX_HEIGHT = 64;
+
     /**
      * Holds the root node of the tree.
      */
     private RedBlackTreeNode rootNode = null;
 
+    /**
+     * Holds the number of nodes in the tree.
+     */
+    private int size = 0;
+
+    /**
+     * Counts the inserts, deletes and builds made so far. Cursors use this to notice that their node may be gone.
+     */
+    private int modificationCount = 0;
+
+    /**
+     * Holds the hash table from IDs to nodes which answers treeSearch, or null if the hash index is not enabled.
+     */
+    private NodeHashIndex hashIndex = null;
+
+    /**
+     * Count the inserts and deletes of single nodes, the rotations and the iterations of the insert and delete fix ups
+     * made so far. These are only counted if EventCounterMetrics.ENABLED is set.
+     */
+    private long insertCount = 0, deleteCount = 0, rotationCount = 0, insertFixUpSteps = 0, deleteFixUpSteps = 0;
+
+    /**
+     * Holds the black height of the tree returned by the last call of join.
+     */
+    private int joinedBlackHeight;
+
+    /**
+     * Hold the search path of split and the black heights below its nodes, or null before the first split.
+     */
+    private RedBlackTreeNode[] splitPathNodes;
+    private int[] splitChildBlackHeights;
+
+    /**
+     * This static nested class holds the result of a split: the trees of the IDs below and above the split ID, each
+     * with a black root and no parent, their black heights, and the node holding the split ID if there was one.
+     */
+    private static final class SplitTrees {
+        private RedBlackTreeNode lower, middle, upper;
+        private int lowerBlackHeight, upperBlackHeight;
+    }
+
+    /**
+     * The set operations which combine this tree with another tree.
+     * 1. UNION: keeps the IDs of both trees and adds up the counts of the IDs in both.
+     * 2. INTERSECTION: keeps the IDs of this tree which are also in the other tree.
+     * 3. DIFFERENCE: keeps the IDs of this tree which are not in the other tree.
+     */
+    private enum SetOperation {
+        UNION,
+        INTERSECTION,
+        DIFFERENCE
+    }
+
+    /**
+     * This inner class is an ordered cursor over the nodes of the tree. It steps to the next or previous node through
+     * the parent references in amortized O(1) time and does not allocate. If nodes are inserted or deleted between
+     * steps, the cursor finds its way back from the ID it was on in O(lg n) time.
+     */
+    public class Cursor {
+
+        /**
+         * Holds the node the cursor is on, or null if it is before the first or after the last node.
+         */
+        private RedBlackTreeNode currentNode = null;
+
+        /**
+         * Holds the ID the cursor is on. This is used to find the position again after the tree changes.
+         */
+        private int currentID;
+
+        /**
+         * True if the cursor is after the last node. Otherwise a cursor without a node is before the first node.
+         */
+        private boolean afterLast = false;
+
+        /**
+         * Holds the modification count of the tree when the cursor last moved.
+         */
+        private int expectedModificationCount;
+
+        /**
+         * Moves the cursor to the node with the smallest ID greater than or equal to ID. This runs in O(lg n) time.
+         * @param ID The ID to seek to.
+         * @return True if the cursor is on a node.
+         */
+        public boolean seek(int ID) {
+            return moveTo(treeCeiling(ID), true);
+        }
+
+        /**
+         * Moves the cursor to the next node in ascending order of ID.
+         * @return True if the cursor is on a node, false if it moved past the last node.
+         */
+        public boolean next() {
+            RedBlackTreeNode nextNode;
+            if(currentNode == null) {
+                nextNode = (afterLast || rootNode == null) ? null : treeMinimum(rootNode);
+            } else if(expectedModificationCount != modificationCount) {
+                nextNode = treeSuccessor(rootNode, currentID);
+            } else {
+                nextNode = successorOf(currentNode);
+            }
+            return moveTo(nextNode, true);
+        }
+
+        /**
+         * Moves the cursor to the previous node in ascending order of ID.
+         * @return True if the cursor is on a node, false if it moved before the first node.
+         */
+        public boolean previous() {
+            RedBlackTreeNode previousNode;
+            if(currentNode == null) {
+                previousNode = (!afterLast || rootNode == null) ? null : treeMaximum(rootNode);
+            } else if(expectedModificationCount != modificationCount) {
+                previousNode = treePredecessor(rootNode, currentID);
+            } else {
+                previousNode = predecessorOf(currentNode);
+            }
+            return moveTo(previousNode, false);
+        }
+
+        /**
+         * Returns the node the cursor is on.
+         * @return The node, or null if the cursor is before the first or after the last node or its node was deleted.
+         */
+        public RedBlackTreeNode getEvent() {
+            if(currentNode != null && expectedModificationCount != modificationCount) {
+                RedBlackTreeNode redBlackTreeNode = treeSearch(currentID); //The node may have been deleted
+                if(redBlackTreeNode == null) {
+                    return null;
+                }
+                currentNode = redBlackTreeNode;
+                expectedModificationCount = modificationCount;
+            }
+            return currentNode;
+        }
+
+        /**
+         * Puts the cursor on a node.
+         * @param redBlackTreeNode The node, or null if the cursor moved off one end.
+         * @param forward True if the cursor moved towards greater IDs.
+         * @return True if the cursor is on a node.
+         */
+        private boolean moveTo(RedBlackTreeNode redBlackTreeNode, boolean forward) {
+            currentNode = redBlackTreeNode;
+            afterLast = (redBlackTreeNode == null) && forward;
+            if(redBlackTreeNode != null) {
+                currentID = redBlackTreeNode.ID;
+            }
+            expectedModificationCount = modificationCount;
+            return redBlackTreeNode != null;
+        }
+    }
+
     /**
      * Returns a reference to the root node.
      * @return The reference to the root node.
@@ -96,6 +366,110 @@ public class RedBlackTree {
         return rootNode;
     }
 
+    /**
+     * Returns the number of nodes in the tree.
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the sum of the counts of all nodes in the tree.
+     * @return The total count.
+     */
+    public long getTotalCount() {
+        return subtreeSumOf(rootNode);
+    }
+
+    /**
+     * Returns the number of nodes on the longest path from the root to a leaf. This runs in O(n) time.
+     * @return The height, or 0 if the tree is empty.
+     */
+    public int height() {
+        return heightOf(rootNode);
+    }
+
+    /**
+     * Returns the number of black nodes on a path from the root to a leaf, which is the same for every path. This
+     * runs in O(lg n) time.
+     * @return The black height, or 0 if the tree is empty.
+     */
+    public int blackHeight() {
+        int blackHeight = 0;
+        for(RedBlackTreeNode redBlackTreeNode = rootNode; redBlackTreeNode != null;
+            redBlackTreeNode = redBlackTreeNode.leftChild) {
+            if(redBlackTreeNode.nodeColor == NodeColor.BLACK) {
+                blackHeight++;
+            }
+        }
+        return blackHeight;
+    }
+
+    /**
+     * Returns the number of nodes inserted so far, one by one or by a union. Builds and batches which rebuild the tree
+     * are not counted. This is 0 unless EventCounterMetrics.ENABLED is set.
+     * @return The number of inserts.
+     */
+    public long getInsertCount() {
+        return insertCount;
+    }
+
+    /**
+     * Returns the number of nodes deleted so far, one by one, by a range delete or by an intersection or difference.
+     * This is 0 unless EventCounterMetrics.ENABLED is set.
+     * @return The number of deletes.
+     */
+    public long getDeleteCount() {
+        return deleteCount;
+    }
+
+    /**
+     * Returns the number of rotations made so far. This is 0 unless EventCounterMetrics.ENABLED is set.
+     * @return The number of rotations.
+     */
+    public long getRotationCount() {
+        return rotationCount;
+    }
+
+    /**
+     * Returns the number of iterations of the insert fix up loop made so far, each of which moves up the tree by two
+     * levels or ends the fix up. This is 0 unless EventCounterMetrics.ENABLED is set.
+     * @return The number of insert fix up iterations.
+     */
+    public long getInsertFixUpSteps() {
+        return insertFixUpSteps;
+    }
+
+    /**
+     * Returns the number of iterations of the delete fix up loop made so far, each of which moves up the tree by one
+     * level or ends the fix up. This is 0 unless EventCounterMetrics.ENABLED is set.
+     * @return The number of delete fix up iterations.
+     */
+    public long getDeleteFixUpSteps() {
+        return deleteFixUpSteps;
+    }
+
+    /**
+     * Starts keeping a hash table from IDs to nodes next to the tree, so that treeSearch finds a node in O(1) expected
+     * time instead of walking O(lg n) levels. Inserts, deletes and builds keep the table up to date. The ordered
+     * operations still use the tree. Calling this again has no effect.
+     */
+    public void enableHashIndex() {
+        if(hashIndex == null) {
+            hashIndex = new NodeHashIndex(size);
+            rebuildHashIndex();
+        }
+    }
+
+    /**
+     * Returns a new cursor which is before the first node.
+     * @return The cursor.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
     // The red-black Color notations
     private enum NodeColor {
         RED,
@@ -107,13 +481,18 @@ public class RedBlackTree {
      * @param ID The key of the node to be inserted into the tree.
      * @param count The data value of the node to be inserted into the tree.
      */
-    public void redBlackInsert(int ID, int count) {
+    public void redBlackInsert(int ID, long count) {
         RedBlackTreeNode redBlackTreeNode = new RedBlackTreeNode(ID, count);
         RedBlackTreeNode tempNode = rootNode;
         if(tempNode == null) {
             rootNode = redBlackTreeNode;
             rootNode.nodeColor = NodeColor.BLACK; //The root node is always black.
             rootNode.parent = null;
+            size++;
+            modificationCount++;
+            if(hashIndex != null) {
+                hashIndex.put(redBlackTreeNode);
+            }
         } else {
             RedBlackTreeNode parent = null;
             while (tempNode != null) {
@@ -123,7 +502,7 @@ public class RedBlackTree {
                 } else if (redBlackTreeNode.ID > tempNode.ID) {
                     tempNode = tempNode.rightChild;
                 } else {
-                    tempNode.count = redBlackTreeNode.count;
+                    tempNode.setCount(redBlackTreeNode.count);
                     return;
                 }
             }
@@ -133,16 +512,32 @@ public class RedBlackTree {
             } else {
                 parent.rightChild = redBlackTreeNode;
             }
+            for(RedBlackTreeNode ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+                ancestor.subtreeSum += redBlackTreeNode.count;
+                ancestor.subtreeSize++;
+            }
+            size++;
+            modificationCount++;
+            if(hashIndex != null) {
+                hashIndex.put(redBlackTreeNode);
+            }
             redBlackInsertFixUp(redBlackTreeNode);
         }
+        if(EventCounterMetrics.ENABLED) {
+            insertCount++;
+        }
     }
 
     /**
      * Restores the red black properties which might have been violated after insertion of a new node.
      * @param redBlackTreeNode The newly inserted node.
+     * @return True if the root had turned red and was colored black again, which adds 1 to the black height.
      */
-    private void redBlackInsertFixUp(RedBlackTreeNode redBlackTreeNode) {
+    private boolean redBlackInsertFixUp(RedBlackTreeNode redBlackTreeNode) {
         while(redBlackTreeNode != rootNode && redBlackTreeNode.parent.nodeColor == NodeColor.RED) {
+            if(EventCounterMetrics.ENABLED) {
+                insertFixUpSteps++;
+            }
             if(parentOf(redBlackTreeNode) == leftChildOf(parentOf(parentOf(redBlackTreeNode)))) {
                 RedBlackTreeNode uncle = rightChildOf(parentOf(parentOf(redBlackTreeNode)));
                 if(colorOf(uncle) == NodeColor.RED) {
@@ -177,7 +572,9 @@ public class RedBlackTree {
                 }
             }
         }
+        boolean rootWasRed = rootNode.nodeColor == NodeColor.RED;
         rootNode.nodeColor = NodeColor.BLACK;
+        return rootWasRed;
     }
 
     /**
@@ -201,12 +598,18 @@ public class RedBlackTree {
             }
             right.leftChild = redBlackTreeNode; //Put redBlackTreeNode on right's left
             redBlackTreeNode.parent = right;
+            right.subtreeSum = redBlackTreeNode.subtreeSum; //right now roots the subtree redBlackTreeNode rooted
+            right.subtreeSize = redBlackTreeNode.subtreeSize;
+            updateSubtreeAggregates(redBlackTreeNode);
+            if(EventCounterMetrics.ENABLED) {
+                rotationCount++;
+            }
         }
     }
 
     /**
      * Performs right rotation on the subtree to restore balance.
-     * @param redBlackTreeNode The node on which left rotation has to be performed.
+     * @param redBlackTreeNode The node on which right rotation has to be performed.
      */
     private  void rightRotate(RedBlackTreeNode redBlackTreeNode) {
         if(redBlackTreeNode != null) {
@@ -221,10 +624,16 @@ public class RedBlackTree {
             } else if(redBlackTreeNode == redBlackTreeNode.parent.rightChild) {
                 redBlackTreeNode.parent.rightChild = left;
             } else {
-                redBlackTreeNode.parent.rightChild = left;
+                redBlackTreeNode.parent.leftChild = left;
             }
             left.rightChild = redBlackTreeNode; //Put redBlackTreeNode on left's right
             redBlackTreeNode.parent = left;
+            left.subtreeSum = redBlackTreeNode.subtreeSum; //left now roots the subtree redBlackTreeNode rooted
+            left.subtreeSize = redBlackTreeNode.subtreeSize;
+            updateSubtreeAggregates(redBlackTreeNode);
+            if(EventCounterMetrics.ENABLED) {
+                rotationCount++;
+            }
         }
     }
 
@@ -235,22 +644,27 @@ public class RedBlackTree {
     public void redBlackDelete(RedBlackTreeNode nodeToDelete) {
         RedBlackTreeNode replacementNode = nodeToDelete;
         RedBlackTreeNode replacementSuccessor;
+        RedBlackTreeNode replacementSuccessorParent; //Tracked separately as replacementSuccessor may be null
         NodeColor replacementNodeOriginalColor = replacementNode.nodeColor;
         if(nodeToDelete.leftChild == null) {
             replacementSuccessor = nodeToDelete.rightChild;
+            replacementSuccessorParent = nodeToDelete.parent;
             redBlackTransplant(nodeToDelete, nodeToDelete.rightChild);
         } else if(nodeToDelete.rightChild == null) {
             replacementSuccessor = nodeToDelete.leftChild;
+            replacementSuccessorParent = nodeToDelete.parent;
             redBlackTransplant(nodeToDelete, nodeToDelete.leftChild);
         } else {
             replacementNode = treeMinimum(nodeToDelete.rightChild);
             replacementNodeOriginalColor = replacementNode.nodeColor;
             replacementSuccessor = replacementNode.rightChild;
             if(replacementNode.parent == nodeToDelete) {
+                replacementSuccessorParent = replacementNode;
                 if(replacementSuccessor != null) {
                     replacementSuccessor.parent = replacementNode;
                 }
             } else {
+                replacementSuccessorParent = replacementNode.parent;
                 redBlackTransplant(replacementNode, replacementNode.rightChild);
                 replacementNode.rightChild = nodeToDelete.rightChild;
                 replacementNode.rightChild.parent = replacementNode;
@@ -260,8 +674,20 @@ public class RedBlackTree {
             replacementNode.leftChild.parent = replacementNode;
             replacementNode.nodeColor = nodeToDelete.nodeColor;
         }
+        //Every node whose subtree lost a node lies on the path from replacementSuccessorParent to the root.
+        for(RedBlackTreeNode ancestor = replacementSuccessorParent; ancestor != null; ancestor = ancestor.parent) {
+            updateSubtreeAggregates(ancestor);
+        }
+        size--;
+        modificationCount++;
+        if(hashIndex != null) {
+            hashIndex.remove(nodeToDelete.ID);
+        }
         if(replacementNodeOriginalColor == NodeColor.BLACK) {
-            redBlackDeleteFixUp(replacementSuccessor);
+            redBlackDeleteFixUp(replacementSuccessor, replacementSuccessorParent);
+        }
+        if(EventCounterMetrics.ENABLED) {
+            deleteCount++;
         }
     }
 
@@ -309,58 +735,64 @@ public class RedBlackTree {
 
     /**
      * Restores the red black properties that might have been violated after deletion of a node.
-     * @param redBlackTreeNode The root node of the subtree which needs to be re-balanced.
+     * @param redBlackTreeNode The root node of the subtree which needs to be re-balanced. This may be null.
+     * @param parentNode The parent of redBlackTreeNode. This is passed separately as redBlackTreeNode may be null.
      */
-    private void redBlackDeleteFixUp(RedBlackTreeNode redBlackTreeNode) {
+    private void redBlackDeleteFixUp(RedBlackTreeNode redBlackTreeNode, RedBlackTreeNode parentNode) {
         while (redBlackTreeNode != rootNode && colorOf(redBlackTreeNode) == NodeColor.BLACK) {
-            if(redBlackTreeNode == leftChildOf(parentOf(redBlackTreeNode))) {
-                RedBlackTreeNode siblingNode = rightChildOf(parentOf(redBlackTreeNode));
+            if(EventCounterMetrics.ENABLED) {
+                deleteFixUpSteps++;
+            }
+            if(redBlackTreeNode == leftChildOf(parentNode)) {
+                RedBlackTreeNode siblingNode = rightChildOf(parentNode);
                 if(colorOf(siblingNode) == NodeColor.RED) {
                     setColor(siblingNode, NodeColor.BLACK);
-                    setColor(parentOf(redBlackTreeNode), NodeColor.RED);
-                    leftRotate(parentOf(redBlackTreeNode));
-                    siblingNode = rightChildOf(parentOf(redBlackTreeNode));
+                    setColor(parentNode, NodeColor.RED);
+                    leftRotate(parentNode);
+                    siblingNode = rightChildOf(parentNode);
                 }
                 if(colorOf(leftChildOf(siblingNode)) == NodeColor.BLACK
                         && colorOf(rightChildOf(siblingNode)) == NodeColor.BLACK) {
                     setColor(siblingNode, NodeColor.RED);
-                    redBlackTreeNode = parentOf(redBlackTreeNode);
+                    redBlackTreeNode = parentNode;
+                    parentNode = parentOf(parentNode);
                 } else {
                     if(colorOf(rightChildOf(siblingNode)) == NodeColor.BLACK) {
                         setColor(leftChildOf(siblingNode), NodeColor.BLACK);
                         setColor(siblingNode, NodeColor.RED);
                         rightRotate(siblingNode);
-                        siblingNode = rightChildOf(parentOf(redBlackTreeNode));
+                        siblingNode = rightChildOf(parentNode);
                     }
-                    setColor(siblingNode, colorOf(parentOf(redBlackTreeNode)));
-                    setColor(parentOf(redBlackTreeNode), NodeColor.BLACK);
+                    setColor(siblingNode, colorOf(parentNode));
+                    setColor(parentNode, NodeColor.BLACK);
                     setColor(rightChildOf(siblingNode),  NodeColor.BLACK);
-                    leftRotate(parentOf(redBlackTreeNode));
+                    leftRotate(parentNode);
                     redBlackTreeNode = rootNode;
                 }
             } else {
-                RedBlackTreeNode siblingNode = leftChildOf(parentOf(redBlackTreeNode));
+                RedBlackTreeNode siblingNode = leftChildOf(parentNode);
                 if(colorOf(siblingNode) == NodeColor.RED) {
                     setColor(siblingNode, NodeColor.BLACK);
-                    setColor(parentOf(redBlackTreeNode), NodeColor.RED);
-                    rightRotate(parentOf(redBlackTreeNode));
-                    siblingNode = leftChildOf(parentOf(redBlackTreeNode));
+                    setColor(parentNode, NodeColor.RED);
+                    rightRotate(parentNode);
+                    siblingNode = leftChildOf(parentNode);
                 }
                 if(colorOf(rightChildOf(siblingNode)) == NodeColor.BLACK
                         && colorOf(leftChildOf(siblingNode)) == NodeColor.BLACK) {
                     setColor(siblingNode, NodeColor.RED);
-                    redBlackTreeNode = parentOf(redBlackTreeNode);
+                    redBlackTreeNode = parentNode;
+                    parentNode = parentOf(parentNode);
                 } else {
                     if(colorOf(leftChildOf(siblingNode)) == NodeColor.BLACK) {
                         setColor(rightChildOf(siblingNode), NodeColor.BLACK);
                         setColor(siblingNode, NodeColor.RED);
                         leftRotate(siblingNode);
-                        siblingNode = leftChildOf(parentOf(redBlackTreeNode));
+                        siblingNode = leftChildOf(parentNode);
                     }
-                    setColor(siblingNode, colorOf(parentOf(redBlackTreeNode)));
-                    setColor(parentOf(redBlackTreeNode), NodeColor.BLACK);
+                    setColor(siblingNode, colorOf(parentNode));
+                    setColor(parentNode, NodeColor.BLACK);
                     setColor(leftChildOf(siblingNode), NodeColor.BLACK);
-                    rightRotate(parentOf(redBlackTreeNode));
+                    rightRotate(parentNode);
                     redBlackTreeNode = rootNode;
                 }
             }
@@ -369,11 +801,14 @@ public class RedBlackTree {
     }
 
     /**
-     * Searches for a node with the input ID in the tree.
+     * Searches for a node with the input ID in the tree, or in the hash index if it is enabled.
      * @param theID The ID to look for in the tree.
      * @return The node containing the ID.
      */
     public RedBlackTreeNode treeSearch(int theID) {
+        if(hashIndex != null) {
+            return hashIndex.get(theID);
+        }
         if(rootNode == null) {
             return null;
         }
@@ -391,71 +826,64 @@ public class RedBlackTree {
     }
 
     /**
-     * Finds the successor of the input ID in the sorted order determined by an inorder traversal.
+     * Finds the successor of the input ID in the sorted order determined by an inorder traversal. This walks down the
+     * tree once without recursion.
      * @param redBlackTreeNode The subtree node to be searched for successor.
      * @param ID The ID whose successor is to be determined.
      * @return The node with the smallest ID greater than the input ID.
      */
     public RedBlackTreeNode treeSuccessor(RedBlackTreeNode redBlackTreeNode, int ID) {
-        if(redBlackTreeNode == null) {
-            return null;
-        }
-        if(redBlackTreeNode.ID == ID) {
-            if(redBlackTreeNode.rightChild != null) {
-                return treeMinimum(redBlackTreeNode.rightChild);
-            } else {
-                RedBlackTreeNode parentNode = redBlackTreeNode.parent;
-                RedBlackTreeNode childNode = redBlackTreeNode;
-                while (parentNode != null && childNode == parentNode.rightChild) {
-                    childNode = parentNode;
-                    parentNode = parentNode.parent;
-                }
-                return parentNode;
-            }
-        }
-        if(ID < redBlackTreeNode.ID) {
-            RedBlackTreeNode temp = treeSuccessor(redBlackTreeNode.leftChild, ID);
-            if (temp != null) {
-                return temp;
+        RedBlackTreeNode successor = null;
+        while (redBlackTreeNode != null) {
+            if(ID < redBlackTreeNode.ID) {
+                successor = redBlackTreeNode;
+                redBlackTreeNode = redBlackTreeNode.leftChild;
             } else {
-                return redBlackTreeNode;
+                redBlackTreeNode = redBlackTreeNode.rightChild;
             }
         }
-        return treeSuccessor(redBlackTreeNode.rightChild, ID);
+        return successor;
     }
 
     /**
-     * Finds the predecessor of the input ID in the sorted order determined by an inorder traversal.
+     * Finds the predecessor of the input ID in the sorted order determined by an inorder traversal. This walks down the
+     * tree once without recursion.
      * @param redBlackTreeNode The subtree node to be searched for predecessor.
      * @param ID The ID whose predecessor is to be determined.
      * @return The node with the greatest ID smaller than the input ID.
      */
     public RedBlackTreeNode treePredecessor(RedBlackTreeNode redBlackTreeNode, int ID) {
-        if(redBlackTreeNode == null) {
-            return null;
-        }
-        if(redBlackTreeNode.ID == ID) {
-            if(redBlackTreeNode.leftChild != null) {
-                return treeMaximum(redBlackTreeNode.leftChild);
+        RedBlackTreeNode predecessor = null;
+        while (redBlackTreeNode != null) {
+            if(ID > redBlackTreeNode.ID) {
+                predecessor = redBlackTreeNode;
+                redBlackTreeNode = redBlackTreeNode.rightChild;
             } else {
-                RedBlackTreeNode parentNode = redBlackTreeNode.parent;
-                RedBlackTreeNode childNode = redBlackTreeNode;
-                while (parentNode != null && childNode == parentNode.leftChild) {
-                    childNode = parentNode;
-                    parentNode = parentNode.parent;
-                }
-                return parentNode;
+                redBlackTreeNode = redBlackTreeNode.leftChild;
             }
         }
-        if(ID < redBlackTreeNode.ID) {
-            return treePredecessor(redBlackTreeNode.leftChild, ID);
-        }
-        RedBlackTreeNode temp = treePredecessor(redBlackTreeNode.rightChild, ID);
-        if(temp != null) {
-            return temp;
-        } else {
-            return redBlackTreeNode;
+        return predecessor;
+    }
+
+    /**
+     * Finds the node with the smallest ID greater than or equal to the input ID.
+     * @param ID The ID to look for.
+     * @return The node, or null if every ID is smaller than the input ID.
+     */
+    private RedBlackTreeNode treeCeiling(int ID) {
+        RedBlackTreeNode ceiling = null;
+        RedBlackTreeNode redBlackTreeNode = rootNode;
+        while (redBlackTreeNode != null) {
+            if(ID < redBlackTreeNode.ID) {
+                ceiling = redBlackTreeNode;
+                redBlackTreeNode = redBlackTreeNode.leftChild;
+            } else if(ID > redBlackTreeNode.ID) {
+                redBlackTreeNode = redBlackTreeNode.rightChild;
+            } else {
+                return redBlackTreeNode;
+            }
         }
+        return ceiling;
     }
 
     /**
@@ -468,56 +896,322 @@ public class RedBlackTree {
         for (int i = size - 1; i >= 0; i = i / 2 - 1) {
             redLevel++;
         }
-        rootNode = buildTree(0, 0, size - 1, redLevel, iterator);
+        setBuiltTree(buildTree(0, 0, size - 1, redLevel, iterator), size);
     }
 
     /**
-     * Builds the tree by placing the middle element to current position. Places [begin; middle) elements to left
-     * subtree and (middle, end) elements to right subtree.
+     * Builds the tree from sorted arrays of IDs and counts on several threads. The input is split by index and the
+     * left and right subtrees of every node above PARALLEL_BUILD_THRESHOLD are built concurrently with the same
+     * coloring as buildTreeFromSortedList, so the resulting tree is identical. This runs in O(n) work and
+     * O(n / p + lg n) time on p threads.
+     * @param size Number of events to be added to the tree.
+     * @param sortedIDs The distinct IDs in ascending order.
+     * @param sortedCounts The counts matching sortedIDs.
+     * @param pool The pool which runs the build.
+     */
+    public void parallelBuildTreeFromSortedArrays(int size, int[] sortedIDs, long[] sortedCounts, ForkJoinPool pool) {
+        int redLevel = 0;
+        for (int i = size - 1; i >= 0; i = i / 2 - 1) {
+            redLevel++;
+        }
+        RedBlackTreeNode builtRoot = null;
+        if(size > 0) {
+            builtRoot = pool.invoke(new BuildTask(0, 0, size - 1, redLevel, sortedIDs, sortedCounts));
+        }
+        setBuiltTree(builtRoot, size);
+    }
+
+    /**
+     * Makes a freshly built tree the contents of this tree.
+     * @param builtRoot The root of the built tree.
+     * @param size The number of nodes in the built tree.
+     */
+    private void setBuiltTree(RedBlackTreeNode builtRoot, int size) {
+        rootNode = builtRoot;
+        if(rootNode != null) {
+            rootNode.parent = null;
+        }
+        this.size = size;
+        modificationCount++;
+        if(hashIndex != null) {
+            rebuildHashIndex();
+        }
+    }
+
+    /**
+     * This static nested class builds the subtree of the events with positions begin to end of sorted arrays,
+     * forking the left subtree while it builds the right one.
+     */
+    private static final class BuildTask extends RecursiveTask<RedBlackTreeNode> {
+        private static final long serialVersionUID = 1L;
+        private final int currentLevel, begin, end, redLevel;
+        private final int[] sortedIDs;
+        private final long[] sortedCounts;
+
+        /**
+         * Creates a task for one subtree.
+         * @param currentLevel The current level of the tree.
+         * @param begin The starting index of the subtree.
+         * @param end The ending index of the subtree.
+         * @param redLevel The level at which nodes should be colored red.
+         * @param sortedIDs The distinct IDs in ascending order.
+         * @param sortedCounts The counts matching sortedIDs.
+         */
+        private BuildTask(int currentLevel, int begin, int end, int redLevel, int[] sortedIDs, long[] sortedCounts) {
+            this.currentLevel = currentLevel;
+            this.begin = begin;
+            this.end = end;
+            this.redLevel = redLevel;
+            this.sortedIDs = sortedIDs;
+            this.sortedCounts = sortedCounts;
+        }
+
+        @Override
+        protected RedBlackTreeNode compute() {
+            if(end - begin < PARALLEL_BUILD_THRESHOLD) {
+                return buildTree(currentLevel, begin, end, redLevel, sortedIDs, sortedCounts);
+            }
+            int mid = (begin + end) / 2;
+            BuildTask leftTask = new BuildTask(currentLevel + 1, begin, mid - 1, redLevel, sortedIDs, sortedCounts);
+            leftTask.fork();
+            RedBlackTreeNode right =
+                    new BuildTask(currentLevel + 1, mid + 1, end, redLevel, sortedIDs, sortedCounts).compute();
+            RedBlackTreeNode left = leftTask.join();
+            return linkBuiltNode(new RedBlackTreeNode(sortedIDs[mid], sortedCounts[mid]), left, right,
+                    currentLevel == redLevel);
+        }
+    }
+
+    /**
+     * Builds the subtree of the events with positions begin to end of sorted arrays on the current thread.
      * @param currentLevel The current level of the tree.
      * @param begin The starting index of the subtree.
      * @param end The ending index of the subtree.
      * @param redLevel The level at which nodes should be colored red.
-     * @param iterator The Event objects are read from this ArrayList Iterator.
+     * @param sortedIDs The distinct IDs in ascending order.
+     * @param sortedCounts The counts matching sortedIDs.
      * @return The root of the subtree.
      */
-    private RedBlackTreeNode buildTree(int currentLevel, int begin, int end, int redLevel,
-                                       Iterator<RedBlackTreeNode> iterator) {
+    private static RedBlackTreeNode buildTree(int currentLevel, int begin, int end, int redLevel, int[] sortedIDs,
+                                              long[] sortedCounts) {
         if(end < begin) {
             return null;
         }
         int mid = (begin + end) / 2;
-        RedBlackTreeNode left = null;
-        if(begin < mid) {
-            left = buildTree(currentLevel + 1, begin, mid - 1, redLevel, iterator);
-        }
-
-        RedBlackTreeNode middle = iterator.next();
-
-        if(currentLevel == redLevel) {
-            middle.nodeColor = NodeColor.RED;
-        }
+        RedBlackTreeNode left = buildTree(currentLevel + 1, begin, mid - 1, redLevel, sortedIDs, sortedCounts);
+        RedBlackTreeNode right = buildTree(currentLevel + 1, mid + 1, end, redLevel, sortedIDs, sortedCounts);
+        return linkBuiltNode(new RedBlackTreeNode(sortedIDs[mid], sortedCounts[mid]), left, right,
+                currentLevel == redLevel);
+    }
 
+    /**
+     * Makes two built subtrees the children of a node and sets its color and aggregates.
+     * @param middle The node.
+     * @param left The root of the left subtree or null.
+     * @param right The root of the right subtree or null.
+     * @param red True if the node is on the red level.
+     * @return The node.
+     */
+    private static RedBlackTreeNode linkBuiltNode(RedBlackTreeNode middle, RedBlackTreeNode left,
+                                                  RedBlackTreeNode right, boolean red) {
+        middle.nodeColor = red ? NodeColor.RED : NodeColor.BLACK;
+        middle.leftChild = left;
         if(left != null) {
-            middle.leftChild = left;
             left.parent = middle;
         }
-
-        if(mid < end) {
-            RedBlackTreeNode right = buildTree(currentLevel + 1, mid + 1, end, redLevel, iterator);
-            if(right != null) {
-                middle.rightChild = right;
-                right.parent = middle;
-            }
+        middle.rightChild = right;
+        if(right != null) {
+            right.parent = middle;
         }
-
+        updateSubtreeAggregates(middle);
         return middle;
     }
 
     /**
-     * Stores all nodes in the tree whose IDs are in the range between ID1 and ID2.
-     * @param rootNode The root node of the tree.
-     * @param ID1 The left limit of the range.
+     * Refills the hash index with the nodes of the tree. This runs in O(n) time.
+     */
+    private void rebuildHashIndex() {
+        hashIndex.clear(size);
+        for (RedBlackTreeNode redBlackTreeNode = (rootNode != null) ? treeMinimum(rootNode) : null;
+             redBlackTreeNode != null; redBlackTreeNode = successorOf(redBlackTreeNode)) {
+            hashIndex.put(redBlackTreeNode);
+        }
+    }
+
+    /**
+     * Builds the tree by placing the middle element to current position. Places [begin; middle) elements to left
+     * subtree and (middle, end) elements to right subtree.
+     * @param currentLevel The current level of the tree.
+     * @param begin The starting index of the subtree.
+     * @param end The ending index of the subtree.
+     * @param redLevel The level at which nodes should be colored red.
+     * @param iterator The Event objects are read from this ArrayList Iterator.
+     * @return The root of the subtree.
+     */
+    private RedBlackTreeNode buildTree(int currentLevel, int begin, int end, int redLevel,
+                                       Iterator<RedBlackTreeNode> iterator) {
+        if(end < begin) {
+            return null;
+        }
+        int mid = (begin + end) / 2;
+        RedBlackTreeNode left = null;
+        if(begin < mid) {
+            left = buildTree(currentLevel + 1, begin, mid - 1, redLevel, iterator);
+        }
+
+        RedBlackTreeNode middle = iterator.next();
+
+        if(currentLevel == redLevel) {
+            middle.nodeColor = NodeColor.RED;
+        } else {
+            middle.nodeColor = NodeColor.BLACK;
+        }
+
+        middle.leftChild = left; //Nodes may be reused from an older tree, so stale children are overwritten.
+        if(left != null) {
+            left.parent = middle;
+        }
+
+        RedBlackTreeNode right = null;
+        if(mid < end) {
+            right = buildTree(currentLevel + 1, mid + 1, end, redLevel, iterator);
+        }
+        middle.rightChild = right;
+        if(right != null) {
+            right.parent = middle;
+        }
+
+        updateSubtreeAggregates(middle);
+        return middle;
+    }
+
+    /**
+     * Adds a batch of count deltas to the tree. An ID which is not in the tree is inserted if its delta is positive and
+     * a node whose count drops below 1 is deleted. The batch is merged with the tree in one in-order walk which only
+     * visits the search paths of the batch IDs and fixes the subtree sums on the way back up, after which the inserts
+     * and deletes are made. If the batch is large compared to the tree, the tree is instead rebuilt from the merged
+     * sorted sequence in O(n + m) time.
+     * @param sortedIDs The distinct IDs of the batch in ascending order.
+     * @param deltas The count delta of each ID.
+     * @param batchSize The number of IDs in the batch.
+     * @param overflowPolicy Applied when a delta makes a count overflow. A batch is not rolled back, so the caller has
+     * to make sure the policy does not throw and that the total count stays in range.
+     */
+    public void applySortedDeltas(int[] sortedIDs, long[] deltas, int batchSize, CountOverflowPolicy overflowPolicy) {
+        if(batchSize == 0) {
+            return;
+        }
+        int height = 32 - Integer.numberOfLeadingZeros(size);
+        if((long) batchSize * height >= size) {
+            rebuildWithSortedDeltas(sortedIDs, deltas, batchSize, overflowPolicy);
+            return;
+        }
+        int[] insertIDs = new int[batchSize];
+        long[] insertCounts = new long[batchSize];
+        ArrayList<RedBlackTreeNode> nodesToDelete = new ArrayList<>();
+        int insertCount = mergeSortedDeltas(rootNode, sortedIDs, deltas, 0, batchSize, insertIDs, insertCounts, 0,
+                nodesToDelete, overflowPolicy);
+        for (RedBlackTreeNode nodeToDelete : nodesToDelete) {
+            redBlackDelete(nodeToDelete);
+        }
+        for (int i = 0; i < insertCount; i++) {
+            redBlackInsert(insertIDs[i], insertCounts[i]);
+        }
+    }
+
+    /**
+     * Adds the deltas of the batch IDs in [begin, end) to the subtree rooted at redBlackTreeNode. IDs which fall off
+     * the tree are collected for insertion and nodes whose count drops below 1 are collected for deletion.
+     * @param redBlackTreeNode The root of the subtree.
+     * @param sortedIDs The distinct IDs of the batch in ascending order.
+     * @param deltas The count delta of each ID.
+     * @param begin The first batch index which belongs in the subtree.
+     * @param end One past the last batch index which belongs in the subtree.
+     * @param insertIDs Collects the IDs to be inserted.
+     * @param insertCounts Collects the counts of the IDs to be inserted.
+     * @param insertCount The number of IDs collected for insertion so far.
+     * @param nodesToDelete Collects the nodes to be deleted.
+     * @param overflowPolicy Applied when a delta makes a count overflow.
+     * @return The number of IDs collected for insertion.
+     */
+    private int mergeSortedDeltas(RedBlackTreeNode redBlackTreeNode, int[] sortedIDs, long[] deltas, int begin,
+                                  int end, int[] insertIDs, long[] insertCounts, int insertCount,
+                                  ArrayList<RedBlackTreeNode> nodesToDelete, CountOverflowPolicy overflowPolicy) {
+        if(begin >= end) {
+            return insertCount;
+        }
+        if(redBlackTreeNode == null) {
+            for (int i = begin; i < end; i++) {
+                if(deltas[i] > 0) {
+                    insertIDs[insertCount] = sortedIDs[i];
+                    insertCounts[insertCount] = deltas[i];
+                    insertCount++;
+                }
+            }
+            return insertCount;
+        }
+        int split = begin; //Binary search for the first batch index whose ID is not less than the node's ID
+        int high = end;
+        while (split < high) {
+            int middle = (split + high) >>> 1;
+            if(sortedIDs[middle] < redBlackTreeNode.ID) {
+                split = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        insertCount = mergeSortedDeltas(redBlackTreeNode.leftChild, sortedIDs, deltas, begin, split, insertIDs,
+                insertCounts, insertCount, nodesToDelete, overflowPolicy);
+        if(split < end && sortedIDs[split] == redBlackTreeNode.ID) {
+            redBlackTreeNode.count = overflowPolicy.add(redBlackTreeNode.count, deltas[split]);
+            if(redBlackTreeNode.count <= 0) {
+                nodesToDelete.add(redBlackTreeNode);
+            }
+            split++;
+        }
+        insertCount = mergeSortedDeltas(redBlackTreeNode.rightChild, sortedIDs, deltas, split, end, insertIDs,
+                insertCounts, insertCount, nodesToDelete, overflowPolicy);
+        updateSubtreeAggregates(redBlackTreeNode);
+        return insertCount;
+    }
+
+    /**
+     * Merges a batch of count deltas with the nodes of the tree in sorted order and rebuilds the tree from the result.
+     * This runs in O(n + m) time.
+     * @param sortedIDs The distinct IDs of the batch in ascending order.
+     * @param deltas The count delta of each ID.
+     * @param batchSize The number of IDs in the batch.
+     * @param overflowPolicy Applied when a delta makes a count overflow.
+     */
+    private void rebuildWithSortedDeltas(int[] sortedIDs, long[] deltas, int batchSize,
+                                         CountOverflowPolicy overflowPolicy) {
+        ArrayList<RedBlackTreeNode> mergedNodes = new ArrayList<>(size + batchSize);
+        RedBlackTreeNode redBlackTreeNode = (rootNode != null) ? treeMinimum(rootNode) : null;
+        int i = 0;
+        while (redBlackTreeNode != null || i < batchSize) {
+            if(redBlackTreeNode != null && (i == batchSize || redBlackTreeNode.ID < sortedIDs[i])) {
+                mergedNodes.add(redBlackTreeNode);
+                redBlackTreeNode = successorOf(redBlackTreeNode);
+            } else if(redBlackTreeNode != null && redBlackTreeNode.ID == sortedIDs[i]) {
+                redBlackTreeNode.count = overflowPolicy.add(redBlackTreeNode.count, deltas[i++]);
+                if(redBlackTreeNode.count > 0) {
+                    mergedNodes.add(redBlackTreeNode);
+                }
+                redBlackTreeNode = successorOf(redBlackTreeNode);
+            } else {
+                if(deltas[i] > 0) {
+                    mergedNodes.add(new RedBlackTreeNode(sortedIDs[i], deltas[i]));
+                }
+                i++;
+            }
+        }
+        buildTreeFromSortedList(mergedNodes.size(), mergedNodes.iterator());
+    }
+
+    /**
+     * Stores all nodes in the tree whose IDs are in the range between ID1 and ID2.
+     * @param rootNode The root node of the tree.
+     * @param ID1 The left limit of the range.
      * @param ID2 The right limit of the range.
      * @param nodesInRange The ArrayList which stores the found nodes.
      * @return The ArrayList containing nodes between the range of ID1 and ID2.
@@ -541,6 +1235,810 @@ public class RedBlackTree {
         return nodesInRange;
     }
 
+    /**
+     * Returns the number of nodes whose IDs are smaller than ID. The ID need not be present. This runs in O(lg n) time.
+     * @param ID The ID whose rank is to be determined.
+     * @return The number of smaller IDs in the tree.
+     */
+    public int treeRank(int ID) {
+        int rank = 0;
+        RedBlackTreeNode redBlackTreeNode = rootNode;
+        while (redBlackTreeNode != null) {
+            if(redBlackTreeNode.ID < ID) {
+                rank += 1 + subtreeSizeOf(redBlackTreeNode.leftChild);
+                redBlackTreeNode = redBlackTreeNode.rightChild;
+            } else {
+                redBlackTreeNode = redBlackTreeNode.leftChild;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Finds the node with exactly rank smaller IDs in the tree, that is the (rank + 1)-th smallest ID. This runs in
+     * O(lg n) time.
+     * @param rank The number of smaller IDs, starting from 0.
+     * @return The node, or null if rank is negative or not less than the size of the tree.
+     */
+    public RedBlackTreeNode treeSelect(int rank) {
+        if(rank < 0 || rank >= size) {
+            return null;
+        }
+        RedBlackTreeNode redBlackTreeNode = rootNode;
+        while (redBlackTreeNode != null) {
+            int leftSize = subtreeSizeOf(redBlackTreeNode.leftChild);
+            if(rank < leftSize) {
+                redBlackTreeNode = redBlackTreeNode.leftChild;
+            } else if(rank > leftSize) {
+                rank -= leftSize + 1;
+                redBlackTreeNode = redBlackTreeNode.rightChild;
+            } else {
+                return redBlackTreeNode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the node with the smallest ID such that the total count of the IDs up to and including it is at least
+     * targetSum. This runs in O(lg n) time.
+     * @param targetSum The total count to be reached. Values below 1 are treated as 1.
+     * @return The node, or null if the counts of all nodes add up to less than targetSum.
+     */
+    public RedBlackTreeNode treePrefixSumCeiling(long targetSum) {
+        long remaining = Math.max(targetSum, 1);
+        RedBlackTreeNode redBlackTreeNode = rootNode;
+        while (redBlackTreeNode != null) {
+            long leftSum = subtreeSumOf(redBlackTreeNode.leftChild);
+            if(remaining <= leftSum) {
+                redBlackTreeNode = redBlackTreeNode.leftChild;
+            } else if(remaining <= leftSum + redBlackTreeNode.count) {
+                return redBlackTreeNode;
+            } else {
+                remaining -= leftSum + redBlackTreeNode.count;
+                redBlackTreeNode = redBlackTreeNode.rightChild;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes all nodes in the tree whose IDs are in the range between ID1 and ID2 to a visitor in ascending order of
+     * ID. This steps from node to node through the parent references and runs in O(lg n + k) time without
+     * allocating. The visitor must not insert into or delete from the tree.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param visitor Receives the nodes in the range.
+     */
+    public void rangeSearch(int ID1, int ID2, Consumer<RedBlackTreeNode> visitor) {
+        for(RedBlackTreeNode redBlackTreeNode = treeCeiling(ID1); redBlackTreeNode != null
+                && redBlackTreeNode.ID <= ID2; redBlackTreeNode = successorOf(redBlackTreeNode)) {
+            visitor.accept(redBlackTreeNode);
+        }
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are in the range between ID1 and ID2. This uses the subtree sums
+     * and runs in O(lg n) time without visiting the nodes in the range.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count of the nodes between ID1 and ID2.
+     */
+    public long rangeSum(int ID1, int ID2) {
+        if(ID1 > ID2) {
+            return 0;
+        }
+        long sumInRange = prefixSum(ID2);
+        if(ID1 > Integer.MIN_VALUE) {
+            sumInRange -= prefixSum(ID1 - 1);
+        }
+        return sumInRange;
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are less than or equal to ID. This walks a single root to leaf
+     * path.
+     * @param ID The right limit of the prefix.
+     * @return The total count of the nodes with IDs up to ID.
+     */
+    private long prefixSum(int ID) {
+        long sum = 0;
+        RedBlackTreeNode redBlackTreeNode = rootNode;
+        while (redBlackTreeNode != null) {
+            if(redBlackTreeNode.ID <= ID) {
+                sum += redBlackTreeNode.count + subtreeSumOf(redBlackTreeNode.leftChild);
+                redBlackTreeNode = redBlackTreeNode.rightChild;
+            } else {
+                redBlackTreeNode = redBlackTreeNode.leftChild;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are in the range between ID1 and ID2 like rangeSum, but reads the
+     * counts and subtree sums with acquire semantics. This is meant for counters which update counts with
+     * compareAndSetCount and addToSubtreeSums while the sum is read. This runs in O(lg n) time.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count of the nodes between ID1 and ID2.
+     */
+    long rangeSumAcquire(int ID1, int ID2) {
+        if(ID1 > ID2) {
+            return 0;
+        }
+        long sumInRange = prefixSumAcquire(ID2);
+        if(ID1 > Integer.MIN_VALUE) {
+            sumInRange -= prefixSumAcquire(ID1 - 1);
+        }
+        return sumInRange;
+    }
+
+    /**
+     * Returns the total count of the nodes whose IDs are less than or equal to ID, reading the counts and subtree sums
+     * with acquire semantics.
+     * @param ID The right limit of the prefix.
+     * @return The total count of the nodes with IDs up to ID.
+     */
+    private long prefixSumAcquire(int ID) {
+        long sum = 0;
+        RedBlackTreeNode redBlackTreeNode = rootNode;
+        while (redBlackTreeNode != null) {
+            if(redBlackTreeNode.ID <= ID) {
+                RedBlackTreeNode leftChild = redBlackTreeNode.leftChild;
+                sum += redBlackTreeNode.getCountAcquire();
+                if(leftChild != null) {
+                    sum += leftChild.getSubtreeSumAcquire();
+                }
+                redBlackTreeNode = redBlackTreeNode.rightChild;
+            } else {
+                redBlackTreeNode = redBlackTreeNode.leftChild;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Deletes every node whose ID is in the range between ID1 and ID2. The tree is split at ID1 and at the successor
+     * of ID2, and the parts outside the range are joined again around that successor, so no node is deleted one by
+     * one. This runs in O(lg n) time, plus O(k) if the hash index is enabled or a visitor is given.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param visitor Receives the deleted nodes in ascending order of ID, or null.
+     * @return The total count of the deleted nodes.
+     */
+    public long deleteRange(int ID1, int ID2, Consumer<RedBlackTreeNode> visitor) {
+        if(ID1 > ID2 || rootNode == null) {
+            return 0;
+        }
+        RedBlackTreeNode upperPivot = treeSuccessor(rootNode, ID2);
+        SplitTrees atLowerLimit = split(rootNode, blackHeight(), ID1);
+        RedBlackTreeNode deletedRoot, remainingRoot;
+        if(upperPivot == null) {
+            deletedRoot = atLowerLimit.upper;
+            remainingRoot = atLowerLimit.lower;
+        } else {
+            SplitTrees atUpperPivot = split(atLowerLimit.upper, atLowerLimit.upperBlackHeight, upperPivot.ID);
+            deletedRoot = atUpperPivot.lower;
+            remainingRoot = join(atLowerLimit.lower, atLowerLimit.lowerBlackHeight, upperPivot, atUpperPivot.upper,
+                    atUpperPivot.upperBlackHeight);
+        }
+        rootNode = remainingRoot;
+        RedBlackTreeNode lowerLimitNode = atLowerLimit.middle;
+        long deletedSum = subtreeSumOf(deletedRoot);
+        int deletedNodes = subtreeSizeOf(deletedRoot);
+        if(lowerLimitNode != null) {
+            deletedSum += lowerLimitNode.count;
+            deletedNodes++;
+        }
+        size -= deletedNodes;
+        if(EventCounterMetrics.ENABLED) {
+            deleteCount += deletedNodes;
+        }
+        modificationCount++;
+        if(visitor != null || hashIndex != null) {
+            if(lowerLimitNode != null) {
+                visitDeletedNode(lowerLimitNode, visitor);
+            }
+            for (RedBlackTreeNode redBlackTreeNode = (deletedRoot != null) ? treeMinimum(deletedRoot) : null;
+                 redBlackTreeNode != null; redBlackTreeNode = successorOf(redBlackTreeNode)) {
+                visitDeletedNode(redBlackTreeNode, visitor);
+            }
+        }
+        return deletedSum;
+    }
+
+    /**
+     * Removes a node deleted by deleteRange from the hash index and passes it to the visitor.
+     * @param redBlackTreeNode The deleted node.
+     * @param visitor Receives the node, or null.
+     */
+    private void visitDeletedNode(RedBlackTreeNode redBlackTreeNode, Consumer<RedBlackTreeNode> visitor) {
+        if(hashIndex != null) {
+            hashIndex.remove(redBlackTreeNode.ID);
+        }
+        if(visitor != null) {
+            visitor.accept(redBlackTreeNode);
+        }
+    }
+
+    /**
+     * Adds delta to the count of every node whose ID is in the range between ID1 and ID2 and deletes the nodes whose
+     * count drops below 1. The counts are changed in one walk over the range which recomputes the subtree aggregates
+     * of every node it passes once, on its way back up. This runs in O(lg n + k) time, plus O(lg n) for every deleted
+     * node.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param delta The amount to be added to every count in the range, which may be negative.
+     * @param overflowPolicy Applied to the total count. SATURATE lowers delta to the largest amount which every node
+     * of the range can take.
+     * @throws ArithmeticException If the total count overflows and the policy is not SATURATE. The tree is then left
+     * unchanged.
+     */
+    public void addToRange(int ID1, int ID2, long delta, CountOverflowPolicy overflowPolicy) {
+        if(ID1 > ID2 || delta == 0 || rootNode == null) {
+            return;
+        }
+        if(delta > 0) {
+            long nodesInRange = ((ID2 == Integer.MAX_VALUE) ? size : treeRank(ID2 + 1)) - treeRank(ID1);
+            if(nodesInRange == 0) {
+                return;
+            }
+            long totalCount = subtreeSumOf(rootNode);
+            if(delta > (Long.MAX_VALUE - totalCount) / nodesInRange) {
+                if(overflowPolicy != CountOverflowPolicy.SATURATE) {
+                    throw new ArithmeticException("Total count overflow adding " + delta + " to " + nodesInRange
+                            + " counts of the total " + totalCount);
+                }
+                delta = (Long.MAX_VALUE - totalCount) / nodesInRange;
+                if(delta == 0) {
+                    return;
+                }
+            }
+        }
+        ArrayList<RedBlackTreeNode> emptiedNodes = new ArrayList<>(0);
+        addToSubtree(rootNode, ID1, ID2, delta, emptiedNodes);
+        for (RedBlackTreeNode emptiedNode : emptiedNodes) {
+            redBlackDelete(emptiedNode);
+        }
+    }
+
+    /**
+     * Adds delta to the counts in the range within a subtree and recomputes the subtree aggregates on the way back.
+     * The caller makes sure that the total count does not overflow, which keeps every count in range too.
+     * @param redBlackTreeNode The root of the subtree, or null.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param delta The amount to be added to every count in the range.
+     * @param emptiedNodes Receives the nodes whose count dropped below 1.
+     */
+    private void addToSubtree(RedBlackTreeNode redBlackTreeNode, int ID1, int ID2, long delta,
+                              ArrayList<RedBlackTreeNode> emptiedNodes) {
+        if(redBlackTreeNode == null) {
+            return;
+        }
+        if(redBlackTreeNode.ID > ID1) {
+            addToSubtree(redBlackTreeNode.leftChild, ID1, ID2, delta, emptiedNodes);
+        }
+        if(redBlackTreeNode.ID >= ID1 && redBlackTreeNode.ID <= ID2) {
+            redBlackTreeNode.count += delta;
+            if(redBlackTreeNode.count < 1) {
+                emptiedNodes.add(redBlackTreeNode);
+            }
+        }
+        if(redBlackTreeNode.ID < ID2) {
+            addToSubtree(redBlackTreeNode.rightChild, ID1, ID2, delta, emptiedNodes);
+        }
+        updateSubtreeAggregates(redBlackTreeNode);
+    }
+
+    /**
+     * Splits a tree into the tree of the IDs below ID, the node holding ID if there is one, and the tree of the IDs
+     * above ID. The subtrees hanging off the search path for ID are joined bottom up with the path nodes. The black
+     * heights of consecutive joins telescope, so this runs in O(lg n) time.
+     * @param root The root of the tree, which is black, or null.
+     * @param blackHeight The black height of the tree.
+     * @param ID The ID to split at.
+     * @return The parts of the tree.
+     */
+    private SplitTrees split(RedBlackTreeNode root, int blackHeight, int ID) {
+        if(splitPathNodes == null) {
+            splitPathNodes = new RedBlackTreeNode[MAX_HEIGHT];
+            splitChildBlackHeights = new int[MAX_HEIGHT];
+        }
+        RedBlackTreeNode[] pathNodes = splitPathNodes;
+        int[] childBlackHeights = splitChildBlackHeights;
+        int depth = 0;
+        SplitTrees splitTrees = new SplitTrees();
+        RedBlackTreeNode redBlackTreeNode = root;
+        while (redBlackTreeNode != null) {
+            int childBlackHeight = blackHeight - ((redBlackTreeNode.nodeColor == NodeColor.BLACK) ? 1 : 0);
+            if(ID == redBlackTreeNode.ID) {
+                splitTrees.middle = redBlackTreeNode;
+                splitTrees.lower = redBlackTreeNode.leftChild;
+                splitTrees.lowerBlackHeight = detachAsRoot(splitTrees.lower, childBlackHeight);
+                splitTrees.upper = redBlackTreeNode.rightChild;
+                splitTrees.upperBlackHeight = detachAsRoot(splitTrees.upper, childBlackHeight);
+                break;
+            }
+            pathNodes[depth] = redBlackTreeNode;
+            childBlackHeights[depth++] = childBlackHeight;
+            redBlackTreeNode = (ID < redBlackTreeNode.ID) ? redBlackTreeNode.leftChild : redBlackTreeNode.rightChild;
+            blackHeight = childBlackHeight;
+        }
+        for (int i = depth - 1; i >= 0; i--) {
+            RedBlackTreeNode pathNode = pathNodes[i];
+            pathNodes[i] = null;
+            if(ID < pathNode.ID) { //pathNode and its right subtree are above every ID joined so far
+                RedBlackTreeNode subtree = pathNode.rightChild;
+                int subtreeBlackHeight = detachAsRoot(subtree, childBlackHeights[i]);
+                splitTrees.upper = join(splitTrees.upper, splitTrees.upperBlackHeight, pathNode, subtree,
+                        subtreeBlackHeight);
+                splitTrees.upperBlackHeight = joinedBlackHeight;
+            } else {
+                RedBlackTreeNode subtree = pathNode.leftChild;
+                int subtreeBlackHeight = detachAsRoot(subtree, childBlackHeights[i]);
+                splitTrees.lower = join(subtree, subtreeBlackHeight, pathNode, splitTrees.lower,
+                        splitTrees.lowerBlackHeight);
+                splitTrees.lowerBlackHeight = joinedBlackHeight;
+            }
+        }
+        return splitTrees;
+    }
+
+    /**
+     * Joins two trees and a node whose ID lies between theirs into one tree. If the black heights differ, the node
+     * is hung as a red node in place of the black node of the lower black height on the facing spine of the higher
+     * tree, with the lower tree as its other child, and the insert fix up repairs the colors above it. This runs in
+     * O(1 + |leftBlackHeight - rightBlackHeight|) time and leaves the black height of the result in
+     * joinedBlackHeight.
+     * @param left The root of the tree of the smaller IDs, which is black and has no parent, or null.
+     * @param leftBlackHeight The black height of left.
+     * @param middle The node to join with.
+     * @param right The root of the tree of the greater IDs, which is black and has no parent, or null.
+     * @param rightBlackHeight The black height of right.
+     * @return The root of the joined tree, which is black and has no parent.
+     */
+    private RedBlackTreeNode join(RedBlackTreeNode left, int leftBlackHeight, RedBlackTreeNode middle,
+                                  RedBlackTreeNode right, int rightBlackHeight) {
+        if(leftBlackHeight == rightBlackHeight) {
+            linkBuiltNode(middle, left, right, false);
+            middle.parent = null;
+            joinedBlackHeight = leftBlackHeight + 1;
+            return middle;
+        }
+        RedBlackTreeNode parentNode = null;
+        if(leftBlackHeight > rightBlackHeight) {
+            RedBlackTreeNode spineNode = left;
+            for(int blackHeight = leftBlackHeight; blackHeight != rightBlackHeight
+                    || colorOf(spineNode) == NodeColor.RED; spineNode = spineNode.rightChild) {
+                if(spineNode.nodeColor == NodeColor.BLACK) {
+                    blackHeight--;
+                }
+                parentNode = spineNode;
+            }
+            linkBuiltNode(middle, spineNode, right, true);
+            parentNode.rightChild = middle;
+            rootNode = left;
+        } else {
+            RedBlackTreeNode spineNode = right;
+            for(int blackHeight = rightBlackHeight; blackHeight != leftBlackHeight
+                    || colorOf(spineNode) == NodeColor.RED; spineNode = spineNode.leftChild) {
+                if(spineNode.nodeColor == NodeColor.BLACK) {
+                    blackHeight--;
+                }
+                parentNode = spineNode;
+            }
+            linkBuiltNode(middle, left, spineNode, true);
+            parentNode.leftChild = middle;
+            rootNode = right;
+        }
+        middle.parent = parentNode;
+        for(RedBlackTreeNode ancestor = parentNode; ancestor != null; ancestor = ancestor.parent) {
+            updateSubtreeAggregates(ancestor);
+        }
+        boolean blackHeightGrew = redBlackInsertFixUp(middle);
+        joinedBlackHeight = Math.max(leftBlackHeight, rightBlackHeight) + (blackHeightGrew ? 1 : 0);
+        return rootNode;
+    }
+
+    /**
+     * Makes a subtree a tree of its own: its root loses its parent and is colored black.
+     * @param redBlackTreeNode The root of the subtree, or null.
+     * @param blackHeight The black height of the subtree.
+     * @return The black height of the subtree once its root is black.
+     */
+    private static int detachAsRoot(RedBlackTreeNode redBlackTreeNode, int blackHeight) {
+        if(redBlackTreeNode == null) {
+            return 0;
+        }
+        redBlackTreeNode.parent = null;
+        if(redBlackTreeNode.nodeColor == NodeColor.RED) {
+            redBlackTreeNode.nodeColor = NodeColor.BLACK;
+            return blackHeight + 1;
+        }
+        return blackHeight;
+    }
+
+    /**
+     * Joins two trees whose IDs do not overlap into one tree. The minimum of the right tree is split off and used as
+     * the middle node of a join. This runs in O(lg n) time and leaves the black height of the result in
+     * joinedBlackHeight.
+     * @param left The root of the tree of the smaller IDs, which is black and has no parent, or null.
+     * @param leftBlackHeight The black height of left.
+     * @param right The root of the tree of the greater IDs, which is black and has no parent, or null.
+     * @param rightBlackHeight The black height of right.
+     * @return The root of the joined tree, which is black and has no parent, or null.
+     */
+    private RedBlackTreeNode join(RedBlackTreeNode left, int leftBlackHeight, RedBlackTreeNode right,
+                                  int rightBlackHeight) {
+        if(right == null) {
+            joinedBlackHeight = leftBlackHeight;
+            return left;
+        }
+        SplitTrees atMinimum = split(right, rightBlackHeight, treeMinimum(right).ID);
+        return join(left, leftBlackHeight, atMinimum.middle, atMinimum.upper, atMinimum.upperBlackHeight);
+    }
+
+    /**
+     * Adds the events of another tree to this tree. The count of an ID in both trees becomes the sum of its counts and
+     * the events of other which are not in this tree are copied. Following Blelloch, Ferizovic and Sun, this tree is
+     * split at the root ID of other, the two halves are combined with the subtrees of other on separate threads and
+     * the results are joined again, which takes O(m lg(n / m + 1)) work for trees of m <= n nodes and O(lg^2 n) time
+     * with enough threads. Other is only read and must not change meanwhile.
+     * @param other The tree whose events are added. It must not be this tree.
+     * @param overflowPolicy Applied when a sum of counts overflows.
+     * @param pool The pool which runs the operation.
+     * @throws ArithmeticException If the total count would overflow, whatever the policy. The tree is then left
+     * unchanged.
+     */
+    public void union(RedBlackTree other, CountOverflowPolicy overflowPolicy, ForkJoinPool pool) {
+        checkUnionTotal(other);
+        ArrayList<RedBlackTreeNode> copiedNodes = applySetOperation(SetOperation.UNION, other, overflowPolicy,
+                hashIndex != null, pool);
+        if(copiedNodes != null) {
+            for (RedBlackTreeNode copiedNode : copiedNodes) {
+                hashIndex.put(copiedNode);
+            }
+        }
+    }
+
+    /**
+     * Deletes the events of this tree whose IDs are not in another tree. The counts of the remaining events are kept.
+     * This runs in O(m lg(n / m + 1)) work, plus O(k) if the hash index is enabled or a visitor is given, and in
+     * O(lg^2 n) time with enough threads, like union. Other is only read and must not change meanwhile.
+     * @param other The tree whose IDs are kept. It must not be this tree.
+     * @param visitor Receives the deleted nodes, or null.
+     * @param pool The pool which runs the operation.
+     */
+    public void intersection(RedBlackTree other, Consumer<RedBlackTreeNode> visitor, ForkJoinPool pool) {
+        visitDeletedNodes(applySetOperation(SetOperation.INTERSECTION, other, null,
+                visitor != null || hashIndex != null, pool), visitor);
+    }
+
+    /**
+     * Deletes the events of this tree whose IDs are in another tree. This runs in O(m lg(n / m + 1)) work, plus O(k)
+     * if the hash index is enabled or a visitor is given, and in O(lg^2 n) time with enough threads, like union. Other
+     * is only read and must not change meanwhile.
+     * @param other The tree whose IDs are deleted. It must not be this tree.
+     * @param visitor Receives the deleted nodes, or null.
+     * @param pool The pool which runs the operation.
+     */
+    public void difference(RedBlackTree other, Consumer<RedBlackTreeNode> visitor, ForkJoinPool pool) {
+        visitDeletedNodes(applySetOperation(SetOperation.DIFFERENCE, other, null,
+                visitor != null || hashIndex != null, pool), visitor);
+    }
+
+    /**
+     * Throws if adding the counts of another tree would make the total count of this tree overflow, before the tree is
+     * changed. The total count bounds every count, so no single count has to be checked. A union has no one count
+     * which SATURATE could lower to keep the total in range, so the total is checked like THROW whatever the policy.
+     * @param other The tree whose counts would be added.
+     * @throws ArithmeticException If the total count would overflow.
+     */
+    private void checkUnionTotal(RedBlackTree other) {
+        CountOverflowPolicy.THROW.limitTotal(subtreeSumOf(rootNode), subtreeSumOf(other.rootNode));
+    }
+
+    /**
+     * Combines this tree with another tree and makes the result the contents of this tree.
+     * @param setOperation The set operation.
+     * @param other The other tree.
+     * @param overflowPolicy Applied when a sum of counts overflows, or null if no counts are added.
+     * @param collectChangedNodes True if the nodes copied by a union or deleted by an intersection or difference are
+     * needed.
+     * @param pool The pool which runs the operation.
+     * @return The copied or deleted nodes, or null if collectChangedNodes is false.
+     */
+    private ArrayList<RedBlackTreeNode> applySetOperation(SetOperation setOperation, RedBlackTree other,
+                                                          CountOverflowPolicy overflowPolicy,
+                                                          boolean collectChangedNodes, ForkJoinPool pool) {
+        if(other == this) {
+            throw new IllegalArgumentException("A tree cannot be combined with itself");
+        }
+        SetOperationTask setOperationTask = new SetOperationTask(setOperation, overflowPolicy, rootNode, blackHeight(),
+                other.rootNode, other.blackHeight(), collectChangedNodes);
+        rootNode = pool.invoke(setOperationTask);
+        int oldSize = size;
+        size = subtreeSizeOf(rootNode);
+        modificationCount++;
+        if(EventCounterMetrics.ENABLED) {
+            if(size > oldSize) {
+                insertCount += size - oldSize;
+            } else {
+                deleteCount += oldSize - size;
+            }
+            rotationCount += setOperationTask.workspace.rotationCount;
+            insertFixUpSteps += setOperationTask.workspace.insertFixUpSteps;
+            deleteFixUpSteps += setOperationTask.workspace.deleteFixUpSteps;
+        }
+        return setOperationTask.changedNodes;
+    }
+
+    /**
+     * Removes the nodes deleted by a set operation from the hash index and passes them to the visitor.
+     * @param deletedNodes The deleted nodes, or null if they were not collected.
+     * @param visitor Receives the nodes, or null.
+     */
+    private void visitDeletedNodes(ArrayList<RedBlackTreeNode> deletedNodes, Consumer<RedBlackTreeNode> visitor) {
+        if(deletedNodes != null) {
+            for (RedBlackTreeNode deletedNode : deletedNodes) {
+                visitDeletedNode(deletedNode, visitor);
+            }
+        }
+    }
+
+    /**
+     * This static nested class combines a subtree of this tree with a subtree of the other tree. The subtree of this
+     * tree is split at the root ID of the other subtree, the lower and the upper parts are combined with the left and
+     * the right other subtrees, forking the upper part while the lower part is combined, and the results are joined
+     * again. The task splits and joins in a RedBlackTree of its own, so tasks running at the same time never share the
+     * root and the black height the split and join methods keep.
+     */
+    private static final class SetOperationTask extends RecursiveTask<RedBlackTreeNode> {
+        private static final long serialVersionUID = 1L;
+        private final SetOperation setOperation;
+        private final CountOverflowPolicy overflowPolicy;
+        private final RedBlackTreeNode root, otherRoot;
+        private final int blackHeight, otherBlackHeight;
+        private final RedBlackTree workspace = new RedBlackTree();
+        private final ArrayList<RedBlackTreeNode> changedNodes;
+        private int resultBlackHeight;
+
+        /**
+         * Creates a task for one pair of subtrees.
+         * @param setOperation The set operation.
+         * @param overflowPolicy Applied when a sum of counts overflows, or null if no counts are added.
+         * @param root The root of the subtree of this tree, which is black and has no parent, or null.
+         * @param blackHeight The black height of root.
+         * @param otherRoot The root of the subtree of the other tree, or null. It may be red and is only read.
+         * @param otherBlackHeight The black height of otherRoot.
+         * @param collectChangedNodes True if the copied or deleted nodes are collected.
+         */
+        private SetOperationTask(SetOperation setOperation, CountOverflowPolicy overflowPolicy, RedBlackTreeNode root,
+                                 int blackHeight, RedBlackTreeNode otherRoot, int otherBlackHeight,
+                                 boolean collectChangedNodes) {
+            this.setOperation = setOperation;
+            this.overflowPolicy = overflowPolicy;
+            this.root = root;
+            this.blackHeight = blackHeight;
+            this.otherRoot = otherRoot;
+            this.otherBlackHeight = otherBlackHeight;
+            this.changedNodes = collectChangedNodes ? new ArrayList<>() : null;
+        }
+
+        @Override
+        protected RedBlackTreeNode compute() {
+            return combine(root, blackHeight, otherRoot, otherBlackHeight);
+        }
+
+        /**
+         * Combines a subtree of this tree with a subtree of the other tree and leaves the black height of the result
+         * in resultBlackHeight.
+         * @param root The root of the subtree of this tree, which is black and has no parent, or null.
+         * @param blackHeight The black height of root.
+         * @param otherRoot The root of the subtree of the other tree, or null.
+         * @param otherBlackHeight The black height of otherRoot.
+         * @return The root of the combined tree, which is black and has no parent, or null.
+         */
+        private RedBlackTreeNode combine(RedBlackTreeNode root, int blackHeight, RedBlackTreeNode otherRoot,
+                                         int otherBlackHeight) {
+            if(root == null || otherRoot == null) {
+                return combineWithEmpty(root, blackHeight, otherRoot, otherBlackHeight);
+            }
+            int otherChildBlackHeight = otherBlackHeight - ((otherRoot.nodeColor == NodeColor.BLACK) ? 1 : 0);
+            boolean fork = subtreeSizeOf(root) + subtreeSizeOf(otherRoot) >= PARALLEL_SET_OPERATION_THRESHOLD;
+            SplitTrees splitTrees = workspace.split(root, blackHeight, otherRoot.ID);
+            SetOperationTask upperTask = null;
+            RedBlackTreeNode upper = null;
+            int upperBlackHeight = 0;
+            if(fork) {
+                upperTask = new SetOperationTask(setOperation, overflowPolicy, splitTrees.upper,
+                        splitTrees.upperBlackHeight, otherRoot.rightChild, otherChildBlackHeight, changedNodes != null);
+                upperTask.fork();
+            } else {
+                upper = combine(splitTrees.upper, splitTrees.upperBlackHeight, otherRoot.rightChild,
+                        otherChildBlackHeight);
+                upperBlackHeight = resultBlackHeight;
+            }
+            RedBlackTreeNode lower = combine(splitTrees.lower, splitTrees.lowerBlackHeight, otherRoot.leftChild,
+                    otherChildBlackHeight);
+            int lowerBlackHeight = resultBlackHeight;
+            if(fork) {
+                upper = upperTask.join();
+                upperBlackHeight = upperTask.resultBlackHeight;
+                if(changedNodes != null) {
+                    changedNodes.addAll(upperTask.changedNodes);
+                }
+                if(EventCounterMetrics.ENABLED) {
+                    workspace.rotationCount += upperTask.workspace.rotationCount;
+                    workspace.insertFixUpSteps += upperTask.workspace.insertFixUpSteps;
+                    workspace.deleteFixUpSteps += upperTask.workspace.deleteFixUpSteps;
+                }
+            }
+            RedBlackTreeNode middle = splitTrees.middle;
+            if(setOperation == SetOperation.UNION) {
+                if(middle != null) {
+                    middle.count = overflowPolicy.add(middle.count, otherRoot.count);
+                } else {
+                    middle = new RedBlackTreeNode(otherRoot.ID, otherRoot.count);
+                    if(changedNodes != null) {
+                        changedNodes.add(middle);
+                    }
+                }
+            } else if(setOperation == SetOperation.DIFFERENCE && middle != null) {
+                if(changedNodes != null) {
+                    changedNodes.add(middle);
+                }
+                middle = null;
+            }
+            RedBlackTreeNode combined = (middle != null)
+                    ? workspace.join(lower, lowerBlackHeight, middle, upper, upperBlackHeight)
+                    : workspace.join(lower, lowerBlackHeight, upper, upperBlackHeight);
+            resultBlackHeight = workspace.joinedBlackHeight;
+            return combined;
+        }
+
+        /**
+         * Combines two subtrees of which at least one is empty and leaves the black height of the result in
+         * resultBlackHeight.
+         * @param root The root of the subtree of this tree, which is black and has no parent, or null.
+         * @param blackHeight The black height of root.
+         * @param otherRoot The root of the subtree of the other tree, or null.
+         * @param otherBlackHeight The black height of otherRoot.
+         * @return The root of the combined tree, which is black and has no parent, or null.
+         */
+        private RedBlackTreeNode combineWithEmpty(RedBlackTreeNode root, int blackHeight, RedBlackTreeNode otherRoot,
+                                                  int otherBlackHeight) {
+            if(setOperation == SetOperation.UNION && root == null) {
+                RedBlackTreeNode copiedRoot = copySubtree(otherRoot);
+                resultBlackHeight = detachAsRoot(copiedRoot, otherBlackHeight);
+                return copiedRoot;
+            }
+            if(setOperation == SetOperation.INTERSECTION && root != null) {
+                if(changedNodes != null) {
+                    for (RedBlackTreeNode redBlackTreeNode = workspace.treeMinimum(root); redBlackTreeNode != null;
+                         redBlackTreeNode = successorOf(redBlackTreeNode)) {
+                        changedNodes.add(redBlackTreeNode);
+                    }
+                }
+                resultBlackHeight = 0;
+                return null;
+            }
+            resultBlackHeight = blackHeight;
+            return root;
+        }
+
+        /**
+         * Copies a subtree of the other tree with its shape and colors.
+         * @param otherNode The root of the subtree, or null.
+         * @return The root of the copy, whose parent is not set, or null.
+         */
+        private RedBlackTreeNode copySubtree(RedBlackTreeNode otherNode) {
+            if(otherNode == null) {
+                return null;
+            }
+            RedBlackTreeNode copiedNode = new RedBlackTreeNode(otherNode.ID, otherNode.count);
+            if(changedNodes != null) {
+                changedNodes.add(copiedNode);
+            }
+            return linkBuiltNode(copiedNode, copySubtree(otherNode.leftChild), copySubtree(otherNode.rightChild),
+                    otherNode.nodeColor == NodeColor.RED);
+        }
+    }
+
+    /**
+     * Returns the node which follows a node in the sorted order, using the parent references.
+     * @param redBlackTreeNode The node whose successor is needed.
+     * @return The next node or null if redBlackTreeNode is the maximum.
+     */
+    private static RedBlackTreeNode successorOf(RedBlackTreeNode redBlackTreeNode) {
+        if(redBlackTreeNode.rightChild != null) {
+            redBlackTreeNode = redBlackTreeNode.rightChild;
+            while (redBlackTreeNode.leftChild != null) {
+                redBlackTreeNode = redBlackTreeNode.leftChild;
+            }
+            return redBlackTreeNode;
+        }
+        RedBlackTreeNode parentNode = redBlackTreeNode.parent;
+        while (parentNode != null && redBlackTreeNode == parentNode.rightChild) {
+            redBlackTreeNode = parentNode;
+            parentNode = parentNode.parent;
+        }
+        return parentNode;
+    }
+
+    /**
+     * Returns the node which precedes a node in the sorted order, using the parent references.
+     * @param redBlackTreeNode The node whose predecessor is needed.
+     * @return The previous node or null if redBlackTreeNode is the minimum.
+     */
+    private static RedBlackTreeNode predecessorOf(RedBlackTreeNode redBlackTreeNode) {
+        if(redBlackTreeNode.leftChild != null) {
+            redBlackTreeNode = redBlackTreeNode.leftChild;
+            while (redBlackTreeNode.rightChild != null) {
+                redBlackTreeNode = redBlackTreeNode.rightChild;
+            }
+            return redBlackTreeNode;
+        }
+        RedBlackTreeNode parentNode = redBlackTreeNode.parent;
+        while (parentNode != null && redBlackTreeNode == parentNode.leftChild) {
+            redBlackTreeNode = parentNode;
+            parentNode = parentNode.parent;
+        }
+        return parentNode;
+    }
+
+    /**
+     * Recomputes the subtree sum and subtree size of a node from its count and the subtree sums and sizes of its
+     * children.
+     * @param redBlackTreeNode The node whose subtree sum and size have to be recomputed.
+     */
+    private static void updateSubtreeAggregates(RedBlackTreeNode redBlackTreeNode) {
+        redBlackTreeNode.subtreeSum = redBlackTreeNode.count + subtreeSumOf(redBlackTreeNode.leftChild)
+                + subtreeSumOf(redBlackTreeNode.rightChild);
+        redBlackTreeNode.subtreeSize = 1 + subtreeSizeOf(redBlackTreeNode.leftChild)
+                + subtreeSizeOf(redBlackTreeNode.rightChild);
+    }
+
+    /**
+     * Returns the height of the subtree rooted at a node. Returns 0 if the input node is null.
+     * @param redBlackTreeNode The root of the subtree.
+     * @return The number of nodes on the longest path down from redBlackTreeNode.
+     */
+    private static int heightOf(RedBlackTreeNode redBlackTreeNode) {
+        if(redBlackTreeNode == null) {
+            return 0;
+        }
+        return 1 + Math.max(heightOf(redBlackTreeNode.leftChild), heightOf(redBlackTreeNode.rightChild));
+    }
+
+    /**
+     * Returns the subtree size of a node. Returns 0 if the input node is null.
+     * @param redBlackTreeNode The node whose subtree size is needed.
+     * @return The number of nodes in the subtree rooted at redBlackTreeNode.
+     */
+    private static int subtreeSizeOf(RedBlackTreeNode redBlackTreeNode) {
+        if(redBlackTreeNode == null) {
+            return 0;
+        } else {
+            return redBlackTreeNode.subtreeSize;
+        }
+    }
+
+    /**
+     * Returns the subtree sum of a node. Returns 0 if the input node is null.
+     * @param redBlackTreeNode The node whose subtree sum is needed.
+     * @return The sum of the counts in the subtree rooted at redBlackTreeNode.
+     */
+    private static long subtreeSumOf(RedBlackTreeNode redBlackTreeNode) {
+        if(redBlackTreeNode == null) {
+            return 0;
+        } else {
+            return redBlackTreeNode.subtreeSum;
+        }
+    }
+
     /**
      * Returns the color of a node. This method handles null nodes.
      * @param redBlackTreeNode The node whose color needs to be checked.
@@ -1,67 +1,285 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 /**
  * Created by Sayak Biswas on 3/4/2016.
  * This class uses the Red Black Tree data structure defined in RedBlackTree.java to implement an event counter. The
  * event counter supports the below operations:
- * 1. Build(List)
+ * 1. Build(List) and ParallelBuild(IDs, counts)
  * 1. Increase(theID, m)
  * 2. Reduce(theID, m)
  * 3. Count(theID)
  * 4. InRange(ID1, ID2)
  * 5. Next(theID)
  * 6. Previous(theID)
+ * 7. ApplyBatch(IDs, amounts)
+ * 8. Cursor and ForEachInRange(ID1, ID2)
+ * 9. Rank(theID), Select(k) and Quantile(q)
+ * 10. TopK(k)
+ * 11. Hash Index for point operations
+ * 12. Count(theID, window) and InRange(ID1, ID2, window) over a sliding time window
+ * 13. Metrics of every operation and of the tree through EventCounterMetrics
+ * 14. DeleteRange(ID1, ID2), AddToRange(ID1, ID2, delta) and ExportRange(ID1, ID2, channel)
+ * 15. Union(other), Intersection(other) and Difference(other) of two counters
+ * 16. A cache of the results of InRange, Next and Previous
+ * Counts and range sums are 64 bit values. A count which overflows is handled by the CountOverflowPolicy of the
+ * counter. With an EventCounterBackend in place of the RedBlackTree, the cursor, rank, select, quantile, the range
+ * updates, the set operations and the hash index are not available, as they need the tree itself.
  * @author Sayak Biswas
  */
 public class RedBlackTreeEventCounter {
     RedBlackTree redBlackTree = new RedBlackTree();
 
+    /**
+     * The length in bytes of an event written by exportRange: an int ID and a long count.
+     */
+    private static final int EXPORTED_EVENT_LENGTH = 4 + 8;
+
+    /**
+     * The size of the buffer of exportRange in bytes, a whole number of events.
+     */
+    private static final int EXPORT_BUFFER_SIZE = EXPORTED_EVENT_LENGTH << 10;
+
+    /**
+     * Holds the backend used in place of redBlackTree, or null if redBlackTree is used.
+     */
+    private final EventCounterBackend backend;
+
+    /**
+     * Holds what is done with a count which overflows. Backends apply their own policy.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * Holds the events ordered by count and then by descending ID, or null if the top k index is not enabled. The key
+     * of each node is the count of an event and its tie breaker is the bitwise complement of the ID.
+     */
+    private LongArrayRedBlackTree topKIndex;
+
+    /**
+     * Holds the amounts added in each time bucket per ID, or null if windowed counts are not enabled.
+     */
+    private WindowedRedBlackTree windowedCounts;
+
+    /**
+     * Holds the length of a time bucket of the windowed counts in milliseconds.
+     */
+    private long bucketMillis;
+
+    /**
+     * Holds the clock of the windowed counts, which returns the current time in milliseconds.
+     */
+    private LongSupplier clock;
+
+    /**
+     * Holds the metrics of the counter, or null if metrics are not enabled.
+     */
+    private EventCounterMetrics metrics;
+
+    /**
+     * Holds the cache of InRange, Next and Previous results, or null if the query cache is not enabled.
+     */
+    private QueryCache queryCache;
+
+    /**
+     * Creates an event counter backed by a RedBlackTree. A count which overflows 64 bits throws.
+     */
+    public RedBlackTreeEventCounter() {
+        this(CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Creates an event counter backed by a RedBlackTree.
+     * @param overflowPolicy What is done with a count which overflows.
+     */
+    public RedBlackTreeEventCounter(CountOverflowPolicy overflowPolicy) {
+        this.backend = null;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Creates an event counter which stores its events in the given backend, for example an ArrayEventCounterBackend.
+     * @param backend The backend to be used in place of a RedBlackTree.
+     */
+    public RedBlackTreeEventCounter(EventCounterBackend backend) {
+        this.backend = backend;
+        this.overflowPolicy = CountOverflowPolicy.PROMOTE;
+    }
+
     /**
      * Builds the event counter from the list of RedBlackTreeNode objects. This runs in O(n) time.
      * @param eventArrayList The list of events
      */
     public void buildEventCounter(ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList) {
-        if(eventArrayList != null && eventArrayList.size() > 0) {
-            Iterator<RedBlackTree.RedBlackTreeNode> iterator = eventArrayList.iterator();
-            redBlackTree.buildTreeFromSortedList(eventArrayList.size(), iterator);
+        if(eventArrayList != null) {
+            buildEventCounter(eventArrayList.size(), eventArrayList.iterator());
         }
     }
 
+    /**
+     * Builds the event counter from a sorted stream of RedBlackTreeNode objects, such as an EventFileLoader. This runs
+     * in O(n) time.
+     * @param size The number of events to be read.
+     * @param iterator This iterator has the events in ascending order of ID.
+     */
+    public void buildEventCounter(int size, Iterator<RedBlackTree.RedBlackTreeNode> iterator) {
+        if(size > 0) {
+            if(backend != null) {
+                backend.build(size, iterator);
+            } else {
+                redBlackTree.buildTreeFromSortedList(size, iterator);
+            }
+            if(topKIndex != null) {
+                rebuildTopKIndex();
+            }
+            clearQueryCache();
+        }
+    }
+
+    /**
+     * Builds the event counter from sorted arrays of IDs and counts, such as those read by
+     * EventFileLoader.parseParallel, using every core of the common fork/join pool. Other backends are built from the
+     * arrays on the current thread. This runs in O(n) work.
+     * @param size The number of events to be read.
+     * @param sortedIDs The distinct IDs in ascending order.
+     * @param sortedCounts The counts matching sortedIDs.
+     */
+    public void parallelBuildEventCounter(int size, int[] sortedIDs, long[] sortedCounts) {
+        if(backend != null) {
+            ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                eventArrayList.add(new RedBlackTree.RedBlackTreeNode(sortedIDs[i], sortedCounts[i]));
+            }
+            buildEventCounter(eventArrayList);
+            return;
+        }
+        redBlackTree.parallelBuildTreeFromSortedArrays(size, sortedIDs, sortedCounts, ForkJoinPool.commonPool());
+        if(topKIndex != null) {
+            rebuildTopKIndex();
+        }
+        clearQueryCache();
+    }
+
     /**
      * Increases the count of the event ID by amount. If ID is not present, inserts it. Print the final count. This
      * runs in O(lg n) time.
      * @param ID The event ID whose count has to be increased.
      * @param amount The amount by which the count has to be increase.
      * @return The final count of the event ID after addition.
+     * @throws ArithmeticException If the count or the total count overflows and the policy is not SATURATE.
      */
-    public int increase(int ID, int amount) {
+    public long increase(int ID, int amount) {
+        if(EventCounterMetrics.ENABLED && metrics != null) {
+            long startNanos = System.nanoTime();
+            long result = increaseCount(ID, amount);
+            metrics.record(EventCounterMetrics.Operation.INCREASE, startNanos);
+            return result;
+        }
+        return increaseCount(ID, amount);
+    }
+
+    /**
+     * Increases the count of the event ID by amount. This is the unmeasured body of increase.
+     * @param ID The event ID whose count has to be increased.
+     * @param amount The amount by which the count has to be increase.
+     * @return The final count of the event ID after addition.
+     * @throws ArithmeticException If the count or the total count overflows and the policy is not SATURATE.
+     */
+    private long increaseCount(int ID, int amount) {
+        if(backend != null) {
+            long oldCount = (topKIndex != null || queryCache != null) ? backend.count(ID) : 0;
+            long count = backend.increase(ID, amount);
+            backendCountChanged(ID, oldCount, count);
+            recordWindowedCount(ID, amount);
+            return count;
+        }
+        long added = overflowPolicy.limitTotal(redBlackTree.getTotalCount(), amount); //Also keeps the count in range
         RedBlackTree.RedBlackTreeNode redBlackTreeNode = redBlackTree.treeSearch(ID);
         if (redBlackTreeNode != null) {
-            redBlackTreeNode.setCount(redBlackTreeNode.getCount() + amount);
+            long oldCount = redBlackTreeNode.getCount();
+            redBlackTreeNode.setCount(oldCount + added);
+            if(topKIndex != null) {
+                updateTopKIndex(ID, oldCount, redBlackTreeNode.getCount());
+            }
+            if(queryCache != null) {
+                queryCache.countChanged(ID, redBlackTreeNode.getCount() - oldCount);
+            }
+            recordWindowedCount(ID, added);
             return redBlackTreeNode.getCount();
+        } else if(added > 0) {
+            redBlackTree.redBlackInsert(ID, added);
+            if(topKIndex != null) {
+                updateTopKIndex(ID, 0, added);
+            }
+            if(queryCache != null) {
+                queryCache.eventInsertedOrDeleted(ID, added);
+            }
+            recordWindowedCount(ID, added);
+            return added;
         } else {
-            redBlackTree.redBlackInsert(ID, amount);
-            return amount;
+            return 0; //The total count is saturated, so there is nothing to insert
         }
     }
 
     /**
      * Decreases the count of the event ID by amount. If the ID's count becomes less than or equal to 0, removes the ID
      * from the counter. Prints the count of the ID after deletion or 0 if the ID is removed or is not present. This
-     * runs in O(lg n) time.
+     * runs in O(lg n) time. Windowed counts keep what was recorded when the events arrived.
+     * @param ID The event ID whose count is to be decreased.
+     * @param amount The amount by which to decrease.
+     * @return The final count or 0.
+     */
+    public long reduce(int ID, int amount) {
+        if(EventCounterMetrics.ENABLED && metrics != null) {
+            long startNanos = System.nanoTime();
+            long result = reduceCount(ID, amount);
+            metrics.record(EventCounterMetrics.Operation.REDUCE, startNanos);
+            return result;
+        }
+        return reduceCount(ID, amount);
+    }
+
+    /**
+     * Decreases the count of the event ID by amount. This is the unmeasured body of reduce.
      * @param ID The event ID whose count is to be decreased.
      * @param amount The amount by which to decrease.
      * @return The final count or 0.
      */
-    public int reduce(int ID, int amount) {
+    private long reduceCount(int ID, int amount) {
+        if(backend != null) {
+            long oldCount = (topKIndex != null || queryCache != null) ? backend.count(ID) : 0;
+            long count = backend.reduce(ID, amount);
+            backendCountChanged(ID, oldCount, count);
+            return count;
+        }
         RedBlackTree.RedBlackTreeNode redBlackTreeNode = redBlackTree.treeSearch(ID);
         if(redBlackTreeNode != null) {
-            if(amount >= redBlackTreeNode.getCount()) {
+            long oldCount = redBlackTreeNode.getCount();
+            if(amount >= oldCount) {
                 redBlackTree.redBlackDelete(redBlackTreeNode);
+                if(topKIndex != null) {
+                    updateTopKIndex(ID, oldCount, 0);
+                }
+                if(queryCache != null) {
+                    queryCache.eventInsertedOrDeleted(ID, -oldCount);
+                }
                 return 0;
             } else {
-                redBlackTreeNode.setCount(redBlackTreeNode.getCount() - amount);
+                redBlackTreeNode.setCount(oldCount - amount);
+                if(topKIndex != null) {
+                    updateTopKIndex(ID, oldCount, redBlackTreeNode.getCount());
+                }
+                if(queryCache != null) {
+                    queryCache.countChanged(ID, -amount);
+                }
                 return redBlackTreeNode.getCount();
             }
         } else {
@@ -69,12 +287,161 @@ public class RedBlackTreeEventCounter {
         }
     }
 
+    /**
+     * Updates the top k index and the query cache after the count of an event in the backend changed. The events of a
+     * backend are copies, so the cached Next and Previous results holding the event are dropped like after an insert
+     * or delete.
+     * @param ID The event ID.
+     * @param oldCount The count of the event before the change or 0 if it was not present.
+     * @param newCount The count of the event after the change or 0 if it was removed.
+     */
+    private void backendCountChanged(int ID, long oldCount, long newCount) {
+        if(oldCount == newCount) {
+            return;
+        }
+        if(topKIndex != null) {
+            updateTopKIndex(ID, oldCount, newCount);
+        }
+        if(queryCache != null) {
+            queryCache.eventInsertedOrDeleted(ID, newCount - oldCount);
+        }
+    }
+
+    /**
+     * Applies a batch of count changes. A positive amount increases the count of its ID and a negative amount reduces
+     * it. The amounts of each ID are added up first, so an ID is only removed if its final count drops below 1. The
+     * batch is sorted and then merged with the tree in a single walk, which is much cheaper than one Increase or
+     * Reduce per change. With a backend the summed changes are handed to EventCounterBackend.applySortedDeltas, whose
+     * default still makes one Increase or Reduce per distinct ID, so only summing repeated IDs is saved. Windowed
+     * counts record the total positive amount of each ID.
+     * @param IDs The event IDs in any order. IDs may repeat.
+     * @param amounts The amount by which the count of the matching ID changes.
+     * @param size The number of changes to be read from IDs and amounts.
+     * @throws ArithmeticException If a count or the total count overflows and the policy is not SATURATE. The counter
+     * is then left unchanged, except with a backend other than RedBlackTree, where changes to other IDs may have been
+     * applied.
+     */
+    public void applyBatch(int[] IDs, int[] amounts, int size) {
+        if(EventCounterMetrics.ENABLED && metrics != null) {
+            long startNanos = System.nanoTime();
+            applyChanges(IDs, amounts, size);
+            metrics.record(EventCounterMetrics.Operation.APPLY_BATCH, startNanos);
+            return;
+        }
+        applyChanges(IDs, amounts, size);
+    }
+
+    /**
+     * Applies a batch of count changes. This is the unmeasured body of applyBatch.
+     * @param IDs The event IDs in any order. IDs may repeat.
+     * @param amounts The amount by which the count of the matching ID changes.
+     * @param size The number of changes to be read from IDs and amounts.
+     * @throws ArithmeticException If a count or the total count overflows and the policy is not SATURATE. The counter
+     * is then left unchanged, except with a backend other than RedBlackTree, where changes to other IDs may have been
+     * applied.
+     */
+    private void applyChanges(int[] IDs, int[] amounts, int size) {
+        long[] sortedChanges = new long[size];
+        for (int i = 0; i < size; i++) {
+            sortedChanges[i] = ((long) IDs[i] << 32) | i; //Sorts by ID and keeps the position of the change
+        }
+        Arrays.sort(sortedChanges);
+        int[] sortedIDs = new int[size];
+        long[] deltas = new long[size];
+        int distinctIDs = 0;
+        for (long change : sortedChanges) {
+            int ID = (int) (change >> 32);
+            int amount = amounts[(int) change];
+            if(distinctIDs > 0 && sortedIDs[distinctIDs - 1] == ID) {
+                deltas[distinctIDs - 1] = overflowPolicy.add(deltas[distinctIDs - 1], amount);
+            } else {
+                sortedIDs[distinctIDs] = ID;
+                deltas[distinctIDs] = amount;
+                distinctIDs++;
+            }
+        }
+        if(backend == null) {
+            limitSortedDeltas(sortedIDs, deltas, distinctIDs);
+        }
+        if(topKIndex != null) {
+            for (int i = 0; i < distinctIDs; i++) {
+                updateTopKIndex(sortedIDs[i], countOf(sortedIDs[i]), 0);
+            }
+        }
+        try {
+            if(backend != null) {
+                backend.applySortedDeltas(sortedIDs, deltas, distinctIDs);
+            } else {
+                redBlackTree.applySortedDeltas(sortedIDs, deltas, distinctIDs, overflowPolicy);
+            }
+        } finally { //A backend may have applied part of the batch when it throws
+            clearQueryCache();
+            if(topKIndex != null) {
+                for (int i = 0; i < distinctIDs; i++) {
+                    updateTopKIndex(sortedIDs[i], 0, countOf(sortedIDs[i]));
+                }
+            }
+        }
+        recordWindowedCounts(sortedIDs, deltas, distinctIDs);
+    }
+
+    /**
+     * Applies the overflow policy to the total count of a batch before the batch changes the tree. Throws if the
+     * total count would overflow, or with SATURATE lowers the deltas which would take it past Long.MAX_VALUE. The
+     * total count bounds every count, so the IDs are only looked up if the positive deltas could make it overflow.
+     * @param sortedIDs The distinct IDs of the batch in ascending order.
+     * @param deltas The count delta of each ID. Lowered deltas are written back.
+     * @param batchSize The number of IDs in the batch.
+     * @throws ArithmeticException If the total count would overflow and the policy is not SATURATE.
+     */
+    private void limitSortedDeltas(int[] sortedIDs, long[] deltas, int batchSize) {
+        long totalCount = redBlackTree.getTotalCount();
+        long room = Long.MAX_VALUE - totalCount;
+        for (int i = 0; i < batchSize && room >= 0; i++) {
+            if(deltas[i] > 0) {
+                room -= deltas[i];
+            }
+        }
+        if(room >= 0) {
+            return;
+        }
+        for (int i = 0; i < batchSize; i++) { //Reductions first, so that they make room for the increases
+            if(deltas[i] < 0) {
+                totalCount -= Math.min(-deltas[i], countOf(sortedIDs[i])); //An ID whose count drops below 1 is removed
+            }
+        }
+        for (int i = 0; i < batchSize; i++) {
+            if(deltas[i] > 0) {
+                deltas[i] = overflowPolicy.limitTotal(totalCount, deltas[i]);
+                totalCount += deltas[i];
+            }
+        }
+    }
+
     /**
      * Searches the counter for the event ID and returns the count. Returns 0, if not present.
      * @param ID The event ID whose count is to be returned.
      * @return The count of the event or 0.
      */
-    public int count(int ID) {
+    public long count(int ID) {
+        if(EventCounterMetrics.ENABLED && metrics != null) {
+            long startNanos = System.nanoTime();
+            long result = countOf(ID);
+            metrics.record(EventCounterMetrics.Operation.COUNT, startNanos);
+            return result;
+        }
+        return countOf(ID);
+    }
+
+    /**
+     * Returns the count of the event ID. This is the unmeasured body of count.
+     * @param ID The event ID whose count is to be returned.
+     * @return The count of the event or 0.
+     */
+    private long countOf(int ID) {
+        if(backend != null) {
+            return backend.count(ID);
+        }
         RedBlackTree.RedBlackTreeNode redBlackTreeNode = redBlackTree.treeSearch(ID);
         if(redBlackTreeNode != null) {
             return redBlackTreeNode.getCount();
@@ -84,20 +451,52 @@ public class RedBlackTreeEventCounter {
     }
 
     /**
-     * Returns the total count for IDs between ID1 and ID2.
+     * Returns the total count for IDs between ID1 and ID2. This runs in O(lg n) time using the subtree sums maintained
+     * by the tree.
      * @param ID1 The left limit of the range.
      * @param ID2 The right limit of the range.
      * @return The total count.
      */
-    public int inRange(int ID1, int ID2) {
-        int countInRange = 0;
-        RedBlackTree.RedBlackTreeNode rootNode = redBlackTree.getRootNode();
-        ArrayList<RedBlackTree.RedBlackTreeNode> nodesInRange = new ArrayList<>();
-        nodesInRange = redBlackTree.rangeSearch(rootNode, ID1, ID2, nodesInRange);
-        for (RedBlackTree.RedBlackTreeNode node : nodesInRange) {
-            countInRange += node.getCount();
+    public long inRange(int ID1, int ID2) {
+        if(EventCounterMetrics.ENABLED && metrics != null) {
+            long startNanos = System.nanoTime();
+            long result = rangeCountSum(ID1, ID2);
+            metrics.record(EventCounterMetrics.Operation.IN_RANGE, startNanos);
+            return result;
+        }
+        return rangeCountSum(ID1, ID2);
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2. This is the unmeasured body of inRange.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    private long rangeCountSum(int ID1, int ID2) {
+        if(queryCache != null) {
+            int slot = queryCache.find(QueryCache.IN_RANGE, ID1, ID2);
+            if(slot != QueryCache.NOT_FOUND) {
+                return queryCache.getSum(slot);
+            }
+            long sum = uncachedRangeSum(ID1, ID2);
+            queryCache.putRange(ID1, ID2, sum);
+            return sum;
+        }
+        return uncachedRangeSum(ID1, ID2);
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2 from the backend or the tree.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    private long uncachedRangeSum(int ID1, int ID2) {
+        if(backend != null) {
+            return backend.inRange(ID1, ID2);
         }
-        return countInRange;
+        return redBlackTree.rangeSum(ID1, ID2);
     }
 
     /**
@@ -106,6 +505,42 @@ public class RedBlackTreeEventCounter {
      * @return The next event
      */
     public RedBlackTree.RedBlackTreeNode next(int ID) {
+        if(EventCounterMetrics.ENABLED && metrics != null) {
+            long startNanos = System.nanoTime();
+            RedBlackTree.RedBlackTreeNode event = nextEvent(ID);
+            metrics.record(EventCounterMetrics.Operation.NEXT, startNanos);
+            return event;
+        }
+        return nextEvent(ID);
+    }
+
+    /**
+     * Returns the event with the lowest ID that is greater than ID. This is the unmeasured body of next.
+     * @param ID The event ID whose next is to be found.
+     * @return The next event
+     */
+    private RedBlackTree.RedBlackTreeNode nextEvent(int ID) {
+        if(queryCache != null) {
+            int slot = queryCache.find(QueryCache.NEXT, ID, 0);
+            if(slot != QueryCache.NOT_FOUND) {
+                return queryCache.getEvent(slot);
+            }
+            RedBlackTree.RedBlackTreeNode event = uncachedNextEvent(ID);
+            queryCache.putNext(ID, event);
+            return event;
+        }
+        return uncachedNextEvent(ID);
+    }
+
+    /**
+     * Returns the event with the lowest ID that is greater than ID from the backend or the tree.
+     * @param ID The event ID whose next is to be found.
+     * @return The next event
+     */
+    private RedBlackTree.RedBlackTreeNode uncachedNextEvent(int ID) {
+        if(backend != null) {
+            return backend.next(ID);
+        }
         return redBlackTree.treeSuccessor(redBlackTree.getRootNode(), ID);
     }
 
@@ -115,6 +550,583 @@ public class RedBlackTreeEventCounter {
      * @return The previous event.
      */
     public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        if(EventCounterMetrics.ENABLED && metrics != null) {
+            long startNanos = System.nanoTime();
+            RedBlackTree.RedBlackTreeNode event = previousEvent(ID);
+            metrics.record(EventCounterMetrics.Operation.PREVIOUS, startNanos);
+            return event;
+        }
+        return previousEvent(ID);
+    }
+
+    /**
+     * Returns the event with the greatest ID that is less than ID. This is the unmeasured body of previous.
+     * @param ID The ID whose previous is to be found.
+     * @return The previous event.
+     */
+    private RedBlackTree.RedBlackTreeNode previousEvent(int ID) {
+        if(queryCache != null) {
+            int slot = queryCache.find(QueryCache.PREVIOUS, ID, 0);
+            if(slot != QueryCache.NOT_FOUND) {
+                return queryCache.getEvent(slot);
+            }
+            RedBlackTree.RedBlackTreeNode event = uncachedPreviousEvent(ID);
+            queryCache.putPrevious(ID, event);
+            return event;
+        }
+        return uncachedPreviousEvent(ID);
+    }
+
+    /**
+     * Returns the event with the greatest ID that is less than ID from the backend or the tree.
+     * @param ID The ID whose previous is to be found.
+     * @return The previous event.
+     */
+    private RedBlackTree.RedBlackTreeNode uncachedPreviousEvent(int ID) {
+        if(backend != null) {
+            return backend.previous(ID);
+        }
         return redBlackTree.treePredecessor(redBlackTree.getRootNode(), ID);
     }
+
+    /**
+     * Returns a cursor for scanning the events in order of ID. The cursor starts before the first event; use seek to
+     * position it. Stepping the cursor takes amortized O(1) time and does not allocate.
+     * @return The cursor.
+     * @throws UnsupportedOperationException If the counter uses a backend other than RedBlackTree.
+     */
+    public RedBlackTree.Cursor cursor() {
+        if(backend != null) {
+            throw new UnsupportedOperationException("Cursors need the RedBlackTree backend");
+        }
+        return redBlackTree.cursor();
+    }
+
+    /**
+     * Passes every event with an ID between ID1 and ID2 to a visitor in ascending order of ID without building a list.
+     * This runs in O(lg n + k) time on the RedBlackTree and the B+ tree backend. Other backends step through Next,
+     * which costs O(k lg n), and pass copies of their events.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param visitor Receives the events in the range. It must not change the counter.
+     */
+    public void forEachInRange(int ID1, int ID2, Consumer<RedBlackTree.RedBlackTreeNode> visitor) {
+        if(backend != null) {
+            backend.forEachInRange(ID1, ID2, visitor);
+            return;
+        }
+        redBlackTree.rangeSearch(ID1, ID2, visitor);
+    }
+
+    /**
+     * Removes every event with an ID between ID1 and ID2. The tree is split around the range and joined again, which
+     * runs in O(lg n) time, plus O(k) if the hash index or the top k index is enabled. Windowed counts keep what was
+     * recorded when the events arrived.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count of the removed events.
+     * @throws UnsupportedOperationException If the counter uses a backend other than RedBlackTree.
+     */
+    public long deleteRange(int ID1, int ID2) {
+        if(backend != null) {
+            throw new UnsupportedOperationException("Range deletes need the RedBlackTree backend");
+        }
+        clearQueryCache();
+        return redBlackTree.deleteRange(ID1, ID2, topKRemover());
+    }
+
+    /**
+     * Adds delta to the count of every event with an ID between ID1 and ID2 and removes the events whose count drops
+     * below 1. No event is inserted. This runs in O(lg n + k) time, plus O(lg n) for every removed event and for every
+     * event moved in the top k index. Windowed counts record a positive delta for every event in the range.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param delta The amount to be added to every count in the range, which may be negative.
+     * @return The total count for IDs between ID1 and ID2 afterwards.
+     * @throws ArithmeticException If the total count overflows and the policy is not SATURATE, which lowers delta to
+     * the largest amount every event of the range can take. The counter is then left unchanged.
+     * @throws UnsupportedOperationException If the counter uses a backend other than RedBlackTree.
+     */
+    public long addToRange(int ID1, int ID2, int delta) {
+        if(backend != null) {
+            throw new UnsupportedOperationException("Range updates need the RedBlackTree backend");
+        }
+        if(topKIndex == null && windowedCounts == null) {
+            redBlackTree.addToRange(ID1, ID2, delta, overflowPolicy);
+            clearQueryCache();
+            return redBlackTree.rangeSum(ID1, ID2);
+        }
+        ArrayList<RedBlackTree.RedBlackTreeNode> rangeNodes = new ArrayList<>();
+        redBlackTree.rangeSearch(ID1, ID2, rangeNodes::add);
+        long[] oldCounts = new long[rangeNodes.size()];
+        for (int i = 0; i < oldCounts.length; i++) {
+            oldCounts[i] = rangeNodes.get(i).getCount();
+        }
+        redBlackTree.addToRange(ID1, ID2, delta, overflowPolicy);
+        clearQueryCache();
+        long epoch = (windowedCounts != null && delta > 0) ? currentEpoch() : 0;
+        for (int i = 0; i < oldCounts.length; i++) {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = rangeNodes.get(i);
+            if(topKIndex != null) {
+                updateTopKIndex(redBlackTreeNode.getID(), oldCounts[i], Math.max(redBlackTreeNode.getCount(), 0));
+            }
+            if(windowedCounts != null && delta > 0) {
+                windowedCounts.record(redBlackTreeNode.getID(), delta, epoch);
+            }
+        }
+        return redBlackTree.rangeSum(ID1, ID2);
+    }
+
+    /**
+     * Writes every event with an ID between ID1 and ID2 to a channel in ascending order of ID, each as a big endian
+     * int ID followed by a long count. The events are read through a cursor and written through one fixed buffer, so
+     * the range is never copied into a list. This runs in O(lg n + k) time. A backend is read through forEachInRange
+     * and costs what its range visit costs. A blocking channel is written in full; a non-blocking channel is retried
+     * until it has taken every byte.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param channel The channel the events are written to. It is not closed.
+     * @return The number of events written.
+     * @throws IOException If writing fails.
+     */
+    public int exportRange(int ID1, int ID2, WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(EXPORT_BUFFER_SIZE);
+        if(backend != null) {
+            int[] exported = {0};
+            try {
+                backend.forEachInRange(ID1, ID2, event -> {
+                    try {
+                        if(buffer.remaining() < EXPORTED_EVENT_LENGTH) {
+                            drain(buffer, channel);
+                        }
+                    } catch (IOException ioException) {
+                        throw new UncheckedIOException(ioException);
+                    }
+                    buffer.putInt(event.getID()).putLong(event.getCount());
+                    exported[0]++;
+                });
+            } catch (UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+            drain(buffer, channel);
+            return exported[0];
+        }
+        int exported = 0;
+        RedBlackTree.Cursor cursor = redBlackTree.cursor();
+        for (boolean onEvent = cursor.seek(ID1); onEvent && cursor.getEvent().getID() <= ID2; onEvent = cursor.next()) {
+            if(buffer.remaining() < EXPORTED_EVENT_LENGTH) {
+                drain(buffer, channel);
+            }
+            RedBlackTree.RedBlackTreeNode event = cursor.getEvent();
+            buffer.putInt(event.getID()).putLong(event.getCount());
+            exported++;
+        }
+        drain(buffer, channel);
+        return exported;
+    }
+
+    /**
+     * Adds the events of another counter to this counter, for example to merge rollups built on different nodes. The
+     * count of an ID in both counters becomes the sum of its counts. The trees are combined by split and join on the
+     * threads of the common fork/join pool, which takes O(m lg(n / m + 1)) work for counters of m <= n events instead
+     * of the O(m lg n) of one Increase per event. The top k index, if enabled, is updated in O(m lg n) time and
+     * windowed counts record the counts of other as arriving now.
+     * @param other The counter whose events are added. It is not changed and must not change meanwhile.
+     * @throws ArithmeticException If the total count would overflow, whatever the policy. The counter is then left
+     * unchanged.
+     * @throws IllegalArgumentException If other is this counter.
+     * @throws UnsupportedOperationException If either counter uses a backend other than RedBlackTree.
+     */
+    public void union(RedBlackTreeEventCounter other) {
+        checkSetOperands(other);
+        RedBlackTree.Cursor otherCursor = other.cursor();
+        long[] oldCounts = null;
+        if(topKIndex != null) {
+            oldCounts = new long[other.redBlackTree.size()];
+            for (int i = 0; otherCursor.next(); i++) {
+                oldCounts[i] = countOf(otherCursor.getEvent().getID());
+            }
+        }
+        redBlackTree.union(other.redBlackTree, overflowPolicy, ForkJoinPool.commonPool());
+        clearQueryCache();
+        if(topKIndex == null && windowedCounts == null) {
+            return;
+        }
+        otherCursor = other.cursor();
+        for (int i = 0; otherCursor.next(); i++) {
+            RedBlackTree.RedBlackTreeNode otherEvent = otherCursor.getEvent();
+            if(topKIndex != null) {
+                updateTopKIndex(otherEvent.getID(), oldCounts[i], countOf(otherEvent.getID()));
+            }
+            recordWindowedCount(otherEvent.getID(), otherEvent.getCount());
+        }
+    }
+
+    /**
+     * Removes the events of this counter whose IDs are not in another counter. The counts of the remaining events are
+     * kept. This runs in O(m lg(n / m + 1)) work on the threads of the common fork/join pool, plus O(k) for the k
+     * removed events if the hash index or the top k index is enabled.
+     * @param other The counter whose IDs are kept. It is not changed and must not change meanwhile.
+     * @throws IllegalArgumentException If other is this counter.
+     * @throws UnsupportedOperationException If either counter uses a backend other than RedBlackTree.
+     */
+    public void intersection(RedBlackTreeEventCounter other) {
+        checkSetOperands(other);
+        redBlackTree.intersection(other.redBlackTree, topKRemover(), ForkJoinPool.commonPool());
+        clearQueryCache();
+    }
+
+    /**
+     * Removes the events of this counter whose IDs are in another counter. This runs in O(m lg(n / m + 1)) work on
+     * the threads of the common fork/join pool, plus O(k) for the k removed events if the hash index or the top k
+     * index is enabled.
+     * @param other The counter whose IDs are removed. It is not changed and must not change meanwhile.
+     * @throws IllegalArgumentException If other is this counter.
+     * @throws UnsupportedOperationException If either counter uses a backend other than RedBlackTree.
+     */
+    public void difference(RedBlackTreeEventCounter other) {
+        checkSetOperands(other);
+        redBlackTree.difference(other.redBlackTree, topKRemover(), ForkJoinPool.commonPool());
+        clearQueryCache();
+    }
+
+    /**
+     * Throws if a set operation cannot combine this counter with another counter.
+     * @param other The other counter.
+     * @throws IllegalArgumentException If other is this counter.
+     * @throws UnsupportedOperationException If either counter uses a backend other than RedBlackTree.
+     */
+    private void checkSetOperands(RedBlackTreeEventCounter other) {
+        if(backend != null || other.backend != null) {
+            throw new UnsupportedOperationException("Set operations need the RedBlackTree backend");
+        }
+        if(other == this) {
+            throw new IllegalArgumentException("A counter cannot be combined with itself");
+        }
+    }
+
+    /**
+     * Returns a visitor which removes deleted events from the top k index.
+     * @return The visitor, or null if the top k index is not enabled.
+     */
+    private Consumer<RedBlackTree.RedBlackTreeNode> topKRemover() {
+        if(topKIndex == null) {
+            return null;
+        }
+        return redBlackTreeNode -> updateTopKIndex(redBlackTreeNode.getID(), redBlackTreeNode.getCount(), 0);
+    }
+
+    /**
+     * Writes everything in a buffer to a channel and clears the buffer.
+     * @param buffer The buffer, ready for filling.
+     * @param channel The channel.
+     * @throws IOException If writing fails.
+     */
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the number of distinct events with an ID smaller than ID. This runs in O(lg n) time.
+     * @param ID The ID whose rank is to be found. It need not be present.
+     * @return The number of events with smaller IDs.
+     * @throws UnsupportedOperationException If the counter uses a backend other than RedBlackTree.
+     */
+    public int rank(int ID) {
+        if(backend != null) {
+            throw new UnsupportedOperationException("Rank needs the RedBlackTree backend");
+        }
+        return redBlackTree.treeRank(ID);
+    }
+
+    /**
+     * Returns the event with exactly k events of smaller ID, so select(0) is the event with the smallest ID and
+     * select(rank(ID)) is the event with ID if it is present. This runs in O(lg n) time.
+     * @param k The number of events with smaller IDs, starting from 0.
+     * @return The event, or null if k is out of range.
+     * @throws UnsupportedOperationException If the counter uses a backend other than RedBlackTree.
+     */
+    public RedBlackTree.RedBlackTreeNode select(int k) {
+        if(backend != null) {
+            throw new UnsupportedOperationException("Select needs the RedBlackTree backend");
+        }
+        return redBlackTree.treeSelect(k);
+    }
+
+    /**
+     * Returns the count weighted quantile of the IDs: the event with the smallest ID such that the events up to and
+     * including it hold at least the fraction q of the total count. quantile(0.5) is the weighted median. This runs in
+     * O(lg n) time.
+     * @param q The fraction of the total count, between 0 and 1.
+     * @return The event, or null if the counter is empty.
+     * @throws IllegalArgumentException If q is not between 0 and 1.
+     * @throws UnsupportedOperationException If the counter uses a backend other than RedBlackTree.
+     */
+    public RedBlackTree.RedBlackTreeNode quantile(double q) {
+        if(backend != null) {
+            throw new UnsupportedOperationException("Quantile needs the RedBlackTree backend");
+        }
+        if(!(q >= 0 && q <= 1)) {
+            throw new IllegalArgumentException("Quantile " + q + " is not between 0 and 1");
+        }
+        RedBlackTree.RedBlackTreeNode rootNode = redBlackTree.getRootNode();
+        if(rootNode == null) {
+            return null;
+        }
+        return redBlackTree.treePrefixSumCeiling((long) Math.ceil(q * rootNode.getSubtreeSum()));
+    }
+
+    /**
+     * Starts maintaining the index of events ordered by count which answers topK. The index is built from the current
+     * events in O(n lg n) time; from then on every Increase, Reduce and ApplyBatch also updates it in O(lg n) time
+     * per changed ID. With a backend, Increase and Reduce also look up the old count, and ApplyBatch looks up the
+     * count of every ID before and after the batch. Calling this again has no effect.
+     */
+    public void enableTopKIndex() {
+        if(topKIndex == null) {
+            rebuildTopKIndex();
+        }
+    }
+
+    /**
+     * Starts keeping a hash index from IDs to events next to the tree. Count then finds an event in O(1) expected
+     * time, and Increase and Reduce of an event which is present skip the search down the tree and only walk up to
+     * the root to fix the subtree sums. Next, Previous and InRange keep using the tree. Calling this again has no
+     * effect.
+     * @throws UnsupportedOperationException If the counter uses a backend other than RedBlackTree.
+     */
+    public void enableHashIndex() {
+        if(backend != null) {
+            throw new UnsupportedOperationException("The hash index needs the RedBlackTree backend");
+        }
+        redBlackTree.enableHashIndex();
+    }
+
+    /**
+     * Starts caching the results of InRange, Next and Previous, so a repeated query costs O(1). Increase and Reduce
+     * keep the cached results exact by adjusting the sums of the cached ranges holding their ID and by dropping the
+     * cached Next and Previous results an insert or delete changes, which costs O(c) time per update for capacity c.
+     * ApplyBatch, the range updates, the set operations and the builds empty the cache. With a backend, Increase and
+     * Reduce also look up the old count, and as the cached events are copies, a count change drops the cached Next
+     * and Previous results holding the event. Calling this again returns the cache already enabled.
+     * @param capacity The largest number of cached results, for example a few hundred.
+     * @return The cache, which reports the hit and miss rates.
+     * @throws IllegalArgumentException If capacity is not positive.
+     */
+    public QueryCache enableQueryCache(int capacity) {
+        if(queryCache == null) {
+            queryCache = new QueryCache(capacity);
+        }
+        return queryCache;
+    }
+
+    /**
+     * Empties the query cache if it is enabled, after a change to many events.
+     */
+    private void clearQueryCache() {
+        if(queryCache != null) {
+            queryCache.clear();
+        }
+    }
+
+    /**
+     * Starts measuring the calls and latencies of Increase, Reduce, Count, InRange, Next, Previous and ApplyBatch, and
+     * the shape and rebalancing work of the RedBlackTree. Once per period the thread calling the counter refreshes the
+     * tree structure and passes a dump to dumpSink. Calling this again returns the metrics already enabled.
+     * @param periodMillis The time between dumps in milliseconds.
+     * @param dumpSink Receives the periodic dumps, or null if only JMX and dump are used.
+     * @return The metrics, which can be registered with JMX.
+     * @throws IllegalStateException If instrumentation is not compiled in, which needs -Deventcounter.metrics=true.
+     * @throws IllegalArgumentException If periodMillis is less than 1.
+     */
+    public EventCounterMetrics enableMetrics(long periodMillis, Consumer<String> dumpSink) {
+        if(!EventCounterMetrics.ENABLED) {
+            throw new IllegalStateException("Metrics are compiled out; set the system property eventcounter.metrics");
+        }
+        if(metrics == null) {
+            metrics = new EventCounterMetrics((backend == null) ? redBlackTree : null, periodMillis, dumpSink);
+        }
+        return metrics;
+    }
+
+    /**
+     * Starts counting the amounts added by Increase and ApplyBatch in time buckets, which answer count and inRange over
+     * a sliding window of up to bucketMillis * bucketCount milliseconds. The windows start empty and read the system
+     * clock. Calling this again has no effect.
+     * @param bucketMillis The length of a time bucket in milliseconds.
+     * @param bucketCount The number of buckets kept per ID.
+     * @throws IllegalArgumentException If bucketMillis or bucketCount is less than 1.
+     */
+    public void enableWindowedCounts(long bucketMillis, int bucketCount) {
+        enableWindowedCounts(bucketMillis, bucketCount, System::currentTimeMillis);
+    }
+
+    /**
+     * Starts counting the amounts added by Increase and ApplyBatch in time buckets, which answer count and inRange over
+     * a sliding window of up to bucketMillis * bucketCount milliseconds. Every ID holds a ring of bucketCount buckets
+     * which expire lazily as the clock moves on, so recording an event runs in O(lg n) time, does not allocate once the
+     * ID is present and never sweeps the whole tree. The windows start empty. Calling this again has no effect.
+     * @param bucketMillis The length of a time bucket in milliseconds.
+     * @param bucketCount The number of buckets kept per ID.
+     * @param clock Returns the current time in milliseconds. It should not go backwards.
+     * @throws IllegalArgumentException If bucketMillis or bucketCount is less than 1.
+     */
+    public void enableWindowedCounts(long bucketMillis, int bucketCount, LongSupplier clock) {
+        if(bucketMillis < 1) {
+            throw new IllegalArgumentException("Bucket length " + bucketMillis + " ms is less than 1");
+        }
+        if(windowedCounts == null) {
+            windowedCounts = new WindowedRedBlackTree(bucketCount);
+            this.bucketMillis = bucketMillis;
+            this.clock = clock;
+        }
+    }
+
+    /**
+     * Returns the amount added to the event ID within the last windowMillis milliseconds. The window is rounded up to
+     * whole buckets and includes the current bucket, which has only partly elapsed. This runs in O(lg n + b) time for
+     * a window of b buckets.
+     * @param ID The event ID whose windowed count is to be returned.
+     * @param windowMillis The length of the window in milliseconds.
+     * @return The windowed count or 0.
+     * @throws IllegalArgumentException If the window is not positive or longer than the buckets kept.
+     * @throws IllegalStateException If enableWindowedCounts has not been called.
+     */
+    public long count(int ID, long windowMillis) {
+        int windowBuckets = windowBuckets(windowMillis);
+        return windowedCounts.count(ID, currentEpoch(), windowBuckets);
+    }
+
+    /**
+     * Returns the amount added to the IDs between ID1 and ID2 within the last windowMillis milliseconds, rounded up to
+     * whole buckets as in count. This runs in O(b lg n) time for a window of b buckets using the bucket sums of every
+     * subtree.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param windowMillis The length of the window in milliseconds.
+     * @return The windowed total.
+     * @throws IllegalArgumentException If the window is not positive or longer than the buckets kept.
+     * @throws IllegalStateException If enableWindowedCounts has not been called.
+     */
+    public long inRange(int ID1, int ID2, long windowMillis) {
+        int windowBuckets = windowBuckets(windowMillis);
+        return windowedCounts.rangeSum(ID1, ID2, currentEpoch(), windowBuckets);
+    }
+
+    /**
+     * Returns the number of buckets covering a window.
+     * @param windowMillis The length of the window in milliseconds.
+     * @return The number of buckets.
+     * @throws IllegalArgumentException If the window is not positive or longer than the buckets kept.
+     * @throws IllegalStateException If enableWindowedCounts has not been called.
+     */
+    private int windowBuckets(long windowMillis) {
+        if(windowedCounts == null) {
+            throw new IllegalStateException("Windowed counts are not enabled");
+        }
+        long windowBuckets = (windowMillis > 0) ? (windowMillis - 1) / bucketMillis + 1 : 0;
+        if(windowBuckets < 1 || windowBuckets > windowedCounts.getBucketCount()) {
+            throw new IllegalArgumentException("Window of " + windowMillis + " ms is not between 1 and "
+                    + bucketMillis * windowedCounts.getBucketCount() + " ms");
+        }
+        return (int) windowBuckets;
+    }
+
+    /**
+     * Returns the number of the current time bucket of the windowed counts.
+     * @return The epoch.
+     */
+    private long currentEpoch() {
+        return Math.floorDiv(clock.getAsLong(), bucketMillis);
+    }
+
+    /**
+     * Records a positive amount in the current time bucket of ID if windowed counts are enabled.
+     * @param ID The event ID.
+     * @param amount The amount added to the count of ID.
+     */
+    private void recordWindowedCount(int ID, long amount) {
+        if(windowedCounts != null && amount > 0) {
+            windowedCounts.record(ID, amount, currentEpoch());
+        }
+    }
+
+    /**
+     * Records the positive deltas of a batch in the current time bucket if windowed counts are enabled.
+     * @param sortedIDs The distinct IDs of the batch.
+     * @param deltas The count delta of each ID.
+     * @param batchSize The number of IDs in the batch.
+     */
+    private void recordWindowedCounts(int[] sortedIDs, long[] deltas, int batchSize) {
+        if(windowedCounts != null) {
+            long epoch = currentEpoch();
+            for (int i = 0; i < batchSize; i++) {
+                if(deltas[i] > 0) {
+                    windowedCounts.record(sortedIDs[i], deltas[i], epoch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the k events with the largest counts into IDs and counts, largest count first. Events with equal counts
+     * are ordered by ascending ID. This runs in O(lg n + k) time and does not allocate.
+     * @param k The number of events wanted.
+     * @param IDs Receives the IDs. It must hold at least k elements.
+     * @param counts Receives the counts matching IDs. It must hold at least k elements.
+     * @return The number of events copied, which is less than k if the counter holds fewer events.
+     * @throws IllegalStateException If enableTopKIndex has not been called.
+     */
+    public int topK(int k, int[] IDs, long[] counts) {
+        if(topKIndex == null) {
+            throw new IllegalStateException("The top k index is not enabled");
+        }
+        int copied = 0;
+        int node = topKIndex.treeMaximum(topKIndex.getRootIndex());
+        while (copied < k && node != LongArrayRedBlackTree.NIL) {
+            IDs[copied] = ~topKIndex.getTieBreaker(node);
+            counts[copied] = topKIndex.getKey(node);
+            copied++;
+            node = topKIndex.nodePredecessor(node);
+        }
+        return copied;
+    }
+
+    /**
+     * Moves an event to its new position in the top k index.
+     * @param ID The event ID.
+     * @param oldCount The count of the event before the change or 0 if it was not present.
+     * @param newCount The count of the event after the change or 0 if it was removed.
+     */
+    private void updateTopKIndex(int ID, long oldCount, long newCount) {
+        if(oldCount == newCount) {
+            return;
+        }
+        if(oldCount > 0) {
+            int node = topKIndex.treeSearch(oldCount, ~ID);
+            if(node != LongArrayRedBlackTree.NIL) {
+                topKIndex.redBlackDelete(node);
+            }
+        }
+        if(newCount > 0) {
+            topKIndex.redBlackInsert(newCount, ~ID, 0);
+        }
+    }
+
+    /**
+     * Rebuilds the top k index from the events in the tree or the backend.
+     */
+    private void rebuildTopKIndex() {
+        LongArrayRedBlackTree index = new LongArrayRedBlackTree(Math.max(16, redBlackTree.size() + 1), true);
+        forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, redBlackTreeNode -> {
+            if(redBlackTreeNode.getCount() > 0) {
+                index.redBlackInsert(redBlackTreeNode.getCount(), ~redBlackTreeNode.getID(), 0);
+            }
+        });
+        topKIndex = index;
+    }
 }
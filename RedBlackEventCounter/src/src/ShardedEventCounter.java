@@ -0,0 +1,797 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is an event counter which partitions the ID space into ranges, each held by its own RedBlackTree shard.
+ * Every shard is owned by a single thread which drains a lock-free queue of operations, so the trees are never shared
+ * and structural changes in different shards run on different cores. It supports the below operations:
+ * 1. Build(List)
+ * 2. Increase(theID, m)
+ * 3. Reduce(theID, m)
+ * 4. Count(theID)
+ * 5. InRange(ID1, ID2)
+ * 6. Next(theID)
+ * 7. Previous(theID)
+ * Increase, Reduce and Count go to the one shard owning the ID. InRange asks only the shards overlapping the range,
+ * all at once, and Next and Previous walk on to the neighbouring shards when a shard has no answer.
+ * The split points move online: every REBALANCE_INTERVAL operations a shard compares its number of events with its
+ * neighbours and hands the events nearest to the shared split point to a much smaller neighbour. The receiving shard
+ * is sent the events before the new split point is published, and a shard forwards any operation on an ID it no
+ * longer owns, so every operation on an ID is applied by the one shard owning it at that time. InRange, Next and
+ * Previous repeat themselves if a split point moved while they ran.
+ * Events returned by Next and Previous are copies. The counter is thread-safe; close stops the shard threads.
+ */
+public class ShardedEventCounter implements AutoCloseable {
+
+    /**
+     * The number of operations a shard applies between looks at the balance with its neighbours.
+     */
+    private static final int REBALANCE_INTERVAL = 1 << 12;
+
+    /**
+     * The smallest difference in events between neighbouring shards which is worth moving a split point for.
+     */
+    private static final int MINIMUM_IMBALANCE = 1 << 10;
+
+    /**
+     * The number of times a waiting thread checks for its answer before it parks. Spinning only pays off when the
+     * thread it waits for runs on another core.
+     */
+    private static final int SPIN_LIMIT = (Runtime.getRuntime().availableProcessors() > 1) ? 1 << 10 : 0;
+
+    /**
+     * The kinds of requests a shard applies. BUILD, ABSORB and STOP are sent by the counter itself.
+     */
+    private static final int INCREASE = 0, REDUCE = 1, COUNT = 2, IN_RANGE = 3, NEXT = 4, PREVIOUS = 5, BUILD = 6,
+            ABSORB = 7, STOP = 8;
+
+    /**
+     * Holds the shards in ascending order of their ID ranges.
+     */
+    private final Shard[] shards;
+
+    /**
+     * Holds the split points: element i is the smallest ID owned by shard i, and element 0 is Integer.MIN_VALUE.
+     * Equal neighbouring elements leave a shard with an empty range. The array is replaced, never changed.
+     */
+    private final AtomicReference<int[]> lowerBounds;
+
+    /**
+     * Holds the number of steps left in the move of the split point between shard i - 1 and shard i at index i, or 0
+     * if it is not moving. A move takes two steps: the shard handing over events publishes the new split point and the
+     * neighbour absorbs the events. Either may finish first.
+     */
+    private final AtomicIntegerArray splitPointsMoving;
+
+    /**
+     * Holds the number of split points which are moving.
+     */
+    private final AtomicInteger migrationsInProgress = new AtomicInteger();
+
+    /**
+     * Counts the split point moves which have started. Readers which fan out compare it before and after.
+     */
+    private final AtomicLong migrationsStarted = new AtomicLong();
+
+    /**
+     * Holds what is done with a count which overflows.
+     */
+    private final CountOverflowPolicy overflowPolicy;
+
+    /**
+     * Holds the sum of the counts of all shards. An Increase reserves its amount here first, so the overflow policy
+     * keeps the sum of any shards' range sums from wrapping.
+     */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /**
+     * Holds one request per shard for every calling thread, so a call does not allocate.
+     */
+    private final ThreadLocal<Request[]> requests;
+
+    /**
+     * This static nested class is an operation passed to a shard and its answer. The calling thread fills in the
+     * operation and waits for done; the shard fills in the answer and sets done.
+     */
+    private static final class Request {
+
+        /**
+         * Holds the kind of the request.
+         */
+        private int operation;
+
+        /**
+         * Hold the ID, or the limits of the range, the request is about.
+         */
+        private int ID1, ID2;
+
+        /**
+         * Holds the amount of an Increase or Reduce.
+         */
+        private int amount;
+
+        /**
+         * Holds the count or total answered by the shard.
+         */
+        private long result;
+
+        /**
+         * Holds a copy of the event answered by Next or Previous, or null.
+         */
+        private RedBlackTree.RedBlackTreeNode event;
+
+        /**
+         * Holds the exception thrown while the request was applied, or null.
+         */
+        private RuntimeException error;
+
+        /**
+         * Holds the events to be built from or absorbed, in ascending order of ID.
+         */
+        private List<RedBlackTree.RedBlackTreeNode> events;
+
+        /**
+         * Holds the range a BUILD gives the shard, or the new limit of the shard's range an ABSORB moves to.
+         */
+        private long low, high;
+
+        /**
+         * Holds true if the events of an ABSORB precede the events of the receiving shard.
+         */
+        private boolean fromLeft;
+
+        /**
+         * Holds the thread waiting for the answer, or null if nobody waits.
+         */
+        private Thread waiter;
+
+        /**
+         * Set by the shard once the answer is in place.
+         */
+        private volatile boolean done;
+
+        /**
+         * Readies the request for a new call by the current thread.
+         * @param operation The kind of the request.
+         * @param ID1 The ID or the left limit of the range.
+         * @param ID2 The right limit of the range.
+         * @param amount The amount of an Increase or Reduce.
+         */
+        private void prepare(int operation, int ID1, int ID2, int amount) {
+            this.operation = operation;
+            this.ID1 = ID1;
+            this.ID2 = ID2;
+            this.amount = amount;
+            this.event = null;
+            this.error = null;
+            this.waiter = Thread.currentThread();
+            this.done = false;
+        }
+    }
+
+    /**
+     * This inner class is one shard: a RedBlackTree holding the events of one range of IDs, the queue of requests
+     * sent to it and the thread which applies them.
+     */
+    private final class Shard implements Runnable {
+
+        /**
+         * Holds the position of the shard.
+         */
+        private final int index;
+
+        /**
+         * Holds the events of the shard. Only the shard's thread touches it.
+         */
+        private final RedBlackTree redBlackTree = new RedBlackTree();
+
+        /**
+         * Holds the requests waiting to be applied.
+         */
+        private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Holds the thread which applies the requests.
+         */
+        private final Thread thread;
+
+        /**
+         * Set while the shard's thread is about to park or parked on an empty queue.
+         */
+        private volatile boolean parked = false;
+
+        /**
+         * Holds the number of events in the shard as of its last look at the balance.
+         */
+        private volatile int publishedSize = 0;
+
+        /**
+         * Hold the limits of the range of IDs the shard owns. The range is empty if low is greater than high.
+         */
+        private long low, high;
+
+        /**
+         * Counts the operations applied since the last look at the balance.
+         */
+        private int operationsSinceCheck = 0;
+
+        /**
+         * Holds false once the shard has been stopped.
+         */
+        private boolean running = true;
+
+        /**
+         * Creates a shard owning the IDs between low and high and starts its thread.
+         * @param index The position of the shard.
+         * @param low The smallest ID owned.
+         * @param high The greatest ID owned.
+         */
+        private Shard(int index, long low, long high) {
+            this.index = index;
+            this.low = low;
+            this.high = high;
+            thread = new Thread(this, "event-counter-shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Adds a request to the queue and wakes the shard's thread if it is parked.
+         * @param request The request.
+         */
+        private void submit(Request request) {
+            queue.offer(request);
+            if(parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Applies requests until the shard is stopped, spinning briefly and then parking while the queue is empty.
+         */
+        @Override
+        public void run() {
+            int idleSpins = 0;
+            while (running) {
+                Request request = queue.poll();
+                if(request != null) {
+                    idleSpins = 0;
+                    apply(request);
+                } else if(idleSpins < SPIN_LIMIT) {
+                    idleSpins++;
+                    Thread.onSpinWait();
+                } else {
+                    parked = true;
+                    if(queue.isEmpty()) { //A request offered after this check sees parked and unparks the thread.
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                }
+            }
+        }
+
+        /**
+         * Applies a request and answers it, or forwards a point operation on an ID the shard does not own.
+         * @param request The request.
+         */
+        private void apply(Request request) {
+            switch (request.operation) {
+                case INCREASE:
+                case REDUCE:
+                case COUNT:
+                    if(request.ID1 < low || request.ID1 > high) {
+                        route(request); //Routed by an old split point
+                        return;
+                    }
+                    try {
+                        request.result = applyPointOperation(request);
+                    } catch (RuntimeException e) {
+                        request.error = e;
+                    }
+                    complete(request);
+                    if(++operationsSinceCheck >= REBALANCE_INTERVAL) {
+                        operationsSinceCheck = 0;
+                        checkBalance();
+                    }
+                    break;
+                case IN_RANGE:
+                    request.result = redBlackTree.rangeSum(request.ID1, request.ID2);
+                    complete(request);
+                    break;
+                case NEXT:
+                    request.event = copyOf(redBlackTree.treeSuccessor(redBlackTree.getRootNode(), request.ID1));
+                    complete(request);
+                    break;
+                case PREVIOUS:
+                    request.event = copyOf(redBlackTree.treePredecessor(redBlackTree.getRootNode(), request.ID1));
+                    complete(request);
+                    break;
+                case BUILD:
+                    redBlackTree.buildTreeFromSortedList(request.events.size(), request.events.iterator());
+                    low = request.low;
+                    high = request.high;
+                    publishedSize = redBlackTree.size();
+                    request.events = null;
+                    complete(request);
+                    break;
+                case ABSORB:
+                    absorb(request);
+                    break;
+                case STOP:
+                    running = false;
+                    complete(request);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown request " + request.operation);
+            }
+        }
+
+        /**
+         * Applies Increase, Reduce or Count to the tree of the shard.
+         * @param request The request.
+         * @return The count of the ID afterwards.
+         */
+        private long applyPointOperation(Request request) {
+            RedBlackTree.RedBlackTreeNode redBlackTreeNode = redBlackTree.treeSearch(request.ID1);
+            switch (request.operation) {
+                case INCREASE:
+                    long added = reserveTotal(request.amount); //Also keeps the count in range
+                    if(redBlackTreeNode != null) {
+                        redBlackTreeNode.setCount(redBlackTreeNode.getCount() + added);
+                        return redBlackTreeNode.getCount();
+                    }
+                    if(added > 0) {
+                        redBlackTree.redBlackInsert(request.ID1, added);
+                    }
+                    return added;
+                case REDUCE:
+                    if(redBlackTreeNode == null) {
+                        return 0;
+                    }
+                    if(request.amount >= redBlackTreeNode.getCount()) {
+                        totalCount.addAndGet(-redBlackTreeNode.getCount());
+                        redBlackTree.redBlackDelete(redBlackTreeNode);
+                        return 0;
+                    }
+                    redBlackTreeNode.setCount(redBlackTreeNode.getCount() - request.amount);
+                    totalCount.addAndGet(-request.amount);
+                    return redBlackTreeNode.getCount();
+                default:
+                    return (redBlackTreeNode != null) ? redBlackTreeNode.getCount() : 0;
+            }
+        }
+
+        /**
+         * Moves the split point to a neighbour with much fewer events, if there is one and no other move of that split
+         * point is under way. Half of the difference in events is handed over.
+         */
+        private void checkBalance() {
+            int size = redBlackTree.size();
+            publishedSize = size;
+            int leftSize = (index > 0) ? shards[index - 1].publishedSize : Integer.MAX_VALUE;
+            int rightSize = (index < shards.length - 1) ? shards[index + 1].publishedSize : Integer.MAX_VALUE;
+            boolean toLeft = leftSize < rightSize;
+            int neighbourSize = Math.min(leftSize, rightSize);
+            if(neighbourSize == Integer.MAX_VALUE || size - neighbourSize <= Math.max(MINIMUM_IMBALANCE, size >> 2)) {
+                return;
+            }
+            int splitPoint = toLeft ? index : index + 1;
+            if(!splitPointsMoving.compareAndSet(splitPoint, 0, 2)) {
+                return;
+            }
+            migrationsInProgress.incrementAndGet();
+            migrationsStarted.incrementAndGet();
+            handOver(toLeft, splitPoint, (size - neighbourSize) / 2);
+        }
+
+        /**
+         * Hands the moveCount events nearest to a split point to the neighbour on the other side. The shard rebuilds
+         * its tree from the events it keeps, sends the others to the neighbour and only then publishes the new split
+         * point, so the neighbour applies them before any operation routed by the new split point.
+         * @param toLeft True if the events go to the left neighbour.
+         * @param splitPoint The index of the split point in lowerBounds.
+         * @param moveCount The number of events to move, between 1 and the number of events minus 1.
+         */
+        private void handOver(boolean toLeft, int splitPoint, int moveCount) {
+            int size = redBlackTree.size();
+            ArrayList<RedBlackTree.RedBlackTreeNode> events = new ArrayList<>(size);
+            redBlackTree.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE, events::add);
+            Request absorb = new Request();
+            absorb.operation = ABSORB;
+            absorb.fromLeft = !toLeft;
+            List<RedBlackTree.RedBlackTreeNode> keptEvents;
+            int newLowerBound;
+            if(toLeft) {
+                newLowerBound = events.get(moveCount).getID(); //The first event kept
+                absorb.events = new ArrayList<>(events.subList(0, moveCount));
+                absorb.high = newLowerBound - 1L;
+                keptEvents = events.subList(moveCount, size);
+                low = newLowerBound;
+            } else {
+                newLowerBound = events.get(size - moveCount).getID(); //The first event moved
+                absorb.events = new ArrayList<>(events.subList(size - moveCount, size));
+                absorb.low = newLowerBound;
+                keptEvents = events.subList(0, size - moveCount);
+                high = newLowerBound - 1L;
+            }
+            redBlackTree.buildTreeFromSortedList(keptEvents.size(), keptEvents.iterator());
+            publishedSize = redBlackTree.size();
+            shards[toLeft ? index - 1 : index + 1].submit(absorb);
+            int[] oldLowerBounds, newLowerBounds;
+            do {
+                oldLowerBounds = lowerBounds.get();
+                newLowerBounds = oldLowerBounds.clone();
+                newLowerBounds[splitPoint] = newLowerBound;
+            } while (!lowerBounds.compareAndSet(oldLowerBounds, newLowerBounds));
+            finishMoveStep(splitPoint);
+        }
+
+        /**
+         * Adds the events handed over by a neighbour to the tree and widens the range of the shard, which is one of the
+         * two steps of the move of the split point.
+         * @param request The ABSORB request.
+         */
+        private void absorb(Request request) {
+            ArrayList<RedBlackTree.RedBlackTreeNode> events =
+                    new ArrayList<>(redBlackTree.size() + request.events.size());
+            if(request.fromLeft) {
+                events.addAll(request.events);
+                redBlackTree.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE, events::add);
+                low = request.low;
+            } else {
+                redBlackTree.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE, events::add);
+                events.addAll(request.events);
+                high = request.high;
+            }
+            redBlackTree.buildTreeFromSortedList(events.size(), events.iterator());
+            publishedSize = redBlackTree.size();
+            finishMoveStep(request.fromLeft ? index : index + 1);
+        }
+    }
+
+    /**
+     * Finishes a step of the move of a split point. The move ends with its second step, as readers which see no move
+     * in progress must find both the new split point and the events on the right side of it.
+     * @param splitPoint The index of the split point in lowerBounds.
+     */
+    private void finishMoveStep(int splitPoint) {
+        if(splitPointsMoving.decrementAndGet(splitPoint) == 0) {
+            migrationsInProgress.decrementAndGet();
+        }
+    }
+
+    /**
+     * Creates a sharded event counter with one shard per core, splitting the ID space evenly. A count which overflows
+     * 64 bits throws.
+     */
+    public ShardedEventCounter() {
+        this(Runtime.getRuntime().availableProcessors(), CountOverflowPolicy.PROMOTE);
+    }
+
+    /**
+     * Creates a sharded event counter which splits the ID space evenly and starts one thread per shard.
+     * @param shardCount The number of shards.
+     * @param overflowPolicy What is done with a count which overflows.
+     * @throws IllegalArgumentException If shardCount is less than 1.
+     */
+    public ShardedEventCounter(int shardCount, CountOverflowPolicy overflowPolicy) {
+        if(shardCount < 1) {
+            throw new IllegalArgumentException("Shard count " + shardCount + " is less than 1");
+        }
+        this.overflowPolicy = overflowPolicy;
+        int[] initialLowerBounds = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            initialLowerBounds[i] = (int) (Integer.MIN_VALUE + (1L << 32) * i / shardCount);
+        }
+        lowerBounds = new AtomicReference<>(initialLowerBounds);
+        splitPointsMoving = new AtomicIntegerArray(shardCount);
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            long high = (i < shardCount - 1) ? initialLowerBounds[i + 1] - 1L : Integer.MAX_VALUE;
+            shards[i] = new Shard(i, initialLowerBounds[i], high);
+        }
+        requests = ThreadLocal.withInitial(() -> {
+            Request[] threadRequests = new Request[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                threadRequests[i] = new Request();
+            }
+            return threadRequests;
+        });
+        for (Shard shard : shards) {
+            shard.thread.start();
+        }
+    }
+
+    /**
+     * Replaces the events of the counter with a sorted list of events and places the split points so that every
+     * shard gets the same number of events. The shards build their trees in parallel. This must not run concurrently
+     * with other operations.
+     * @param eventArrayList The list of events in ascending order of ID.
+     */
+    public void buildEventCounter(ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList) {
+        while (migrationsInProgress.get() != 0) {
+            Thread.yield();
+        }
+        int size = eventArrayList.size();
+        int[] newLowerBounds = new int[shards.length];
+        newLowerBounds[0] = Integer.MIN_VALUE;
+        for (int i = 1; i < shards.length; i++) {
+            int first = (int) ((long) size * i / shards.length);
+            newLowerBounds[i] = (first < size) ? eventArrayList.get(first).getID() : Integer.MAX_VALUE;
+            newLowerBounds[i] = Math.max(newLowerBounds[i], newLowerBounds[i - 1]);
+        }
+        Request[] buildRequests = new Request[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            int first = (int) ((long) size * i / shards.length);
+            int end = (int) ((long) size * (i + 1) / shards.length);
+            buildRequests[i] = new Request();
+            buildRequests[i].prepare(BUILD, 0, 0, 0);
+            buildRequests[i].events = eventArrayList.subList(first, end);
+            buildRequests[i].low = newLowerBounds[i];
+            buildRequests[i].high = (i < shards.length - 1) ? newLowerBounds[i + 1] - 1L : Integer.MAX_VALUE;
+            shards[i].submit(buildRequests[i]);
+        }
+        long newTotalCount = 0;
+        for (RedBlackTree.RedBlackTreeNode event : eventArrayList) {
+            newTotalCount += event.getCount();
+        }
+        for (Request buildRequest : buildRequests) {
+            await(buildRequest);
+        }
+        totalCount.set(newTotalCount);
+        lowerBounds.set(newLowerBounds);
+    }
+
+    /**
+     * Adds the amount of an Increase to the total count after applying the overflow policy to it.
+     * @param amount The amount of the Increase.
+     * @return The amount added, which SATURATE may have lowered.
+     * @throws ArithmeticException If the total count overflows and the policy is not SATURATE.
+     */
+    private long reserveTotal(long amount) {
+        while (true) {
+            long total = totalCount.get();
+            long reserved = overflowPolicy.limitTotal(total, amount);
+            if(totalCount.compareAndSet(total, total + reserved)) {
+                return reserved;
+            }
+        }
+    }
+
+    /**
+     * Increases the count of the event ID by amount. If ID is not present, inserts it.
+     * @param ID The event ID whose count has to be increased.
+     * @param amount The amount by which the count has to be increase.
+     * @return The final count of the event ID after addition.
+     * @throws ArithmeticException If the total count overflows and the policy is not SATURATE.
+     */
+    public long increase(int ID, int amount) {
+        return callOwner(INCREASE, ID, amount);
+    }
+
+    /**
+     * Decreases the count of the event ID by amount. If the ID's count becomes less than or equal to 0, removes the ID
+     * from the counter.
+     * @param ID The event ID whose count is to be decreased.
+     * @param amount The amount by which to decrease.
+     * @return The final count or 0.
+     */
+    public long reduce(int ID, int amount) {
+        return callOwner(REDUCE, ID, amount);
+    }
+
+    /**
+     * Searches the counter for the event ID and returns the count. Returns 0, if not present.
+     * @param ID The event ID whose count is to be returned.
+     * @return The count of the event or 0.
+     */
+    public long count(int ID) {
+        return callOwner(COUNT, ID, 0);
+    }
+
+    /**
+     * Returns the total count for IDs between ID1 and ID2. The shards overlapping the range add up their part in
+     * parallel, each in O(lg n) time.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @return The total count.
+     */
+    public long inRange(int ID1, int ID2) {
+        if(ID1 > ID2) {
+            return 0;
+        }
+        Request[] threadRequests = requests.get();
+        while (true) {
+            long migrations = awaitNoMigration();
+            int[] currentLowerBounds = lowerBounds.get();
+            int first = shardOf(currentLowerBounds, ID1), last = shardOf(currentLowerBounds, ID2);
+            for (int i = first; i <= last; i++) {
+                threadRequests[i].prepare(IN_RANGE, ID1, ID2, 0);
+                shards[i].submit(threadRequests[i]);
+            }
+            long sumInRange = 0;
+            for (int i = first; i <= last; i++) {
+                await(threadRequests[i]);
+                sumInRange += threadRequests[i].result;
+            }
+            if(migrationsStarted.get() == migrations) {
+                return sumInRange;
+            }
+        }
+    }
+
+    /**
+     * Returns the event with the lowest ID that is greater than ID, asking the shards from the owner of ID upwards
+     * until one has such an event.
+     * @param ID The event ID whose next is to be found.
+     * @return A copy of the next event, or null.
+     */
+    public RedBlackTree.RedBlackTreeNode next(int ID) {
+        return neighbourEvent(NEXT, ID);
+    }
+
+    /**
+     * Returns the event with the greatest ID that is less than ID, asking the shards from the owner of ID downwards
+     * until one has such an event.
+     * @param ID The ID whose previous is to be found.
+     * @return A copy of the previous event, or null.
+     */
+    public RedBlackTree.RedBlackTreeNode previous(int ID) {
+        return neighbourEvent(PREVIOUS, ID);
+    }
+
+    /**
+     * Returns the current split points: element i is the smallest ID owned by shard i.
+     * @return A copy of the split points.
+     */
+    public int[] getSplitPoints() {
+        return lowerBounds.get().clone();
+    }
+
+    /**
+     * Stops the shard threads once they have applied the requests already sent. The counter must not be used
+     * afterwards. If the current thread is interrupted, the remaining shard threads are stopped without waiting for
+     * them to end and the interrupt status is kept.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            Request stop = new Request();
+            stop.prepare(STOP, 0, 0, 0);
+            shard.submit(stop);
+            await(stop);
+        }
+        try {
+            for (Shard shard : shards) {
+                shard.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a point operation to the shard owning ID and waits for the answer.
+     * @param operation The kind of the request.
+     * @param ID The event ID.
+     * @param amount The amount of an Increase or Reduce.
+     * @return The count of the ID afterwards.
+     */
+    private long callOwner(int operation, int ID, int amount) {
+        Request request = requests.get()[0];
+        request.prepare(operation, ID, ID, amount);
+        route(request);
+        await(request);
+        if(request.error != null) {
+            throw request.error;
+        }
+        return request.result;
+    }
+
+    /**
+     * Walks the shards from the owner of ID in the direction of a Next or Previous until a shard has an event beyond
+     * ID, and starts again if a split point moved meanwhile.
+     * @param operation NEXT or PREVIOUS.
+     * @param ID The event ID.
+     * @return A copy of the event found, or null.
+     */
+    private RedBlackTree.RedBlackTreeNode neighbourEvent(int operation, int ID) {
+        Request request = requests.get()[0];
+        int step = (operation == NEXT) ? 1 : -1;
+        while (true) {
+            long migrations = awaitNoMigration();
+            RedBlackTree.RedBlackTreeNode event = null;
+            for (int i = shardOf(lowerBounds.get(), ID); event == null && i >= 0 && i < shards.length; i += step) {
+                request.prepare(operation, ID, ID, 0);
+                shards[i].submit(request);
+                await(request);
+                event = request.event;
+            }
+            if(migrationsStarted.get() == migrations) {
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Waits until no split point is moving.
+     * @return The number of moves started so far, to be compared once the caller has its answer.
+     */
+    private long awaitNoMigration() {
+        while (true) {
+            long migrations = migrationsStarted.get();
+            if(migrationsInProgress.get() == 0) {
+                return migrations;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Sends a request to the shard owning its ID under the current split points.
+     * @param request The request.
+     */
+    private void route(Request request) {
+        shards[shardOf(lowerBounds.get(), request.ID1)].submit(request);
+    }
+
+    /**
+     * Returns the shard owning an ID: the last shard whose lower bound is not greater than ID.
+     * @param lowerBounds The split points.
+     * @param ID The event ID.
+     * @return The index of the shard.
+     */
+    private static int shardOf(int[] lowerBounds, int ID) {
+        int low = 0, high = lowerBounds.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(lowerBounds[middle] <= ID) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Marks a request as answered and wakes the thread waiting for it.
+     * @param request The request.
+     */
+    private static void complete(Request request) {
+        Thread waiter = request.waiter;
+        request.done = true;
+        if(waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Waits until a request is answered, spinning briefly and then parking.
+     * @param request The request.
+     */
+    private static void await(Request request) {
+        for (int spins = 0; !request.done; spins++) {
+            if(spins < SPIN_LIMIT) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(request);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of an event which can be handed to another thread.
+     * @param redBlackTreeNode The event, or null.
+     * @return The copy, or null.
+     */
+    private static RedBlackTree.RedBlackTreeNode copyOf(RedBlackTree.RedBlackTreeNode redBlackTreeNode) {
+        return (redBlackTreeNode != null)
+                ? new RedBlackTree.RedBlackTreeNode(redBlackTreeNode.getID(), redBlackTreeNode.getCount()) : null;
+    }
+}
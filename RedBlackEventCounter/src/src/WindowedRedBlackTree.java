@@ -0,0 +1,804 @@
+import java.util.Arrays;
+
+/**
+ * This class is a Red Black Tree of event IDs which counts events in a ring of time buckets per ID, so the counts of
+ * the last few buckets can be summed per ID and per range of IDs. Time is measured in epochs, the number of the
+ * current bucket, which the caller derives from its clock. Nodes are stored in parallel primitive arrays like in
+ * ArrayRedBlackTree, with index 0 as a black sentinel used in place of null. The tree exposes the below operations:
+ * 1. Record
+ * 2. Count
+ * 3. RangeSum
+ * 4. Insert
+ * 5. Delete
+ * 6. Search
+ * 7. Expire
+ * Every node holds bucketCount slots for its own counts and bucketCount slots for the sums over its subtree, slot
+ * epoch % bucketCount holding epoch. A slot is only valid for epochs up to the newest epoch written to the node, and
+ * stale slots are cleared when that epoch moves forward, so buckets expire lazily and no operation sweeps the whole
+ * tree. Nodes whose buckets have all expired are removed a few at a time by every Record.
+ */
+public class WindowedRedBlackTree {
+
+    /**
+     * The index of the sentinel node which stands for null.
+     */
+    public static final int NIL = 0;
+
+    /**
+     * The bit of a parent index which marks the node as red.
+     */
+    private static final int RED_BIT = 0x80000000;
+
+    /**
+     * The default number of nodes to allocate room for.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The number of nodes checked for expiry by every Record. As a Record inserts at most one node, checking more
+     * than one keeps the number of expired nodes bounded.
+     */
+    private static final int EXPIRY_STEPS = 2;
+
+    /**
+     * Holds the number of buckets in the ring of every node.
+     */
+    private final int bucketCount;
+
+    /**
+     * Holds the ID of every node
+     */
+    private int[] IDs;
+
+    /**
+     * Holds the buckets of every node: bucketCount own counts followed by bucketCount subtree sums.
+     */
+    private long[] buckets;
+
+    /**
+     * Hold the newest epoch written to the own buckets and to the subtree buckets of every node. The sentinel's
+     * subtree epoch is Long.MIN_VALUE, so its empty buckets are never read.
+     */
+    private long[] lastEpochs, subtreeLastEpochs;
+
+    /**
+     * Hold the indices of the left and right children of every node
+     */
+    private int[] leftChildren, rightChildren;
+
+    /**
+     * Holds the index of the parent of every node with the color packed into the sign bit
+     */
+    private int[] parentsAndColors;
+
+    /**
+     * Holds the index of the root node.
+     */
+    private int rootIndex = NIL;
+
+    /**
+     * Holds the number of nodes in the tree.
+     */
+    private int size = 0;
+
+    /**
+     * Holds the lowest index which has never been handed out.
+     */
+    private int nextUnusedIndex = 1;
+
+    /**
+     * Holds the head of the list of recycled indices. The list is linked through the left children array.
+     */
+    private int freeListHead = NIL;
+
+    /**
+     * Holds the newest epoch seen by the tree. Older epochs passed in are moved up to it.
+     */
+    private long latestEpoch = Long.MIN_VALUE;
+
+    /**
+     * Holds the index of the next node to be checked for expiry, or NIL to start again from the minimum.
+     */
+    private int sweepNode = NIL;
+
+    /**
+     * Creates an empty tree with room for a default number of nodes.
+     * @param bucketCount The number of buckets in the ring of every ID.
+     */
+    public WindowedRedBlackTree(int bucketCount) {
+        this(bucketCount, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty tree with room for capacity nodes before the arrays have to grow.
+     * @param bucketCount The number of buckets in the ring of every ID.
+     * @param capacity The number of nodes to allocate room for.
+     * @throws IllegalArgumentException If bucketCount is less than 1.
+     */
+    public WindowedRedBlackTree(int bucketCount, int capacity) {
+        if(bucketCount < 1) {
+            throw new IllegalArgumentException("Bucket count " + bucketCount + " is less than 1");
+        }
+        this.bucketCount = bucketCount;
+        int maximumCapacity = (Integer.MAX_VALUE - 8) / (2 * bucketCount);
+        allocate(Math.min(Math.max(capacity, 1) + 1, maximumCapacity));
+    }
+
+    /**
+     * Returns the number of buckets in the ring of every ID.
+     * @return The number of buckets.
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * Returns the number of nodes in the tree. This includes nodes whose buckets have expired but which have not been
+     * removed yet.
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds amount to the bucket of epoch in the ring of ID, inserting ID if it is not present, and checks a few nodes
+     * for expiry. This runs in O(lg n) time once per epoch and node; the first write of a new epoch to a node also
+     * clears its stale buckets.
+     * @param ID The event ID.
+     * @param amount The amount to be added.
+     * @param epoch The number of the current bucket.
+     */
+    public void record(int ID, long amount, long epoch) {
+        epoch = advanceLatestEpoch(epoch);
+        int slot = slotOf(epoch);
+        int node = treeSearch(ID);
+        if(node != NIL) {
+            advanceOwnBuckets(node, epoch);
+            buckets[ownOffset(node) + slot] += amount;
+            for(int ancestor = node; ancestor != NIL; ancestor = parentOf(ancestor)) {
+                advanceSubtreeBuckets(ancestor, epoch);
+                buckets[subtreeOffset(ancestor) + slot] += amount;
+            }
+        } else {
+            redBlackInsert(ID, amount, epoch);
+        }
+        for (int i = 0; i < EXPIRY_STEPS; i++) {
+            expireStep(epoch);
+        }
+    }
+
+    /**
+     * Returns the total amount recorded for ID in the last windowBuckets buckets up to and including epoch.
+     * @param ID The event ID.
+     * @param epoch The number of the current bucket.
+     * @param windowBuckets The number of buckets in the window, between 1 and bucketCount.
+     * @return The windowed count or 0 if ID is not present.
+     */
+    public long count(int ID, long epoch, int windowBuckets) {
+        int node = treeSearch(ID);
+        if(node == NIL) {
+            return 0;
+        }
+        return windowSum(ownOffset(node), lastEpochs[node], advanceLatestEpoch(epoch), windowBuckets);
+    }
+
+    /**
+     * Returns the total amount recorded for the IDs between ID1 and ID2 in the last windowBuckets buckets up to and
+     * including epoch. This runs in O(windowBuckets lg n) time using the subtree buckets.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param epoch The number of the current bucket.
+     * @param windowBuckets The number of buckets in the window, between 1 and bucketCount.
+     * @return The windowed total of the range.
+     */
+    public long rangeSum(int ID1, int ID2, long epoch, int windowBuckets) {
+        if(ID1 > ID2) {
+            return 0;
+        }
+        epoch = advanceLatestEpoch(epoch);
+        long sumInRange = prefixSum(ID2, epoch, windowBuckets);
+        if(ID1 > Integer.MIN_VALUE) {
+            sumInRange -= prefixSum(ID1 - 1, epoch, windowBuckets);
+        }
+        return sumInRange;
+    }
+
+    /**
+     * Returns the windowed total of the IDs less than or equal to ID.
+     * @param ID The right limit of the prefix.
+     * @param epoch The number of the current bucket.
+     * @param windowBuckets The number of buckets in the window.
+     * @return The windowed total of the IDs up to ID.
+     */
+    private long prefixSum(int ID, long epoch, int windowBuckets) {
+        long sum = 0;
+        int node = rootIndex;
+        while (node != NIL) {
+            if(IDs[node] <= ID) {
+                int left = leftChildren[node];
+                sum += windowSum(ownOffset(node), lastEpochs[node], epoch, windowBuckets)
+                        + windowSum(subtreeOffset(left), subtreeLastEpochs[left], epoch, windowBuckets);
+                node = rightChildren[node];
+            } else {
+                node = leftChildren[node];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Adds up the buckets of a ring for the epochs in the window. Epochs newer than the newest epoch written to the
+     * ring are empty, and epochs older than the window have been overwritten or are not read.
+     * @param offset The offset of the ring in the buckets array.
+     * @param lastEpoch The newest epoch written to the ring.
+     * @param epoch The number of the current bucket, not older than lastEpoch.
+     * @param windowBuckets The number of buckets in the window.
+     * @return The sum of the buckets in the window.
+     */
+    private long windowSum(int offset, long lastEpoch, long epoch, int windowBuckets) {
+        long sum = 0;
+        for (long windowEpoch = Math.min(epoch, lastEpoch); windowEpoch > epoch - windowBuckets; windowEpoch--) {
+            sum += buckets[offset + slotOf(windowEpoch)];
+        }
+        return sum;
+    }
+
+    /**
+     * Checks the next node of the sweep and deletes it if all its buckets have expired. The sweep visits the nodes in
+     * order of ID and starts again from the minimum after the maximum. This runs in amortized O(lg n) time.
+     * @param epoch The number of the current bucket.
+     */
+    private void expireStep(long epoch) {
+        int node = (sweepNode != NIL) ? sweepNode : treeMinimum(rootIndex);
+        if(node == NIL) {
+            return;
+        }
+        sweepNode = nodeSuccessor(node); //Deleting node moves the successor but keeps its index
+        if(lastEpochs[node] <= epoch - bucketCount) {
+            redBlackDelete(node);
+        }
+    }
+
+    /**
+     * Inserts a node with the given ID holding amount in the bucket of epoch.
+     * @param ID The ID of the node to be inserted into the tree.
+     * @param amount The amount recorded for the new node.
+     * @param epoch The number of the current bucket.
+     */
+    private void redBlackInsert(int ID, long amount, long epoch) {
+        int parent = NIL;
+        int tempNode = rootIndex;
+        while (tempNode != NIL) {
+            parent = tempNode;
+            if(ID < IDs[tempNode]) {
+                tempNode = leftChildren[tempNode];
+            } else {
+                tempNode = rightChildren[tempNode];
+            }
+        }
+        int slot = slotOf(epoch);
+        int newNode = allocateNode(ID, epoch);
+        buckets[ownOffset(newNode) + slot] = amount;
+        buckets[subtreeOffset(newNode) + slot] = amount;
+        parentsAndColors[newNode] = parent | RED_BIT; //Initialize nodes with RED color
+        if(parent == NIL) {
+            rootIndex = newNode;
+        } else if(ID < IDs[parent]) {
+            leftChildren[parent] = newNode;
+        } else {
+            rightChildren[parent] = newNode;
+        }
+        for(int ancestor = parent; ancestor != NIL; ancestor = parentOf(ancestor)) {
+            advanceSubtreeBuckets(ancestor, epoch);
+            buckets[subtreeOffset(ancestor) + slot] += amount;
+        }
+        redBlackInsertFixUp(newNode);
+        size++;
+    }
+
+    /**
+     * Restores the red black properties which might have been violated after insertion of a new node.
+     * @param node The index of the newly inserted node.
+     */
+    private void redBlackInsertFixUp(int node) {
+        while (isRed(parentOf(node))) {
+            int parent = parentOf(node);
+            int grandParent = parentOf(parent);
+            if(parent == leftChildren[grandParent]) {
+                int uncle = rightChildren[grandParent];
+                if(isRed(uncle)) {
+                    setBlack(parent);
+                    setBlack(uncle);
+                    setRed(grandParent);
+                    node = grandParent;
+                } else {
+                    if(node == rightChildren[parent]) {
+                        node = parent;
+                        leftRotate(node);
+                        parent = parentOf(node);
+                    }
+                    setBlack(parent);
+                    setRed(grandParent);
+                    rightRotate(grandParent);
+                }
+            } else {
+                int uncle = leftChildren[grandParent];
+                if(isRed(uncle)) {
+                    setBlack(parent);
+                    setBlack(uncle);
+                    setRed(grandParent);
+                    node = grandParent;
+                } else {
+                    if(node == leftChildren[parent]) {
+                        node = parent;
+                        rightRotate(node);
+                        parent = parentOf(node);
+                    }
+                    setBlack(parent);
+                    setRed(grandParent);
+                    leftRotate(grandParent);
+                }
+            }
+        }
+        setBlack(rootIndex);
+    }
+
+    /**
+     * Performs left rotation on the subtree to restore balance.
+     * @param node The index of the node on which left rotation has to be performed.
+     */
+    private void leftRotate(int node) {
+        int right = rightChildren[node];
+        rightChildren[node] = leftChildren[right]; //Turn right's left subtree into node's right subtree.
+        if(leftChildren[right] != NIL) {
+            setParent(leftChildren[right], node);
+        }
+        int parent = parentOf(node);
+        setParent(right, parent); //Link node's parent to right
+        if(parent == NIL) {
+            rootIndex = right;
+        } else if(node == leftChildren[parent]) {
+            leftChildren[parent] = right;
+        } else {
+            rightChildren[parent] = right;
+        }
+        leftChildren[right] = node; //Put node on right's left
+        setParent(node, right);
+        copySubtreeBuckets(node, right); //right now roots the subtree node rooted
+        updateSubtreeBuckets(node);
+    }
+
+    /**
+     * Performs right rotation on the subtree to restore balance.
+     * @param node The index of the node on which right rotation has to be performed.
+     */
+    private void rightRotate(int node) {
+        int left = leftChildren[node];
+        leftChildren[node] = rightChildren[left]; //Turn left's right subtree into node's left subtree.
+        if(rightChildren[left] != NIL) {
+            setParent(rightChildren[left], node);
+        }
+        int parent = parentOf(node);
+        setParent(left, parent); //Link node's parent to left
+        if(parent == NIL) {
+            rootIndex = left;
+        } else if(node == rightChildren[parent]) {
+            rightChildren[parent] = left;
+        } else {
+            leftChildren[parent] = left;
+        }
+        rightChildren[left] = node; //Put node on left's right
+        setParent(node, left);
+        copySubtreeBuckets(node, left); //left now roots the subtree node rooted
+        updateSubtreeBuckets(node);
+    }
+
+    /**
+     * Deletes a node from the tree and re-balances the tree. The index of the node is recycled.
+     * @param nodeToDelete The index of the node to be deleted.
+     */
+    private void redBlackDelete(int nodeToDelete) {
+        int replacementNode = nodeToDelete;
+        boolean replacementNodeOriginallyRed = isRed(replacementNode);
+        int replacementSuccessor;
+        if(leftChildren[nodeToDelete] == NIL) {
+            replacementSuccessor = rightChildren[nodeToDelete];
+            redBlackTransplant(nodeToDelete, replacementSuccessor);
+        } else if(rightChildren[nodeToDelete] == NIL) {
+            replacementSuccessor = leftChildren[nodeToDelete];
+            redBlackTransplant(nodeToDelete, replacementSuccessor);
+        } else {
+            replacementNode = treeMinimum(rightChildren[nodeToDelete]);
+            replacementNodeOriginallyRed = isRed(replacementNode);
+            replacementSuccessor = rightChildren[replacementNode];
+            if(parentOf(replacementNode) == nodeToDelete) {
+                setParent(replacementSuccessor, replacementNode); //The sentinel's parent is used by the fix up
+            } else {
+                redBlackTransplant(replacementNode, replacementSuccessor);
+                rightChildren[replacementNode] = rightChildren[nodeToDelete];
+                setParent(rightChildren[replacementNode], replacementNode);
+            }
+            redBlackTransplant(nodeToDelete, replacementNode);
+            leftChildren[replacementNode] = leftChildren[nodeToDelete];
+            setParent(leftChildren[replacementNode], replacementNode);
+            if(isRed(nodeToDelete)) {
+                setRed(replacementNode);
+            } else {
+                setBlack(replacementNode);
+            }
+        }
+        for(int ancestor = parentOf(replacementSuccessor); ancestor != NIL; ancestor = parentOf(ancestor)) {
+            updateSubtreeBuckets(ancestor);
+        }
+        if(!replacementNodeOriginallyRed) {
+            redBlackDeleteFixUp(replacementSuccessor);
+        }
+        parentsAndColors[NIL] = NIL;
+        freeNode(nodeToDelete);
+        size--;
+    }
+
+    /**
+     * Replaces one subtree as a child of its parent with another subtree.
+     * @param nodeToReplace The index of the root of the subtree to be replaced.
+     * @param nodeToReplaceWith The index of the root of the subtree which replaces the original node.
+     */
+    private void redBlackTransplant(int nodeToReplace, int nodeToReplaceWith) {
+        int parent = parentOf(nodeToReplace);
+        if(parent == NIL) {
+            rootIndex = nodeToReplaceWith;
+        } else if(nodeToReplace == leftChildren[parent]) {
+            leftChildren[parent] = nodeToReplaceWith;
+        } else {
+            rightChildren[parent] = nodeToReplaceWith;
+        }
+        setParent(nodeToReplaceWith, parent);
+    }
+
+    /**
+     * Restores the red black properties that might have been violated after deletion of a node.
+     * @param node The index of the root of the subtree which needs to be re-balanced. This may be the sentinel.
+     */
+    private void redBlackDeleteFixUp(int node) {
+        while (node != rootIndex && !isRed(node)) {
+            int parent = parentOf(node);
+            if(node == leftChildren[parent]) {
+                int siblingNode = rightChildren[parent];
+                if(isRed(siblingNode)) {
+                    setBlack(siblingNode);
+                    setRed(parent);
+                    leftRotate(parent);
+                    siblingNode = rightChildren[parent];
+                }
+                if(!isRed(leftChildren[siblingNode]) && !isRed(rightChildren[siblingNode])) {
+                    setRed(siblingNode);
+                    node = parent;
+                } else {
+                    if(!isRed(rightChildren[siblingNode])) {
+                        setBlack(leftChildren[siblingNode]);
+                        setRed(siblingNode);
+                        rightRotate(siblingNode);
+                        siblingNode = rightChildren[parent];
+                    }
+                    copyColor(parent, siblingNode);
+                    setBlack(parent);
+                    setBlack(rightChildren[siblingNode]);
+                    leftRotate(parent);
+                    node = rootIndex;
+                }
+            } else {
+                int siblingNode = leftChildren[parent];
+                if(isRed(siblingNode)) {
+                    setBlack(siblingNode);
+                    setRed(parent);
+                    rightRotate(parent);
+                    siblingNode = leftChildren[parent];
+                }
+                if(!isRed(rightChildren[siblingNode]) && !isRed(leftChildren[siblingNode])) {
+                    setRed(siblingNode);
+                    node = parent;
+                } else {
+                    if(!isRed(leftChildren[siblingNode])) {
+                        setBlack(rightChildren[siblingNode]);
+                        setRed(siblingNode);
+                        leftRotate(siblingNode);
+                        siblingNode = leftChildren[parent];
+                    }
+                    copyColor(parent, siblingNode);
+                    setBlack(parent);
+                    setBlack(leftChildren[siblingNode]);
+                    rightRotate(parent);
+                    node = rootIndex;
+                }
+            }
+        }
+        setBlack(node);
+    }
+
+    /**
+     * Finds the node in a subtree whose ID is a minimum.
+     * @param node The index of the root of the subtree which needs to be searched for minimum.
+     * @return The index of the node containing the minimum element in the subtree.
+     */
+    private int treeMinimum(int node) {
+        while (leftChildren[node] != NIL) {
+            node = leftChildren[node];
+        }
+        return node;
+    }
+
+    /**
+     * Searches for a node with the input ID in the tree.
+     * @param theID The ID to look for in the tree.
+     * @return The index of the node containing the ID or NIL.
+     */
+    public int treeSearch(int theID) {
+        int node = rootIndex;
+        while (node != NIL) {
+            if(theID < IDs[node]) {
+                node = leftChildren[node];
+            } else if(theID > IDs[node]) {
+                node = rightChildren[node];
+            } else {
+                return node;
+            }
+        }
+        return NIL;
+    }
+
+    /**
+     * Returns the node which follows a node in the sorted order, using the parent indices. This runs in amortized
+     * O(1) time when stepping through the tree.
+     * @param node The index of the node whose successor is needed.
+     * @return The index of the next node or NIL if node is the maximum.
+     */
+    private int nodeSuccessor(int node) {
+        if(rightChildren[node] != NIL) {
+            return treeMinimum(rightChildren[node]);
+        }
+        int parent = parentOf(node);
+        while (parent != NIL && node == rightChildren[parent]) {
+            node = parent;
+            parent = parentOf(parent);
+        }
+        return parent;
+    }
+
+    /**
+     * Moves the newest epoch seen by the tree forward.
+     * @param epoch The number of the current bucket.
+     * @return The newest epoch seen, which is epoch unless an earlier call passed a newer one.
+     */
+    private long advanceLatestEpoch(long epoch) {
+        if(epoch > latestEpoch) {
+            latestEpoch = epoch;
+        }
+        return latestEpoch;
+    }
+
+    /**
+     * Clears the own buckets of a node which held epochs that epoch replaces.
+     * @param node The index of the node.
+     * @param epoch The number of the current bucket.
+     */
+    private void advanceOwnBuckets(int node, long epoch) {
+        if(epoch > lastEpochs[node]) {
+            clearBuckets(ownOffset(node), lastEpochs[node], epoch);
+            lastEpochs[node] = epoch;
+        }
+    }
+
+    /**
+     * Clears the subtree buckets of a node which held epochs that epoch replaces.
+     * @param node The index of the node.
+     * @param epoch The number of the current bucket.
+     */
+    private void advanceSubtreeBuckets(int node, long epoch) {
+        if(epoch > subtreeLastEpochs[node]) {
+            clearBuckets(subtreeOffset(node), subtreeLastEpochs[node], epoch);
+            subtreeLastEpochs[node] = epoch;
+        }
+    }
+
+    /**
+     * Clears the buckets of a ring for the epochs after lastEpoch up to epoch. This touches at most bucketCount
+     * buckets.
+     * @param offset The offset of the ring in the buckets array.
+     * @param lastEpoch The newest epoch written to the ring.
+     * @param epoch The newer epoch about to be written.
+     */
+    private void clearBuckets(int offset, long lastEpoch, long epoch) {
+        for (long clearedEpoch = Math.max(lastEpoch + 1, epoch - bucketCount + 1); clearedEpoch <= epoch;
+             clearedEpoch++) {
+            buckets[offset + slotOf(clearedEpoch)] = 0;
+        }
+    }
+
+    /**
+     * Gives a node the subtree buckets of another node.
+     * @param from The index of the node whose subtree buckets are copied.
+     * @param to The index of the node receiving them.
+     */
+    private void copySubtreeBuckets(int from, int to) {
+        System.arraycopy(buckets, subtreeOffset(from), buckets, subtreeOffset(to), bucketCount);
+        subtreeLastEpochs[to] = subtreeLastEpochs[from];
+    }
+
+    /**
+     * Recomputes the subtree buckets of a node from its own buckets and the subtree buckets of its children. The
+     * rings may have moved to different epochs, so every slot adds up only the rings which hold the newest epoch of
+     * that slot.
+     * @param node The index of the node.
+     */
+    private void updateSubtreeBuckets(int node) {
+        int left = leftChildren[node], right = rightChildren[node];
+        long ownEpoch = lastEpochs[node], leftEpoch = subtreeLastEpochs[left], rightEpoch = subtreeLastEpochs[right];
+        long epoch = Math.max(ownEpoch, Math.max(leftEpoch, rightEpoch));
+        int ownOffset = ownOffset(node), leftOffset = subtreeOffset(left), rightOffset = subtreeOffset(right);
+        int subtreeOffset = subtreeOffset(node);
+        for (int slot = 0; slot < bucketCount; slot++) {
+            long slotEpoch = epoch - Math.floorMod(epoch - slot, bucketCount); //The newest epoch held by slot
+            long sum = 0;
+            if(slotEpoch <= ownEpoch) {
+                sum += buckets[ownOffset + slot];
+            }
+            if(slotEpoch <= leftEpoch) {
+                sum += buckets[leftOffset + slot];
+            }
+            if(slotEpoch <= rightEpoch) {
+                sum += buckets[rightOffset + slot];
+            }
+            buckets[subtreeOffset + slot] = sum;
+        }
+        subtreeLastEpochs[node] = epoch;
+    }
+
+    /**
+     * Returns the slot of an epoch in a ring.
+     * @param epoch The epoch.
+     * @return The slot between 0 and bucketCount - 1.
+     */
+    private int slotOf(long epoch) {
+        return (int) Math.floorMod(epoch, (long) bucketCount);
+    }
+
+    /**
+     * Returns the offset of the own buckets of a node in the buckets array.
+     * @param node The index of the node.
+     * @return The offset.
+     */
+    private int ownOffset(int node) {
+        return node * 2 * bucketCount;
+    }
+
+    /**
+     * Returns the offset of the subtree buckets of a node in the buckets array.
+     * @param node The index of the node.
+     * @return The offset.
+     */
+    private int subtreeOffset(int node) {
+        return (node * 2 + 1) * bucketCount;
+    }
+
+    /**
+     * Hands out the index of a fresh red leaf holding ID with empty buckets, growing the arrays if needed.
+     * @param ID The ID of the node.
+     * @param epoch The number of the current bucket.
+     * @return The index of the new node.
+     */
+    private int allocateNode(int ID, long epoch) {
+        int node;
+        if(freeListHead != NIL) {
+            node = freeListHead;
+            freeListHead = leftChildren[node];
+        } else {
+            if(nextUnusedIndex == IDs.length) {
+                grow();
+            }
+            node = nextUnusedIndex++;
+        }
+        IDs[node] = ID;
+        Arrays.fill(buckets, ownOffset(node), ownOffset(node + 1), 0);
+        lastEpochs[node] = epoch;
+        subtreeLastEpochs[node] = epoch;
+        leftChildren[node] = NIL;
+        rightChildren[node] = NIL;
+        return node;
+    }
+
+    /**
+     * Returns the index of a deleted node to the free list.
+     * @param node The index of the deleted node.
+     */
+    private void freeNode(int node) {
+        leftChildren[node] = freeListHead;
+        freeListHead = node;
+    }
+
+    /**
+     * Grows the arrays by half of their current length.
+     */
+    private void grow() {
+        int capacity = IDs.length;
+        int maximumCapacity = (Integer.MAX_VALUE - 8) / (2 * bucketCount);
+        if(capacity == maximumCapacity) {
+            throw new IllegalStateException("Windowed Red Black Tree is full");
+        }
+        int newCapacity = (int) Math.min((long) capacity + (capacity >> 1) + 1, maximumCapacity);
+        IDs = Arrays.copyOf(IDs, newCapacity);
+        buckets = Arrays.copyOf(buckets, newCapacity * 2 * bucketCount);
+        lastEpochs = Arrays.copyOf(lastEpochs, newCapacity);
+        subtreeLastEpochs = Arrays.copyOf(subtreeLastEpochs, newCapacity);
+        leftChildren = Arrays.copyOf(leftChildren, newCapacity);
+        rightChildren = Arrays.copyOf(rightChildren, newCapacity);
+        parentsAndColors = Arrays.copyOf(parentsAndColors, newCapacity);
+    }
+
+    /**
+     * Allocates empty arrays of the given length.
+     * @param capacity The length of the arrays including the sentinel.
+     */
+    private void allocate(int capacity) {
+        IDs = new int[capacity];
+        buckets = new long[capacity * 2 * bucketCount];
+        lastEpochs = new long[capacity];
+        subtreeLastEpochs = new long[capacity];
+        subtreeLastEpochs[NIL] = Long.MIN_VALUE;
+        leftChildren = new int[capacity];
+        rightChildren = new int[capacity];
+        parentsAndColors = new int[capacity];
+    }
+
+    /**
+     * Returns the index of the parent of a node.
+     * @param node The index of the node.
+     * @return The index of the parent.
+     */
+    private int parentOf(int node) {
+        return parentsAndColors[node] & ~RED_BIT;
+    }
+
+    /**
+     * Sets the parent of a node and keeps its color.
+     * @param node The index of the node.
+     * @param parent The index of the new parent.
+     */
+    private void setParent(int node, int parent) {
+        parentsAndColors[node] = (parentsAndColors[node] & RED_BIT) | parent;
+    }
+
+    /**
+     * Returns true if a node is red. The sentinel is always black.
+     * @param node The index of the node.
+     * @return True if the node is red.
+     */
+    private boolean isRed(int node) {
+        return parentsAndColors[node] < 0;
+    }
+
+    /**
+     * Colors a node red.
+     * @param node The index of the node.
+     */
+    private void setRed(int node) {
+        parentsAndColors[node] |= RED_BIT;
+    }
+
+    /**
+     * Colors a node black.
+     * @param node The index of the node.
+     */
+    private void setBlack(int node) {
+        parentsAndColors[node] &= ~RED_BIT;
+    }
+
+    /**
+     * Gives a node the color of another node.
+     * @param from The index of the node whose color is copied.
+     * @param to The index of the node to be colored.
+     */
+    private void copyColor(int from, int to) {
+        parentsAndColors[to] = (parentsAndColors[from] & RED_BIT) | (parentsAndColors[to] & ~RED_BIT);
+    }
+}
@@ -1,7 +1,12 @@
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Scanner;
-import java.util.StringTokenizer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Created by Sayak Biswas on 3/16/2016.
@@ -12,93 +17,98 @@ public class bbst {
     public static void main(String[] args) {
         if(args.length < 1) {
             System.out.println("Proper usage: java bbst test_100.txt < commands.txt > out_100.txt");
+            System.out.println("Server mode: java bbst test_100.txt -listen /path/to/socket or -listen port");
+            System.out.println("Cached start: java bbst test_100.txt -image test_100.image < commands.txt");
             System.exit(0);
         } else {
-            ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = null;
+            String imagePath = null;
+            String listenAddress = null;
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                if(args[i].equals("-image")) {
+                    imagePath = args[i + 1];
+                } else if(args[i].equals("-listen")) {
+                    listenAddress = args[i + 1];
+                }
+            }
+
             RedBlackTreeEventCounter redBlackTreeEventCounter = null;
-            BufferedReader fileReader = null;
             try {
-                fileReader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0])));
-                int lineCount = 0;
-                StringTokenizer tokenizer;
-                String scannedLine;
-                while((scannedLine = fileReader.readLine()) != null) {
-                    tokenizer = new StringTokenizer(scannedLine);
-                    if (lineCount > 0) {
-                        int ID = Integer.parseInt(tokenizer.nextToken());
-                        int count = Integer.parseInt(tokenizer.nextToken());
-                        RedBlackTree.RedBlackTreeNode event = new RedBlackTree.RedBlackTreeNode(ID,count);
-                        eventArrayList.add(event);
-                    } else {
-                        int size = Integer.parseInt(tokenizer.nextToken());
-                        eventArrayList = new ArrayList<>(size);
-                    }
-                    lineCount++;
+                if(imagePath != null) {
+                    redBlackTreeEventCounter = loadImage(args[0], imagePath);
+                } else {
+                    EventFileLoader.SortedEvents sortedEvents =
+                            EventFileLoader.parseParallel(args[0], ForkJoinPool.commonPool());
+                    redBlackTreeEventCounter = new RedBlackTreeEventCounter();
+                    redBlackTreeEventCounter.parallelBuildEventCounter(sortedEvents.size(), sortedEvents.getIDs(),
+                            sortedEvents.getCounts());
                 }
             } catch (FileNotFoundException fileNotFoundException) {
                 System.out.println("File " + args[0] + " not found!");
                 fileNotFoundException.printStackTrace();
             } catch (IOException ioException) {
+                redBlackTreeEventCounter = null;
                 ioException.printStackTrace();
             }
-            finally {
-                if(fileReader != null) {
-                    try {
-                        fileReader.close();
-                    } catch (IOException ioException) {
-                        ioException.printStackTrace();
-                    }
+
+            if(redBlackTreeEventCounter != null && listenAddress != null) {
+                serve(redBlackTreeEventCounter, listenAddress);
+            } else if(redBlackTreeEventCounter != null) {
+                CommandProcessor commandProcessor = new CommandProcessor(redBlackTreeEventCounter, System.in,
+                        new FileOutputStream(FileDescriptor.out));
+                try {
+                    commandProcessor.run();
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
                 }
             }
-            if(eventArrayList != null) {
-                redBlackTreeEventCounter = new RedBlackTreeEventCounter();
-                redBlackTreeEventCounter.buildEventCounter(eventArrayList);
+        }
+    }
+
+    /**
+     * Opens an event counter over a memory mapped image of the event file, so that later starts skip parsing and
+     * building. The image is written from the event file first if it does not exist or is older than the event file.
+     * Changes made by the commands are kept in memory and never written to the image.
+     * @param fileName The path of the event file.
+     * @param imagePath The path of the image.
+     * @return The event counter.
+     * @throws IOException If the event file or the image cannot be read, or the image cannot be written.
+     */
+    private static RedBlackTreeEventCounter loadImage(String fileName, String imagePath) throws IOException {
+        Path eventFile = Paths.get(fileName);
+        Path image = Paths.get(imagePath);
+        if(!Files.exists(image) || (Files.exists(eventFile)
+                && Files.getLastModifiedTime(image).compareTo(Files.getLastModifiedTime(eventFile)) < 0)) {
+            try (EventFileLoader eventFileLoader = new EventFileLoader(fileName)) {
+                MappedTreeImage.replace(image, eventFileLoader.size(), eventFileLoader);
             }
+        }
+        return new RedBlackTreeEventCounter(new MappedImageEventCounterBackend(imagePath, false));
+    }
 
-            if(redBlackTreeEventCounter != null) {
-                Scanner scanner = new Scanner(System.in);
-                while (scanner.hasNext()) {
-                    String scannedString = scanner.nextLine();
-                    Scanner stringScanner = new Scanner(scannedString);
-                    while (stringScanner.hasNext()) {
-                        String command = stringScanner.next();
-                        if("increase".equalsIgnoreCase(command)) {
-                            int ID = stringScanner.nextInt();
-                            int amount = stringScanner.nextInt();
-                            System.out.println(redBlackTreeEventCounter.increase(ID, amount));
-                        } else if("reduce".equalsIgnoreCase(command)) {
-                            int ID = stringScanner.nextInt();
-                            int amount = stringScanner.nextInt();
-                            System.out.println(redBlackTreeEventCounter.reduce(ID, amount));
-                        } else if("count".equalsIgnoreCase(command)) {
-                            int ID = stringScanner.nextInt();
-                            System.out.println(redBlackTreeEventCounter.count(ID));
-                        } else if("inrange".equalsIgnoreCase(command)) {
-                            int ID1 = stringScanner.nextInt();
-                            int ID2 = stringScanner.nextInt();
-                            System.out.println(redBlackTreeEventCounter.inRange(ID1, ID2));
-                        } else if("next".equalsIgnoreCase(command)) {
-                            int ID = stringScanner.nextInt();
-                            RedBlackTree.RedBlackTreeNode nextEvent = redBlackTreeEventCounter.next(ID);
-                            System.out.println(((nextEvent != null) ? nextEvent.getID() : 0) + " "
-                                    + ((nextEvent != null) ? nextEvent.getCount() : 0));
-                        } else if("previous".equalsIgnoreCase(command)) {
-                            int ID = stringScanner.nextInt();
-                            RedBlackTree.RedBlackTreeNode previousEvent = redBlackTreeEventCounter.previous(ID);
-                            System.out.println(((previousEvent != null) ? previousEvent.getID() : 0) + " "
-                                    + ((previousEvent != null) ? previousEvent.getCount() : 0));
-                        } else if("quit".equalsIgnoreCase(command)) {
-                            stringScanner.close();
-                            scanner.close();
-                            System.exit(0);
-                        } else {
-                            System.out.println("Wrong input command!");
-                        }
-                    }
-                    stringScanner.close();
+    /**
+     * Serves the event counter with an EventCounterServer until the process is stopped.
+     * @param redBlackTreeEventCounter The event counter.
+     * @param address The path of a Unix domain socket, or a port on the loopback address if it is all digits.
+     */
+    private static void serve(RedBlackTreeEventCounter redBlackTreeEventCounter, String address) {
+        SocketAddress socketAddress = address.matches("[0-9]+")
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address))
+                : UnixDomainSocketAddress.of(address);
+        try {
+            EventCounterServer eventCounterServer = new EventCounterServer(redBlackTreeEventCounter, socketAddress);
+            Thread servingThread = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                eventCounterServer.close();
+                try {
+                    servingThread.join(); //Let the server close its channels and delete its socket file
+                } catch (InterruptedException ignored) {
+                    //Exit anyway
                 }
-                scanner.close();
-            }
+            }));
+            System.out.println("Listening on " + eventCounterServer.getLocalAddress());
+            eventCounterServer.run();
+        } catch (IOException ioException) {
+            ioException.printStackTrace();
         }
     }
 }
@@ -0,0 +1,193 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of ApplyBatch of RedBlackTreeEventCounter against a TreeMap. Random batches with repeated IDs, new IDs and
+ * reductions which remove events are applied to each counter below and to the TreeMap, and every count is compared
+ * after every batch:
+ * 1. The pointer tree, with small batches which are merged into the tree and large batches which rebuild it
+ * 2. The pointer tree with the top k index, whose order is compared as well
+ * 3. The array, the B+ tree and the persistent backends, which apply the batch through EventCounterBackend
+ * The first failure is printed and the test exits with status 1. Run it through the makefile in this directory, for
+ * example:
+ * make run-ApplyBatchTest ARGS="-seed 7"
+ */
+public class ApplyBatchTest {
+
+    /**
+     * The number of events built before the batches.
+     */
+    private static final int BUILT_EVENTS = 2000;
+
+    /**
+     * The IDs of the batches are drawn from [0, ID_RANGE), which holds the built events and as many absent IDs.
+     */
+    private static final int ID_RANGE = 2 * BUILT_EVENTS;
+
+    /**
+     * The size of a small batch, which the pointer tree merges into the tree.
+     */
+    private static final int SMALL_BATCH = 16;
+
+    /**
+     * The size of a large batch. Its size times the height of the tree exceeds the number of events, so the pointer
+     * tree rebuilds itself from the merged events.
+     */
+    private static final int LARGE_BATCH = 3 * BUILT_EVENTS;
+
+    /**
+     * The number of batches of each size.
+     */
+    private static final int BATCHES = 20;
+
+    /**
+     * A counter under test.
+     * @param name The name printed in a failure.
+     * @param eventCounter The counter.
+     */
+    private record Subject(String name, RedBlackTreeEventCounter eventCounter) {
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        boolean passed = true;
+        for (Subject subject : subjects()) {
+            try {
+                checkBatches(subject.eventCounter(), new Random(seed));
+                System.out.println("passed " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the counters under test.
+     * @return The counters.
+     */
+    private static List<Subject> subjects() {
+        List<Subject> subjects = new ArrayList<>();
+        subjects.add(new Subject("pointer tree", new RedBlackTreeEventCounter()));
+        RedBlackTreeEventCounter topKIndexed = new RedBlackTreeEventCounter();
+        topKIndexed.enableTopKIndex();
+        subjects.add(new Subject("pointer tree with top k index", topKIndexed));
+        subjects.add(new Subject("array backend", new RedBlackTreeEventCounter(new ArrayEventCounterBackend())));
+        subjects.add(new Subject("B+ tree backend", new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend())));
+        subjects.add(new Subject("persistent backend",
+                new RedBlackTreeEventCounter(new PersistentEventCounterBackend())));
+        return subjects;
+    }
+
+    /**
+     * Builds a counter and applies small and large random batches to it and to a TreeMap.
+     * @param eventCounter The counter.
+     * @param random The source of the batches.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkBatches(RedBlackTreeEventCounter eventCounter, Random random) {
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>();
+        for (int ID = 0; ID < ID_RANGE; ID += 2) {
+            long count = 1 + random.nextInt(100);
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(ID, count));
+            expected.put(ID, count);
+        }
+        eventCounter.buildEventCounter(eventArrayList);
+        for (int batch = 0; batch < 2 * BATCHES; batch++) {
+            int size = (batch % 2 == 0) ? SMALL_BATCH : LARGE_BATCH;
+            int[] IDs = new int[size];
+            int[] amounts = new int[size];
+            for (int i = 0; i < size; i++) {
+                IDs[i] = (i > 0 && random.nextInt(4) == 0) ? IDs[i - 1] : random.nextInt(ID_RANGE); //Repeats IDs
+                amounts[i] = random.nextInt(3) == 0 ? -random.nextInt(150) : random.nextInt(100);
+            }
+            eventCounter.applyBatch(IDs, amounts, size);
+            applyToMap(expected, IDs, amounts, size);
+            checkCounts(eventCounter, expected, "batch " + batch + " of " + size + " changes");
+        }
+    }
+
+    /**
+     * Applies a batch to the TreeMap the way ApplyBatch is specified: the amounts of an ID are summed first and the
+     * ID is removed only if its final count drops below 1.
+     * @param expected The TreeMap.
+     * @param IDs The IDs of the batch.
+     * @param amounts The amounts of the batch.
+     * @param size The number of changes.
+     */
+    private static void applyToMap(TreeMap<Integer, Long> expected, int[] IDs, int[] amounts, int size) {
+        TreeMap<Integer, Long> deltas = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            deltas.merge(IDs[i], (long) amounts[i], Long::sum);
+        }
+        for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+            long count = expected.getOrDefault(delta.getKey(), 0L) + delta.getValue();
+            if(count > 0) {
+                expected.put(delta.getKey(), count);
+            } else {
+                expected.remove(delta.getKey());
+            }
+        }
+    }
+
+    /**
+     * Compares the count of every ID, the total count and, if the top k index is enabled, the order of the events.
+     * @param eventCounter The counter.
+     * @param expected The TreeMap.
+     * @param operation The operation, for the message.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkCounts(RedBlackTreeEventCounter eventCounter, TreeMap<Integer, Long> expected,
+                                    String operation) {
+        long total = 0;
+        for (int ID = -1; ID <= ID_RANGE; ID++) {
+            long count = expected.getOrDefault(ID, 0L);
+            check(eventCounter.count(ID), count, "count(" + ID + ") after " + operation);
+            total += count;
+        }
+        check(eventCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), total, "inRange after " + operation);
+        int events = 0;
+        for (RedBlackTree.RedBlackTreeNode event = eventCounter.next(Integer.MIN_VALUE); event != null;
+             event = eventCounter.next(event.getID())) {
+            events++;
+        }
+        check(events, expected.size(), "number of events after " + operation);
+        int[] topIDs = new int[events];
+        long[] topCounts = new long[events];
+        try {
+            check(eventCounter.topK(events, topIDs, topCounts), events, "topK after " + operation);
+        } catch (IllegalStateException notEnabled) {
+            return;
+        }
+        for (int i = 1; i < events; i++) {
+            if(topCounts[i] > topCounts[i - 1] || (topCounts[i] == topCounts[i - 1] && topIDs[i] < topIDs[i - 1])) {
+                throw new AssertionError("topK after " + operation + " is out of order at " + i);
+            }
+            check(topCounts[i], expected.get(topIDs[i]), "topK count of " + topIDs[i] + " after " + operation);
+        }
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the counter.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " returned " + actual + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test of the count limits of the event counters. Every counter is built with two events whose counts add up to just
+ * below Long.MAX_VALUE and is then increased past it under each CountOverflowPolicy:
+ * 1. THROW and PROMOTE reject the increase with an ArithmeticException and leave every count unchanged.
+ * 2. SATURATE lowers the increase so that the total count is Long.MAX_VALUE, and inserts nothing once it is.
+ * InRange must return the exact total afterwards, which would wrap to a negative sum if the subtree sums overflowed.
+ * ApplyBatch, AddToRange and Union of RedBlackTreeEventCounter are checked at the same limit. The array backend, whose
+ * counts are ints until PROMOTE widens them, is also checked at Integer.MAX_VALUE under every policy, with subtree sums
+ * beyond the int range while the tree grows. The first failure is printed and the test exits with status 1. Run it
+ * through the makefile in this directory.
+ */
+public class CountLimitTest {
+
+    /**
+     * The counts of the built events, which add up to TOTAL_ROOM below Long.MAX_VALUE.
+     */
+    private static final long HALF_COUNT = Long.MAX_VALUE / 2 - 100;
+
+    /**
+     * The room left below Long.MAX_VALUE once the events are built.
+     */
+    private static final long TOTAL_ROOM = Long.MAX_VALUE - 2 * HALF_COUNT;
+
+    /**
+     * The operations of an event counter under test. Counters whose API differs are adapted to it.
+     */
+    interface Subject {
+        /**
+         * Returns the name printed in a failure.
+         * @return The name.
+         */
+        String name();
+
+        /**
+         * Replaces the events of the counter with sorted events.
+         * @param IDs The IDs in ascending order.
+         * @param counts The positive counts matching the IDs.
+         */
+        void build(int[] IDs, long[] counts);
+
+        /**
+         * Increases the count of an event.
+         * @param ID The ID of the event.
+         * @param amount The amount to be added.
+         * @return The new count.
+         */
+        long increase(int ID, int amount);
+
+        /**
+         * Returns the count of an event.
+         * @param ID The ID of the event.
+         * @return The count, or 0.
+         */
+        long count(int ID);
+
+        /**
+         * Returns the total count for IDs between ID1 and ID2.
+         * @param ID1 The left limit of the range.
+         * @param ID2 The right limit of the range.
+         * @return The total count.
+         */
+        long inRange(int ID1, int ID2);
+
+        /**
+         * Releases the threads and the files held by the counter.
+         * @throws IOException If the counter cannot be closed.
+         */
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * Holds the directory of the files written by the memory mapped counters.
+     */
+    private static Path directory;
+
+    public static void main(String[] args) throws IOException {
+        directory = Files.createTempDirectory("event-counter-limit-test");
+        boolean passed = true;
+        try {
+            for (CountOverflowPolicy overflowPolicy : CountOverflowPolicy.values()) {
+                for (Subject subject : subjects(overflowPolicy)) {
+                    try {
+                        checkTotalLimit(subject, overflowPolicy);
+                        System.out.println("passed " + subject.name());
+                    } catch (AssertionError assertionError) {
+                        System.out.println("FAILED " + subject.name() + ": " + assertionError.getMessage());
+                        passed = false;
+                    } finally {
+                        subject.close();
+                    }
+                }
+                try {
+                    checkIntLimit(overflowPolicy);
+                    System.out.println("passed int limit of the array backend with " + overflowPolicy);
+                } catch (AssertionError assertionError) {
+                    System.out.println("FAILED int limit of the array backend with " + overflowPolicy + ": "
+                            + assertionError.getMessage());
+                    passed = false;
+                }
+                try {
+                    checkRangeOperations(overflowPolicy);
+                    System.out.println("passed range operations with " + overflowPolicy);
+                } catch (AssertionError assertionError) {
+                    System.out.println("FAILED range operations with " + overflowPolicy + ": "
+                            + assertionError.getMessage());
+                    passed = false;
+                }
+            }
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Builds a counter at the limit and increases it past Long.MAX_VALUE.
+     * @param subject The counter.
+     * @param overflowPolicy The policy of the counter.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkTotalLimit(Subject subject, CountOverflowPolicy overflowPolicy) {
+        subject.build(new int[]{1, 5}, new long[]{HALF_COUNT, HALF_COUNT});
+        check(subject.inRange(0, 10), Long.MAX_VALUE - TOTAL_ROOM, "inRange after build");
+        check(subject.increase(3, (int) TOTAL_ROOM - 1), TOTAL_ROOM - 1, "increase(3) within the limit");
+        check(subject.inRange(0, 10), Long.MAX_VALUE - 1, "inRange at the limit");
+        if(overflowPolicy == CountOverflowPolicy.SATURATE) {
+            check(subject.increase(5, 10), HALF_COUNT + 1, "saturated increase(5)");
+            check(subject.increase(7, 10), 0, "increase(7) of a saturated total");
+            check(subject.count(7), 0, "count(7)");
+        } else {
+            expectOverflow(() -> subject.increase(5, 10), "increase(5)");
+            expectOverflow(() -> subject.increase(7, 10), "increase(7)");
+            check(subject.count(5), HALF_COUNT, "count(5) after the rejected increase");
+            check(subject.count(7), 0, "count(7) after the rejected increase");
+        }
+        long total = (overflowPolicy == CountOverflowPolicy.SATURATE) ? Long.MAX_VALUE : Long.MAX_VALUE - 1;
+        check(subject.inRange(0, 10), total, "inRange past the limit");
+        check(subject.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), total, "inRange of all events");
+        check(subject.inRange(2, 5), total - HALF_COUNT, "inRange(2, 5)");
+    }
+
+    /**
+     * Builds the array backend with counts just below Integer.MAX_VALUE, whose sums need more than an int, and
+     * increases one count past Integer.MAX_VALUE. THROW rejects the increase, SATURATE stores Integer.MAX_VALUE and
+     * PROMOTE widens the counts. More events are then inserted so that the tree grows with its wide sums.
+     * @param overflowPolicy The policy of the backend.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkIntLimit(CountOverflowPolicy overflowPolicy) {
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter(
+                new ArrayEventCounterBackend(4, overflowPolicy));
+        long nearMaximum = Integer.MAX_VALUE - 10;
+        int[] IDs = new int[40];
+        long[] counts = new long[IDs.length];
+        for (int i = 0; i < IDs.length; i++) {
+            IDs[i] = 2 * i;
+            counts[i] = nearMaximum;
+        }
+        eventCounter.buildEventCounter(eventList(IDs, counts));
+        for (int i = 0; i < IDs.length; i++) {
+            check(eventCounter.inRange(0, IDs[i]), (i + 1) * nearMaximum, "inRange(0, " + IDs[i] + ") after build");
+        }
+        check(eventCounter.increase(0, 10), Integer.MAX_VALUE, "increase(0) to Integer.MAX_VALUE");
+        long total = IDs.length * nearMaximum + 10;
+        if(overflowPolicy == CountOverflowPolicy.THROW) {
+            expectOverflow(() -> eventCounter.increase(0, 1), "increase(0) past Integer.MAX_VALUE");
+            expectOverflow(() -> eventCounter.increase(2, 100), "increase(2) past Integer.MAX_VALUE");
+            check(eventCounter.count(2), nearMaximum, "count(2) after the rejected increase");
+        } else if(overflowPolicy == CountOverflowPolicy.SATURATE) {
+            check(eventCounter.increase(0, 1), Integer.MAX_VALUE, "saturated increase(0)");
+            check(eventCounter.increase(2, 100), Integer.MAX_VALUE, "saturated increase(2)");
+            total += 10;
+        } else {
+            for (int i = 0; i < 3; i++) {
+                eventCounter.increase(0, Integer.MAX_VALUE);
+            }
+            check(eventCounter.count(0), 4L * Integer.MAX_VALUE, "count(0) past 2^32");
+            check(eventCounter.increase(2, 100), nearMaximum + 100, "promoted increase(2)");
+            check(eventCounter.reduce(0, Integer.MAX_VALUE), 3L * Integer.MAX_VALUE, "reduce(0) of a promoted count");
+            total += 2L * Integer.MAX_VALUE + 100;
+        }
+        check(eventCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), total, "inRange at the int limit");
+        for (int ID = 1; ID < 2 * IDs.length; ID += 2) {
+            eventCounter.increase(ID, Integer.MAX_VALUE);
+            total += Integer.MAX_VALUE;
+            check(eventCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), total, "inRange after inserting " + ID);
+        }
+        check(eventCounter.inRange(1, 2 * IDs.length - 1), total - eventCounter.count(0), "inRange(1, "
+                + (2 * IDs.length - 1) + ")");
+        for (int ID = 0; ID < 2 * IDs.length; ID += 3) {
+            long count = eventCounter.count(ID);
+            check(eventCounter.reduce(ID, Integer.MAX_VALUE), Math.max(count - Integer.MAX_VALUE, 0),
+                    "reduce(" + ID + ")");
+            total -= Math.min(count, Integer.MAX_VALUE);
+        }
+        check(eventCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), total, "inRange after the deletes");
+    }
+
+    /**
+     * Checks ApplyBatch, AddToRange and Union of RedBlackTreeEventCounter at the limit.
+     * @param overflowPolicy The policy of the counters.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkRangeOperations(CountOverflowPolicy overflowPolicy) {
+        boolean saturate = overflowPolicy == CountOverflowPolicy.SATURATE;
+        RedBlackTreeEventCounter eventCounter = newCounter(overflowPolicy);
+        int[] IDs = {1, 3, 5};
+        int[] amounts = {(int) TOTAL_ROOM, -10, 1};
+        if(saturate) {
+            eventCounter.applyBatch(IDs, amounts, IDs.length);
+            check(eventCounter.count(3), 0, "count(3) after a saturated batch");
+            check(eventCounter.inRange(0, 10), Long.MAX_VALUE, "inRange after a saturated batch");
+        } else {
+            expectOverflow(() -> eventCounter.applyBatch(IDs, amounts, IDs.length), "applyBatch");
+            check(eventCounter.count(1), HALF_COUNT, "count(1) after the rejected batch");
+            check(eventCounter.inRange(0, 10), Long.MAX_VALUE - TOTAL_ROOM, "inRange after the rejected batch");
+            eventCounter.increase(3, (int) TOTAL_ROOM);
+            amounts[0] = (int) TOTAL_ROOM - 1;
+            amounts[1] = -(int) TOTAL_ROOM; //Removing event 3 makes room for the increases of events 1 and 5
+            eventCounter.applyBatch(IDs, amounts, IDs.length);
+            check(eventCounter.count(3), 0, "count(3) after a batch which makes room");
+            check(eventCounter.inRange(0, 10), Long.MAX_VALUE, "inRange after a batch which makes room");
+        }
+
+        RedBlackTreeEventCounter rangeCounter = newCounter(overflowPolicy);
+        rangeCounter.increase(3, 10);
+        if(saturate) {
+            check(rangeCounter.addToRange(0, 10, 1000), Long.MAX_VALUE - (TOTAL_ROOM - 10) % 3,
+                    "saturated addToRange");
+            check(rangeCounter.count(3), 10 + (TOTAL_ROOM - 10) / 3, "count(3) after a saturated addToRange");
+        } else {
+            expectOverflow(() -> rangeCounter.addToRange(0, 10, 1000), "addToRange");
+            check(rangeCounter.count(1), HALF_COUNT, "count(1) after the rejected addToRange");
+            check(rangeCounter.addToRange(2, 4, 100), 110, "addToRange of one event");
+        }
+
+        RedBlackTreeEventCounter unionCounter = newCounter(overflowPolicy);
+        RedBlackTreeEventCounter other = new RedBlackTreeEventCounter(overflowPolicy);
+        other.increase(9, (int) TOTAL_ROOM + 1);
+        expectOverflow(() -> unionCounter.union(other), "union");
+        check(unionCounter.count(9), 0, "count(9) after the rejected union");
+        other.reduce(9, 1);
+        unionCounter.union(other);
+        check(unionCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), Long.MAX_VALUE, "inRange after union");
+    }
+
+    /**
+     * Creates a RedBlackTreeEventCounter holding the two events at the limit.
+     * @param overflowPolicy The policy of the counter.
+     * @return The counter.
+     */
+    private static RedBlackTreeEventCounter newCounter(CountOverflowPolicy overflowPolicy) {
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter(overflowPolicy);
+        eventCounter.buildEventCounter(eventList(new int[]{1, 5}, new long[]{HALF_COUNT, HALF_COUNT}));
+        return eventCounter;
+    }
+
+    /**
+     * Fails if an operation does not throw an ArithmeticException.
+     * @param operation The operation.
+     * @param name The operation, for the message.
+     */
+    private static void expectOverflow(Runnable operation, String name) {
+        try {
+            operation.run();
+        } catch (ArithmeticException arithmeticException) {
+            return;
+        }
+        throw new AssertionError(name + " did not overflow");
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the counter.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " returned " + actual + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Converts sorted arrays to the list taken by the build methods.
+     * @param IDs The IDs.
+     * @param counts The counts.
+     * @return The events.
+     */
+    private static ArrayList<RedBlackTree.RedBlackTreeNode> eventList(int[] IDs, long[] counts) {
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>(IDs.length);
+        for (int i = 0; i < IDs.length; i++) {
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(IDs[i], counts[i]));
+        }
+        return eventArrayList;
+    }
+
+    /**
+     * Creates the counters under test with an overflow policy. The compact array backend keeps int counts under
+     * THROW and SATURATE, so it only reaches the 64 bit limit with PROMOTE.
+     * @param overflowPolicy The policy.
+     * @return The counters.
+     * @throws IOException If the image of the memory mapped counter cannot be created.
+     */
+    private static List<Subject> subjects(CountOverflowPolicy overflowPolicy) throws IOException {
+        List<Subject> subjects = new ArrayList<>();
+        String suffix = " with " + overflowPolicy;
+        subjects.add(counterSubject("pointer tree" + suffix, new RedBlackTreeEventCounter(overflowPolicy)));
+        if(overflowPolicy == CountOverflowPolicy.PROMOTE) {
+            subjects.add(counterSubject("array backend" + suffix,
+                    new RedBlackTreeEventCounter(new ArrayEventCounterBackend(16, overflowPolicy))));
+        }
+        subjects.add(counterSubject("B+ tree backend" + suffix,
+                new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend(16, overflowPolicy))));
+        subjects.add(counterSubject("persistent backend" + suffix,
+                new RedBlackTreeEventCounter(new PersistentEventCounterBackend(overflowPolicy))));
+        MappedImageEventCounterBackend imageBackend = new MappedImageEventCounterBackend(
+                directory.resolve(overflowPolicy + ".rbti").toString(), false, overflowPolicy);
+        subjects.add(new Subject() {
+            private final Subject eventCounter = counterSubject("", new RedBlackTreeEventCounter(imageBackend));
+
+            public String name() {
+                return "memory mapped image backend" + suffix;
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                eventCounter.build(IDs, counts);
+            }
+
+            public long increase(int ID, int amount) {
+                return eventCounter.increase(ID, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1, ID2);
+            }
+
+            public void close() throws IOException {
+                imageBackend.close();
+            }
+        });
+        ConcurrentRedBlackTreeEventCounter concurrentCounter = new ConcurrentRedBlackTreeEventCounter(overflowPolicy);
+        subjects.add(new Subject() {
+            public String name() {
+                return "concurrent counter" + suffix;
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                concurrentCounter.buildEventCounter(eventList(IDs, counts));
+            }
+
+            public long increase(int ID, int amount) {
+                return concurrentCounter.increase(ID, amount);
+            }
+
+            public long count(int ID) {
+                return concurrentCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return concurrentCounter.inRange(ID1, ID2);
+            }
+        });
+        ShardedEventCounter shardedCounter = new ShardedEventCounter(2, overflowPolicy);
+        subjects.add(new Subject() {
+            public String name() {
+                return "sharded counter" + suffix;
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                shardedCounter.buildEventCounter(eventList(IDs, counts));
+            }
+
+            public long increase(int ID, int amount) {
+                return shardedCounter.increase(ID, amount);
+            }
+
+            public long count(int ID) {
+                return shardedCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return shardedCounter.inRange(ID1, ID2);
+            }
+
+            public void close() {
+                shardedCounter.close();
+            }
+        });
+        LongKeyEventCounter longKeyCounter = new LongKeyEventCounter(overflowPolicy);
+        subjects.add(new Subject() {
+            public String name() {
+                return "long key counter" + suffix;
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                long[] longIDs = new long[IDs.length];
+                for (int i = 0; i < IDs.length; i++) {
+                    longIDs[i] = IDs[i];
+                }
+                longKeyCounter.buildEventCounter(IDs.length, longIDs, counts);
+            }
+
+            public long increase(int ID, int amount) {
+                return longKeyCounter.increase(ID, amount);
+            }
+
+            public long count(int ID) {
+                return longKeyCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return longKeyCounter.inRange(ID1, ID2);
+            }
+        });
+        return subjects;
+    }
+
+    /**
+     * Adapts a RedBlackTreeEventCounter.
+     * @param name The name of the counter.
+     * @param eventCounter The counter.
+     * @return The subject.
+     */
+    private static Subject counterSubject(String name, RedBlackTreeEventCounter eventCounter) {
+        return new Subject() {
+            public String name() {
+                return name;
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                eventCounter.buildEventCounter(eventList(IDs, counts));
+            }
+
+            public long increase(int ID, int amount) {
+                return eventCounter.increase(ID, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1, ID2);
+            }
+        };
+    }
+}
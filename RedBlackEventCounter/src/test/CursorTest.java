@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of the cursor and of ForEachInRange of RedBlackTreeEventCounter against a TreeMap:
+ * 1. A cursor is moved by random Seek, Next and Previous steps while events are increased, inserted and deleted
+ * between the steps, on the pointer tree with and without the hash index. Every step is compared with the ceiling,
+ * higher and lower keys of the TreeMap, and a cursor whose event was deleted must find its way back from its ID.
+ * 2. ForEachInRange visits random ranges, including empty ones and ranges reaching Integer.MIN_VALUE and
+ * Integer.MAX_VALUE, on the pointer tree and on the array, the B+ tree and the persistent backends.
+ * The first failure is printed and the test exits with status 1. Run it through the makefile in this directory, for
+ * example:
+ * make run-CursorTest ARGS="-seed 7"
+ */
+public class CursorTest {
+
+    /**
+     * The IDs are drawn from [-ID_RANGE, ID_RANGE).
+     */
+    private static final int ID_RANGE = 500;
+
+    /**
+     * The number of cursor steps and of range visits per counter.
+     */
+    private static final int OPERATIONS = 50_000;
+
+    /**
+     * The position of a cursor in the model: on an ID, before the first event or after the last event.
+     */
+    private static final int BEFORE_FIRST = 0, ON_ID = 1, AFTER_LAST = 2;
+
+    /**
+     * A counter under test.
+     * @param name The name printed in a failure.
+     * @param eventCounter The counter.
+     */
+    private record Subject(String name, RedBlackTreeEventCounter eventCounter) {
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        boolean passed = true;
+        RedBlackTreeEventCounter hashIndexed = new RedBlackTreeEventCounter();
+        hashIndexed.enableHashIndex();
+        for (Subject subject : List.of(new Subject("pointer tree", new RedBlackTreeEventCounter()),
+                new Subject("pointer tree with hash index", hashIndexed))) {
+            try {
+                checkCursor(subject.eventCounter(), new Random(seed));
+                System.out.println("passed cursor on " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED cursor on " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        for (Subject subject : rangeSubjects()) {
+            try {
+                checkForEachInRange(subject.eventCounter(), new Random(seed));
+                System.out.println("passed forEachInRange on " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED forEachInRange on " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the counters whose range visits are tested.
+     * @return The counters.
+     */
+    private static List<Subject> rangeSubjects() {
+        List<Subject> subjects = new ArrayList<>();
+        subjects.add(new Subject("pointer tree", new RedBlackTreeEventCounter()));
+        subjects.add(new Subject("array backend", new RedBlackTreeEventCounter(new ArrayEventCounterBackend())));
+        subjects.add(new Subject("B+ tree backend", new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend())));
+        subjects.add(new Subject("persistent backend",
+                new RedBlackTreeEventCounter(new PersistentEventCounterBackend())));
+        return subjects;
+    }
+
+    /**
+     * Moves a cursor at random while changing the counter, and compares every step with the TreeMap.
+     * @param eventCounter The counter.
+     * @param random The source of the operations.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkCursor(RedBlackTreeEventCounter eventCounter, Random random) {
+        TreeMap<Integer, Long> expected = build(eventCounter, random);
+        RedBlackTree.Cursor cursor = eventCounter.cursor();
+        check(cursor.getEvent() == null, "a new cursor is on an event");
+        int position = BEFORE_FIRST;
+        int currentID = 0;
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int ID = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            Integer expectedID;
+            boolean onEvent;
+            String name;
+            switch (random.nextInt(8)) {
+                case 0:
+                    name = "seek(" + ID + ")";
+                    onEvent = cursor.seek(ID);
+                    expectedID = expected.ceilingKey(ID);
+                    position = (expectedID != null) ? ON_ID : AFTER_LAST;
+                    break;
+                case 1:
+                case 2:
+                    name = "next()";
+                    onEvent = cursor.next();
+                    expectedID = (position == ON_ID) ? expected.higherKey(currentID)
+                            : (position == BEFORE_FIRST && !expected.isEmpty()) ? expected.firstKey() : null;
+                    position = (expectedID != null) ? ON_ID : AFTER_LAST;
+                    break;
+                case 3:
+                case 4:
+                    name = "previous()";
+                    onEvent = cursor.previous();
+                    expectedID = (position == ON_ID) ? expected.lowerKey(currentID)
+                            : (position == AFTER_LAST && !expected.isEmpty()) ? expected.lastKey() : null;
+                    position = (expectedID != null) ? ON_ID : BEFORE_FIRST;
+                    break;
+                case 5:
+                    expected.merge(ID, 3L, Long::sum);
+                    eventCounter.increase(ID, 3);
+                    continue;
+                default:
+                    long count = expected.getOrDefault(ID, 0L);
+                    if(count > 2) {
+                        expected.put(ID, count - 2);
+                    } else {
+                        expected.remove(ID);
+                    }
+                    eventCounter.reduce(ID, 2);
+                    continue;
+            }
+            name += " at operation " + operation;
+            check(onEvent == (expectedID != null), name + " returned " + onEvent);
+            if(expectedID != null) {
+                currentID = expectedID;
+            }
+            checkEvent(cursor.getEvent(), (position == ON_ID) ? currentID : null, expected, name);
+            if(random.nextInt(4) == 0 && position == ON_ID) { //Checks that a deleted event is no longer returned
+                long count = expected.remove(currentID);
+                eventCounter.reduce(currentID, (int) count);
+                checkEvent(cursor.getEvent(), null, expected, "getEvent after deleting the event of " + name);
+            }
+        }
+    }
+
+    /**
+     * Compares the event of the cursor with the TreeMap.
+     * @param event The event of the cursor, or null.
+     * @param ID The ID the cursor is on, or null if it is not on an event of the TreeMap.
+     * @param expected The TreeMap.
+     * @param name The operation, for the message.
+     * @throws AssertionError If the event differs.
+     */
+    private static void checkEvent(RedBlackTree.RedBlackTreeNode event, Integer ID, TreeMap<Integer, Long> expected,
+                                   String name) {
+        if(ID == null || !expected.containsKey(ID)) {
+            check(event == null, name + " is on event " + ((event != null) ? event.getID() : 0) + ", expected none");
+            return;
+        }
+        check(event != null, name + " is on no event, expected " + ID);
+        check(event.getID() == ID && event.getCount() == expected.get(ID),
+                name + " is on " + event.getID() + "=" + event.getCount() + ", expected " + ID + "="
+                        + expected.get(ID));
+    }
+
+    /**
+     * Visits random ranges of a counter and compares the visited events with the TreeMap.
+     * @param eventCounter The counter.
+     * @param random The source of the ranges.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkForEachInRange(RedBlackTreeEventCounter eventCounter, Random random) {
+        TreeMap<Integer, Long> expected = build(eventCounter, random);
+        for (int operation = 0; operation < OPERATIONS / 10; operation++) {
+            int ID1 = random.nextInt(2 * ID_RANGE + 20) - ID_RANGE - 10;
+            int ID2 = ID1 + random.nextInt(ID_RANGE / 2) - 10; //Sometimes below ID1, which visits nothing
+            if(operation % 50 == 0) {
+                ID1 = Integer.MIN_VALUE;
+            } else if(operation % 50 == 1) {
+                ID2 = Integer.MAX_VALUE;
+            }
+            ArrayList<RedBlackTree.RedBlackTreeNode> visited = new ArrayList<>();
+            eventCounter.forEachInRange(ID1, ID2, visited::add);
+            String name = "forEachInRange(" + ID1 + ", " + ID2 + ")";
+            Map<Integer, Long> range = (ID1 <= ID2) ? expected.subMap(ID1, true, ID2, true) : Map.of();
+            check(visited.size() == range.size(), name + " visited " + visited.size() + " events, expected "
+                    + range.size());
+            int i = 0;
+            for (Map.Entry<Integer, Long> entry : range.entrySet()) {
+                RedBlackTree.RedBlackTreeNode event = visited.get(i++);
+                check(event.getID() == entry.getKey() && event.getCount() == entry.getValue(),
+                        name + " visited " + event.getID() + "=" + event.getCount() + ", expected " + entry);
+            }
+            int ID = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            if(random.nextBoolean()) {
+                expected.merge(ID, 5L, Long::sum);
+                eventCounter.increase(ID, 5);
+            } else {
+                expected.remove(ID);
+                eventCounter.reduce(ID, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    /**
+     * Builds a counter from every third ID of the range with random counts.
+     * @param eventCounter The counter.
+     * @param random The source of the counts.
+     * @return The TreeMap holding the same events.
+     */
+    private static TreeMap<Integer, Long> build(RedBlackTreeEventCounter eventCounter, Random random) {
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>();
+        for (int ID = -ID_RANGE; ID < ID_RANGE; ID += 3) {
+            long count = 1 + random.nextInt(50);
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(ID, count));
+            expected.put(ID, count);
+        }
+        eventCounter.buildEventCounter(eventArrayList);
+        return expected;
+    }
+
+    /**
+     * Fails with a message if a condition does not hold.
+     * @param condition The condition.
+     * @param message The message.
+     */
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
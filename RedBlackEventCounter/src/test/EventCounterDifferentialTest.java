@@ -0,0 +1,628 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Differential test of every event counter against a TreeMap. The same random sequence of operations is applied to
+ * each counter below and to the TreeMap, and every result is compared:
+ * 1. RedBlackTreeEventCounter on the pointer tree, with and without the hash index and the query cache
+ * 2. RedBlackTreeEventCounter on the array, the B+ tree, the persistent and the memory mapped image backends, and on
+ * the B+ tree backend with the query cache
+ * 3. ConcurrentRedBlackTreeEventCounter
+ * 4. ShardedEventCounter
+ * 5. DurableEventCounter, which is closed and recovered from its directory every few thousand operations
+ * 6. LongKeyEventCounter, with every ID spread over the 64 bit key space
+ * The operations are Increase, Reduce, Count, InRange, Next and Previous, with amounts that now and then push counts
+ * past the 32 bit range. Every counter starts from the same built events and is walked from end to end at the end.
+ * The first mismatch is printed and the test exits with status 1. Run it through the makefile in this directory, for
+ * example:
+ * make run ARGS="-seed 7 -operations 1000000"
+ */
+public class EventCounterDifferentialTest {
+
+    /**
+     * The operations of an event counter under test. Counters whose API differs are adapted to it.
+     */
+    interface Subject {
+        /**
+         * Returns the name printed in a failure.
+         * @return The name.
+         */
+        String name();
+
+        /**
+         * Replaces the events of the counter with sorted events.
+         * @param IDs The IDs in ascending order.
+         * @param counts The positive counts matching the IDs.
+         * @throws IOException If a durable counter cannot log the events.
+         */
+        void build(int[] IDs, long[] counts) throws IOException;
+
+        /**
+         * Increases the count of an event.
+         * @param ID The ID of the event.
+         * @param amount The amount to be added.
+         * @return The new count.
+         * @throws IOException If a durable counter cannot log the change.
+         */
+        long increase(int ID, int amount) throws IOException;
+
+        /**
+         * Reduces the count of an event, removing it once it reaches 0.
+         * @param ID The ID of the event.
+         * @param amount The amount to be taken.
+         * @return The new count.
+         * @throws IOException If a durable counter cannot log the change.
+         */
+        long reduce(int ID, int amount) throws IOException;
+
+        /**
+         * Returns the count of an event.
+         * @param ID The ID of the event.
+         * @return The count, or 0.
+         */
+        long count(int ID);
+
+        /**
+         * Returns the total count for IDs between ID1 and ID2.
+         * @param ID1 The left limit of the range.
+         * @param ID2 The right limit of the range, which is not less than ID1.
+         * @return The total count.
+         */
+        long inRange(int ID1, int ID2);
+
+        /**
+         * Returns the event with the lowest ID that is greater than ID.
+         * @param ID The ID.
+         * @return The ID and the count of the event, or null.
+         */
+        long[] next(int ID);
+
+        /**
+         * Returns the event with the greatest ID that is less than ID.
+         * @param ID The ID.
+         * @return The ID and the count of the event, or null.
+         */
+        long[] previous(int ID);
+
+        /**
+         * Called every few thousand operations so that counters with state outside the heap can round trip it.
+         * @throws IOException If the state cannot be written or read back.
+         */
+        default void checkpoint() throws IOException {
+        }
+
+        /**
+         * Releases the threads and the files held by the counter.
+         * @throws IOException If the counter cannot be closed.
+         */
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * The number of operations between two checkpoints.
+     */
+    private static final int CHECKPOINT_INTERVAL = 5000;
+
+    /**
+     * The scale which spreads an int ID over the key space of the LongKeyEventCounter without reordering it.
+     */
+    private static final long LONG_KEY_SCALE = 4_000_000_000L;
+
+    /**
+     * Holds the settings read from the command line.
+     */
+    private static long seed = 1;
+    private static int operations = 200000, span = 5000, builtEvents = 2000;
+
+    /**
+     * Holds the directory of the files written by the durable and the memory mapped counters.
+     */
+    private static Path directory;
+
+    public static void main(String[] args) throws IOException {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-seed" -> seed = Long.parseLong(args[i + 1]);
+                case "-operations" -> operations = Integer.parseInt(args[i + 1]);
+                case "-span" -> span = Integer.parseInt(args[i + 1]);
+                case "-built" -> builtEvents = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        directory = Files.createTempDirectory("event-counter-test");
+        boolean passed = true;
+        try {
+            for (Subject subject : subjects()) {
+                try {
+                    run(subject);
+                    System.out.println("passed " + subject.name());
+                } catch (AssertionError assertionError) {
+                    System.out.println("FAILED " + subject.name() + ": " + assertionError.getMessage());
+                    passed = false;
+                } finally {
+                    subject.close();
+                }
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+        if(!passed) {
+            System.out.println("seed " + seed);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Applies the random operations to a counter and to a TreeMap and compares every result.
+     * @param subject The counter.
+     * @throws IOException If a durable counter fails.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void run(Subject subject) throws IOException {
+        Random random = new Random(seed);
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        int[] IDs = new int[builtEvents];
+        long[] counts = new long[builtEvents];
+        int ID = -span;
+        for (int i = 0; i < builtEvents; i++) {
+            ID += 1 + random.nextInt(Math.max(1, span / Math.max(1, builtEvents)));
+            IDs[i] = ID;
+            counts[i] = 1 + random.nextInt(100);
+            expected.put(IDs[i], counts[i]);
+        }
+        subject.build(IDs, counts);
+        for (int operation = 0; operation < operations; operation++) {
+            ID = random.nextInt(2 * span + 1) - span;
+            int amount = (random.nextInt(64) == 0) ? Integer.MAX_VALUE - random.nextInt(16) : 1 + random.nextInt(100);
+            String step = " at operation " + operation;
+            switch (random.nextInt(8)) {
+                case 0, 1 -> check(subject.increase(ID, amount), expected.merge(ID, (long) amount, Long::sum),
+                        "increase(" + ID + ", " + amount + ")" + step);
+                case 2, 3 -> {
+                    long count = expected.getOrDefault(ID, 0L) - amount;
+                    if(count > 0) {
+                        expected.put(ID, count);
+                    } else {
+                        expected.remove(ID);
+                    }
+                    check(subject.reduce(ID, amount), Math.max(count, 0), "reduce(" + ID + ", " + amount + ")" + step);
+                }
+                case 4 -> check(subject.count(ID), expected.getOrDefault(ID, 0L), "count(" + ID + ")" + step);
+                case 5 -> {
+                    int ID2 = (random.nextInt(16) == 0) ? Integer.MAX_VALUE : ID + random.nextInt(span / 4 + 1);
+                    int ID1 = (random.nextInt(16) == 0) ? Integer.MIN_VALUE : ID;
+                    long sum = 0;
+                    for (long count : expected.subMap(ID1, true, ID2, true).values()) {
+                        sum += count;
+                    }
+                    check(subject.inRange(ID1, ID2), sum, "inRange(" + ID1 + ", " + ID2 + ")" + step);
+                }
+                case 6 -> checkEvent(subject.next(ID), expected.higherEntry(ID), "next(" + ID + ")" + step);
+                default -> checkEvent(subject.previous(ID), expected.lowerEntry(ID), "previous(" + ID + ")" + step);
+            }
+            if((operation + 1) % CHECKPOINT_INTERVAL == 0) {
+                subject.checkpoint();
+            }
+        }
+        long[] event = subject.next(Integer.MIN_VALUE);
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            checkEvent(event, entry, "walk");
+            event = subject.next((int) event[0]);
+        }
+        checkEvent(event, null, "end of walk");
+        check(subject.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE),
+                expected.values().stream().mapToLong(Long::longValue).sum(), "total");
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the counter.
+     * @param expected The result of the TreeMap.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " returned " + actual + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Fails if an event differs from the expected entry.
+     * @param actual The ID and the count returned by the counter, or null.
+     * @param expected The entry of the TreeMap, or null.
+     * @param operation The operation, for the message.
+     */
+    private static void checkEvent(long[] actual, Map.Entry<Integer, Long> expected, String operation) {
+        if(actual == null && expected == null) {
+            return;
+        }
+        if(actual == null || expected == null || actual[0] != expected.getKey() || actual[1] != expected.getValue()) {
+            throw new AssertionError(operation + " returned " + describe(actual) + ", expected "
+                    + ((expected != null) ? "(" + expected.getKey() + ", " + expected.getValue() + ")" : "null"));
+        }
+    }
+
+    /**
+     * Formats an event for a message.
+     * @param event The ID and the count, or null.
+     * @return The text.
+     */
+    private static String describe(long[] event) {
+        return (event != null) ? "(" + event[0] + ", " + event[1] + ")" : "null";
+    }
+
+    /**
+     * Converts an event returned by a counter.
+     * @param event The event, or null.
+     * @return The ID and the count, or null.
+     */
+    private static long[] eventOf(RedBlackTree.RedBlackTreeNode event) {
+        return (event != null) ? new long[]{event.getID(), event.getCount()} : null;
+    }
+
+    /**
+     * Converts sorted arrays to the list taken by the build methods.
+     * @param IDs The IDs.
+     * @param counts The counts.
+     * @return The events.
+     */
+    private static ArrayList<RedBlackTree.RedBlackTreeNode> eventList(int[] IDs, long[] counts) {
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>(IDs.length);
+        for (int i = 0; i < IDs.length; i++) {
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(IDs[i], counts[i]));
+        }
+        return eventArrayList;
+    }
+
+    /**
+     * Creates the counters under test.
+     * @return The counters.
+     * @throws IOException If the files of a counter cannot be created.
+     */
+    private static List<Subject> subjects() throws IOException {
+        List<Subject> subjects = new ArrayList<>();
+        subjects.add(counterSubject("pointer tree", new RedBlackTreeEventCounter()));
+        RedBlackTreeEventCounter hashIndexed = new RedBlackTreeEventCounter();
+        hashIndexed.enableHashIndex();
+        subjects.add(counterSubject("pointer tree with hash index", hashIndexed));
+        RedBlackTreeEventCounter cached = new RedBlackTreeEventCounter();
+        cached.enableQueryCache(256);
+        subjects.add(counterSubject("pointer tree with query cache", cached));
+        subjects.add(counterSubject("array backend", new RedBlackTreeEventCounter(new ArrayEventCounterBackend())));
+        subjects.add(counterSubject("B+ tree backend",
+                new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend())));
+        RedBlackTreeEventCounter cachedBPlusTree = new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend());
+        cachedBPlusTree.enableQueryCache(256);
+        subjects.add(counterSubject("B+ tree backend with query cache", cachedBPlusTree));
+        subjects.add(counterSubject("persistent backend",
+                new RedBlackTreeEventCounter(new PersistentEventCounterBackend())));
+        subjects.add(mappedImageSubject(directory.resolve("events.rbti").toString()));
+        subjects.add(concurrentSubject(new ConcurrentRedBlackTreeEventCounter()));
+        subjects.add(shardedSubject(new ShardedEventCounter(4, CountOverflowPolicy.PROMOTE)));
+        subjects.add(durableSubject(directory.resolve("durable").toString()));
+        subjects.add(longKeySubject(new LongKeyEventCounter()));
+        return subjects;
+    }
+
+    /**
+     * Adapts a RedBlackTreeEventCounter.
+     * @param name The name of the counter.
+     * @param eventCounter The counter.
+     * @return The subject.
+     */
+    private static Subject counterSubject(String name, RedBlackTreeEventCounter eventCounter) {
+        return new Subject() {
+            public String name() {
+                return name;
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                eventCounter.buildEventCounter(eventList(IDs, counts));
+            }
+
+            public long increase(int ID, int amount) {
+                return eventCounter.increase(ID, amount);
+            }
+
+            public long reduce(int ID, int amount) {
+                return eventCounter.reduce(ID, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1, ID2);
+            }
+
+            public long[] next(int ID) {
+                return eventOf(eventCounter.next(ID));
+            }
+
+            public long[] previous(int ID) {
+                return eventOf(eventCounter.previous(ID));
+            }
+        };
+    }
+
+    /**
+     * Adapts a RedBlackTreeEventCounter on a persistent memory mapped image backend, which is compacted, closed and
+     * opened again from its file at every checkpoint.
+     * @param path The image file.
+     * @return The subject.
+     * @throws IOException If the image cannot be created.
+     */
+    private static Subject mappedImageSubject(String path) throws IOException {
+        return new Subject() {
+            private MappedImageEventCounterBackend backend = new MappedImageEventCounterBackend(path, true);
+            private RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter(backend);
+
+            public String name() {
+                return "memory mapped image backend";
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                eventCounter.buildEventCounter(eventList(IDs, counts));
+            }
+
+            public long increase(int ID, int amount) {
+                return eventCounter.increase(ID, amount);
+            }
+
+            public long reduce(int ID, int amount) {
+                return eventCounter.reduce(ID, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1, ID2);
+            }
+
+            public long[] next(int ID) {
+                return eventOf(eventCounter.next(ID));
+            }
+
+            public long[] previous(int ID) {
+                return eventOf(eventCounter.previous(ID));
+            }
+
+            public void checkpoint() throws IOException {
+                backend.close();
+                backend = new MappedImageEventCounterBackend(path, true);
+                eventCounter = new RedBlackTreeEventCounter(backend);
+            }
+
+            public void close() throws IOException {
+                backend.close();
+            }
+        };
+    }
+
+    /**
+     * Adapts a ConcurrentRedBlackTreeEventCounter.
+     * @param eventCounter The counter.
+     * @return The subject.
+     */
+    private static Subject concurrentSubject(ConcurrentRedBlackTreeEventCounter eventCounter) {
+        return new Subject() {
+            public String name() {
+                return "concurrent counter";
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                eventCounter.buildEventCounter(eventList(IDs, counts));
+            }
+
+            public long increase(int ID, int amount) {
+                return eventCounter.increase(ID, amount);
+            }
+
+            public long reduce(int ID, int amount) {
+                return eventCounter.reduce(ID, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1, ID2);
+            }
+
+            public long[] next(int ID) {
+                return eventOf(eventCounter.next(ID));
+            }
+
+            public long[] previous(int ID) {
+                return eventOf(eventCounter.previous(ID));
+            }
+        };
+    }
+
+    /**
+     * Adapts a ShardedEventCounter and stops its shard threads when closed.
+     * @param eventCounter The counter.
+     * @return The subject.
+     */
+    private static Subject shardedSubject(ShardedEventCounter eventCounter) {
+        return new Subject() {
+            public String name() {
+                return "sharded counter";
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                eventCounter.buildEventCounter(eventList(IDs, counts));
+            }
+
+            public long increase(int ID, int amount) {
+                return eventCounter.increase(ID, amount);
+            }
+
+            public long reduce(int ID, int amount) {
+                return eventCounter.reduce(ID, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1, ID2);
+            }
+
+            public long[] next(int ID) {
+                return eventOf(eventCounter.next(ID));
+            }
+
+            public long[] previous(int ID) {
+                return eventOf(eventCounter.previous(ID));
+            }
+
+            public void close() {
+                eventCounter.close();
+            }
+        };
+    }
+
+    /**
+     * Adapts a DurableEventCounter, which is closed and recovered from its directory at every checkpoint. Every
+     * second checkpoint takes a snapshot first, so recovery replays both a snapshot and a log.
+     * @param path The directory of the counter.
+     * @return The subject.
+     * @throws IOException If the directory cannot be created.
+     */
+    private static Subject durableSubject(String path) throws IOException {
+        return new Subject() {
+            private DurableEventCounter eventCounter = new DurableEventCounter(path, 64, 0);
+            private int checkpoints = 0;
+
+            public String name() {
+                return "durable counter";
+            }
+
+            public void build(int[] IDs, long[] counts) throws IOException {
+                eventCounter.buildEventCounter(IDs.length, eventList(IDs, counts).iterator());
+            }
+
+            public long increase(int ID, int amount) throws IOException {
+                return eventCounter.increase(ID, amount);
+            }
+
+            public long reduce(int ID, int amount) throws IOException {
+                return eventCounter.reduce(ID, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1, ID2);
+            }
+
+            public long[] next(int ID) {
+                return eventOf(eventCounter.next(ID));
+            }
+
+            public long[] previous(int ID) {
+                return eventOf(eventCounter.previous(ID));
+            }
+
+            public void checkpoint() throws IOException {
+                if(++checkpoints % 2 == 0) {
+                    eventCounter.snapshot();
+                }
+                eventCounter.close();
+                eventCounter = new DurableEventCounter(path, 64, 0);
+            }
+
+            public void close() throws IOException {
+                eventCounter.close();
+            }
+        };
+    }
+
+    /**
+     * Adapts a LongKeyEventCounter. Every ID is multiplied by LONG_KEY_SCALE so that the keys use the whole 64 bit
+     * range.
+     * @param eventCounter The counter.
+     * @return The subject.
+     */
+    private static Subject longKeySubject(LongKeyEventCounter eventCounter) {
+        return new Subject() {
+            public String name() {
+                return "long key counter";
+            }
+
+            public void build(int[] IDs, long[] counts) {
+                long[] longIDs = new long[IDs.length];
+                for (int i = 0; i < IDs.length; i++) {
+                    longIDs[i] = IDs[i] * LONG_KEY_SCALE;
+                }
+                eventCounter.buildEventCounter(IDs.length, longIDs, counts.clone());
+            }
+
+            public long increase(int ID, int amount) {
+                return eventCounter.increase(ID * LONG_KEY_SCALE, amount);
+            }
+
+            public long reduce(int ID, int amount) {
+                return eventCounter.reduce(ID * LONG_KEY_SCALE, amount);
+            }
+
+            public long count(int ID) {
+                return eventCounter.count(ID * LONG_KEY_SCALE);
+            }
+
+            public long inRange(int ID1, int ID2) {
+                return eventCounter.inRange(ID1 * LONG_KEY_SCALE, ID2 * LONG_KEY_SCALE);
+            }
+
+            public long[] next(int ID) {
+                return eventOf(eventCounter.next(ID * LONG_KEY_SCALE));
+            }
+
+            public long[] previous(int ID) {
+                return eventOf(eventCounter.previous(ID * LONG_KEY_SCALE));
+            }
+
+            /**
+             * Converts an event of the long key counter back to an int ID.
+             * @param event The event, or null.
+             * @return The ID and the count, or null.
+             */
+            private long[] eventOf(LongKeyEventCounter.LongEvent event) {
+                return (event != null) ? new long[]{event.getID() / LONG_KEY_SCALE, event.getCount()} : null;
+            }
+        };
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     * @param root The directory.
+     * @throws IOException If a file cannot be deleted.
+     */
+    private static void deleteDirectory(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        } catch (UncheckedIOException uncheckedIOException) {
+            throw uncheckedIOException.getCause();
+        }
+    }
+}
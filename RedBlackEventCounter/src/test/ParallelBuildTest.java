@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Test of EventFileLoader.parseParallel and RedBlackTreeEventCounter.parallelBuildEventCounter:
+ * 1. Event files in the text, binary and wide binary formats, large enough to be cut into several chunks, are read by
+ * parseParallel on a pool of four threads and compared event by event with the sequential EventFileLoader. The text
+ * file mixes spaces, tabs and CRLF line breaks and has negative IDs and counts beyond the int range.
+ * 2. Empty files and malformed files, whose header promises more events than they hold or whose IDs do not fit an
+ * int, must give no events or throw an IOException.
+ * 3. The events are built by parallelBuildEventCounter and by buildEventCounter. On the pointer tree the two trees must
+ * have the same shape, which is checked through the subtree size and sum of every node, and the same black height.
+ * On a backend the counts must match.
+ * The first failure is printed and the test exits with status 1. Run it through the makefile in this directory.
+ */
+public class ParallelBuildTest {
+
+    /**
+     * The number of events of the large files, enough for several chunks and for the parallel build to fork.
+     */
+    private static final int EVENTS = 300_000;
+
+    /**
+     * Holds the pool which runs parseParallel.
+     */
+    private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+    /**
+     * Holds the directory of the event files.
+     */
+    private static Path directory;
+
+    /**
+     * A check which may throw an IOException.
+     */
+    interface Check {
+        /**
+         * Runs the check.
+         * @throws IOException If a file cannot be written or read.
+         */
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        directory = Files.createTempDirectory("event-counter-parallel-test");
+        boolean passed = true;
+        int[] IDs = new int[EVENTS];
+        long[] counts = new long[EVENTS];
+        Random random = new Random(1);
+        int ID = -EVENTS;
+        for (int i = 0; i < EVENTS; i++) {
+            ID += 1 + random.nextInt(5);
+            IDs[i] = ID;
+            counts[i] = (i % 1000 == 0) ? (1L << 40) + i : 1 + random.nextInt(1_000_000);
+        }
+        try {
+            passed &= run("text file", () -> checkFile(writeText("events.txt", IDs, counts), EVENTS));
+            passed &= run("binary file", () -> checkFile(writeBinary("events.bin", IDs, counts), EVENTS));
+            passed &= run("wide binary file", () -> {
+                String fileName = directory.resolve("events.wide").toString();
+                EventFileLoader.writeBinary(fileName, eventList(IDs, counts, EVENTS).iterator());
+                checkFile(fileName, EVENTS);
+            });
+            passed &= run("empty files", () -> {
+                checkFile(writeFile("empty.txt", new byte[0]), 0);
+                checkFile(writeFile("zero.txt", "0\n".getBytes()), 0);
+            });
+            passed &= run("malformed files", () -> {
+                expectMalformed(writeFile("short.txt", "3\n1 2\n3 4\n".getBytes()));
+                expectMalformed(writeFile("wide.txt", "2\n1 2\n2147483648 4\n".getBytes()));
+            });
+            passed &= run("parallel build on the pointer tree", () -> checkTreeShape(IDs, counts, EVENTS));
+            passed &= run("parallel build of a small tree", () -> checkTreeShape(IDs, counts, 100));
+            passed &= run("parallel build on a backend", () -> checkBackend(IDs, counts));
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+            pool.shutdown();
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a check and prints its outcome.
+     * @param name The name of the check.
+     * @param check The check.
+     * @return True if the check passed.
+     * @throws IOException If a file cannot be written or read.
+     */
+    private static boolean run(String name, Check check) throws IOException {
+        try {
+            check.run();
+            System.out.println("passed " + name);
+            return true;
+        } catch (AssertionError assertionError) {
+            System.out.println("FAILED " + name + ": " + assertionError.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads a file with parseParallel and with the sequential loader and compares the events.
+     * @param fileName The file.
+     * @param size The number of events in the file.
+     * @throws IOException If the file cannot be read.
+     * @throws AssertionError At the first event which differs.
+     */
+    private static void checkFile(String fileName, int size) throws IOException {
+        EventFileLoader.SortedEvents sortedEvents = EventFileLoader.parseParallel(fileName, pool);
+        check(sortedEvents.size(), size, "size of parseParallel");
+        try (EventFileLoader eventFileLoader = new EventFileLoader(fileName)) {
+            check(eventFileLoader.size(), size, "size of the loader");
+            for (int i = 0; i < size; i++) {
+                RedBlackTree.RedBlackTreeNode event = eventFileLoader.next();
+                check(sortedEvents.getIDs()[i], event.getID(), "ID of event " + i);
+                check(sortedEvents.getCounts()[i], event.getCount(), "count of event " + i);
+            }
+            check(eventFileLoader.hasNext() ? 1 : 0, 0, "events left in the loader");
+        }
+    }
+
+    /**
+     * Fails if parseParallel or the sequential loader reads a malformed file without an IOException.
+     * @param fileName The file.
+     * @throws AssertionError If either reader does not throw.
+     */
+    private static void expectMalformed(String fileName) {
+        try {
+            EventFileLoader.parseParallel(fileName, pool);
+            throw new AssertionError("parseParallel read " + fileName);
+        } catch (IOException expected) {
+            //The file is rejected
+        }
+        try (EventFileLoader eventFileLoader = new EventFileLoader(fileName)) {
+            while (eventFileLoader.hasNext()) {
+                eventFileLoader.next();
+            }
+            throw new AssertionError("the loader read " + fileName);
+        } catch (IOException | UncheckedIOException expected) {
+            //The file is rejected
+        }
+    }
+
+    /**
+     * Builds the pointer tree with parallelBuildEventCounter and with buildEventCounter and compares the shapes.
+     * @param IDs The sorted IDs.
+     * @param counts The counts.
+     * @param size The number of events to build from.
+     * @throws AssertionError At the first node which differs.
+     */
+    private static void checkTreeShape(int[] IDs, long[] counts, int size) {
+        RedBlackTreeEventCounter parallelBuilt = new RedBlackTreeEventCounter();
+        parallelBuilt.parallelBuildEventCounter(size, IDs, counts);
+        RedBlackTreeEventCounter built = new RedBlackTreeEventCounter();
+        built.buildEventCounter(eventList(IDs, counts, size));
+        check(parallelBuilt.redBlackTree.blackHeight(), built.redBlackTree.blackHeight(), "black height");
+        for (int k = 0; k < size; k++) {
+            RedBlackTree.RedBlackTreeNode node = parallelBuilt.select(k);
+            RedBlackTree.RedBlackTreeNode expected = built.select(k);
+            check(node.getID(), expected.getID(), "ID of node " + k);
+            check(node.getCount(), expected.getCount(), "count of node " + k);
+            check(node.getSubtreeSize(), expected.getSubtreeSize(), "subtree size of node " + k);
+            check(node.getSubtreeSum(), expected.getSubtreeSum(), "subtree sum of node " + k);
+        }
+        check(parallelBuilt.select(size) == null ? 0 : 1, 0, "select past the last event");
+    }
+
+    /**
+     * Builds a B+ tree backend with parallelBuildEventCounter and compares its counts with the arrays.
+     * @param IDs The sorted IDs.
+     * @param counts The counts.
+     * @throws AssertionError At the first count which differs.
+     */
+    private static void checkBackend(int[] IDs, long[] counts) {
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend());
+        eventCounter.parallelBuildEventCounter(EVENTS, IDs, counts);
+        long total = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            check(eventCounter.count(IDs[i]), counts[i], "count(" + IDs[i] + ")");
+            total += counts[i];
+        }
+        check(eventCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), total, "inRange of all events");
+    }
+
+    /**
+     * Writes events in the text format with varying white space.
+     * @param name The name of the file in the directory.
+     * @param IDs The IDs.
+     * @param counts The counts.
+     * @return The path of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    private static String writeText(String name, int[] IDs, long[] counts) throws IOException {
+        StringBuilder text = new StringBuilder().append(IDs.length).append('\n');
+        for (int i = 0; i < IDs.length; i++) {
+            text.append(IDs[i]).append((i % 3 == 0) ? "\t" : " ").append(counts[i]);
+            text.append((i % 5 == 0) ? "\r\n" : "\n");
+        }
+        return writeFile(name, text.toString().getBytes());
+    }
+
+    /**
+     * Writes events in the binary format with 32 bit counts. Counts beyond the int range are cut to their low word.
+     * @param name The name of the file in the directory.
+     * @param IDs The IDs.
+     * @param counts The counts.
+     * @return The path of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    private static String writeBinary(String name, int[] IDs, long[] counts) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * IDs.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(EventFileLoader.BINARY_MAGIC);
+        for (int i = 0; i < IDs.length; i++) {
+            buffer.putInt(IDs[i]).putInt((int) counts[i]);
+        }
+        return writeFile(name, buffer.array());
+    }
+
+    /**
+     * Writes bytes to a file in the directory.
+     * @param name The name of the file.
+     * @param bytes The contents.
+     * @return The path of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    private static String writeFile(String name, byte[] bytes) throws IOException {
+        Path file = directory.resolve(name);
+        Files.write(file, bytes);
+        return file.toString();
+    }
+
+    /**
+     * Converts the first events of sorted arrays to the list taken by the build methods.
+     * @param IDs The IDs.
+     * @param counts The counts.
+     * @param size The number of events.
+     * @return The events.
+     */
+    private static ArrayList<RedBlackTree.RedBlackTreeNode> eventList(int[] IDs, long[] counts, int size) {
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(IDs[i], counts[i]));
+        }
+        return eventArrayList;
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " is " + actual + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of DeleteRange, AddToRange and ExportRange of RedBlackTreeEventCounter against a TreeMap:
+ * 1. Random range deletes and range adds, mixed with Increase and Reduce, are applied to the pointer tree with and
+ * without the hash index. The returned totals, the counts, select, inRange over random ranges and the height bound of
+ * the tree, which would break if split and join lost a subtree size, sum or color, are compared after every update.
+ * 2. ExportRange writes random ranges of the pointer tree and of the array, the B+ tree and the persistent backends
+ * to a channel which takes only a few bytes per write, and the decoded events are compared with the TreeMap.
+ * Range updates on a backend must throw. The first failure is printed and the test exits with status 1. Run it through
+ * the makefile in this directory, for example:
+ * make run-RangeUpdateTest ARGS="-seed 7"
+ */
+public class RangeUpdateTest {
+
+    /**
+     * The IDs are drawn from [-ID_RANGE, ID_RANGE).
+     */
+    private static final int ID_RANGE = 3000;
+
+    /**
+     * The number of updates, and ten times the number of exported ranges, per counter.
+     */
+    private static final int OPERATIONS = 5000;
+
+    /**
+     * The length of an exported event: an int ID and a long count.
+     */
+    private static final int EVENT_LENGTH = 4 + 8;
+
+    /**
+     * A counter under test.
+     * @param name The name printed in a failure.
+     * @param eventCounter The counter.
+     */
+    private record Subject(String name, RedBlackTreeEventCounter eventCounter) {
+    }
+
+    /**
+     * This inner class is a channel which takes a few bytes per write, or none, like a slow non-blocking channel.
+     */
+    private static final class TrickleChannel implements WritableByteChannel {
+
+        /**
+         * Holds the bytes written.
+         */
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        /**
+         * Holds the source of the lengths written.
+         */
+        private final Random random;
+
+        /**
+         * Creates a channel.
+         * @param random The source of the lengths written.
+         */
+        private TrickleChannel(Random random) {
+            this.random = random;
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = Math.min(source.remaining(), random.nextInt(3 * EVENT_LENGTH));
+            for (int i = 0; i < length; i++) {
+                written.write(source.get());
+            }
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        boolean passed = true;
+        RedBlackTreeEventCounter hashIndexed = new RedBlackTreeEventCounter();
+        hashIndexed.enableHashIndex();
+        for (Subject subject : List.of(new Subject("pointer tree", new RedBlackTreeEventCounter()),
+                new Subject("pointer tree with hash index", hashIndexed))) {
+            try {
+                checkRangeUpdates(subject.eventCounter(), new Random(seed));
+                System.out.println("passed range updates on " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED range updates on " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        List<Subject> exportSubjects = List.of(new Subject("pointer tree", new RedBlackTreeEventCounter()),
+                new Subject("array backend", new RedBlackTreeEventCounter(new ArrayEventCounterBackend())),
+                new Subject("B+ tree backend", new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend())),
+                new Subject("persistent backend", new RedBlackTreeEventCounter(new PersistentEventCounterBackend())));
+        for (Subject subject : exportSubjects) {
+            try {
+                checkExport(subject.eventCounter(), new Random(seed));
+                System.out.println("passed exportRange on " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED exportRange on " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Applies random range deletes and range adds to a counter and to the TreeMap, and compares them after every
+     * update.
+     * @param eventCounter The counter.
+     * @param random The source of the updates.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkRangeUpdates(RedBlackTreeEventCounter eventCounter, Random random) {
+        TreeMap<Integer, Long> expected = build(eventCounter, random);
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int ID1 = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            int ID2 = ID1 + random.nextInt(ID_RANGE / 4) - 20; //Sometimes below ID1, which is an empty range
+            if(operation % 97 == 0) {
+                ID1 = Integer.MIN_VALUE;
+            } else if(operation % 97 == 1) {
+                ID2 = Integer.MAX_VALUE;
+            }
+            Map<Integer, Long> range = (ID1 <= ID2) ? expected.subMap(ID1, true, ID2, true) : new TreeMap<>();
+            String name;
+            switch (random.nextInt(4)) {
+                case 0:
+                    name = "deleteRange(" + ID1 + ", " + ID2 + ")";
+                    check(eventCounter.deleteRange(ID1, ID2), sum(range), name);
+                    range.clear();
+                    break;
+                case 1:
+                    int delta = random.nextInt(41) - 20;
+                    name = "addToRange(" + ID1 + ", " + ID2 + ", " + delta + ")";
+                    for (int ID : new ArrayList<>(range.keySet())) {
+                        long count = expected.get(ID) + delta;
+                        if(count > 0) {
+                            expected.put(ID, count);
+                        } else {
+                            expected.remove(ID);
+                        }
+                    }
+                    check(eventCounter.addToRange(ID1, ID2, delta), sum(range), name);
+                    break;
+                default:
+                    for (int i = 0; i < 20; i++) { //Refills the tree so that the ranges keep finding events
+                        int ID = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+                        if(random.nextInt(4) > 0) {
+                            eventCounter.increase(ID, 10);
+                            expected.merge(ID, 10L, Long::sum);
+                        } else {
+                            eventCounter.reduce(ID, 10);
+                            long count = expected.getOrDefault(ID, 0L) - 10;
+                            if(count > 0) {
+                                expected.put(ID, count);
+                            } else {
+                                expected.remove(ID);
+                            }
+                        }
+                    }
+                    name = "increase and reduce";
+            }
+            checkTree(eventCounter, expected, random, name + " at operation " + operation);
+        }
+        RedBlackTreeEventCounter backendCounter = new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend());
+        try {
+            backendCounter.deleteRange(0, 10);
+            throw new AssertionError("deleteRange on a backend did not throw");
+        } catch (UnsupportedOperationException expectedException) {
+            //Range updates need the pointer tree
+        }
+        try {
+            backendCounter.addToRange(0, 10, 1);
+            throw new AssertionError("addToRange on a backend did not throw");
+        } catch (UnsupportedOperationException expectedException) {
+            //Range updates need the pointer tree
+        }
+    }
+
+    /**
+     * Compares random counts and ranges, the order of the events and the height of the tree with the TreeMap.
+     * @param eventCounter The counter.
+     * @param expected The TreeMap.
+     * @param random The source of the queries.
+     * @param operation The last update, for the message.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkTree(RedBlackTreeEventCounter eventCounter, TreeMap<Integer, Long> expected,
+                                  Random random, String operation) {
+        for (int i = 0; i < 10; i++) {
+            int ID = random.nextInt(2 * ID_RANGE + 20) - ID_RANGE - 10;
+            check(eventCounter.count(ID), expected.getOrDefault(ID, 0L), "count(" + ID + ") after " + operation);
+            int ID2 = ID + random.nextInt(ID_RANGE);
+            check(eventCounter.inRange(ID, ID2), sum(expected.subMap(ID, true, ID2, true)),
+                    "inRange(" + ID + ", " + ID2 + ") after " + operation);
+        }
+        check(eventCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), sum(expected), "inRange after " + operation);
+        int k = 0;
+        for (int ID : expected.keySet()) {
+            RedBlackTree.RedBlackTreeNode event = eventCounter.select(k);
+            check((event != null) ? event.getID() : 0, ID, "select(" + k + ") after " + operation);
+            k++;
+        }
+        check(eventCounter.select(k) == null ? 0 : 1, 0, "select past the last event after " + operation);
+        int height = eventCounter.redBlackTree.height();
+        int bound = 2 * (32 - Integer.numberOfLeadingZeros(expected.size() + 1));
+        if(height > bound) {
+            throw new AssertionError("height " + height + " of " + expected.size() + " events exceeds " + bound
+                    + " after " + operation);
+        }
+    }
+
+    /**
+     * Exports random ranges of a counter and compares the decoded events with the TreeMap.
+     * @param eventCounter The counter.
+     * @param random The source of the ranges.
+     * @throws IOException If the export fails.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkExport(RedBlackTreeEventCounter eventCounter, Random random) throws IOException {
+        TreeMap<Integer, Long> expected = build(eventCounter, random);
+        for (int operation = 0; operation < OPERATIONS / 10; operation++) {
+            int ID1 = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            int ID2 = ID1 + random.nextInt(2 * ID_RANGE) - 20;
+            if(operation % 20 == 0) {
+                ID1 = Integer.MIN_VALUE;
+                ID2 = Integer.MAX_VALUE;
+            }
+            String name = "exportRange(" + ID1 + ", " + ID2 + ")";
+            TrickleChannel channel = new TrickleChannel(random);
+            int exported = eventCounter.exportRange(ID1, ID2, channel);
+            Map<Integer, Long> range = (ID1 <= ID2) ? expected.subMap(ID1, true, ID2, true) : Map.of();
+            check(exported, range.size(), name);
+            ByteBuffer written = ByteBuffer.wrap(channel.written.toByteArray());
+            check(written.remaining(), (long) range.size() * EVENT_LENGTH, "bytes written by " + name);
+            for (Map.Entry<Integer, Long> entry : range.entrySet()) {
+                int ID = written.getInt();
+                long count = written.getLong();
+                if(ID != entry.getKey() || count != entry.getValue()) {
+                    throw new AssertionError(name + " wrote " + ID + "=" + count + ", expected " + entry);
+                }
+            }
+            int ID = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            eventCounter.increase(ID, 7);
+            expected.merge(ID, 7L, Long::sum);
+        }
+    }
+
+    /**
+     * Builds a counter from random IDs with counts up to 2^40, and the TreeMap holding the same events.
+     * @param eventCounter The counter.
+     * @param random The source of the events.
+     * @return The TreeMap.
+     */
+    private static TreeMap<Integer, Long> build(RedBlackTreeEventCounter eventCounter, Random random) {
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        for (int ID = -ID_RANGE; ID < ID_RANGE; ID++) {
+            if(random.nextInt(3) == 0) {
+                expected.put(ID, (random.nextInt(50) == 0) ? 1L << 40 : 1 + random.nextInt(100));
+            }
+        }
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>(expected.size());
+        expected.forEach((ID, count) -> eventArrayList.add(new RedBlackTree.RedBlackTreeNode(ID, count)));
+        eventCounter.buildEventCounter(eventArrayList);
+        return expected;
+    }
+
+    /**
+     * Returns the total count of events.
+     * @param events The events.
+     * @return The total count.
+     */
+    private static long sum(Map<Integer, Long> events) {
+        long sum = 0;
+        for (long count : events.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the counter.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " returned " + actual + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of Rank, Select and Quantile of RedBlackTreeEventCounter against a TreeMap. After every random Increase or
+ * Reduce a few queries are compared:
+ * 1. rank(ID) with the number of smaller IDs, for present and absent IDs and for Integer.MIN_VALUE
+ * 2. select(k) with the k-th smallest ID, including k out of range, and select(rank(ID)) with ID itself
+ * 3. quantile(q) with the first event whose prefix sum reaches ceil(q * total), for random q and for 0 and 1
+ * Quantile of an empty counter must return null and a q outside [0, 1] must throw. The first failure is printed and
+ * the test exits with status 1. Run it through the makefile in this directory, for example:
+ * make run-RankSelectTest ARGS="-seed 7"
+ */
+public class RankSelectTest {
+
+    /**
+     * The IDs are drawn from [-ID_RANGE, ID_RANGE).
+     */
+    private static final int ID_RANGE = 2000;
+
+    /**
+     * The number of updates, each followed by a few queries.
+     */
+    private static final int OPERATIONS = 20_000;
+
+    public static void main(String[] args) {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        try {
+            checkEmpty();
+            checkQueries(new Random(seed));
+            System.out.println("passed rank, select and quantile");
+        } catch (AssertionError assertionError) {
+            System.out.println("FAILED rank, select and quantile: " + assertionError.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks the queries of an empty counter and the rejected quantiles.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkEmpty() {
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter();
+        check(eventCounter.rank(5), 0, "rank(5) of an empty counter");
+        check(eventCounter.select(0) == null, "select(0) of an empty counter is not null");
+        check(eventCounter.quantile(0.5) == null, "quantile(0.5) of an empty counter is not null");
+        for (double q : new double[]{-0.1, 1.1, Double.NaN}) {
+            try {
+                eventCounter.quantile(q);
+                throw new AssertionError("quantile(" + q + ") did not throw");
+            } catch (IllegalArgumentException expected) {
+                //The quantile is rejected
+            }
+        }
+    }
+
+    /**
+     * Updates a counter at random and compares its ranks, selections and quantiles with the TreeMap.
+     * @param random The source of the operations.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkQueries(Random random) {
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter();
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>();
+        for (int ID = -ID_RANGE; ID < ID_RANGE; ID += 4) {
+            long count = 1 + random.nextInt(1000);
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(ID, count));
+            expected.put(ID, count);
+        }
+        eventCounter.buildEventCounter(eventArrayList);
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int ID = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            int amount = 1 + random.nextInt(1000);
+            if(random.nextInt(3) > 0) {
+                eventCounter.increase(ID, amount);
+                expected.merge(ID, (long) amount, Long::sum);
+            } else {
+                eventCounter.reduce(ID, amount);
+                long count = expected.getOrDefault(ID, 0L) - amount;
+                if(count > 0) {
+                    expected.put(ID, count);
+                } else {
+                    expected.remove(ID);
+                }
+            }
+            String after = " after operation " + operation;
+            int queryID = random.nextInt(2 * ID_RANGE + 20) - ID_RANGE - 10;
+            int rank = expected.headMap(queryID, false).size();
+            check(eventCounter.rank(queryID), rank, "rank(" + queryID + ")" + after);
+            check(eventCounter.rank(Integer.MIN_VALUE), 0, "rank(Integer.MIN_VALUE)" + after);
+            RedBlackTree.RedBlackTreeNode selected = eventCounter.select(rank);
+            Integer ceilingID = expected.ceilingKey(queryID);
+            check((selected == null) ? ceilingID == null : ceilingID != null && selected.getID() == ceilingID,
+                    "select(" + rank + ") is " + idOf(selected) + ", expected " + ceilingID + after);
+            int k = random.nextInt(expected.size() + 2) - 1;
+            selected = eventCounter.select(k);
+            Integer selectedID = (k >= 0 && k < expected.size()) ? (Integer) expected.keySet().toArray()[k] : null;
+            check((selected == null) ? selectedID == null : selectedID != null && selected.getID() == selectedID,
+                    "select(" + k + ") is " + idOf(selected) + ", expected " + selectedID + after);
+            double q = (operation % 10 == 0) ? (operation / 10) % 2 : random.nextDouble();
+            RedBlackTree.RedBlackTreeNode quantile = eventCounter.quantile(q);
+            Integer quantileID = expectedQuantile(expected, q);
+            check((quantile == null) ? quantileID == null : quantileID != null && quantile.getID() == quantileID,
+                    "quantile(" + q + ") is " + idOf(quantile) + ", expected " + quantileID + after);
+        }
+    }
+
+    /**
+     * Returns the ID of the first event whose prefix sum reaches ceil(q * total).
+     * @param expected The TreeMap.
+     * @param q The fraction of the total count.
+     * @return The ID, or null if there are no events.
+     */
+    private static Integer expectedQuantile(TreeMap<Integer, Long> expected, double q) {
+        long total = 0;
+        for (long count : expected.values()) {
+            total += count;
+        }
+        long target = (long) Math.ceil(q * total);
+        long prefixSum = 0;
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            prefixSum += entry.getValue();
+            if(prefixSum >= target) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the ID of an event for a message.
+     * @param event The event, or null.
+     * @return The ID or "null".
+     */
+    private static String idOf(RedBlackTree.RedBlackTreeNode event) {
+        return (event != null) ? String.valueOf(event.getID()) : "null";
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the counter.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " returned " + actual + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Fails with a message if a condition does not hold.
+     * @param condition The condition.
+     * @param message The message.
+     */
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of the protocol of EventCounterServer, which is run on its own thread and reached through client sockets:
+ * 1. Random requests are pipelined over a loopback TCP port and over a Unix domain socket by a writer thread. The
+ * replies are read only after a pause, so the server has to stop reading while its replies are not taken. Every reply
+ * is compared with a TreeMap which ran the same requests.
+ * 2. An increase which overflows gets COUNT_OVERFLOW and the connection goes on.
+ * 3. An unknown opcode and a request on which the counter fails get BAD_REQUEST after the replies to the requests
+ * before them, and only their connection is closed.
+ * 4. Close ends run and closes the connections.
+ * The first failure is printed and the test exits with status 1. Run it through the makefile in this directory, for
+ * example:
+ * make run-ServerProtocolTest ARGS="-seed 7"
+ */
+public class ServerProtocolTest {
+
+    /**
+     * The IDs are drawn from [-ID_RANGE, ID_RANGE).
+     */
+    private static final int ID_RANGE = 1000;
+
+    /**
+     * The number of pipelined requests per connection.
+     */
+    private static final int REQUESTS = 200_000;
+
+    /**
+     * The milliseconds to wait for a thread to end.
+     */
+    private static final long JOIN_MILLIS = 10_000;
+
+    /**
+     * A check which needs a served counter.
+     */
+    interface Check {
+        /**
+         * Runs the check against the server.
+         * @param address The address of the server.
+         * @throws IOException If a socket fails.
+         * @throws InterruptedException If the check is interrupted.
+         */
+        void run(SocketAddress address) throws IOException, InterruptedException;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        long pipelineSeed = seed;
+        SocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        Path directory = Files.createTempDirectory("event-counter-server-test");
+        SocketAddress unixSocket = UnixDomainSocketAddress.of(directory.resolve("counter.sock"));
+        boolean passed = true;
+        try {
+            passed &= serve("pipelined requests over TCP", new RedBlackTreeEventCounter(), loopback,
+                    address -> checkPipelined(address, new Random(pipelineSeed)));
+            passed &= serve("pipelined requests over a Unix domain socket", new RedBlackTreeEventCounter(), unixSocket,
+                    address -> checkPipelined(address, new Random(pipelineSeed + 1)));
+            RedBlackTreeEventCounter fullCounter = new RedBlackTreeEventCounter();
+            ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>();
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(1, Long.MAX_VALUE - 10));
+            fullCounter.buildEventCounter(eventArrayList);
+            passed &= serve("count overflow", fullCounter, loopback, ServerProtocolTest::checkOverflow);
+            passed &= serve("unknown opcode", new RedBlackTreeEventCounter(), loopback,
+                    ServerProtocolTest::checkUnknownOpcode);
+            RedBlackTreeEventCounter failingCounter = new RedBlackTreeEventCounter() {
+                @Override
+                public long count(int ID) {
+                    if(ID < 0) {
+                        throw new IllegalStateException("Negative ID " + ID);
+                    }
+                    return super.count(ID);
+                }
+            };
+            passed &= serve("failing request", failingCounter, loopback, ServerProtocolTest::checkFailingRequest);
+        } finally {
+            Files.deleteIfExists(directory.resolve("counter.sock"));
+            Files.delete(directory);
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Serves a counter on a thread, runs a check against it, closes the server and prints the outcome. The check
+     * fails as well if run does not return after close.
+     * @param name The name of the check.
+     * @param eventCounter The counter.
+     * @param address The address to bind.
+     * @param check The check.
+     * @return True if the check passed.
+     * @throws IOException If the address cannot be bound or a socket fails.
+     * @throws InterruptedException If the check is interrupted.
+     */
+    private static boolean serve(String name, RedBlackTreeEventCounter eventCounter, SocketAddress address,
+                                 Check check) throws IOException, InterruptedException {
+        EventCounterServer server = new EventCounterServer(eventCounter, address);
+        Thread serverThread = new Thread(server, "event counter server");
+        serverThread.start();
+        try {
+            check.run(server.getLocalAddress());
+            server.close();
+            serverThread.join(JOIN_MILLIS);
+            check(!serverThread.isAlive(), "run did not return after close");
+            System.out.println("passed " + name);
+            return true;
+        } catch (AssertionError assertionError) {
+            System.out.println("FAILED " + name + ": " + assertionError.getMessage());
+            return false;
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Writes random requests on a writer thread and reads the replies after a pause, and compares them with the
+     * replies of a TreeMap which ran the same requests.
+     * @param address The address of the server.
+     * @param random The source of the requests.
+     * @throws IOException If the socket fails.
+     * @throws InterruptedException If the pause or the join of the writer thread is interrupted.
+     */
+    private static void checkPipelined(SocketAddress address, Random random) throws IOException,
+            InterruptedException {
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        ByteBuffer requests = ByteBuffer.allocate(9 * REQUESTS);
+        byte[] opcodes = new byte[REQUESTS];
+        long[][] replies = new long[REQUESTS][];
+        for (int i = 0; i < REQUESTS; i++) {
+            int ID = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            byte opcode = (byte) (EventCounterServer.INCREASE + random.nextInt(6));
+            opcodes[i] = opcode;
+            requests.put(opcode).putInt(ID);
+            switch (opcode) {
+                case EventCounterServer.INCREASE: {
+                    int amount = 1 + random.nextInt(100);
+                    requests.putInt(amount);
+                    replies[i] = new long[]{expected.merge(ID, (long) amount, Long::sum)};
+                    break;
+                }
+                case EventCounterServer.REDUCE: {
+                    int amount = 1 + random.nextInt(100);
+                    requests.putInt(amount);
+                    long count = expected.getOrDefault(ID, 0L) - amount;
+                    if(count > 0) {
+                        expected.put(ID, count);
+                    } else {
+                        expected.remove(ID);
+                    }
+                    replies[i] = new long[]{Math.max(count, 0)};
+                    break;
+                }
+                case EventCounterServer.COUNT:
+                    replies[i] = new long[]{expected.getOrDefault(ID, 0L)};
+                    break;
+                case EventCounterServer.IN_RANGE: {
+                    int ID2 = ID + random.nextInt(ID_RANGE / 2);
+                    requests.putInt(ID2);
+                    long sum = 0;
+                    for (long count : expected.subMap(ID, true, ID2, true).values()) {
+                        sum += count;
+                    }
+                    replies[i] = new long[]{sum};
+                    break;
+                }
+                case EventCounterServer.NEXT:
+                    replies[i] = eventOf(expected.higherEntry(ID));
+                    break;
+                default:
+                    replies[i] = eventOf(expected.lowerEntry(ID));
+            }
+        }
+        requests.flip();
+        try (SocketChannel socketChannel = SocketChannel.open(address)) {
+            ArrayList<IOException> writeFailures = new ArrayList<>();
+            Thread writer = new Thread(() -> {
+                Random chunks = new Random(REQUESTS);
+                try {
+                    while (requests.hasRemaining()) { //Cuts frames at random, so they arrive split across reads
+                        ByteBuffer chunk = requests.slice();
+                        chunk.limit(Math.min(chunk.limit(), 1 + chunks.nextInt(20_000)));
+                        requests.position(requests.position() + chunk.limit());
+                        while (chunk.hasRemaining()) {
+                            socketChannel.write(chunk);
+                        }
+                    }
+                    socketChannel.shutdownOutput();
+                } catch (IOException ioException) {
+                    writeFailures.add(ioException);
+                }
+            }, "request writer");
+            writer.start();
+            Thread.sleep(200); //Lets the replies fill the buffers of the server and of the socket
+            DataInputStream input = new DataInputStream(Channels.newInputStream(socketChannel));
+            try {
+                for (int i = 0; i < REQUESTS; i++) {
+                    String request = "reply " + i + " to opcode " + opcodes[i];
+                    check(input.readByte(), EventCounterServer.OK, "status of " + request);
+                    if(opcodes[i] == EventCounterServer.NEXT || opcodes[i] == EventCounterServer.PREVIOUS) {
+                        check(input.readInt(), replies[i][0], "ID of " + request);
+                        check(input.readLong(), replies[i][1], "count of " + request);
+                    } else {
+                        check(input.readLong(), replies[i][0], request);
+                    }
+                }
+                expectClosed(input, "the connection after the last reply");
+            } finally {
+                writer.join(JOIN_MILLIS);
+            }
+            check(writeFailures.isEmpty(), "writing the requests failed: " + writeFailures);
+        }
+    }
+
+    /**
+     * Checks that an increase past the total count limit gets COUNT_OVERFLOW and that the connection goes on.
+     * @param address The address of a server whose counter holds Long.MAX_VALUE - 10 at ID 1.
+     * @throws IOException If the socket fails.
+     */
+    private static void checkOverflow(SocketAddress address) throws IOException {
+        try (SocketChannel socketChannel = SocketChannel.open(address)) {
+            DataInputStream input = new DataInputStream(Channels.newInputStream(socketChannel));
+            ByteBuffer requests = ByteBuffer.allocate(64);
+            requests.put(EventCounterServer.INCREASE).putInt(1).putInt(100);
+            requests.put(EventCounterServer.INCREASE).putInt(2).putInt(100);
+            requests.put(EventCounterServer.COUNT).putInt(1);
+            requests.put(EventCounterServer.INCREASE).putInt(1).putInt(5);
+            write(socketChannel, requests);
+            check(input.readByte(), EventCounterServer.COUNT_OVERFLOW, "status of increase(1) past the limit");
+            check(input.readLong(), 0, "count of the overflow");
+            check(input.readByte(), EventCounterServer.COUNT_OVERFLOW, "status of increase(2) past the limit");
+            check(input.readLong(), 0, "count of the overflow");
+            check(input.readByte(), EventCounterServer.OK, "status of count(1)");
+            check(input.readLong(), Long.MAX_VALUE - 10, "count(1) after the overflows");
+            check(input.readByte(), EventCounterServer.OK, "status of increase(1) within the limit");
+            check(input.readLong(), Long.MAX_VALUE - 5, "increase(1) within the limit");
+        }
+    }
+
+    /**
+     * Checks that an unknown opcode gets BAD_REQUEST after the replies to the requests before it, that its connection
+     * is closed, and that another connection is served on.
+     * @param address The address of the server.
+     * @throws IOException If a socket fails.
+     */
+    private static void checkUnknownOpcode(SocketAddress address) throws IOException {
+        try (SocketChannel other = SocketChannel.open(address);
+             SocketChannel socketChannel = SocketChannel.open(address)) {
+            DataInputStream input = new DataInputStream(Channels.newInputStream(socketChannel));
+            ByteBuffer requests = ByteBuffer.allocate(64);
+            requests.put(EventCounterServer.INCREASE).putInt(7).putInt(5);
+            requests.put((byte) 99).putInt(7);
+            requests.put(EventCounterServer.COUNT).putInt(7);
+            write(socketChannel, requests);
+            check(input.readByte(), EventCounterServer.OK, "status of increase(7)");
+            check(input.readLong(), 5, "increase(7)");
+            check(input.readByte(), EventCounterServer.BAD_REQUEST, "status of the unknown opcode");
+            check(input.readLong(), 0, "count of the unknown opcode");
+            expectClosed(input, "the connection after the unknown opcode");
+            checkServed(other, 7, 5);
+        }
+    }
+
+    /**
+     * Checks that a request on which the counter fails gets BAD_REQUEST, that its connection is closed, and that
+     * another connection is served on.
+     * @param address The address of a server whose counter fails on negative IDs.
+     * @throws IOException If a socket fails.
+     */
+    private static void checkFailingRequest(SocketAddress address) throws IOException {
+        try (SocketChannel other = SocketChannel.open(address);
+             SocketChannel socketChannel = SocketChannel.open(address)) {
+            DataInputStream input = new DataInputStream(Channels.newInputStream(socketChannel));
+            ByteBuffer requests = ByteBuffer.allocate(64);
+            requests.put(EventCounterServer.INCREASE).putInt(3).putInt(8);
+            requests.put(EventCounterServer.COUNT).putInt(-3);
+            requests.put(EventCounterServer.COUNT).putInt(3);
+            write(socketChannel, requests);
+            check(input.readByte(), EventCounterServer.OK, "status of increase(3)");
+            check(input.readLong(), 8, "increase(3)");
+            check(input.readByte(), EventCounterServer.BAD_REQUEST, "status of the failing count(-3)");
+            check(input.readLong(), 0, "count of the failing request");
+            expectClosed(input, "the connection after the failing request");
+            checkServed(other, 3, 8);
+        }
+    }
+
+    /**
+     * Checks that a connection is still served by asking for the count of an ID.
+     * @param socketChannel The connection.
+     * @param ID The ID.
+     * @param count The expected count.
+     * @throws IOException If the socket fails.
+     */
+    private static void checkServed(SocketChannel socketChannel, int ID, long count) throws IOException {
+        DataInputStream input = new DataInputStream(Channels.newInputStream(socketChannel));
+        write(socketChannel, ByteBuffer.allocate(5).put(EventCounterServer.COUNT).putInt(ID));
+        check(input.readByte(), EventCounterServer.OK, "status of count(" + ID + ") on the other connection");
+        check(input.readLong(), count, "count(" + ID + ") on the other connection");
+    }
+
+    /**
+     * Writes the requests put into a buffer.
+     * @param socketChannel The connection.
+     * @param requests The buffer, which is flipped first.
+     * @throws IOException If writing fails.
+     */
+    private static void write(SocketChannel socketChannel, ByteBuffer requests) throws IOException {
+        requests.flip();
+        while (requests.hasRemaining()) {
+            socketChannel.write(requests);
+        }
+    }
+
+    /**
+     * Fails if the server sends anything more before closing the connection.
+     * @param input The replies of the connection.
+     * @param name The connection, for the message.
+     * @throws IOException If reading fails.
+     */
+    private static void expectClosed(DataInputStream input, String name) throws IOException {
+        try {
+            input.readByte();
+            throw new AssertionError(name + " was not closed");
+        } catch (EOFException expected) {
+            //The server closed the connection
+        }
+    }
+
+    /**
+     * Converts an entry of the TreeMap to the ID and count of a NEXT or PREVIOUS reply.
+     * @param entry The entry, or null.
+     * @return The ID and the count, which are 0 if there is no entry.
+     */
+    private static long[] eventOf(Map.Entry<Integer, Long> entry) {
+        return (entry != null) ? new long[]{entry.getKey(), entry.getValue()} : new long[]{0, 0};
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the server.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " is " + actual + ", expected " + expected);
+        }
+    }
+
+    /**
+     * Fails with a message if a condition does not hold.
+     * @param condition The condition.
+     * @param message The message.
+     */
+    private static void check(boolean condition, String message) {
+        if(!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of Union, Intersection and Difference of RedBlackTreeEventCounter against a TreeMap. A counter is combined with
+ * random other counters which are empty, much smaller, about as large or much larger than it, and which overlap it
+ * sparsely or densely, so split and join run on trees of very different heights:
+ * 1. On the pointer tree and on the pointer tree with the hash index, the counts, select, inRange and the height bound
+ * of the tree are compared after every operation, and the other counter must be left unchanged.
+ * 2. Combining a counter with itself and combining a counter which uses a backend must throw.
+ * The first failure is printed and the test exits with status 1. Run it through the makefile in this directory, for
+ * example:
+ * make run-SetOperationTest ARGS="-seed 7"
+ */
+public class SetOperationTest {
+
+    /**
+     * The IDs are drawn from [-ID_RANGE, ID_RANGE).
+     */
+    private static final int ID_RANGE = 20_000;
+
+    /**
+     * The number of set operations per counter.
+     */
+    private static final int OPERATIONS = 600;
+
+    /**
+     * A counter under test.
+     * @param name The name printed in a failure.
+     * @param eventCounter The counter.
+     */
+    private record Subject(String name, RedBlackTreeEventCounter eventCounter) {
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        boolean passed = true;
+        RedBlackTreeEventCounter hashIndexed = new RedBlackTreeEventCounter();
+        hashIndexed.enableHashIndex();
+        for (Subject subject : List.of(new Subject("pointer tree", new RedBlackTreeEventCounter()),
+                new Subject("pointer tree with hash index", hashIndexed))) {
+            try {
+                checkSetOperations(subject.eventCounter(), new Random(seed));
+                System.out.println("passed " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        try {
+            checkRejected();
+            System.out.println("passed rejected operands");
+        } catch (AssertionError assertionError) {
+            System.out.println("FAILED rejected operands: " + assertionError.getMessage());
+            passed = false;
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Combines a counter with random other counters and compares it with the TreeMap after every operation.
+     * @param eventCounter The counter.
+     * @param random The source of the other counters.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkSetOperations(RedBlackTreeEventCounter eventCounter, Random random) {
+        TreeMap<Integer, Long> expected = randomEvents(random, 2000, 2 * ID_RANGE);
+        eventCounter.buildEventCounter(eventList(expected));
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int size = switch (random.nextInt(5)) {
+                case 0 -> 0;
+                case 1 -> 1 + random.nextInt(10);
+                case 2 -> Math.max(expected.size(), 1);
+                case 3 -> 4 * expected.size() + 100;
+                default -> 1 + random.nextInt(500);
+            };
+            int spread = random.nextBoolean() ? 2 * ID_RANGE : ID_RANGE / 10; //Dense others overlap in one region
+            TreeMap<Integer, Long> otherEvents = randomEvents(random, size, spread);
+            RedBlackTreeEventCounter other = new RedBlackTreeEventCounter();
+            other.buildEventCounter(eventList(otherEvents));
+            String name;
+            switch (random.nextInt(3)) {
+                case 0:
+                    name = "union";
+                    eventCounter.union(other);
+                    otherEvents.forEach((ID, count) -> expected.merge(ID, count, Long::sum));
+                    break;
+                case 1:
+                    name = "intersection";
+                    eventCounter.intersection(other);
+                    expected.keySet().retainAll(otherEvents.keySet());
+                    break;
+                default:
+                    name = "difference";
+                    eventCounter.difference(other);
+                    expected.keySet().removeAll(otherEvents.keySet());
+            }
+            name += " with " + otherEvents.size() + " events at operation " + operation;
+            checkEvents(other, otherEvents, random, "the other counter after " + name);
+            checkEvents(eventCounter, expected, random, name);
+            if(expected.size() < 500) { //Keeps the intersections from emptying the counter for good
+                TreeMap<Integer, Long> refill = randomEvents(random, 2000, 2 * ID_RANGE);
+                RedBlackTreeEventCounter refillCounter = new RedBlackTreeEventCounter();
+                refillCounter.buildEventCounter(eventList(refill));
+                eventCounter.union(refillCounter);
+                refill.forEach((ID, count) -> expected.merge(ID, count, Long::sum));
+            }
+        }
+    }
+
+    /**
+     * Checks that set operations on the counter itself and on counters which use a backend throw.
+     * @throws AssertionError If an operation does not throw.
+     */
+    private static void checkRejected() {
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter();
+        eventCounter.increase(1, 1);
+        RedBlackTreeEventCounter backendCounter = new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend());
+        backendCounter.increase(1, 1);
+        expectThrow(() -> eventCounter.union(eventCounter), IllegalArgumentException.class, "union with itself");
+        expectThrow(() -> eventCounter.intersection(eventCounter), IllegalArgumentException.class,
+                "intersection with itself");
+        expectThrow(() -> eventCounter.difference(eventCounter), IllegalArgumentException.class,
+                "difference with itself");
+        expectThrow(() -> eventCounter.union(backendCounter), UnsupportedOperationException.class,
+                "union with a backend");
+        expectThrow(() -> backendCounter.intersection(eventCounter), UnsupportedOperationException.class,
+                "intersection on a backend");
+        expectThrow(() -> eventCounter.difference(backendCounter), UnsupportedOperationException.class,
+                "difference with a backend");
+        check(eventCounter.count(1), 1, "count(1) after the rejected operations");
+    }
+
+    /**
+     * Compares random counts, random ranges, the order of the events and the height of the tree with the TreeMap.
+     * @param eventCounter The counter.
+     * @param expected The TreeMap.
+     * @param random The source of the queries.
+     * @param operation The last operation, for the message.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkEvents(RedBlackTreeEventCounter eventCounter, TreeMap<Integer, Long> expected,
+                                    Random random, String operation) {
+        for (int i = 0; i < 20; i++) {
+            int ID = random.nextInt(2 * ID_RANGE) - ID_RANGE;
+            check(eventCounter.count(ID), expected.getOrDefault(ID, 0L), "count(" + ID + ") after " + operation);
+            int ID2 = ID + random.nextInt(ID_RANGE);
+            check(eventCounter.inRange(ID, ID2), sum(expected.subMap(ID, true, ID2, true)),
+                    "inRange(" + ID + ", " + ID2 + ") after " + operation);
+        }
+        check(eventCounter.inRange(Integer.MIN_VALUE, Integer.MAX_VALUE), sum(expected), "inRange after " + operation);
+        int k = 0;
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            RedBlackTree.RedBlackTreeNode event = eventCounter.select(k);
+            if(event == null || event.getID() != entry.getKey() || event.getCount() != entry.getValue()) {
+                throw new AssertionError("select(" + k + ") after " + operation + " is "
+                        + ((event != null) ? event.getID() + "=" + event.getCount() : "null") + ", expected " + entry);
+            }
+            k++;
+        }
+        check(eventCounter.select(k) == null ? 0 : 1, 0, "select past the last event after " + operation);
+        int height = eventCounter.redBlackTree.height();
+        int bound = 2 * (32 - Integer.numberOfLeadingZeros(expected.size() + 1));
+        if(height > bound) {
+            throw new AssertionError("height " + height + " of " + expected.size() + " events exceeds " + bound
+                    + " after " + operation);
+        }
+    }
+
+    /**
+     * Draws random events from the IDs of a window centered at a random ID.
+     * @param random The source of the events.
+     * @param size The number of events drawn, of which repeated IDs are merged.
+     * @param spread The width of the window.
+     * @return The events.
+     */
+    private static TreeMap<Integer, Long> randomEvents(Random random, int size, int spread) {
+        TreeMap<Integer, Long> events = new TreeMap<>();
+        int first = random.nextInt(2 * ID_RANGE - spread + 1) - ID_RANGE;
+        for (int i = 0; i < size; i++) {
+            events.merge(first + random.nextInt(spread), 1L + random.nextInt(100), Long::sum);
+        }
+        return events;
+    }
+
+    /**
+     * Converts sorted events to the list taken by the build methods.
+     * @param events The events.
+     * @return The list.
+     */
+    private static ArrayList<RedBlackTree.RedBlackTreeNode> eventList(TreeMap<Integer, Long> events) {
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>(events.size());
+        events.forEach((ID, count) -> eventArrayList.add(new RedBlackTree.RedBlackTreeNode(ID, count)));
+        return eventArrayList;
+    }
+
+    /**
+     * Returns the total count of events.
+     * @param events The events.
+     * @return The total count.
+     */
+    private static long sum(Map<Integer, Long> events) {
+        long sum = 0;
+        for (long count : events.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    /**
+     * Fails if an operation does not throw an exception of the given type.
+     * @param operation The operation.
+     * @param type The type of the expected exception.
+     * @param name The operation, for the message.
+     */
+    private static void expectThrow(Runnable operation, Class<? extends RuntimeException> type, String name) {
+        try {
+            operation.run();
+        } catch (RuntimeException runtimeException) {
+            if(type.isInstance(runtimeException)) {
+                return;
+            }
+            throw new AssertionError(name + " threw " + runtimeException + ", expected " + type.getSimpleName());
+        }
+        throw new AssertionError(name + " did not throw");
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the counter.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " returned " + actual + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of TopK of RedBlackTreeEventCounter against a TreeMap sorted by count. Random updates are applied to each
+ * counter below and to the TreeMap, and after each one topK(k) must return the k largest counts, largest first, with
+ * equal counts in ascending order of ID:
+ * 1. The pointer tree with the index enabled before and after the build, updated by Increase, Reduce, ApplyBatch,
+ * DeleteRange, AddToRange, Union, Intersection and Difference
+ * 2. The array and the B+ tree backends, updated by Increase, Reduce and ApplyBatch
+ * Some counts are pushed past 2^32 so that the 64 bit order of the index is checked, and few distinct counts are used
+ * so that ties are common. TopK without the index must throw. The first failure is printed and the test exits with
+ * status 1. Run it through the makefile in this directory, for example:
+ * make run-TopKTest ARGS="-seed 7"
+ */
+public class TopKTest {
+
+    /**
+     * The IDs are drawn from [0, ID_RANGE).
+     */
+    private static final int ID_RANGE = 400;
+
+    /**
+     * The number of updates per counter.
+     */
+    private static final int OPERATIONS = 10_000;
+
+    /**
+     * A counter under test.
+     * @param name The name printed in a failure.
+     * @param eventCounter The counter.
+     * @param tree True if the counter supports the range updates and the set operations of the pointer tree.
+     */
+    private record Subject(String name, RedBlackTreeEventCounter eventCounter, boolean tree) {
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        boolean passed = true;
+        try {
+            new RedBlackTreeEventCounter().topK(1, new int[1], new long[1]);
+            System.out.println("FAILED topK without the index did not throw");
+            passed = false;
+        } catch (IllegalStateException expected) {
+            System.out.println("passed topK without the index");
+        }
+        for (Subject subject : subjects()) {
+            try {
+                checkTopK(subject, new Random(seed));
+                System.out.println("passed " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the counters under test. The index of the first counter is enabled here, before the build, and that of
+     * the others by checkTopK after the build.
+     * @return The counters.
+     */
+    private static List<Subject> subjects() {
+        List<Subject> subjects = new ArrayList<>();
+        RedBlackTreeEventCounter enabledFirst = new RedBlackTreeEventCounter();
+        enabledFirst.enableTopKIndex();
+        subjects.add(new Subject("pointer tree with the index enabled before the build", enabledFirst, true));
+        subjects.add(new Subject("pointer tree with the index enabled after the build", new RedBlackTreeEventCounter(),
+                true));
+        subjects.add(new Subject("array backend", new RedBlackTreeEventCounter(new ArrayEventCounterBackend()),
+                false));
+        subjects.add(new Subject("B+ tree backend", new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend()),
+                false));
+        return subjects;
+    }
+
+    /**
+     * Updates a counter at random and compares its top k with the TreeMap after every update.
+     * @param subject The counter.
+     * @param random The source of the operations.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkTopK(Subject subject, Random random) {
+        RedBlackTreeEventCounter eventCounter = subject.eventCounter();
+        TreeMap<Integer, Long> expected = new TreeMap<>();
+        ArrayList<RedBlackTree.RedBlackTreeNode> eventArrayList = new ArrayList<>();
+        for (int ID = 0; ID < ID_RANGE; ID += 2) {
+            long count = 1 + random.nextInt(5);
+            eventArrayList.add(new RedBlackTree.RedBlackTreeNode(ID, count));
+            expected.put(ID, count);
+        }
+        eventCounter.buildEventCounter(eventArrayList);
+        eventCounter.enableTopKIndex();
+        checkOrder(eventCounter, expected, ID_RANGE, "the build");
+        int kinds = subject.tree() ? 9 : 4;
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            int ID = random.nextInt(ID_RANGE);
+            int ID2 = ID + random.nextInt(20);
+            String name;
+            switch (random.nextInt(kinds)) {
+                case 0:
+                    name = "increase(" + ID + ")";
+                    int amount = 1 + random.nextInt(3);
+                    eventCounter.increase(ID, amount);
+                    expected.merge(ID, (long) amount, Long::sum);
+                    break;
+                case 1:
+                    name = "reduce(" + ID + ")";
+                    eventCounter.reduce(ID, 2);
+                    addToCount(expected, ID, -2);
+                    break;
+                case 2:
+                    name = "increase(" + ID + ") past 2^32";
+                    if(random.nextInt(20) == 0) {
+                        for (int i = 0; i < 3; i++) {
+                            eventCounter.increase(ID, Integer.MAX_VALUE);
+                            expected.merge(ID, (long) Integer.MAX_VALUE, Long::sum);
+                        }
+                    }
+                    break;
+                case 3:
+                    name = "applyBatch";
+                    int[] IDs = new int[8];
+                    int[] amounts = new int[8];
+                    for (int i = 0; i < IDs.length; i++) {
+                        IDs[i] = random.nextInt(ID_RANGE);
+                        amounts[i] = random.nextInt(7) - 3;
+                    }
+                    eventCounter.applyBatch(IDs, amounts, IDs.length);
+                    TreeMap<Integer, Long> deltas = new TreeMap<>();
+                    for (int i = 0; i < IDs.length; i++) {
+                        deltas.merge(IDs[i], (long) amounts[i], Long::sum);
+                    }
+                    deltas.forEach((deltaID, delta) -> addToCount(expected, deltaID, delta));
+                    break;
+                case 4:
+                    name = "deleteRange(" + ID + ", " + ID2 + ")";
+                    eventCounter.deleteRange(ID, ID2);
+                    expected.subMap(ID, true, ID2, true).clear();
+                    break;
+                case 5:
+                    name = "addToRange(" + ID + ", " + ID2 + ")";
+                    int delta = random.nextInt(5) - 2;
+                    eventCounter.addToRange(ID, ID2, delta);
+                    for (int rangeID : new ArrayList<>(expected.subMap(ID, true, ID2, true).keySet())) {
+                        addToCount(expected, rangeID, delta);
+                    }
+                    break;
+                default:
+                    RedBlackTreeEventCounter other = new RedBlackTreeEventCounter();
+                    TreeMap<Integer, Long> otherEvents = new TreeMap<>();
+                    for (int i = 0; i < 10; i++) {
+                        int otherID = random.nextInt(ID_RANGE);
+                        other.increase(otherID, 2);
+                        otherEvents.merge(otherID, 2L, Long::sum);
+                    }
+                    int setOperation = random.nextInt(3);
+                    if(setOperation == 0) {
+                        name = "union";
+                        eventCounter.union(other);
+                        otherEvents.forEach((otherID, count) -> expected.merge(otherID, count, Long::sum));
+                    } else if(setOperation == 1) {
+                        name = "intersection";
+                        eventCounter.intersection(other);
+                        expected.keySet().retainAll(otherEvents.keySet());
+                    } else {
+                        name = "difference";
+                        eventCounter.difference(other);
+                        expected.keySet().removeAll(otherEvents.keySet());
+                    }
+            }
+            int k = (operation % 100 == 0) ? expected.size() + 5 : 1 + random.nextInt(20);
+            checkOrder(eventCounter, expected, k, name + " at operation " + operation);
+        }
+    }
+
+    /**
+     * Adds a delta to the count of an ID of the TreeMap, removing the ID once its count drops below 1. Absent IDs are
+     * not inserted by a negative delta.
+     * @param expected The TreeMap.
+     * @param ID The ID.
+     * @param delta The delta.
+     */
+    private static void addToCount(TreeMap<Integer, Long> expected, int ID, long delta) {
+        long count = expected.getOrDefault(ID, 0L) + delta;
+        if(count > 0) {
+            expected.put(ID, count);
+        } else {
+            expected.remove(ID);
+        }
+    }
+
+    /**
+     * Compares topK(k) with the k largest counts of the TreeMap.
+     * @param eventCounter The counter.
+     * @param expected The TreeMap.
+     * @param k The number of events asked for.
+     * @param operation The last update, for the message.
+     * @throws AssertionError If the results differ.
+     */
+    private static void checkOrder(RedBlackTreeEventCounter eventCounter, TreeMap<Integer, Long> expected, int k,
+                                   String operation) {
+        List<Map.Entry<Integer, Long>> sorted = new ArrayList<>(expected.entrySet());
+        sorted.sort(Map.Entry.<Integer, Long>comparingByValue(Comparator.reverseOrder())
+                .thenComparing(Map.Entry.comparingByKey()));
+        int[] IDs = new int[k];
+        long[] counts = new long[k];
+        int copied = eventCounter.topK(k, IDs, counts);
+        if(copied != Math.min(k, sorted.size())) {
+            throw new AssertionError("topK(" + k + ") after " + operation + " copied " + copied + " events, expected "
+                    + Math.min(k, sorted.size()));
+        }
+        for (int i = 0; i < copied; i++) {
+            Map.Entry<Integer, Long> entry = sorted.get(i);
+            if(IDs[i] != entry.getKey() || counts[i] != entry.getValue()) {
+                throw new AssertionError("topK(" + k + ") after " + operation + " has " + IDs[i] + "=" + counts[i]
+                        + " at " + i + ", expected " + entry);
+            }
+        }
+    }
+}
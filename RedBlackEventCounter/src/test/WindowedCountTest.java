@@ -0,0 +1,281 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test of the windowed counts of RedBlackTreeEventCounter against a list of the recorded amounts. The counters below
+ * read a fake clock which starts before 0 and moves on by a few milliseconds or by more than the whole ring between
+ * the updates, so buckets expire and expired IDs are swept. After every update Count(ID, window) and InRange(ID1, ID2,
+ * window) are compared for random windows:
+ * 1. The pointer tree, updated by Increase, Reduce, ApplyBatch, AddToRange and Union
+ * 2. The B+ tree backend, updated by Increase, Reduce and ApplyBatch
+ * Windows which are not positive or longer than the buckets kept, a bucket length or count below 1 and a counter
+ * without windowed counts must throw. The first failure is printed and the test exits with status 1. Run it through
+ * the makefile in this directory, for example:
+ * make run-WindowedCountTest ARGS="-seed 7"
+ */
+public class WindowedCountTest {
+
+    /**
+     * The length of a time bucket in milliseconds.
+     */
+    private static final long BUCKET_MILLIS = 100;
+
+    /**
+     * The number of buckets kept per ID.
+     */
+    private static final int BUCKET_COUNT = 8;
+
+    /**
+     * The IDs are drawn from [0, ID_RANGE).
+     */
+    private static final int ID_RANGE = 300;
+
+    /**
+     * The number of updates per counter.
+     */
+    private static final int OPERATIONS = 20_000;
+
+    /**
+     * A counter under test.
+     * @param name The name printed in a failure.
+     * @param eventCounter The counter.
+     * @param tree True if the counter supports the range updates and the set operations of the pointer tree.
+     */
+    private record Subject(String name, RedBlackTreeEventCounter eventCounter, boolean tree) {
+    }
+
+    /**
+     * An amount recorded in the bucket of an epoch.
+     * @param ID The event ID.
+     * @param amount The amount.
+     * @param epoch The number of the bucket.
+     */
+    private record Recorded(int ID, long amount, long epoch) {
+    }
+
+    /**
+     * Holds the time returned by the fake clock in milliseconds.
+     */
+    private static long now;
+
+    public static void main(String[] args) {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if(args[i].equals("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        boolean passed = true;
+        try {
+            checkArguments();
+            System.out.println("passed argument checks");
+        } catch (AssertionError assertionError) {
+            System.out.println("FAILED argument checks: " + assertionError.getMessage());
+            passed = false;
+        }
+        List<Subject> subjects = List.of(new Subject("pointer tree", new RedBlackTreeEventCounter(), true),
+                new Subject("B+ tree backend", new RedBlackTreeEventCounter(new BPlusTreeEventCounterBackend()),
+                        false));
+        for (Subject subject : subjects) {
+            try {
+                checkWindows(subject, new Random(seed));
+                System.out.println("passed " + subject.name());
+            } catch (AssertionError assertionError) {
+                System.out.println("FAILED " + subject.name() + ": " + assertionError.getMessage());
+                passed = false;
+            }
+        }
+        if(!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that the rejected arguments throw and that the longest window is accepted.
+     * @throws AssertionError If an argument is handled wrongly.
+     */
+    private static void checkArguments() {
+        RedBlackTreeEventCounter eventCounter = new RedBlackTreeEventCounter();
+        expectThrow(() -> eventCounter.count(1, BUCKET_MILLIS), IllegalStateException.class,
+                "count without windowed counts");
+        expectThrow(() -> eventCounter.inRange(1, 2, BUCKET_MILLIS), IllegalStateException.class,
+                "inRange without windowed counts");
+        expectThrow(() -> eventCounter.enableWindowedCounts(0, BUCKET_COUNT, () -> now),
+                IllegalArgumentException.class, "a bucket of 0 ms");
+        expectThrow(() -> eventCounter.enableWindowedCounts(BUCKET_MILLIS, 0, () -> now),
+                IllegalArgumentException.class, "0 buckets");
+        eventCounter.enableWindowedCounts(BUCKET_MILLIS, BUCKET_COUNT, () -> now);
+        long longestWindow = BUCKET_MILLIS * BUCKET_COUNT;
+        for (long windowMillis : new long[]{0, -1, longestWindow + 1, Long.MAX_VALUE}) {
+            expectThrow(() -> eventCounter.count(1, windowMillis), IllegalArgumentException.class,
+                    "count with a window of " + windowMillis + " ms");
+            expectThrow(() -> eventCounter.inRange(1, 2, windowMillis), IllegalArgumentException.class,
+                    "inRange with a window of " + windowMillis + " ms");
+        }
+        eventCounter.increase(1, 5);
+        check(eventCounter.count(1, longestWindow), 5, "count with the longest window");
+        check(eventCounter.inRange(1, 2, 1), 5, "inRange with a window of 1 ms");
+    }
+
+    /**
+     * Updates a counter at random while the clock moves on, and compares its windowed counts with the recorded
+     * amounts after every update.
+     * @param subject The counter.
+     * @param random The source of the operations.
+     * @throws AssertionError At the first result which differs.
+     */
+    private static void checkWindows(Subject subject, Random random) {
+        RedBlackTreeEventCounter eventCounter = subject.eventCounter();
+        now = -5 * BUCKET_MILLIS * BUCKET_COUNT - 37; //Epochs below 0 need the floor of the division
+        eventCounter.enableWindowedCounts(BUCKET_MILLIS, BUCKET_COUNT, () -> now);
+        TreeMap<Integer, Long> counts = new TreeMap<>();
+        ArrayList<Recorded> recorded = new ArrayList<>();
+        int kinds = subject.tree() ? 6 : 4;
+        for (int operation = 0; operation < OPERATIONS; operation++) {
+            now += (random.nextInt(200) == 0) ? random.nextInt(3 * (int) BUCKET_MILLIS * BUCKET_COUNT)
+                    : random.nextInt(30);
+            long epoch = Math.floorDiv(now, BUCKET_MILLIS);
+            recorded.removeIf(amount -> amount.epoch() <= epoch - BUCKET_COUNT);
+            int ID = random.nextInt(ID_RANGE);
+            int ID2 = ID + random.nextInt(30);
+            String name;
+            switch (random.nextInt(kinds)) {
+                case 0:
+                case 1:
+                    name = "increase(" + ID + ")";
+                    int amount = 1 + random.nextInt(10);
+                    eventCounter.increase(ID, amount);
+                    counts.merge(ID, (long) amount, Long::sum);
+                    recorded.add(new Recorded(ID, amount, epoch));
+                    break;
+                case 2:
+                    name = "reduce(" + ID + ")";
+                    eventCounter.reduce(ID, 4);
+                    addToCount(counts, ID, -4);
+                    break;
+                case 3:
+                    name = "applyBatch";
+                    int[] IDs = new int[6];
+                    int[] amounts = new int[IDs.length];
+                    for (int i = 0; i < IDs.length; i++) {
+                        IDs[i] = (i > 0 && random.nextInt(3) == 0) ? IDs[i - 1] : random.nextInt(ID_RANGE);
+                        amounts[i] = random.nextInt(15) - 5;
+                    }
+                    eventCounter.applyBatch(IDs, amounts, IDs.length);
+                    TreeMap<Integer, Long> deltas = new TreeMap<>();
+                    for (int i = 0; i < IDs.length; i++) {
+                        deltas.merge(IDs[i], (long) amounts[i], Long::sum);
+                    }
+                    deltas.forEach((deltaID, delta) -> {
+                        addToCount(counts, deltaID, delta);
+                        if(delta > 0) {
+                            recorded.add(new Recorded(deltaID, delta, epoch));
+                        }
+                    });
+                    break;
+                case 4:
+                    name = "addToRange(" + ID + ", " + ID2 + ")";
+                    int delta = random.nextInt(7) - 3;
+                    eventCounter.addToRange(ID, ID2, delta);
+                    for (int rangeID : new ArrayList<>(counts.subMap(ID, true, ID2, true).keySet())) {
+                        addToCount(counts, rangeID, delta);
+                        if(delta > 0) {
+                            recorded.add(new Recorded(rangeID, delta, epoch));
+                        }
+                    }
+                    break;
+                default:
+                    name = "union";
+                    RedBlackTreeEventCounter other = new RedBlackTreeEventCounter();
+                    TreeMap<Integer, Long> otherCounts = new TreeMap<>();
+                    for (int i = 0; i < 5; i++) {
+                        int otherID = random.nextInt(ID_RANGE);
+                        other.increase(otherID, 3);
+                        otherCounts.merge(otherID, 3L, Long::sum);
+                    }
+                    eventCounter.union(other);
+                    otherCounts.forEach((otherID, count) -> {
+                        counts.merge(otherID, count, Long::sum);
+                        recorded.add(new Recorded(otherID, count, epoch));
+                    });
+            }
+            name += " at operation " + operation + " and " + now + " ms";
+            long windowMillis = 1 + random.nextInt((int) BUCKET_MILLIS * BUCKET_COUNT);
+            long firstEpoch = epoch - (windowMillis - 1) / BUCKET_MILLIS;
+            int queryID = random.nextInt(ID_RANGE);
+            check(eventCounter.count(queryID, windowMillis), windowedSum(recorded, queryID, queryID, firstEpoch),
+                    "count(" + queryID + ", " + windowMillis + ") after " + name);
+            int ID1 = random.nextInt(ID_RANGE + 10) - 5;
+            int rangeEnd = (operation % 100 == 0) ? Integer.MAX_VALUE : ID1 + random.nextInt(ID_RANGE / 2);
+            check(eventCounter.inRange(ID1, rangeEnd, windowMillis), windowedSum(recorded, ID1, rangeEnd, firstEpoch),
+                    "inRange(" + ID1 + ", " + rangeEnd + ", " + windowMillis + ") after " + name);
+            check(eventCounter.count(ID), counts.getOrDefault(ID, 0L), "count(" + ID + ") after " + name);
+        }
+    }
+
+    /**
+     * Sums the amounts recorded for IDs between ID1 and ID2 in the buckets from firstEpoch on.
+     * @param recorded The recorded amounts.
+     * @param ID1 The left limit of the range.
+     * @param ID2 The right limit of the range.
+     * @param firstEpoch The oldest bucket of the window.
+     * @return The windowed total.
+     */
+    private static long windowedSum(List<Recorded> recorded, int ID1, int ID2, long firstEpoch) {
+        long sum = 0;
+        for (Recorded amount : recorded) {
+            if(amount.ID() >= ID1 && amount.ID() <= ID2 && amount.epoch() >= firstEpoch) {
+                sum += amount.amount();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Adds a delta to the count of an ID of the TreeMap, removing the ID once its count drops below 1. Absent IDs are
+     * not inserted by a negative delta.
+     * @param counts The TreeMap.
+     * @param ID The ID.
+     * @param delta The delta.
+     */
+    private static void addToCount(TreeMap<Integer, Long> counts, int ID, long delta) {
+        long count = counts.getOrDefault(ID, 0L) + delta;
+        if(count > 0) {
+            counts.put(ID, count);
+        } else {
+            counts.remove(ID);
+        }
+    }
+
+    /**
+     * Fails if an operation does not throw an exception of the given type.
+     * @param operation The operation.
+     * @param type The type of the expected exception.
+     * @param name The operation, for the message.
+     */
+    private static void expectThrow(Runnable operation, Class<? extends RuntimeException> type, String name) {
+        try {
+            operation.run();
+        } catch (RuntimeException runtimeException) {
+            if(type.isInstance(runtimeException)) {
+                return;
+            }
+            throw new AssertionError(name + " threw " + runtimeException + ", expected " + type.getSimpleName());
+        }
+        throw new AssertionError(name + " did not throw");
+    }
+
+    /**
+     * Fails if a result differs from the expected value.
+     * @param actual The result of the counter.
+     * @param expected The expected result.
+     * @param operation The operation, for the message.
+     */
+    private static void check(long actual, long expected, String operation) {
+        if(actual != expected) {
+            throw new AssertionError(operation + " returned " + actual + ", expected " + expected);
+        }
+    }
+}